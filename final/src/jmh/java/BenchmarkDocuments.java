@@ -0,0 +1,43 @@
+/**
+ * BenchmarkDocuments builds synthetic markdown documents for the benchmarks.
+ * The text mixes the blocks the renderer handles, so every part of it is measured.
+ */
+public final class BenchmarkDocuments {
+    
+    private BenchmarkDocuments() {
+    }
+    
+    /**
+     * Builds a markdown document of about the given size.
+     * 
+     * @param size The size of the document in characters
+     * @return The markdown text
+     */
+    public static String markdown(int size) {
+        StringBuilder builder = new StringBuilder(size + 512);
+        int section = 0;
+        while (builder.length() < size) {
+            section++;
+            builder.append("# Section ").append(section).append('\n');
+            builder.append('\n');
+            builder.append("Some **bold** text, some *italic* text and a [link](https://example.com/")
+                   .append(section).append(").\n");
+            builder.append("A second line of the paragraph with `inline code` in it.\n");
+            builder.append('\n');
+            builder.append("## Details\n");
+            builder.append("- first item\n");
+            builder.append("- second item with **emphasis**\n");
+            builder.append("- third item\n");
+            builder.append('\n');
+            builder.append("```java\n");
+            builder.append("int value = ").append(section).append(";\n");
+            builder.append("System.out.println(value);\n");
+            builder.append("```\n");
+            builder.append('\n');
+            builder.append("> A quote about section ").append(section).append(".\n");
+            builder.append('\n');
+        }
+        builder.setLength(size);
+        return builder.toString();
+    }
+}
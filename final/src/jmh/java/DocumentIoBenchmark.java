@@ -0,0 +1,60 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks for saving and opening documents.
+ */
+@State(Scope.Benchmark)
+public class DocumentIoBenchmark {
+    
+    // 1 KB to 50 MB
+    @Param({"1024", "65536", "1048576", "52428800"})
+    public int size;
+    
+    private Path directory;
+    private MarkdownDocument document;
+    private MarkdownDocument reader;
+    private long largeFileBytes;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Read every size in full, mapped large files would not be loaded by open
+        largeFileBytes = Document.largeFileBytes;
+        Document.largeFileBytes = Long.MAX_VALUE;
+        directory = Files.createTempDirectory("codemark-bench");
+        Path file = directory.resolve("benchmark.md");
+        document = new MarkdownDocument("benchmark.md");
+        document.updateContent(BenchmarkDocuments.markdown(size));
+        document.saveAs(file.toString());
+        reader = new MarkdownDocument("reader.md");
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Document.largeFileBytes = largeFileBytes;
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    @Benchmark
+    public boolean save() {
+        return document.save();
+    }
+    
+    @Benchmark
+    public boolean open() {
+        return reader.open(document.getFilePath());
+    }
+}
@@ -0,0 +1,45 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Benchmarks for writing and reading the editor settings file.
+ */
+@State(Scope.Benchmark)
+public class EditorSettingsBenchmark {
+    
+    private Path configFile;
+    private EditorSettings settings;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        configFile = Files.createTempFile("codemark-settings", ".properties");
+        EditorSettings.setConfigFile(configFile.toString());
+        settings = new EditorSettings();
+        settings.saveSettings();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(configFile);
+    }
+    
+    @Benchmark
+    public boolean saveSettings() {
+        // Settings equal to the saved ones are not written, so every call changes one
+        settings.setWordWrap(!settings.isWordWrap());
+        return settings.saveSettings();
+    }
+    
+    @Benchmark
+    public boolean loadSettings() {
+        return settings.loadSettings();
+    }
+}
@@ -0,0 +1,36 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for rendering and validating markdown documents.
+ */
+@State(Scope.Benchmark)
+public class MarkdownDocumentBenchmark {
+    
+    // 1 KB to 50 MB
+    @Param({"1024", "65536", "1048576", "52428800"})
+    public int size;
+    
+    private MarkdownDocument document;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Built in memory, not read from a file, so sizes at or above Document.largeFileBytes are parsed too
+        document = new MarkdownDocument("benchmark.md");
+        document.updateContent(BenchmarkDocuments.markdown(size));
+    }
+    
+    @Benchmark
+    public String generatePreview() {
+        return document.generatePreview();
+    }
+    
+    @Benchmark
+    public boolean validate() {
+        return document.validate();
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BatchConverter renders every markdown file in a folder tree to an HTML file,
+ * with the same output as the preview of the editor. It runs without JavaFX, so it
+ * can be used from a build or CI job:
+ * 
+ *     java BatchConverter <source folder> <target folder> [--highlight] [--threads N]
+ * 
+ * Files are rendered on a work-stealing pool while the folder is walked. The walk
+ * waits when the heap taken by the files being rendered adds up to IN_FLIGHT_BYTES,
+ * so memory use stays bounded however large the tree is. The HTML of a file is
+ * written while it is rendered and is never held in memory as a whole.
+ */
+public class BatchConverter {
+    // The most bytes of heap the files being rendered take at the same time
+    static final int IN_FLIGHT_BYTES = 64 * 1024 * 1024;
+    
+    private final Path source;
+    private final Path target;
+    private final int threads;
+    private final boolean syntaxHighlighting;
+    
+    /**
+     * The counts and timing of a conversion.
+     */
+    public static class Result {
+        private final int files;
+        private final int failed;
+        private final long inputBytes;
+        private final long outputBytes;
+        private final long nanos;
+        
+        Result(int files, int failed, long inputBytes, long outputBytes, long nanos) {
+            this.files = files;
+            this.failed = failed;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.nanos = nanos;
+        }
+        
+        /**
+         * Returns the number of files that were converted.
+         * 
+         * @return The converted file count
+         */
+        public int getFiles() {
+            return files;
+        }
+        
+        /**
+         * Returns the number of files that could not be read or written.
+         * 
+         * @return The failed file count
+         */
+        public int getFailed() {
+            return failed;
+        }
+        
+        public long getInputBytes() {
+            return inputBytes;
+        }
+        
+        /**
+         * Returns the size of the HTML files that were written.
+         * 
+         * @return The bytes written
+         */
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+        
+        public long getNanos() {
+            return nanos;
+        }
+        
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            double megabytes = inputBytes / (1024.0 * 1024.0);
+            String format = "Converted %d files (%.1f MB) in %.2f s: %.1f files/s, %.1f MB/s, %d failed";
+            return String.format(Locale.ROOT, format, files, megabytes, seconds, files / seconds,
+                                 megabytes / seconds, failed);
+        }
+    }
+    
+    /**
+     * Constructor for a converter.
+     * 
+     * @param source The folder with the markdown files
+     * @param target The folder the HTML files are written to, with the same layout
+     * @param threads The number of threads rendering files
+     * @param syntaxHighlighting Whether fenced code is highlighted
+     */
+    public BatchConverter(Path source, Path target, int threads, boolean syntaxHighlighting) {
+        this.source = source.toAbsolutePath().normalize();
+        this.target = target.toAbsolutePath().normalize();
+        this.threads = Math.max(1, threads);
+        this.syntaxHighlighting = syntaxHighlighting;
+    }
+    
+    /**
+     * Converts all markdown files in the source folder. Hidden folders and the target
+     * folder, if it is inside the source folder, are skipped. A file that fails is
+     * reported on the error stream and the other files are still converted.
+     * 
+     * @return The counts and timing of the conversion
+     * @throws IOException If the source folder cannot be walked
+     */
+    public Result convert() throws IOException {
+        long start = System.nanoTime();
+        AtomicInteger converted = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong inputBytes = new AtomicLong();
+        AtomicLong outputBytes = new AtomicLong();
+        Semaphore inFlight = new Semaphore(IN_FLIGHT_BYTES);
+        
+        // Renderers reuse their buffer and are not thread safe, so each worker has one
+        ThreadLocal<MarkdownRenderer> renderers = ThreadLocal.withInitial(() -> {
+            MarkdownRenderer renderer = new MarkdownRenderer();
+            renderer.setSyntaxHighlighting(syntaxHighlighting);
+            return renderer;
+        });
+        
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    boolean hidden = !dir.equals(source) && dir.getFileName().toString().startsWith(".");
+                    return hidden || dir.equals(target) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (!attributes.isRegularFile() || !isMarkdown(file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    // Wait for rendered files to be written before reading more
+                    int permits = (int) Math.min(Math.max(heapBytes(attributes.size()), 1), IN_FLIGHT_BYTES);
+                    inFlight.acquireUninterruptibly(permits);
+                    pool.execute(() -> {
+                        try {
+                            long written = convertFile(file, renderers.get());
+                            inputBytes.addAndGet(attributes.size());
+                            outputBytes.addAndGet(written);
+                            converted.incrementAndGet();
+                        } catch (IOException | RuntimeException e) {
+                            failed.incrementAndGet();
+                            System.err.println("Failed: " + file + ": " + e.getMessage());
+                        } finally {
+                            inFlight.release(permits);
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    failed.incrementAndGet();
+                    System.err.println("Failed: " + file + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            
+            // All permits are back once every file was written
+            inFlight.acquireUninterruptibly(IN_FLIGHT_BYTES);
+        } finally {
+            pool.shutdown();
+        }
+        return new Result(converted.get(), failed.get(), inputBytes.get(), outputBytes.get(),
+                          System.nanoTime() - start);
+    }
+    
+    /**
+     * Returns the HTML file a markdown file is written to.
+     * 
+     * @param file The markdown file in the source folder
+     * @return The HTML file in the target folder
+     */
+    Path outputFile(Path file) {
+        Path relative = source.relativize(file.toAbsolutePath().normalize());
+        String name = relative.getFileName().toString();
+        return target.resolve(relative).resolveSibling(name.substring(0, name.lastIndexOf('.')) + ".html");
+    }
+    
+    /**
+     * Estimates the heap a file takes while it is rendered. A file read in full takes
+     * its bytes while they are decoded and up to two bytes for every character. A
+     * large file is mapped, and only the chunks it has decoded take heap.
+     * 
+     * @param size The size of the file in bytes
+     * @return The estimated heap use in bytes
+     */
+    static long heapBytes(long size) {
+        return size >= Document.largeFileBytes ? MappedTextBuffer.CACHE_BYTES : 3 * size;
+    }
+    
+    /**
+     * Renders one file, writing the HTML while it is rendered.
+     * 
+     * @return The number of bytes written
+     */
+    private long convertFile(Path file, MarkdownRenderer renderer) throws IOException {
+        CharSequence text = Document.readText(file);
+        Path output = outputFile(file);
+        Files.createDirectories(output.getParent());
+        try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            renderer.render(text, writer);
+        }
+        return Files.size(output);
+    }
+    
+    private static boolean isMarkdown(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".md") || name.endsWith(".markdown");
+    }
+    
+    public static void main(String[] args) {
+        Path source = null;
+        Path target = null;
+        boolean highlight = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--highlight")) {
+                highlight = true;
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    source = null;
+                    break;
+                }
+            } else if (source == null) {
+                source = Paths.get(args[i]);
+            } else if (target == null) {
+                target = Paths.get(args[i]);
+            }
+        }
+        
+        if (source == null || target == null || !Files.isDirectory(source)) {
+            System.err.println("Usage: BatchConverter <source folder> <target folder> [--highlight] [--threads N]");
+            System.exit(2);
+        }
+        
+        try {
+            Result result = new BatchConverter(source, target, threads, highlight).convert();
+            System.out.println(result);
+            System.exit(result.getFailed() == 0 ? 0 : 1);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
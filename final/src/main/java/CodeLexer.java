@@ -0,0 +1,387 @@
+import java.util.Set;
+
+/**
+ * CodeLexer splits the code of a fenced block into styled tokens, one line at a time.
+ * The state passed from one line to the next is a small int (for example "inside a
+ * block comment"), so a caller can cache it per line and restart lexing anywhere.
+ */
+public enum CodeLexer {
+    JAVA {
+        @Override
+        public int lex(CharSequence text, int start, int end, int state, SpanSink sink) {
+            int pos = start;
+            if (state == JAVA_COMMENT) {
+                pos = endOfBlockComment(text, pos, pos, end, sink);
+                if (pos < 0) {
+                    return JAVA_COMMENT;
+                }
+            } else if (state == JAVA_TEXT_BLOCK) {
+                pos = endOfTextBlock(text, pos, pos, end, sink);
+                if (pos < 0) {
+                    return JAVA_TEXT_BLOCK;
+                }
+            }
+            
+            while (pos < end) {
+                char c = text.charAt(pos);
+                if (c == '/' && pos + 1 < end && text.charAt(pos + 1) == '/') {
+                    sink.span(pos, end, Style.COMMENT);
+                    return PLAIN;
+                }
+                if (c == '/' && pos + 1 < end && text.charAt(pos + 1) == '*') {
+                    pos = endOfBlockComment(text, pos, pos + 2, end, sink);
+                    if (pos < 0) {
+                        return JAVA_COMMENT;
+                    }
+                } else if (c == '"' && startsWith(text, pos, end, "\"\"\"")) {
+                    pos = endOfTextBlock(text, pos, pos + 3, end, sink);
+                    if (pos < 0) {
+                        return JAVA_TEXT_BLOCK;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    // Java strings end at the end of the line
+                    int close = endOfQuoted(text, pos + 1, end, c, true);
+                    close = close < 0 ? end : close;
+                    sink.span(pos, close, Style.STRING);
+                    pos = close;
+                } else if (c == '@' && pos + 1 < end && Character.isJavaIdentifierStart(text.charAt(pos + 1))) {
+                    int wordEnd = endOfWord(text, pos + 1, end);
+                    sink.span(pos, wordEnd, Style.ANNOTATION);
+                    pos = wordEnd;
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    int wordEnd = endOfWord(text, pos, end);
+                    String word = text.subSequence(pos, wordEnd).toString();
+                    if (JAVA_KEYWORDS.contains(word)) {
+                        sink.span(pos, wordEnd, Style.KEYWORD);
+                    } else if (word.equals("true") || word.equals("false") || word.equals("null")) {
+                        sink.span(pos, wordEnd, Style.LITERAL);
+                    }
+                    pos = wordEnd;
+                } else if (isDigit(c)) {
+                    int numberEnd = endOfNumber(text, pos, end);
+                    sink.span(pos, numberEnd, Style.NUMBER);
+                    pos = numberEnd;
+                } else {
+                    pos++;
+                }
+            }
+            return PLAIN;
+        }
+    },
+    
+    SHELL {
+        @Override
+        public int lex(CharSequence text, int start, int end, int state, SpanSink sink) {
+            int pos = start;
+            if (state == SHELL_SINGLE || state == SHELL_DOUBLE) {
+                int close = endOfQuoted(text, pos, end, state == SHELL_SINGLE ? '\'' : '"', state == SHELL_DOUBLE);
+                if (close < 0) {
+                    if (pos < end) {
+                        sink.span(pos, end, Style.STRING);
+                    }
+                    return state;
+                }
+                sink.span(pos, close, Style.STRING);
+                pos = close;
+            }
+            
+            while (pos < end) {
+                char c = text.charAt(pos);
+                if (c == '#' && (pos == start || Character.isWhitespace(text.charAt(pos - 1)))) {
+                    sink.span(pos, end, Style.COMMENT);
+                    return PLAIN;
+                }
+                if (c == '\'' || c == '"') {
+                    int close = endOfQuoted(text, pos + 1, end, c, c == '"');
+                    if (close < 0) {
+                        // Shell strings continue on the next line
+                        sink.span(pos, end, Style.STRING);
+                        return c == '\'' ? SHELL_SINGLE : SHELL_DOUBLE;
+                    }
+                    sink.span(pos, close, Style.STRING);
+                    pos = close;
+                } else if (c == '$' && pos + 1 < end) {
+                    int varEnd = endOfVariable(text, pos + 1, end);
+                    if (varEnd > pos + 1) {
+                        sink.span(pos, varEnd, Style.VARIABLE);
+                    }
+                    pos = Math.max(varEnd, pos + 1);
+                } else if (Character.isLetter(c) || c == '_') {
+                    int wordEnd = endOfShellWord(text, pos, end);
+                    if (SHELL_KEYWORDS.contains(text.subSequence(pos, wordEnd).toString())) {
+                        sink.span(pos, wordEnd, Style.KEYWORD);
+                    }
+                    pos = wordEnd;
+                } else if (isDigit(c) && (pos == start || !Character.isLetterOrDigit(text.charAt(pos - 1)))) {
+                    int numberEnd = endOfShellWord(text, pos, end);
+                    if (isAllDigits(text, pos, numberEnd)) {
+                        sink.span(pos, numberEnd, Style.NUMBER);
+                    }
+                    pos = numberEnd;
+                } else {
+                    pos++;
+                }
+            }
+            return PLAIN;
+        }
+    },
+    
+    JSON {
+        @Override
+        public int lex(CharSequence text, int start, int end, int state, SpanSink sink) {
+            int pos = start;
+            while (pos < end) {
+                char c = text.charAt(pos);
+                if (c == '"') {
+                    int close = endOfQuoted(text, pos + 1, end, '"', true);
+                    close = close < 0 ? end : close;
+                    // A string followed by a colon is the name of a property
+                    int next = close;
+                    while (next < end && Character.isWhitespace(text.charAt(next))) {
+                        next++;
+                    }
+                    sink.span(pos, close, next < end && text.charAt(next) == ':' ? Style.PROPERTY : Style.STRING);
+                    pos = close;
+                } else if (c == '-' || isDigit(c)) {
+                    int numberEnd = endOfNumber(text, pos + 1, end);
+                    sink.span(pos, numberEnd, Style.NUMBER);
+                    pos = numberEnd;
+                } else if (Character.isLetter(c)) {
+                    int wordEnd = endOfWord(text, pos, end);
+                    String word = text.subSequence(pos, wordEnd).toString();
+                    if (word.equals("true") || word.equals("false") || word.equals("null")) {
+                        sink.span(pos, wordEnd, Style.LITERAL);
+                    }
+                    pos = wordEnd;
+                } else {
+                    pos++;
+                }
+            }
+            return PLAIN;
+        }
+    };
+    
+    /**
+     * The state at the start of a line that has no open comment or string.
+     */
+    public static final int PLAIN = 0;
+    
+    private static final int JAVA_COMMENT = 1;
+    private static final int JAVA_TEXT_BLOCK = 2;
+    private static final int SHELL_SINGLE = 1;
+    private static final int SHELL_DOUBLE = 2;
+    
+    private static final Set<String> JAVA_KEYWORDS = Set.of(
+        "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+        "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+        "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+        "new", "package", "private", "protected", "public", "record", "return", "short", "static",
+        "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try",
+        "var", "void", "volatile", "while", "yield"
+    );
+    
+    private static final Set<String> SHELL_KEYWORDS = Set.of(
+        "if", "then", "else", "elif", "fi", "for", "while", "until", "do", "done", "case", "esac",
+        "in", "function", "return", "select", "export", "local", "readonly"
+    );
+    
+    /**
+     * The styles of the tokens.
+     */
+    public enum Style {
+        KEYWORD,
+        STRING,
+        COMMENT,
+        NUMBER,
+        LITERAL,
+        PROPERTY,
+        VARIABLE,
+        ANNOTATION;
+        
+        /**
+         * Returns the CSS class the preview uses for this style.
+         * 
+         * @return The CSS class name
+         */
+        public String cssClass() {
+            return "tok-" + name().toLowerCase();
+        }
+    }
+    
+    /**
+     * Receives the styled tokens of a line, in order.
+     */
+    public interface SpanSink {
+        /**
+         * Called for a styled token.
+         * 
+         * @param start The start of the token (inclusive)
+         * @param end The end of the token (exclusive)
+         * @param style The style of the token
+         */
+        void span(int start, int end, Style style);
+    }
+    
+    /**
+     * Lexes a range of one line. The range must not contain a line terminator.
+     * 
+     * @param text The text
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @param state The state at the start of the range, PLAIN for the first line
+     * @param sink Receives the styled tokens
+     * @return The state at the end of the range
+     */
+    public abstract int lex(CharSequence text, int start, int end, int state, SpanSink sink);
+    
+    /**
+     * Finds the lexer for the language named after the opening code fence.
+     * 
+     * @param name The language name, for example "java", "sh" or "json"
+     * @return The lexer, or null if the language is not supported
+     */
+    public static CodeLexer forLanguage(CharSequence name) {
+        switch (name.toString().toLowerCase()) {
+            case "java":
+                return JAVA;
+            case "sh":
+            case "bash":
+            case "shell":
+            case "zsh":
+            case "console":
+                return SHELL;
+            case "json":
+                return JSON;
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Emits a block comment that starts at spanStart and returns the position after
+     * its end, or -1 if it continues on the next line. The end is searched from pos.
+     */
+    private static int endOfBlockComment(CharSequence text, int spanStart, int pos, int end, SpanSink sink) {
+        for (int i = pos; i + 1 < end; i++) {
+            if (text.charAt(i) == '*' && text.charAt(i + 1) == '/') {
+                sink.span(spanStart, i + 2, Style.COMMENT);
+                return i + 2;
+            }
+        }
+        if (spanStart < end) {
+            sink.span(spanStart, end, Style.COMMENT);
+        }
+        return -1;
+    }
+    
+    /**
+     * Emits a text block that starts at spanStart and returns the position after
+     * its end, or -1 if it continues on the next line. The end is searched from pos.
+     */
+    private static int endOfTextBlock(CharSequence text, int spanStart, int pos, int end, SpanSink sink) {
+        for (int i = pos; i + 2 < end; i++) {
+            if (text.charAt(i) == '\\') {
+                i++;
+            } else if (startsWith(text, i, end, "\"\"\"")) {
+                sink.span(spanStart, i + 3, Style.STRING);
+                return i + 3;
+            }
+        }
+        if (spanStart < end) {
+            sink.span(spanStart, end, Style.STRING);
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the position after the closing quote, searching from pos, or -1 if
+     * the string is not closed on this line.
+     */
+    private static int endOfQuoted(CharSequence text, int pos, int end, char quote, boolean escapes) {
+        for (int i = pos; i < end; i++) {
+            char c = text.charAt(i);
+            if (escapes && c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    private static int endOfWord(CharSequence text, int pos, int end) {
+        while (pos < end && Character.isJavaIdentifierPart(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static int endOfShellWord(CharSequence text, int pos, int end) {
+        while (pos < end && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_'
+                             || text.charAt(pos) == '-')) {
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static int endOfVariable(CharSequence text, int pos, int end) {
+        char c = text.charAt(pos);
+        if (c == '{') {
+            for (int i = pos + 1; i < end; i++) {
+                if (text.charAt(i) == '}') {
+                    return i + 1;
+                }
+            }
+            return end;
+        }
+        if (isDigit(c) || c == '?' || c == '@' || c == '#' || c == '$' || c == '*' || c == '!' || c == '-') {
+            return pos + 1;
+        }
+        while (pos < end && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static int endOfNumber(CharSequence text, int pos, int end) {
+        while (pos < end) {
+            char c = text.charAt(pos);
+            if (c == '+' || c == '-') {
+                // Only the sign of an exponent is part of a number
+                char previous = text.charAt(pos - 1);
+                if (previous != 'e' && previous != 'E') {
+                    break;
+                }
+            } else if (!Character.isLetterOrDigit(c) && c != '.' && c != '_') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private static boolean isAllDigits(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isDigit(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean startsWith(CharSequence text, int pos, int end, String prefix) {
+        if (pos + prefix.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(pos + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
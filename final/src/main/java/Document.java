@@ -1,22 +1,38 @@
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Abstract Document class that serves as a foundation for all document types in the application.
  * Contains common fields and methods for document handling.
  */
 public abstract class Document {
+    // Files at least this large are mapped into memory instead of being read
+    static final long DEFAULT_LARGE_FILE_BYTES = 32L * 1024 * 1024;
+    static long largeFileBytes = DEFAULT_LARGE_FILE_BYTES;
+    
     protected String filePath;
-    protected String content;
+    protected TextBuffer content;
     protected LocalDateTime lastModified;
     protected LocalDateTime lastSaved;
     protected boolean isModified;
     protected String title;
+    protected boolean largeFile;
+    protected boolean recovered;
+    
+    // The file as it was last read or written, set on the save thread too
+    private volatile FileState diskState;
+    // Kept with the document, so switching to another document keeps it
+    private final UndoManager undoManager = new UndoManager(UndoManager.DEFAULT_MEMORY_LIMIT);
+    
+    // Increased by every change of the content
+    private long version;
+    private final List<DocumentListener> listeners = new CopyOnWriteArrayList<>();
     
     /**
      * Constructor for a new document.
@@ -25,7 +41,7 @@ public abstract class Document {
      */
     public Document(String title) {
         this.title = title;
-        this.content = "";
+        this.content = createBuffer("");
         this.isModified = false;
         this.lastModified = LocalDateTime.now();
     }
@@ -39,15 +55,17 @@ public abstract class Document {
     public Document(File file) throws IOException {
         this.filePath = file.getAbsolutePath();
         Path path = file.toPath();
-        this.content = Files.readString(path);
+        this.content = readBuffer(path);
+        this.diskState = FileState.of(path, largeFile ? null : content);
         this.title = file.getName();
-        this.isModified = false;
+        this.isModified = recoverJournal(path);
         this.lastModified = LocalDateTime.now();
         this.lastSaved = LocalDateTime.now();
     }
     
     /**
      * Saves the document to the specified path.
+     * The file is replaced in one step, so a failed save leaves the old file intact.
      * 
      * @return true if save was successful, false otherwise
      */
@@ -56,8 +74,8 @@ public abstract class Document {
             return false;
         }
         
-        try (FileWriter writer = new FileWriter(filePath)) {
-            writer.write(content);
+        try {
+            this.diskState = SaveService.writeAtomically(Paths.get(filePath), content, false);
             this.lastSaved = LocalDateTime.now();
             this.isModified = false;
             return true;
@@ -77,6 +95,47 @@ public abstract class Document {
         return save();
     }
     
+    /**
+     * Sets the path the document is saved to, without saving it.
+     * 
+     * @param path The new path of the document
+     */
+    public void setFilePath(String path) {
+        this.filePath = path;
+    }
+    
+    /**
+     * Records that a version of the document was saved, for saves made by a
+     * SaveService. The document stays modified if it changed since that version.
+     * 
+     * @param savedVersion The version that was saved
+     */
+    public void markSaved(long savedVersion) {
+        this.lastSaved = LocalDateTime.now();
+        if (savedVersion == version) {
+            this.isModified = false;
+        }
+    }
+    
+    /**
+     * Returns the state of the file as the document last read or wrote it, to
+     * find out whether someone else changed the file since.
+     * 
+     * @return The file state, or null if the document has no file
+     */
+    public FileState getDiskState() {
+        return diskState;
+    }
+    
+    /**
+     * Records the state of the file after a SaveService wrote it.
+     * 
+     * @param diskState The new file state
+     */
+    void setDiskState(FileState diskState) {
+        this.diskState = diskState;
+    }
+    
     /**
      * Opens a document from the file system.
      * 
@@ -86,18 +145,84 @@ public abstract class Document {
     public boolean open(String path) {
         try {
             Path filePath = Paths.get(path);
-            this.content = Files.readString(filePath);
+            int oldLength = content == null ? 0 : content.length();
+            this.content = readBuffer(filePath);
+            this.diskState = FileState.of(filePath, largeFile ? null : content);
             this.filePath = path;
             this.title = new File(path).getName();
-            this.isModified = false;
+            this.isModified = recoverJournal(filePath);
             this.lastModified = LocalDateTime.now();
             this.lastSaved = LocalDateTime.now();
+            // The edits do not apply to the text that was read
+            undoManager.clear();
+            contentReset();
+            fireChange(new DocumentChange(0, oldLength, content, ++version));
             return true;
         } catch (IOException e) {
             return false;
         }
     }
     
+    /**
+     * Creates the buffer that holds the text of the document. Subclasses can
+     * override this to store the text differently.
+     * 
+     * @param text The initial text
+     * @return The buffer
+     */
+    protected TextBuffer createBuffer(CharSequence text) {
+        return Rope.of(text);
+    }
+    
+    /**
+     * Reads the text of a file. Large files are mapped into memory and decoded
+     * as they are read, so opening one does not wait for the whole file. Their
+     * characters are counted in the background, and the first edit waits until
+     * the count is done.
+     * 
+     * @param path The file to read
+     * @return The buffer with the text of the file
+     * @throws IOException If the file cannot be read
+     */
+    protected TextBuffer readBuffer(Path path) throws IOException {
+        CharSequence text = readText(path);
+        largeFile = text instanceof MappedTextBuffer;
+        return largeFile ? (TextBuffer) text : createBuffer(text);
+    }
+    
+    /**
+     * Reads the text of a file the way documents load it: large files are mapped
+     * into memory, other files are read into a string.
+     * 
+     * @param path The file to read
+     * @return The text of the file, a MappedTextBuffer for large files
+     * @throws IOException If the file cannot be read, or is read in full and is not
+     *                     valid UTF-8. A large file that is not valid UTF-8 shows the
+     *                     invalid bytes as U+FFFD and cannot be saved.
+     */
+    static CharSequence readText(Path path) throws IOException {
+        if (Files.size(path) >= largeFileBytes) {
+            return MappedTextBuffer.open(path);
+        }
+        return Files.readString(path);
+    }
+    
+    /**
+     * Applies the autosave journal of a file to the content read from it, so edits
+     * that were not saved to the file before a crash are not lost.
+     * 
+     * @param path The file the content was read from
+     * @return true if edits were recovered, false otherwise
+     */
+    private boolean recoverJournal(Path path) {
+        TextBuffer journaled = EditJournal.replay(path, content);
+        this.recovered = journaled != null;
+        if (recovered) {
+            this.content = journaled;
+        }
+        return recovered;
+    }
+    
     /**
      * Validates the document content.
      * Implementation depends on document type.
@@ -108,20 +233,162 @@ public abstract class Document {
     
     /**
      * Updates the document content and marks it as modified.
+     * Only the part that differs from the old content is published as a change.
      * 
      * @param newContent The new content of the document
      */
     public void updateContent(String newContent) {
-        this.content = newContent;
+        TextBuffer oldContent = content;
+        this.content = newContent == null ? null : createBuffer(newContent);
+        this.isModified = true;
+        this.lastModified = LocalDateTime.now();
+        
+        if (oldContent == null || newContent == null) {
+            contentReset();
+            fireChange(new DocumentChange(0, oldContent == null ? 0 : oldContent.length(),
+                                          newContent == null ? "" : newContent, ++version));
+            return;
+        }
+        
+        // Find the changed range by skipping the common prefix and suffix
+        int oldLength = oldContent.length();
+        int newLength = newContent.length();
+        int prefix = 0;
+        int maxPrefix = Math.min(oldLength, newLength);
+        while (prefix < maxPrefix && oldContent.charAt(prefix) == newContent.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix
+               && oldContent.charAt(oldLength - 1 - suffix) == newContent.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+        
+        if (prefix != oldLength || prefix != newLength) {
+            edited(new DocumentChange(prefix, oldLength - prefix - suffix,
+                                      newContent.substring(prefix, newLength - suffix), ++version));
+        }
+    }
+    
+    /**
+     * Inserts text into the document and marks it as modified.
+     * 
+     * @param offset The offset to insert at
+     * @param text The text to insert
+     */
+    public void insert(int offset, String text) {
+        replace(offset, 0, text);
+    }
+    
+    /**
+     * Deletes text from the document and marks it as modified.
+     * 
+     * @param offset The offset of the first character to delete
+     * @param length The number of characters to delete
+     */
+    public void delete(int offset, int length) {
+        replace(offset, length, "");
+    }
+    
+    /**
+     * Replaces a range of the document and marks it as modified.
+     * Only the edited part of the content is touched.
+     * 
+     * @param offset The offset where the range starts
+     * @param length The length of the range
+     * @param text The text to put in place of the range
+     */
+    public void replace(int offset, int length, String text) {
+        // Only counts a large file up to the range, the edit below counts the rest
+        int available = content instanceof MappedTextBuffer ? ((MappedTextBuffer) content).lengthUpTo(offset + length)
+                                                            : content.length();
+        if (offset < 0 || length < 0 || offset + length > available) {
+            throw new IndexOutOfBoundsException("range [" + offset + ", " + (offset + length)
+                                                + "), length " + available);
+        }
+        if (length == 0 && text.isEmpty()) {
+            return;
+        }
+        
+        this.content = content.replace(offset, offset + length, text);
         this.isModified = true;
         this.lastModified = LocalDateTime.now();
+        edited(new DocumentChange(offset, length, text, ++version));
+    }
+    
+    /**
+     * Called after a range of the content was replaced, before the listeners are notified.
+     * Subclasses can override this to update what they derive from the content.
+     * 
+     * @param change The change that was made
+     */
+    protected void contentEdited(DocumentChange change) {
+    }
+    
+    /**
+     * Called after the whole content was replaced, before the listeners are notified.
+     */
+    protected void contentReset() {
+    }
+    
+    private void edited(DocumentChange change) {
+        contentEdited(change);
+        fireChange(change);
+    }
+    
+    private void fireChange(DocumentChange change) {
+        for (DocumentListener listener : listeners) {
+            listener.documentChanged(this, change);
+        }
+    }
+    
+    /**
+     * Adds a listener that is notified about every change of the content.
+     * 
+     * @param listener The listener to add
+     */
+    public void addListener(DocumentListener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(DocumentListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Returns the version of the content, which increases with every change.
+     * 
+     * @return The content version
+     */
+    public long getVersion() {
+        return version;
     }
     
     public String getFilePath() {
         return filePath;
     }
     
+    /**
+     * Returns the text of the document as a string. The string is built once
+     * per change, use getBuffer to read the text without copying it.
+     * 
+     * @return The document text
+     */
     public String getContent() {
+        return content == null ? null : content.toString();
+    }
+    
+    /**
+     * Returns the undo history of the edits made in the editor.
+     * 
+     * @return The undo history
+     */
+    public UndoManager getUndoManager() {
+        return undoManager;
+    }
+    
+    public TextBuffer getBuffer() {
         return content;
     }
     
@@ -137,6 +404,26 @@ public abstract class Document {
         return isModified;
     }
     
+    /**
+     * Checks whether the document was opened from a large file, whose text is
+     * read from the file as needed instead of being kept in memory.
+     * 
+     * @return true if the document is a large file, false otherwise
+     */
+    public boolean isLargeFile() {
+        return largeFile;
+    }
+    
+    /**
+     * Checks whether edits from an autosave journal were applied when the
+     * document was opened.
+     * 
+     * @return true if edits were recovered, false otherwise
+     */
+    public boolean isRecovered() {
+        return recovered;
+    }
+    
     public String getTitle() {
         return title;
     }
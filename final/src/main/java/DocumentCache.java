@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DocumentCache keeps the documents of the open tabs in memory, together with their
+ * preview blocks and rendered HTML, so switching tabs does not read and render the
+ * files again. When the estimated heap use of the documents grows beyond a budget,
+ * the least recently used documents are dropped and read again from their file when
+ * they are needed. Documents with unsaved changes or without a file are never dropped,
+ * since they cannot be read again.
+ */
+public class DocumentCache {
+    private final long budgetBytes;
+    
+    // Open entries with their estimated size, from least to most recently used
+    private final Map<Entry, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+    
+    /**
+     * An open document, which is either in memory or was dropped and has to be read
+     * again from its file.
+     */
+    public static final class Entry {
+        private MarkdownDocument document;
+        private Path path;
+        private String title;
+        
+        private Entry(MarkdownDocument document) {
+            this.document = document;
+        }
+        
+        /**
+         * Checks whether the document is in memory.
+         * 
+         * @return true if the document is loaded, false if it was dropped
+         */
+        public boolean isLoaded() {
+            return document != null;
+        }
+        
+        /**
+         * Returns the title of the document, also when it was dropped.
+         * 
+         * @return The document title
+         */
+        public String getTitle() {
+            return document != null ? document.getTitle() : title;
+        }
+        
+        /**
+         * Returns the file of the document.
+         * 
+         * @return The absolute file path, or null if the document has no file
+         */
+        public Path getPath() {
+            if (document == null) {
+                return path;
+            }
+            String filePath = document.getFilePath();
+            return filePath == null || filePath.isEmpty() ? null : Paths.get(filePath).toAbsolutePath().normalize();
+        }
+        
+        /**
+         * Returns the document if it is in memory.
+         * 
+         * @return The document, or null if it was dropped
+         */
+        public MarkdownDocument peek() {
+            return document;
+        }
+    }
+    
+    /**
+     * Constructor for a cache.
+     * 
+     * @param budgetBytes How much heap the documents may use before unmodified ones are dropped
+     */
+    public DocumentCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+    
+    /**
+     * Adds an open document. It counts as the most recently used one.
+     * 
+     * @param document The document
+     * @return The entry of the document
+     */
+    public Entry add(MarkdownDocument document) {
+        Entry entry = new Entry(document);
+        entries.put(entry, 0L);
+        trim(entry);
+        return entry;
+    }
+    
+    /**
+     * Finds the entry of the document that belongs to a file.
+     * 
+     * @param path The file
+     * @return The entry, or null if no open document belongs to the file
+     */
+    public Entry find(Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        for (Entry entry : entries.keySet()) {
+            if (normalized.equals(entry.getPath())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the document of an entry, reading it again from its file if it was
+     * dropped. The entry becomes the most recently used one, and other documents
+     * are dropped if the budget is exceeded.
+     * 
+     * @param entry The entry
+     * @return The document
+     * @throws IOException If a dropped document cannot be read again
+     */
+    public MarkdownDocument get(Entry entry) throws IOException {
+        if (!entries.containsKey(entry)) {
+            throw new IllegalArgumentException("The entry was removed");
+        }
+        if (entry.document == null) {
+            entry.document = new MarkdownDocument(entry.path.toFile());
+            entry.path = null;
+            entry.title = null;
+        }
+        // Looking the entry up moves it to the most recently used end
+        entries.get(entry);
+        trim(entry);
+        return entry.document;
+    }
+    
+    /**
+     * Removes an entry, when its tab is closed.
+     * 
+     * @param entry The entry
+     */
+    public void remove(Entry entry) {
+        Long size = entries.remove(entry);
+        if (size != null) {
+            usedBytes -= size;
+        }
+    }
+    
+    /**
+     * Lists the entries from least to most recently used.
+     * 
+     * @return The entries
+     */
+    public List<Entry> entries() {
+        return new ArrayList<>(entries.keySet());
+    }
+    
+    /**
+     * Returns the estimated heap use of the documents in memory, as of the last
+     * time the cache was used.
+     * 
+     * @return The estimated heap use in bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+    
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+    
+    /**
+     * Estimates the size of the documents again, since they change with edits, and
+     * drops the least recently used documents that can be read again until the
+     * documents fit in the budget.
+     * 
+     * @param keep The entry that is in use and is never dropped
+     */
+    private void trim(Entry keep) {
+        usedBytes = 0;
+        for (Map.Entry<Entry, Long> item : entries.entrySet()) {
+            MarkdownDocument document = item.getKey().document;
+            long size = document == null ? 0 : document.estimateMemory();
+            item.setValue(size);
+            usedBytes += size;
+        }
+        
+        for (Map.Entry<Entry, Long> item : entries.entrySet()) {
+            if (usedBytes <= budgetBytes) {
+                return;
+            }
+            Entry entry = item.getKey();
+            if (entry != keep && entry.document != null && !entry.document.isModified() && entry.getPath() != null) {
+                entry.path = entry.getPath();
+                entry.title = entry.document.getTitle();
+                entry.document = null;
+                usedBytes -= item.getValue();
+                item.setValue(0L);
+            }
+        }
+    }
+}
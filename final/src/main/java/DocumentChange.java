@@ -0,0 +1,46 @@
+/**
+ * DocumentChange describes one edit of a document: a range of text that was
+ * replaced by new text. Every change carries the version of the document after
+ * the change, and versions only ever increase.
+ */
+public class DocumentChange {
+    private final int offset;
+    private final int removedLength;
+    private final CharSequence insertedText;
+    private final long version;
+    
+    /**
+     * Constructor for a change.
+     * 
+     * @param offset The offset where the change starts
+     * @param removedLength The number of characters removed at the offset
+     * @param insertedText The text inserted at the offset
+     * @param version The version of the document after the change
+     */
+    public DocumentChange(int offset, int removedLength, CharSequence insertedText, long version) {
+        this.offset = offset;
+        this.removedLength = removedLength;
+        this.insertedText = insertedText;
+        this.version = version;
+    }
+    
+    public int getOffset() {
+        return offset;
+    }
+    
+    public int getRemovedLength() {
+        return removedLength;
+    }
+    
+    public CharSequence getInsertedText() {
+        return insertedText;
+    }
+    
+    public int getInsertedLength() {
+        return insertedText.length();
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+}
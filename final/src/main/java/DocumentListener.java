@@ -0,0 +1,14 @@
+/**
+ * DocumentListener is notified about every change of a document, in the order
+ * the changes were made.
+ */
+public interface DocumentListener {
+    
+    /**
+     * Called after the document changed.
+     * 
+     * @param document The document that changed
+     * @param change The change that was made
+     */
+    void documentChanged(Document document, DocumentChange change);
+}
@@ -0,0 +1,320 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+
+/**
+ * EditJournal is the autosave journal of a document. Instead of writing the whole
+ * file after every edit, the edits are appended to a small journal file next to it,
+ * and the whole text is only written now and then as a checkpoint, which starts an
+ * empty journal. The journal header records the size and modification time of the
+ * file it applies to, so a journal left by a crash is only replayed onto that file.
+ * 
+ * Edits are recorded on the thread that edits the document and written by flush on
+ * the save thread.
+ */
+public class EditJournal {
+    // "CMJ1", the first bytes of every journal
+    private static final int MAGIC = 0x434D4A31;
+    
+    // A checkpoint is written when the journal grows beyond this many bytes,
+    // or when the last one is older than the checkpoint interval
+    static final long CHECKPOINT_BYTES = 1024 * 1024;
+    static final long CHECKPOINT_MILLIS = 60 * 1000;
+    
+    // Longest piece of text written with writeUTF, which is limited to 65535 bytes
+    private static final int TEXT_PIECE = 16 * 1024;
+    
+    private final Path file;
+    private final Path journalFile;
+    
+    // Edits that are not written to the journal yet, guarded by this
+    private final ArrayDeque<Record> pending = new ArrayDeque<>();
+    private TextBuffer latestText;
+    private long latestVersion;
+    
+    // The checkpoint the journal applies to, only used by the save thread
+    private boolean checkpointNeeded = true;
+    private long baseSize;
+    private long baseModified;
+    private long journalBytes;
+    private long writtenVersion;
+    private long lastCheckpoint;
+    private FileState checkpointState;
+    
+    /**
+     * An encoded edit with the document version it produced.
+     */
+    private static class Record {
+        final long version;
+        final byte[] data;
+        
+        Record(long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+    
+    /**
+     * Constructor for the journal of a file. The first flush writes a checkpoint,
+     * since the file may not match the text of the document.
+     * 
+     * @param file The file of the document
+     */
+    public EditJournal(Path file) {
+        this.file = file.toAbsolutePath();
+        this.journalFile = journalPath(this.file);
+    }
+    
+    /**
+     * Returns the journal file of a document file, a hidden file next to it.
+     * 
+     * @param file The file of the document
+     * @return The journal file
+     */
+    public static Path journalPath(Path file) {
+        Path absolute = file.toAbsolutePath();
+        return absolute.resolveSibling("." + absolute.getFileName() + ".journal");
+    }
+    
+    public Path getFile() {
+        return file;
+    }
+    
+    /**
+     * Returns the state of the file after the latest checkpoint was written. Must
+     * be called on the save thread.
+     * 
+     * @return The file state, or null if no checkpoint was written
+     */
+    public FileState getCheckpointState() {
+        return checkpointState;
+    }
+    
+    /**
+     * Records an edit of the document.
+     * 
+     * @param change The edit
+     * @param text The text of the document after the edit
+     */
+    public synchronized void record(DocumentChange change, TextBuffer text) {
+        pending.add(new Record(change.getVersion(), encode(change)));
+        latestText = text;
+        latestVersion = change.getVersion();
+    }
+    
+    /**
+     * Writes the recorded edits to the journal, or writes a checkpoint of the whole
+     * text if the journal is too large or too old. Must be called on the save thread.
+     * 
+     * @param fsync Whether to force the data to the disk
+     * @return The version written to the file by a checkpoint, or -1 if the edits
+     *         were only added to the journal
+     * @throws IOException If the journal or the file cannot be written
+     */
+    public long flush(boolean fsync) throws IOException {
+        TextBuffer text;
+        long version;
+        Record[] records;
+        synchronized (this) {
+            text = latestText;
+            version = latestVersion;
+            records = pending.toArray(new Record[0]);
+        }
+        if (records.length == 0 && !checkpointNeeded) {
+            return -1;
+        }
+        
+        long recordBytes = 0;
+        for (Record record : records) {
+            recordBytes += record.data.length;
+        }
+        if (checkpointNeeded || journalBytes + recordBytes > CHECKPOINT_BYTES
+                || System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_MILLIS) {
+            checkpointState = SaveService.writeAtomically(file, text, fsync);
+            saved(version);
+            return version;
+        }
+        
+        boolean created = !Files.exists(journalFile);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) recordBytes + 20);
+        DataOutputStream data = new DataOutputStream(bytes);
+        if (created) {
+            data.writeInt(MAGIC);
+            data.writeLong(baseSize);
+            data.writeLong(baseModified);
+        }
+        for (Record record : records) {
+            data.write(record.data);
+        }
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsync) {
+                channel.force(true);
+            }
+        }
+        
+        journalBytes += recordBytes;
+        writtenVersion = records[records.length - 1].version;
+        synchronized (this) {
+            while (!pending.isEmpty() && pending.peek().version <= writtenVersion) {
+                pending.poll();
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Starts an empty journal after a version of the document was written to the
+     * file. Must be called on the save thread.
+     * 
+     * @param savedVersion The version that was written
+     * @return true if a flush has to be queued to write a checkpoint, because the
+     *         journal already holds edits made after that version
+     * @throws IOException If the old journal cannot be deleted
+     */
+    public boolean saved(long savedVersion) throws IOException {
+        if (writtenVersion > savedVersion) {
+            checkpointNeeded = true;
+            return true;
+        }
+        
+        Files.deleteIfExists(journalFile);
+        baseSize = Files.size(file);
+        baseModified = Files.getLastModifiedTime(file).toMillis();
+        journalBytes = 0;
+        writtenVersion = 0;
+        lastCheckpoint = System.currentTimeMillis();
+        checkpointNeeded = false;
+        synchronized (this) {
+            // Later edits stay recorded and apply to the text that was written
+            while (!pending.isEmpty() && pending.peek().version <= savedVersion) {
+                pending.poll();
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Applies the journal of a file to the text read from it, recovering the edits
+     * that were made after the last checkpoint. A journal that belongs to another
+     * version of the file is ignored, and replay stops at the first damaged record.
+     * 
+     * @param file The file of the document
+     * @param text The text read from the file
+     * @return The text with the edits applied, or null if there were none
+     */
+    public static TextBuffer replay(Path file, TextBuffer text) {
+        Path journal = journalPath(file);
+        if (!Files.isRegularFile(journal)) {
+            return null;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+            if (in.readInt() != MAGIC || in.readLong() != Files.size(file)
+                    || in.readLong() != Files.getLastModifiedTime(file).toMillis()) {
+                return null;
+            }
+            
+            TextBuffer result = text;
+            boolean applied = false;
+            byte[] body;
+            while ((body = readRecord(in)) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                int offset = record.readInt();
+                int removedLength = record.readInt();
+                String inserted = readText(record);
+                if (offset < 0 || removedLength < 0 || offset + removedLength > result.length()) {
+                    break;
+                }
+                result = result.replace(offset, offset + removedLength, inserted);
+                applied = true;
+            }
+            return applied ? result : null;
+        } catch (IOException e) {
+            // A journal cut off in its header has no edits to recover
+            return null;
+        }
+    }
+    
+    /**
+     * Encodes an edit as a record: the length of the body, the body, and a checksum
+     * of the body, so a record cut off by a crash is detected.
+     */
+    private static byte[] encode(DocumentChange change) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(16 + change.getInsertedText().length());
+            DataOutputStream data = new DataOutputStream(body);
+            data.writeInt(change.getOffset());
+            data.writeInt(change.getRemovedLength());
+            writeText(data, change.getInsertedText());
+            
+            CRC32 crc = new CRC32();
+            crc.update(body.toByteArray());
+            ByteArrayOutputStream record = new ByteArrayOutputStream(body.size() + 8);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(body.size());
+            body.writeTo(out);
+            out.writeInt((int) crc.getValue());
+            return record.toByteArray();
+        } catch (IOException e) {
+            // Writing to a byte array does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Reads the body of a record, or returns null at the end of the journal or at
+     * a damaged record.
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 8 || length > Integer.MAX_VALUE / 2) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return in.readInt() == (int) crc.getValue() ? body : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Writes text as modified UTF-8, which keeps unpaired surrogates, in pieces
+     * short enough for writeUTF.
+     */
+    private static void writeText(DataOutputStream out, CharSequence text) throws IOException {
+        int length = text.length();
+        out.writeInt(length);
+        for (int pos = 0; pos < length; pos += TEXT_PIECE) {
+            out.writeUTF(text.subSequence(pos, Math.min(length, pos + TEXT_PIECE)).toString());
+        }
+    }
+    
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            builder.append(in.readUTF());
+        }
+        return builder.toString();
+    }
+}
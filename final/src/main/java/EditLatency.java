@@ -0,0 +1,159 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.Locale;
+
+/**
+ * EditLatency times the stages an edit passes through, from the keystroke to the
+ * editor drawing it, in a LatencyHistogram per stage. Every timed stage is also
+ * committed as a JFR event when a flight recording is running, so a recording shows
+ * which stage of which edit took longer than a frame.
+ * 
+ * A stage is timed with System.nanoTime around it, the two calls and a counter
+ * increment are the whole cost when no recording is running.
+ */
+public class EditLatency {
+    // One frame at 60 frames per second
+    static final long FRAME_BUDGET_NANOS = 16_666_667L;
+    
+    /**
+     * The stages of an edit. Stages can contain others, the edit of the document
+     * includes everything its listeners do.
+     */
+    public enum Stage {
+        // From the key event to the end of drawing the editor
+        KEY_TO_PAINT("key-to-paint"),
+        // Changing the document, with all its listeners
+        EDIT("edit"),
+        // Taking the preview patch and handing it to the preview thread
+        PREVIEW_PATCH("patch"),
+        VALIDATE("validate"),
+        TITLE("title"),
+        // Handing the edit to the background linter
+        LINT("lint"),
+        // Recording the edit in the autosave journal
+        AUTOSAVE("autosave"),
+        // Rendering the preview patches on the preview thread
+        RENDER("render"),
+        // Applying the rendered patches to the WebView page
+        APPLY("apply"),
+        // Drawing the visible rows of the editor
+        DRAW("draw");
+        
+        private final String label;
+        
+        Stage(String label) {
+            this.label = label;
+        }
+        
+        public String getLabel() {
+            return label;
+        }
+    }
+    
+    /**
+     * The flight recorder event of a timed stage.
+     */
+    @Name("codemark.EditStage")
+    @Label("Edit Stage")
+    @Category({"CodeMark", "Editor"})
+    @Description("A stage of handling an edit in the editor")
+    @StackTrace(false)
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+        
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+        
+        @Label("Over Frame Budget")
+        boolean overFrameBudget;
+    }
+    
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    
+    /**
+     * Constructor for empty histograms.
+     */
+    public EditLatency() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+    
+    /**
+     * Returns the time a stage starts at, to be passed to end.
+     * 
+     * @return The current System.nanoTime
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+    
+    /**
+     * Records a stage that started at a time returned by start and ends now.
+     * 
+     * @param stage The stage
+     * @param startNanos The time the stage started
+     */
+    public void end(Stage stage, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        histograms[stage.ordinal()].record(nanos);
+        
+        StageEvent event = new StageEvent();
+        if (event.isEnabled()) {
+            event.stage = stage.getLabel();
+            event.latency = nanos;
+            event.overFrameBudget = nanos > FRAME_BUDGET_NANOS;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Returns the histogram of a stage.
+     * 
+     * @param stage The stage
+     * @return The histogram
+     */
+    public LatencyHistogram get(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+    
+    /**
+     * Removes the durations of all stages.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+    
+    /**
+     * Formats the median and the 99th percentile in milliseconds of the stages that
+     * were timed, like "key-to-paint 1.20/4.80 ms | edit 0.31/0.95 ms".
+     * 
+     * @return The summary, empty if no stage was timed
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = get(stage);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            if (summary.length() > 0) {
+                summary.append(" | ");
+            }
+            summary.append(stage.getLabel()).append(' ')
+                   .append(String.format(Locale.ROOT, "%.2f/%.2f ms", histogram.getPercentile(50) / 1e6,
+                                         histogram.getPercentile(99) / 1e6));
+        }
+        return summary.toString();
+    }
+}
@@ -1,26 +1,272 @@
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 /**
  * EditorSettings class manages the config settings for the code editor.
  * Includes options for syntax highlighting, auto-save, theme, indendation, etc.
+ * 
+ * The values are kept in an immutable Snapshot behind an atomic reference, so any
+ * thread can read a consistent set of settings. Every change replaces the snapshot
+ * and notifies the listeners. saveLater writes the settings on a background thread
+ * after a short delay, so a burst of changes, like dragging a slider, is written
+ * once, and a write is skipped when the settings equal the ones in the file.
  */
 public class EditorSettings {
-    private boolean syntaxHighlighting;
-    private boolean autoSave;
-    private int indentSize;
-    private String fontName;
-    private int fontSize;
-    private String theme;
-    private boolean wordWrap;
-    
     private static String CONFIG_FILE = "editor_settings.properties";
     private static final String DEFAULT_FONT = "Monospace";
     private static final int DEFAULT_FONT_SIZE = 12;
     private static final String DEFAULT_THEME = "Light";
+    private static final int DEFAULT_PREVIEW_DELAY = 150;
+    private static final int DEFAULT_DOCUMENT_CACHE_SIZE = 256;
+    private static final int DEFAULT_UNDO_MEMORY = (int) (UndoManager.DEFAULT_MEMORY_LIMIT / (1024 * 1024));
+    
+    // Changes within this delay are written together
+    private static final long SAVE_DELAY_MILLIS = 500;
+    
+    private final AtomicReference<Snapshot> current;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    
+    // The settings last written to or read from the file, guarded by writeLock
+    private final Object writeLock = new Object();
+    private Snapshot saved;
+    
+    // The background writer and the write it has queued, guarded by this
+    private ScheduledExecutorService writer;
+    private ScheduledFuture<?> queuedSave;
+    
+    /**
+     * An immutable set of settings. The with methods return a copy with one value
+     * changed, or this snapshot if the value is not valid.
+     */
+    public static final class Snapshot {
+        private final boolean syntaxHighlighting;
+        private final boolean autoSave;
+        private final int indentSize;
+        private final String fontName;
+        private final int fontSize;
+        private final String theme;
+        private final boolean wordWrap;
+        private final int previewDelay;
+        private final int documentCacheSize;
+        private final int undoMemory;
+        private final String lastDocument;
+        
+        Snapshot(boolean syntaxHighlighting, boolean autoSave, int indentSize, String fontName, int fontSize,
+                 String theme, boolean wordWrap, int previewDelay, int documentCacheSize, int undoMemory,
+                 String lastDocument) {
+            this.syntaxHighlighting = syntaxHighlighting;
+            this.autoSave = autoSave;
+            this.indentSize = indentSize;
+            this.fontName = fontName;
+            this.fontSize = fontSize;
+            this.theme = theme;
+            this.wordWrap = wordWrap;
+            this.previewDelay = previewDelay;
+            this.documentCacheSize = documentCacheSize;
+            this.undoMemory = undoMemory;
+            this.lastDocument = lastDocument;
+        }
+        
+        /**
+         * Returns the default settings.
+         * 
+         * @return The defaults
+         */
+        public static Snapshot defaults() {
+            return new Snapshot(true, false, 4, DEFAULT_FONT, DEFAULT_FONT_SIZE, DEFAULT_THEME, true,
+                                DEFAULT_PREVIEW_DELAY, DEFAULT_DOCUMENT_CACHE_SIZE, DEFAULT_UNDO_MEMORY, "");
+        }
+        
+        public boolean isSyntaxHighlighting() {
+            return syntaxHighlighting;
+        }
+        
+        public boolean isAutoSave() {
+            return autoSave;
+        }
+        
+        public int getIndentSize() {
+            return indentSize;
+        }
+        
+        public String getFontName() {
+            return fontName;
+        }
+        
+        public int getFontSize() {
+            return fontSize;
+        }
+        
+        public String getTheme() {
+            return theme;
+        }
+        
+        public boolean isWordWrap() {
+            return wordWrap;
+        }
+        
+        public int getPreviewDelay() {
+            return previewDelay;
+        }
+        
+        public int getDocumentCacheSize() {
+            return documentCacheSize;
+        }
+        
+        public int getUndoMemory() {
+            return undoMemory;
+        }
+        
+        public String getLastDocument() {
+            return lastDocument;
+        }
+        
+        public Snapshot withSyntaxHighlighting(boolean syntaxHighlighting) {
+            return new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize, theme, wordWrap,
+                                previewDelay, documentCacheSize, undoMemory, lastDocument);
+        }
+        
+        public Snapshot withAutoSave(boolean autoSave) {
+            return new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize, theme, wordWrap,
+                                previewDelay, documentCacheSize, undoMemory, lastDocument);
+        }
+        
+        public Snapshot withIndentSize(int indentSize) {
+            return indentSize < 0 ? this : new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize,
+                                                        theme, wordWrap, previewDelay, documentCacheSize, undoMemory,
+                                                        lastDocument);
+        }
+        
+        public Snapshot withFontName(String fontName) {
+            return fontName == null || fontName.isEmpty() ? this
+                    : new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize, theme, wordWrap,
+                                   previewDelay, documentCacheSize, undoMemory, lastDocument);
+        }
+        
+        public Snapshot withFontSize(int fontSize) {
+            return fontSize <= 0 ? this : new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize,
+                                                       theme, wordWrap, previewDelay, documentCacheSize, undoMemory,
+                                                       lastDocument);
+        }
+        
+        public Snapshot withTheme(String theme) {
+            return theme == null || theme.isEmpty() ? this
+                    : new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize, theme, wordWrap,
+                                   previewDelay, documentCacheSize, undoMemory, lastDocument);
+        }
+        
+        public Snapshot withWordWrap(boolean wordWrap) {
+            return new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize, theme, wordWrap,
+                                previewDelay, documentCacheSize, undoMemory, lastDocument);
+        }
+        
+        public Snapshot withPreviewDelay(int previewDelay) {
+            return previewDelay < 0 ? this : new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName,
+                                                          fontSize, theme, wordWrap, previewDelay, documentCacheSize,
+                                                          undoMemory, lastDocument);
+        }
+        
+        public Snapshot withDocumentCacheSize(int documentCacheSize) {
+            return documentCacheSize <= 0 ? this : new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName,
+                                                                fontSize, theme, wordWrap, previewDelay,
+                                                                documentCacheSize, undoMemory, lastDocument);
+        }
+        
+        public Snapshot withUndoMemory(int undoMemory) {
+            return undoMemory <= 0 ? this : new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize,
+                                                         theme, wordWrap, previewDelay, documentCacheSize, undoMemory,
+                                                         lastDocument);
+        }
+        
+        public Snapshot withLastDocument(String lastDocument) {
+            return new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName, fontSize, theme, wordWrap,
+                                previewDelay, documentCacheSize, undoMemory,
+                                lastDocument == null ? "" : lastDocument);
+        }
+        
+        private Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("syntaxHighlighting", String.valueOf(syntaxHighlighting));
+            properties.setProperty("autoSave", String.valueOf(autoSave));
+            properties.setProperty("indentSize", String.valueOf(indentSize));
+            properties.setProperty("fontName", fontName);
+            properties.setProperty("fontSize", String.valueOf(fontSize));
+            properties.setProperty("theme", theme);
+            properties.setProperty("wordWrap", String.valueOf(wordWrap));
+            properties.setProperty("previewDelay", String.valueOf(previewDelay));
+            properties.setProperty("documentCacheSize", String.valueOf(documentCacheSize));
+            properties.setProperty("undoMemory", String.valueOf(undoMemory));
+            properties.setProperty("lastDocument", lastDocument);
+            return properties;
+        }
+        
+        private static Snapshot fromProperties(Properties properties) {
+            return new Snapshot(
+                Boolean.parseBoolean(properties.getProperty("syntaxHighlighting", "true")),
+                Boolean.parseBoolean(properties.getProperty("autoSave", "false")),
+                Integer.parseInt(properties.getProperty("indentSize", "4")),
+                properties.getProperty("fontName", DEFAULT_FONT),
+                Integer.parseInt(properties.getProperty("fontSize", String.valueOf(DEFAULT_FONT_SIZE))),
+                properties.getProperty("theme", DEFAULT_THEME),
+                Boolean.parseBoolean(properties.getProperty("wordWrap", "true")),
+                Integer.parseInt(properties.getProperty("previewDelay", String.valueOf(DEFAULT_PREVIEW_DELAY))),
+                Integer.parseInt(properties.getProperty("documentCacheSize",
+                                                        String.valueOf(DEFAULT_DOCUMENT_CACHE_SIZE))),
+                Integer.parseInt(properties.getProperty("undoMemory", String.valueOf(DEFAULT_UNDO_MEMORY))),
+                properties.getProperty("lastDocument", ""));
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Snapshot)) {
+                return false;
+            }
+            Snapshot that = (Snapshot) other;
+            return syntaxHighlighting == that.syntaxHighlighting && autoSave == that.autoSave
+                   && indentSize == that.indentSize && Objects.equals(fontName, that.fontName)
+                   && fontSize == that.fontSize && Objects.equals(theme, that.theme) && wordWrap == that.wordWrap
+                   && previewDelay == that.previewDelay && documentCacheSize == that.documentCacheSize
+                   && undoMemory == that.undoMemory && Objects.equals(lastDocument, that.lastDocument);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(syntaxHighlighting, autoSave, indentSize, fontName, fontSize, theme, wordWrap,
+                                previewDelay, documentCacheSize, undoMemory, lastDocument);
+        }
+    }
+    
+    /**
+     * Receives changes of the settings.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that changed the settings, after the change.
+         * 
+         * @param oldSettings The settings before the change
+         * @param newSettings The settings after the change
+         */
+        void settingsChanged(Snapshot oldSettings, Snapshot newSettings);
+    }
     
     /**
      * Set the config file path (for testing purposes).
@@ -33,13 +279,7 @@ public class EditorSettings {
      * Constructor with default settings.
      */
     public EditorSettings() {
-        this.syntaxHighlighting = true;
-        this.autoSave = false;
-        this.indentSize = 4;
-        this.fontName = DEFAULT_FONT;
-        this.fontSize = DEFAULT_FONT_SIZE;
-        this.theme = DEFAULT_THEME;
-        this.wordWrap = true;
+        this.current = new AtomicReference<>(Snapshot.defaults());
     }
     
     /**
@@ -57,36 +297,131 @@ public class EditorSettings {
         boolean syntaxHighlighting, boolean autoSave, int indentSize,
         String fontName, int fontSize, String theme, boolean wordWrap
     ) {
-        this.syntaxHighlighting = syntaxHighlighting;
-        this.autoSave = autoSave;
-        this.indentSize = indentSize;
-        this.fontName = fontName;
-        this.fontSize = fontSize;
-        this.theme = theme;
-        this.wordWrap = wordWrap;
+        this.current = new AtomicReference<>(new Snapshot(syntaxHighlighting, autoSave, indentSize, fontName,
+                                                          fontSize, theme, wordWrap, DEFAULT_PREVIEW_DELAY,
+                                                          DEFAULT_DOCUMENT_CACHE_SIZE, DEFAULT_UNDO_MEMORY, ""));
+    }
+    
+    /**
+     * Returns the current settings. The snapshot never changes, later changes
+     * replace it.
+     * 
+     * @return The current settings
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+    
+    /**
+     * Changes the settings and notifies the listeners if they changed.
+     * 
+     * @param change The function building the new settings from the current ones
+     * @return The new settings
+     */
+    public Snapshot update(UnaryOperator<Snapshot> change) {
+        Snapshot oldSettings;
+        Snapshot newSettings;
+        do {
+            oldSettings = current.get();
+            newSettings = change.apply(oldSettings);
+        } while (!current.compareAndSet(oldSettings, newSettings));
+        
+        if (!newSettings.equals(oldSettings)) {
+            for (Listener listener : listeners) {
+                listener.settingsChanged(oldSettings, newSettings);
+            }
+        }
+        return newSettings;
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
     }
     
     /**
-     * Saves the current settings to a properties file.
+     * Saves the current settings to a properties file. The file is replaced in one
+     * step, and not written at all if it already holds these settings.
      * 
      * @return true if save was successful, false otherwise
      */
     public boolean saveSettings() {
-        Properties properties = new Properties();
-        properties.setProperty("syntaxHighlighting", String.valueOf(syntaxHighlighting));
-        properties.setProperty("autoSave", String.valueOf(autoSave));
-        properties.setProperty("indentSize", String.valueOf(indentSize));
-        properties.setProperty("fontName", fontName);
-        properties.setProperty("fontSize", String.valueOf(fontSize));
-        properties.setProperty("theme", theme);
-        properties.setProperty("wordWrap", String.valueOf(wordWrap));
-        
-        try (FileOutputStream output = new FileOutputStream(CONFIG_FILE)) {
-            properties.store(output, "Editor Settings");
-            return true;
-        } catch (IOException e) {
-            return false;
+        synchronized (writeLock) {
+            Snapshot snapshot = current.get();
+            if (snapshot.equals(saved)) {
+                return true;
+            }
+            
+            Path file = Paths.get(CONFIG_FILE).toAbsolutePath();
+            Path temp = null;
+            try {
+                temp = Files.createTempFile(file.getParent(), ".settings", ".tmp");
+                try (OutputStream output = Files.newOutputStream(temp)) {
+                    snapshot.toProperties().store(output, "Editor Settings");
+                }
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                saved = snapshot;
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                if (temp != null) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException e) {
+                        // Nothing left to clean up if the temporary file is already gone
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Saves the settings on a background thread after a short delay. Calls made
+     * before the write starts are merged into it, and it writes the settings as
+     * they are when it runs. A call made while a write is running queues another
+     * one, since that write may have read the settings before the change.
+     */
+    public synchronized void saveLater() {
+        if (queuedSave != null && !queuedSave.isDone() && queuedSave.getDelay(TimeUnit.NANOSECONDS) > 0) {
+            // Not started yet, it will write this change too
+            return;
         }
+        if (writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "settings-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        queuedSave = writer.schedule(this::saveSettings, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Writes settings that saveLater has not written yet and stops the background
+     * writer, when the application exits.
+     * 
+     * @return true if the settings are saved, false otherwise
+     */
+    public boolean flush() {
+        synchronized (this) {
+            if (queuedSave != null) {
+                queuedSave.cancel(false);
+                queuedSave = null;
+            }
+            if (writer != null) {
+                writer.shutdown();
+                writer = null;
+            }
+        }
+        return saveSettings();
     }
     
     /**
@@ -97,17 +432,13 @@ public class EditorSettings {
     public boolean loadSettings() {
         Properties properties = new Properties();
         
-        try (FileInputStream input = new FileInputStream(CONFIG_FILE)) {
+        try (InputStream input = Files.newInputStream(Paths.get(CONFIG_FILE))) {
             properties.load(input);
-            
-            this.syntaxHighlighting = Boolean.parseBoolean(properties.getProperty("syntaxHighlighting", "true"));
-            this.autoSave = Boolean.parseBoolean(properties.getProperty("autoSave", "false"));
-            this.indentSize = Integer.parseInt(properties.getProperty("indentSize", "4"));
-            this.fontName = properties.getProperty("fontName", DEFAULT_FONT);
-            this.fontSize = Integer.parseInt(properties.getProperty("fontSize", String.valueOf(DEFAULT_FONT_SIZE)));
-            this.theme = properties.getProperty("theme", DEFAULT_THEME);
-            this.wordWrap = Boolean.parseBoolean(properties.getProperty("wordWrap", "true"));
-            
+            Snapshot loaded = Snapshot.fromProperties(properties);
+            synchronized (writeLock) {
+                saved = loaded;
+            }
+            update(settings -> loaded);
             return true;
         } catch (IOException e) {
             // Use default settings if file not found
@@ -126,76 +457,117 @@ public class EditorSettings {
      * Resets settings to defaults.
      */
     public void resetToDefaults() {
-        this.syntaxHighlighting = true;
-        this.autoSave = false;
-        this.indentSize = 4;
-        this.fontName = DEFAULT_FONT;
-        this.fontSize = DEFAULT_FONT_SIZE;
-        this.theme = DEFAULT_THEME;
-        this.wordWrap = true;
+        update(settings -> Snapshot.defaults());
     }
     
     public boolean isSyntaxHighlighting() {
-        return syntaxHighlighting;
+        return snapshot().isSyntaxHighlighting();
     }
     
     public void setSyntaxHighlighting(boolean syntaxHighlighting) {
-        this.syntaxHighlighting = syntaxHighlighting;
+        update(settings -> settings.withSyntaxHighlighting(syntaxHighlighting));
     }
     
     public boolean isAutoSave() {
-        return autoSave;
+        return snapshot().isAutoSave();
     }
     
     public void setAutoSave(boolean autoSave) {
-        this.autoSave = autoSave;
+        update(settings -> settings.withAutoSave(autoSave));
     }
     
     public int getIndentSize() {
-        return indentSize;
+        return snapshot().getIndentSize();
     }
     
     public void setIndentSize(int indentSize) {
-        if (indentSize >= 0) {
-            this.indentSize = indentSize;
-        }
+        update(settings -> settings.withIndentSize(indentSize));
     }
     
     public String getFontName() {
-        return fontName;
+        return snapshot().getFontName();
     }
     
     public void setFontName(String fontName) {
-        if (fontName != null && !fontName.isEmpty()) {
-            this.fontName = fontName;
-        }
+        update(settings -> settings.withFontName(fontName));
     }
     
     public int getFontSize() {
-        return fontSize;
+        return snapshot().getFontSize();
     }
     
     public void setFontSize(int fontSize) {
-        if (fontSize > 0) {
-            this.fontSize = fontSize;
-        }
+        update(settings -> settings.withFontSize(fontSize));
     }
     
     public String getTheme() {
-        return theme;
+        return snapshot().getTheme();
     }
     
     public void setTheme(String theme) {
-        if (theme != null && !theme.isEmpty()) {
-            this.theme = theme;
-        }
+        update(settings -> settings.withTheme(theme));
     }
     
     public boolean isWordWrap() {
-        return wordWrap;
+        return snapshot().isWordWrap();
     }
     
     public void setWordWrap(boolean wordWrap) {
-        this.wordWrap = wordWrap;
+        update(settings -> settings.withWordWrap(wordWrap));
+    }
+    
+    /**
+     * Gets the delay in milliseconds the preview waits for further edits before rendering.
+     * 
+     * @return The preview delay in milliseconds
+     */
+    public int getPreviewDelay() {
+        return snapshot().getPreviewDelay();
+    }
+    
+    public void setPreviewDelay(int previewDelay) {
+        update(settings -> settings.withPreviewDelay(previewDelay));
+    }
+    
+    /**
+     * Gets how much heap in megabytes the open documents that have no unsaved
+     * changes may use before the least recently used ones are dropped.
+     * 
+     * @return The document cache size in megabytes
+     */
+    public int getDocumentCacheSize() {
+        return snapshot().getDocumentCacheSize();
+    }
+    
+    public void setDocumentCacheSize(int documentCacheSize) {
+        update(settings -> settings.withDocumentCacheSize(documentCacheSize));
+    }
+    
+    /**
+     * Gets how much heap in megabytes the undo history of a document may use
+     * before its oldest edits are dropped.
+     * 
+     * @return The undo memory limit in megabytes
+     */
+    public int getUndoMemory() {
+        return snapshot().getUndoMemory();
+    }
+    
+    public void setUndoMemory(int undoMemory) {
+        update(settings -> settings.withUndoMemory(undoMemory));
+    }
+    
+    /**
+     * Gets the file of the document that was shown last, which is opened again
+     * when the editor starts.
+     * 
+     * @return The path of the file, or an empty string if there is none
+     */
+    public String getLastDocument() {
+        return snapshot().getLastDocument();
+    }
+    
+    public void setLastDocument(String lastDocument) {
+        update(settings -> settings.withLastDocument(lastDocument));
     }
-} 
\ No newline at end of file
+}
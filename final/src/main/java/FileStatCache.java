@@ -0,0 +1,85 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileStatCache remembers for a while whether files exist, so the links of a
+ * document can be checked after every edit without asking the file system about
+ * every link each time. A file that appears or disappears is noticed once its
+ * entry is older than the time to live.
+ * Safe to use from any thread.
+ */
+public class FileStatCache {
+    // The cache is emptied when it holds this many files
+    static final int MAX_ENTRIES = 10_000;
+    
+    private final long ttlNanos;
+    private final ConcurrentHashMap<Path, Stat> stats = new ConcurrentHashMap<>();
+    
+    /**
+     * Whether a file existed when it was checked.
+     */
+    private static final class Stat {
+        final boolean exists;
+        final long checkedNanos;
+        
+        Stat(boolean exists, long checkedNanos) {
+            this.exists = exists;
+            this.checkedNanos = checkedNanos;
+        }
+    }
+    
+    /**
+     * Constructor for an empty cache.
+     * 
+     * @param ttlMillis How long in milliseconds a checked file is not checked again
+     */
+    public FileStatCache(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+    
+    /**
+     * Checks whether a file or folder exists, from the cache if it was checked
+     * recently.
+     * 
+     * @param path The file to check
+     * @return true if the file exists, false otherwise
+     */
+    public boolean exists(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        long now = System.nanoTime();
+        Stat stat = stats.get(key);
+        if (stat != null && now - stat.checkedNanos < ttlNanos) {
+            return stat.exists;
+        }
+        
+        boolean exists = Files.exists(key);
+        if (stats.size() >= MAX_ENTRIES) {
+            stats.clear();
+        }
+        stats.put(key, new Stat(exists, now));
+        return exists;
+    }
+    
+    /**
+     * Forgets a file, so it is checked again the next time, for example after it
+     * was created or deleted by the editor.
+     * 
+     * @param path The file
+     */
+    public void invalidate(Path path) {
+        stats.remove(path.toAbsolutePath().normalize());
+    }
+    
+    /**
+     * Forgets all files.
+     */
+    public void clear() {
+        stats.clear();
+    }
+    
+    public int size() {
+        return stats.size();
+    }
+}
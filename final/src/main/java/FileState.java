@@ -0,0 +1,125 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32C;
+
+/**
+ * FileState is what a document knows about its file on disk: the size and the
+ * modification time the file had when the document last read or wrote it, and
+ * the text that was read or written.
+ * 
+ * A file with another size was changed by someone else. A file with only another
+ * modification time may still hold the same text, for example after a touch, so
+ * its content is compared through a hash of the file and of the text, both
+ * computed while streaming.
+ */
+public final class FileState {
+    // Size of the buffer the file is hashed through
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final long size;
+    private final long modified;
+    private final TextBuffer text;
+    
+    // CRC32C of the text encoded as UTF-8, -1 until it is needed, guarded by this
+    private long textHash = -1;
+    
+    private FileState(long size, long modified, TextBuffer text) {
+        this.size = size;
+        this.modified = modified;
+        this.text = text;
+    }
+    
+    /**
+     * Records the state of a file that was just read or written.
+     * 
+     * @param path The file
+     * @param text The text the file holds, or null if it cannot be kept, like the
+     *             text of a large file that is read from the file itself
+     * @return The state of the file
+     * @throws IOException If the attributes of the file cannot be read
+     */
+    public static FileState of(Path path, TextBuffer text) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileState(attributes.size(), attributes.lastModifiedTime().toMillis(), text);
+    }
+    
+    public long getSize() {
+        return size;
+    }
+    
+    public long getModified() {
+        return modified;
+    }
+    
+    /**
+     * Checks whether a file still has the size and modification time of this state.
+     * 
+     * @param attributes The current attributes of the file
+     * @return true if the file looks unchanged, false otherwise
+     */
+    public boolean matches(BasicFileAttributes attributes) {
+        return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified;
+    }
+    
+    /**
+     * Checks whether a file still holds the text of this state, when its
+     * modification time changed. A file of another size never does.
+     * 
+     * @param path The file
+     * @return true if the file holds the same text, false if it changed or the
+     *         text of this state is not known
+     * @throws IOException If the file cannot be read
+     */
+    public boolean hasSameContent(Path path) throws IOException {
+        if (text == null || Files.size(path) != size) {
+            return false;
+        }
+        return hashFile(path) == textHash();
+    }
+    
+    private synchronized long textHash() {
+        if (textHash < 0 && text != null) {
+            CRC32C crc = new CRC32C();
+            OutputStream out = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    crc.update(b);
+                }
+                
+                @Override
+                public void write(byte[] bytes, int offset, int length) {
+                    crc.update(bytes, offset, length);
+                }
+            };
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                                                    BUFFER_SIZE)) {
+                text.writeTo(writer);
+            } catch (IOException e) {
+                // The stream only updates the hash and cannot fail
+                throw new IllegalStateException(e);
+            }
+            textHash = crc.getValue();
+        }
+        return textHash;
+    }
+    
+    private static long hashFile(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
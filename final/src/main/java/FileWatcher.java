@@ -0,0 +1,316 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * FileWatcher reports open documents whose files were changed by another program.
+ * One background thread waits on a WatchService for the folders of the documents,
+ * so nothing is polled while the files stay as they are.
+ * 
+ * Programs often write a file in several steps, so a file is only checked once no
+ * event arrived for it for a while. The check compares the size and modification
+ * time with the state of the file the document last read or wrote, which also
+ * ignores the events of our own saves. Only if the modification time changed but
+ * not the size is the file read, to compare a hash of it with the text of the
+ * document.
+ */
+public class FileWatcher implements Closeable {
+    private final WatchService service;
+    private final long debounceMillis;
+    private final Consumer<Document> onChange;
+    private final Thread thread;
+    
+    // Watched files and folders, guarded by this
+    private final Map<Path, Watched> files = new HashMap<>();
+    private final Map<Path, Folder> folders = new HashMap<>();
+    private final Map<Document, Path> paths = new WeakHashMap<>();
+    
+    /**
+     * A watched file. Documents are only weakly referenced, so a document that was
+     * dropped from the cache is not kept in memory.
+     */
+    private static class Watched {
+        final WeakReference<Document> document;
+        // The file as the watcher last checked it, -1 once it was deleted, only
+        // used by the watcher thread
+        long checkedSize = Long.MIN_VALUE;
+        long checkedModified = Long.MIN_VALUE;
+        
+        Watched(Document document) {
+            this.document = new WeakReference<>(document);
+        }
+    }
+    
+    /**
+     * A watched folder with the number of watched files in it.
+     */
+    private static class Folder {
+        final WatchKey key;
+        int files;
+        
+        Folder(WatchKey key) {
+            this.key = key;
+        }
+    }
+    
+    /**
+     * Constructor for a watcher, which starts its thread.
+     * 
+     * @param debounceMillis How long a file has to stay unchanged before it is checked
+     * @param onChange Called on the watcher thread with a document whose file changed
+     *                 or was deleted
+     * @throws IOException If the file system cannot watch folders
+     */
+    public FileWatcher(long debounceMillis, Consumer<Document> onChange) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.debounceMillis = debounceMillis;
+        this.onChange = onChange;
+        this.thread = new Thread(this::run, "file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Starts watching the file of a document. Watching a document again after it
+     * was saved under another name moves the watch to the new file. A file is
+     * watched for one document, watching it for another one replaces the first.
+     * 
+     * @param document The document
+     * @return true if the file is watched, false if the document has no file or
+     *         its folder cannot be watched
+     */
+    public synchronized boolean watch(Document document) {
+        String filePath = document.getFilePath();
+        if (filePath == null || filePath.isEmpty()) {
+            unwatch(document);
+            return false;
+        }
+        Path file = Paths.get(filePath).toAbsolutePath().normalize();
+        Path previous = paths.get(document);
+        if (file.equals(previous)) {
+            return true;
+        }
+        unwatch(document);
+        
+        Watched replaced = files.get(file);
+        if (replaced != null) {
+            // Another document of the same file, its folder is already counted
+            Document other = replaced.document.get();
+            if (other != null) {
+                paths.remove(other);
+            }
+            files.put(file, new Watched(document));
+            paths.put(document, file);
+            return true;
+        }
+        
+        Path directory = file.getParent();
+        Folder folder = folders.get(directory);
+        if (folder == null) {
+            try {
+                folder = new Folder(directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                                       StandardWatchEventKinds.ENTRY_MODIFY,
+                                                       StandardWatchEventKinds.ENTRY_DELETE));
+            } catch (IOException | ClosedWatchServiceException e) {
+                return false;
+            }
+            folders.put(directory, folder);
+        }
+        folder.files++;
+        files.put(file, new Watched(document));
+        paths.put(document, file);
+        return true;
+    }
+    
+    /**
+     * Stops watching the file of a document.
+     * 
+     * @param document The document
+     */
+    public synchronized void unwatch(Document document) {
+        Path file = paths.remove(document);
+        if (file != null) {
+            remove(file);
+        }
+    }
+    
+    private void remove(Path file) {
+        if (files.remove(file) == null) {
+            return;
+        }
+        Folder folder = folders.get(file.getParent());
+        if (folder != null && --folder.files == 0) {
+            folder.key.cancel();
+            folders.remove(file.getParent());
+        }
+    }
+    
+    /**
+     * Stops the watcher thread and all watches.
+     */
+    @Override
+    public void close() throws IOException {
+        service.close();
+        thread.interrupt();
+    }
+    
+    private void run() {
+        // Files with events, with the time they are checked at
+        Map<Path, Long> due = new HashMap<>();
+        try {
+            while (true) {
+                WatchKey key;
+                if (due.isEmpty()) {
+                    key = service.take();
+                } else {
+                    long wait = Math.max(0, nextDue(due) - now());
+                    key = service.poll(wait, TimeUnit.MILLISECONDS);
+                }
+                
+                if (key != null) {
+                    // Every event moves the check of the file further out
+                    long checkAt = now() + debounceMillis;
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Events were lost, so every file in the folder may have changed
+                            for (Path file : watchedIn(directory)) {
+                                due.put(file, checkAt);
+                            }
+                        } else {
+                            Path file = directory.resolve((Path) event.context());
+                            if (isWatched(file)) {
+                                due.put(file, checkAt);
+                            }
+                        }
+                    }
+                    key.reset();
+                }
+                
+                long now = now();
+                Iterator<Map.Entry<Path, Long>> iterator = due.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<Path, Long> entry = iterator.next();
+                    if (entry.getValue() <= now) {
+                        iterator.remove();
+                        check(entry.getKey());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The watcher was closed
+        }
+    }
+    
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+    
+    private static long nextDue(Map<Path, Long> due) {
+        long next = Long.MAX_VALUE;
+        for (long time : due.values()) {
+            next = Math.min(next, time);
+        }
+        return next;
+    }
+    
+    /**
+     * Returns the number of folders being watched, for tests.
+     * 
+     * @return The watched folder count
+     */
+    synchronized int watchedFolders() {
+        return folders.size();
+    }
+    
+    private synchronized boolean isWatched(Path file) {
+        return files.containsKey(file);
+    }
+    
+    private synchronized List<Path> watchedIn(Path directory) {
+        List<Path> watched = new ArrayList<>();
+        for (Path file : files.keySet()) {
+            if (directory.equals(file.getParent())) {
+                watched.add(file);
+            }
+        }
+        return watched;
+    }
+    
+    /**
+     * Checks whether a file still holds what its document last read or wrote, and
+     * reports the document if not. A file is reported once for every change.
+     */
+    private void check(Path file) {
+        Watched watched;
+        synchronized (this) {
+            watched = files.get(file);
+        }
+        Document document = watched == null ? null : watched.document.get();
+        if (document == null) {
+            if (watched != null) {
+                // The document was dropped without being unwatched
+                synchronized (this) {
+                    remove(file);
+                }
+            }
+            return;
+        }
+        FileState state = document.getDiskState();
+        if (state == null) {
+            return;
+        }
+        
+        long size = -1;
+        long modified = -1;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (state.matches(attributes)) {
+                return;
+            }
+            size = attributes.size();
+            modified = attributes.lastModifiedTime().toMillis();
+        } catch (NoSuchFileException e) {
+            // The file was deleted
+        } catch (IOException e) {
+            return;
+        }
+        if (size == watched.checkedSize && modified == watched.checkedModified) {
+            return;
+        }
+        
+        try {
+            if (size >= 0 && state.hasSameContent(file)) {
+                // Only touched, the text is the same
+                watched.checkedSize = size;
+                watched.checkedModified = modified;
+                return;
+            }
+        } catch (IOException e) {
+            // Still being written, a later event checks it again
+            return;
+        }
+        watched.checkedSize = size;
+        watched.checkedModified = modified;
+        onChange.accept(document);
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.Arrays;
+
+/**
+ * HeaderIndex keeps the header lines of a markdown document sorted by offset.
+ * After an edit only the lines around the edited range are scanned again, so
+ * keeping the index up to date costs about as much as the edit itself.
+ * A header line starts with one to six '#' characters followed by whitespace.
+ */
+public class HeaderIndex {
+    // The most '#' characters a header can start with
+    static final int MAX_LEVEL = 6;
+    
+    private final OffsetIndex<Header> headers = new OffsetIndex<>();
+    private Listener listener;
+    
+    // Buffers for the headers scanned during an update
+    private int[] scannedOffsets = new int[4];
+    private Object[] scannedHeaders = new Object[4];
+    private int scannedCount;
+    
+    /**
+     * A header line of the document.
+     */
+    public static class Header {
+        private final int level;
+        private final String text;
+        
+        Header(int level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+        
+        public int getLevel() {
+            return level;
+        }
+        
+        /**
+         * Returns the text of the header without the leading '#' characters.
+         * 
+         * @return The header text
+         */
+        public String getText() {
+            return text;
+        }
+    }
+    
+    /**
+     * Receives the headers that changed, so a view of the headers can be updated
+     * without going through all of them.
+     */
+    public interface Listener {
+        /**
+         * Called after a range of headers was replaced. The offsets of the headers
+         * after the range may have shifted, their level and text are the same.
+         * 
+         * @param from The index of the first replaced header
+         * @param removed The number of headers removed at the index
+         * @param added The number of headers added at the index
+         */
+        void headersReplaced(int from, int removed, int added);
+    }
+    
+    /**
+     * Scans the whole text again.
+     * 
+     * @param text The document text
+     */
+    public void reset(CharSequence text) {
+        int removed = headers.size();
+        headers.clear();
+        if (text != null) {
+            scan(text, 0, text.length());
+            headers.replace(0, 0, scannedOffsets, scannedHeaders, scannedCount, 0);
+            clearScanned();
+        }
+        if (listener != null) {
+            listener.headersReplaced(0, removed, headers.size());
+        }
+    }
+    
+    /**
+     * Updates the index after an edit. Only the lines touching the edited range
+     * are scanned again.
+     * 
+     * @param newText The document text after the edit
+     * @param offset The offset where the edit starts
+     * @param removedLength The number of characters removed at the offset
+     * @param insertedLength The number of characters inserted at the offset
+     */
+    public void update(CharSequence newText, int offset, int removedLength, int insertedLength) {
+        // The line the edit starts on is not changed before the offset
+        int start = offset;
+        while (start > 0 && !MarkdownRenderer.isLineTerminator(newText.charAt(start - 1))) {
+            start--;
+        }
+        
+        // A header right after the removed range may stop being at a line start,
+        // headers further on are not affected
+        int from = headers.indexFrom(start);
+        int to = headers.indexAt(offset + removedLength) + 1;
+        
+        scan(newText, start, offset + insertedLength);
+        int added = scannedCount;
+        headers.replace(from, Math.max(from, to), scannedOffsets, scannedHeaders, scannedCount,
+                        insertedLength - removedLength);
+        clearScanned();
+        if (listener != null && (to > from || added > 0)) {
+            listener.headersReplaced(from, Math.max(0, to - from), added);
+        }
+    }
+    
+    /**
+     * Sets the listener that is told about changed headers. An index has at most
+     * one listener, the view showing the outline of the document.
+     * 
+     * @param listener The listener, or null to remove it
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    public int size() {
+        return headers.size();
+    }
+    
+    public Header get(int index) {
+        return headers.get(index);
+    }
+    
+    /**
+     * Returns the offset where a header line starts.
+     * 
+     * @param index The index of the header
+     * @return The header offset
+     */
+    public int offset(int index) {
+        return headers.offset(index);
+    }
+    
+    /**
+     * Finds the last header that starts at or before an offset, which is the
+     * header of the section containing the offset.
+     * 
+     * @param offset The offset to look up
+     * @return The index of the header, or -1 if there is none before the offset
+     */
+    public int indexAt(int offset) {
+        return headers.indexAt(offset);
+    }
+    
+    /**
+     * Checks whether a text has a header line, scanning only until the first one.
+     * 
+     * @param text The text to check
+     * @return true if the text has a header, false otherwise
+     */
+    public static boolean containsHeader(CharSequence text) {
+        return firstHeader(text, 0, text.length()) >= 0;
+    }
+    
+    /**
+     * Finds the first header line that starts between two offsets, scanning only
+     * until it is found.
+     * 
+     * @param text The text to search
+     * @param start The offset to start at (inclusive), which has to be a line start
+     * @param last The offset the header has to start at or before (inclusive)
+     * @return The offset of the header line, or -1 if there is none
+     */
+    public static int firstHeader(CharSequence text, int start, int last) {
+        int length = text.length();
+        int pos = start;
+        while (pos <= last && pos < length) {
+            int lineEnd = MarkdownRenderer.findLineEnd(text, pos, length);
+            if (parseHeader(text, pos, lineEnd) != null) {
+                return pos;
+            }
+            pos = lineEnd + 1;
+        }
+        return -1;
+    }
+    
+    /**
+     * Scans the lines that start between two offsets, both inclusive.
+     * The first offset has to be a line start.
+     */
+    private void scan(CharSequence text, int start, int last) {
+        int length = text.length();
+        int pos = start;
+        while (pos <= last && pos < length) {
+            int lineEnd = MarkdownRenderer.findLineEnd(text, pos, length);
+            Header header = parseHeader(text, pos, lineEnd);
+            if (header != null) {
+                addScanned(pos, header);
+            }
+            pos = lineEnd + 1;
+        }
+    }
+    
+    /**
+     * Parses a header line, or returns null if the line is not a header.
+     */
+    private static Header parseHeader(CharSequence text, int lineStart, int lineEnd) {
+        int length = text.length();
+        int level = 0;
+        while (lineStart + level < length && text.charAt(lineStart + level) == '#') {
+            level++;
+        }
+        if (level == 0 || level > MAX_LEVEL || lineStart + level == length
+                || !isWhitespace(text.charAt(lineStart + level))) {
+            return null;
+        }
+        
+        int textStart = Math.min(lineStart + level + 1, lineEnd);
+        return new Header(level, text.subSequence(textStart, lineEnd).toString().trim());
+    }
+    
+    /**
+     * Checks for the characters the \s regex class matches.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+    
+    private void addScanned(int offset, Header header) {
+        if (scannedCount == scannedOffsets.length) {
+            scannedOffsets = Arrays.copyOf(scannedOffsets, scannedCount * 2);
+            scannedHeaders = Arrays.copyOf(scannedHeaders, scannedCount * 2);
+        }
+        scannedOffsets[scannedCount] = offset;
+        scannedHeaders[scannedCount] = header;
+        scannedCount++;
+    }
+    
+    private void clearScanned() {
+        Arrays.fill(scannedHeaders, 0, scannedCount, null);
+        scannedCount = 0;
+    }
+}
@@ -0,0 +1,276 @@
+import java.util.Arrays;
+
+/**
+ * LineIndex maps line numbers to offsets in a text. Lines are separated by '\n',
+ * a '\r' before it belongs to the line. The text is only scanned as far as the
+ * lines that are asked for, so the start of a very large file can be shown without
+ * reading the rest, and edits update the index around the edited range.
+ * 
+ * The length of the text is only asked for where the whole text is needed. A
+ * MappedTextBuffer decodes the whole file to know it, so for one the scans stop at
+ * the end of the part counted so far, and the line count is estimated from it.
+ */
+public class LineIndex {
+    // Number of characters scanned at once when the line count is estimated
+    private static final int SAMPLE_CHARS = 64 * 1024;
+    
+    private CharSequence text;
+    
+    // Start offsets of the lines, entries from shiftFrom on are stored without shift
+    private int[] starts = new int[64];
+    private int count;
+    private int shiftFrom;
+    private int shift;
+    
+    // Every line feed before this offset has its line in the index
+    private int scannedTo;
+    
+    /**
+     * Constructor for the index of a text.
+     * 
+     * @param text The text
+     */
+    public LineIndex(CharSequence text) {
+        this.text = text;
+        starts[0] = 0;
+        count = 1;
+        shiftFrom = 1;
+    }
+    
+    /**
+     * Updates the index after an edit.
+     * 
+     * @param newText The text after the edit
+     * @param offset The offset where the edit starts
+     * @param removedLength The number of characters removed at the offset
+     * @param inserted The inserted text
+     */
+    public void update(CharSequence newText, int offset, int removedLength, CharSequence inserted) {
+        text = newText;
+        if (offset > scannedTo) {
+            // Not scanned yet, the edit is seen when scanning gets there
+            return;
+        }
+        if (offset + removedLength > scannedTo) {
+            // The edit reaches into text that was not scanned, scan again from the offset
+            count = lineOfScanned(offset) + 1;
+            shiftFrom = Math.min(shiftFrom, count);
+            scannedTo = offset;
+            return;
+        }
+        
+        // Lines that start inside the removed range lost their line feed
+        int from = lineOfScanned(offset) + 1;
+        int to = lineOfScanned(offset + removedLength) + 1;
+        
+        int added = 0;
+        int length = inserted.length();
+        for (int i = 0; i < length; i++) {
+            if (inserted.charAt(i) == '\n') {
+                added++;
+            }
+        }
+        
+        moveShift(to);
+        int delta = length - removedLength;
+        int newCount = count - (to - from) + added;
+        if (newCount > starts.length) {
+            starts = Arrays.copyOf(starts, Math.max(newCount, starts.length * 2));
+        }
+        System.arraycopy(starts, to, starts, from + added, count - to);
+        int index = from;
+        for (int i = 0; i < length; i++) {
+            if (inserted.charAt(i) == '\n') {
+                starts[index++] = offset + i + 1;
+            }
+        }
+        count = newCount;
+        shiftFrom = from + added;
+        shift += delta;
+        scannedTo += delta;
+    }
+    
+    /**
+     * Returns the offset where a line starts, scanning the text up to the line if needed.
+     * 
+     * @param line The line number, starting at 0
+     * @return The offset of the first character of the line, or the length of the
+     *         text if it has fewer lines
+     */
+    public int lineStart(int line) {
+        if (line < 0) {
+            throw new IndexOutOfBoundsException("line " + line);
+        }
+        scanLines(line + 1);
+        // With fewer lines, the whole text was scanned
+        return line < count ? get(line) : scannedTo;
+    }
+    
+    /**
+     * Checks whether the text has a line, scanning the text up to the line if needed.
+     * 
+     * @param line The line number, starting at 0
+     * @return true if the line exists, false otherwise
+     */
+    public boolean hasLine(int line) {
+        return line >= 0 && line < lineCountAtLeast(line + 1);
+    }
+    
+    /**
+     * Returns the offset where a line ends, before its line feed and a '\r' before it.
+     * 
+     * @param line The line number, starting at 0
+     * @return The end of the line
+     */
+    public int lineEnd(int line) {
+        int end = line + 1 < lineCountAtLeast(line + 2) ? get(line + 1) - 1 : scannedTo;
+        int start = lineStart(line);
+        if (end > start && text.charAt(end - 1) == '\r') {
+            end--;
+        }
+        return end;
+    }
+    
+    /**
+     * Finds the line containing an offset, scanning the text up to the offset if needed.
+     * 
+     * @param offset The offset
+     * @return The line number
+     */
+    public int lineOf(int offset) {
+        scanTo(lengthUpTo(offset + 1));
+        return lineOfScanned(offset);
+    }
+    
+    /**
+     * Returns the number of lines, scanning the whole text if needed.
+     * 
+     * @return The line count
+     */
+    public int lineCount() {
+        scanTo(text.length());
+        return count;
+    }
+    
+    /**
+     * Returns the number of lines if the whole text was scanned, or an estimate
+     * from the lines scanned so far otherwise. Does not scan the whole text.
+     * 
+     * @return The line count or its estimate
+     */
+    public int estimatedLineCount() {
+        if (text instanceof MappedTextBuffer && !((MappedTextBuffer) text).isIndexed()) {
+            // Lines counted in the background so far, without waiting for the rest
+            return Math.max(count, ((MappedTextBuffer) text).estimatedLineCount());
+        }
+        int length = text.length();
+        if (scannedTo >= length) {
+            return count;
+        }
+        scanTo(Math.min(length, Math.max(scannedTo, SAMPLE_CHARS)));
+        if (scannedTo >= length) {
+            return count;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(count, (long) count * length / Math.max(1, scannedTo)));
+    }
+    
+    /**
+     * Checks whether the whole text has been scanned, so the line count is exact.
+     * 
+     * @return true if all lines are known, false otherwise
+     */
+    public boolean isComplete() {
+        if (text instanceof MappedTextBuffer && !((MappedTextBuffer) text).isIndexed()) {
+            return false;
+        }
+        return scannedTo >= text.length();
+    }
+    
+    /**
+     * Scans until the index has at least the given number of lines or the text ends.
+     * 
+     * @return The number of lines in the index
+     */
+    private int lineCountAtLeast(int lines) {
+        scanLines(lines);
+        return count;
+    }
+    
+    private void scanLines(int lines) {
+        while (count < lines) {
+            int end = lengthUpTo((int) Math.min(Integer.MAX_VALUE, (long) scannedTo + SAMPLE_CHARS));
+            if (end <= scannedTo) {
+                return;
+            }
+            scanTo(end);
+        }
+    }
+    
+    /**
+     * Returns the length of the text, or the limit if the text is longer, without
+     * counting a MappedTextBuffer past the limit.
+     */
+    private int lengthUpTo(int limit) {
+        if (text instanceof MappedTextBuffer) {
+            return ((MappedTextBuffer) text).lengthUpTo(limit);
+        }
+        return Math.min(limit, text.length());
+    }
+    
+    /**
+     * Records the lines of the text up to an offset.
+     */
+    private void scanTo(int end) {
+        CharSequence source = text;
+        for (int pos = scannedTo; pos < end; pos++) {
+            if (source.charAt(pos) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                // New entries are after shiftFrom, so they are stored without the shift
+                starts[count++] = pos + 1 - shift;
+            }
+        }
+        scannedTo = Math.max(scannedTo, end);
+    }
+    
+    /**
+     * Finds the last scanned line that starts at or before an offset.
+     */
+    private int lineOfScanned(int offset) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (get(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+    
+    private int get(int index) {
+        return index >= shiftFrom ? starts[index] + shift : starts[index];
+    }
+    
+    /**
+     * Moves the start of the pending shift to an index. Typing at one place keeps
+     * the shift start close, so this is cheap.
+     */
+    private void moveShift(int index) {
+        if (shift != 0) {
+            if (index > shiftFrom) {
+                for (int i = shiftFrom; i < index; i++) {
+                    starts[i] += shift;
+                }
+            } else {
+                for (int i = index; i < shiftFrom; i++) {
+                    starts[i] -= shift;
+                }
+            }
+        }
+        shiftFrom = index;
+    }
+}
@@ -0,0 +1,214 @@
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * LintService checks the document shown in the editor with a MarkdownLinter in the
+ * background. Every edit is handed over with the immutable buffer it produced, so
+ * typing never waits for a check. The edits that arrive while a check runs are
+ * applied together before the next one, and only the result of the latest version
+ * is passed to the UI thread.
+ * 
+ * Checks run on virtual threads when the runtime has them, since checking links
+ * blocks on the file system, and on one daemon thread otherwise. Either way the
+ * linter of a document is used by one check at a time.
+ */
+public class LintService {
+    // How long in milliseconds a link target that was looked up is not looked up again
+    static final long STAT_TTL_MILLIS = 2000;
+    
+    private final ExecutorService executor = newExecutor();
+    private final Executor uiExecutor;
+    private final Listener listener;
+    private final FileStatCache stats = new FileStatCache(STAT_TTL_MILLIS);
+    
+    // The document being checked and its edits that were not applied yet, guarded by this
+    private Document document;
+    private final ArrayDeque<Update> queue = new ArrayDeque<>();
+    private boolean running;
+    
+    // Only used by the running check
+    private MarkdownLinter linter;
+    
+    /**
+     * Receives the problems found in a document.
+     */
+    public interface Listener {
+        /**
+         * Called on the UI thread after a version of the document was checked.
+         * 
+         * @param document The document that was checked
+         * @param version The version of the document the offsets refer to
+         * @param diagnostics The problems sorted by offset
+         */
+        void linted(Document document, long version, List<MarkdownLinter.Diagnostic> diagnostics);
+    }
+    
+    /**
+     * An edit to apply to the linter, or the whole text if change is null.
+     */
+    private static final class Update {
+        final Document document;
+        final TextBuffer text;
+        final DocumentChange change;
+        final long version;
+        final Path folder;
+        
+        Update(Document document, TextBuffer text, DocumentChange change, long version) {
+            this.document = document;
+            this.text = text;
+            this.change = change;
+            this.version = version;
+            String filePath = document.getFilePath();
+            Path file = filePath == null || filePath.isEmpty() ? null : Paths.get(filePath).toAbsolutePath();
+            this.folder = file == null ? null : file.getParent();
+        }
+    }
+    
+    /**
+     * Constructor for a service.
+     * 
+     * @param uiExecutor Executor that runs tasks on the UI thread
+     * @param listener The listener that receives the problems
+     */
+    public LintService(Executor uiExecutor, Listener listener) {
+        this.uiExecutor = uiExecutor;
+        this.listener = listener;
+    }
+    
+    /**
+     * Starts checking a document, instead of the one checked before. Large files are
+     * not checked, they are reported without problems.
+     * 
+     * @param document The document, or null to stop checking
+     */
+    public void lint(Document document) {
+        synchronized (this) {
+            this.document = document;
+            queue.clear();
+            if (document != null && !document.isLargeFile() && document.getBuffer() != null) {
+                queue.add(new Update(document, document.getBuffer(), null, document.getVersion()));
+                start();
+                return;
+            }
+        }
+        if (document != null) {
+            uiExecutor.execute(() -> listener.linted(document, document.getVersion(), List.of()));
+        }
+    }
+    
+    /**
+     * Hands an edit of the document to the check. Edits of other documents are
+     * ignored. Called right after the edit, so the buffer of the document is the
+     * text it produced.
+     * 
+     * @param document The document that changed
+     * @param change The change that was made
+     */
+    public void changed(Document document, DocumentChange change) {
+        synchronized (this) {
+            if (document != this.document) {
+                return;
+            }
+            if (document.isLargeFile() || document.getBuffer() == null) {
+                // Reloaded as a large file
+                lint(document);
+                return;
+            }
+            queue.add(new Update(document, document.getBuffer(), change, change.getVersion()));
+            start();
+        }
+    }
+    
+    /**
+     * Forgets whether files exist, so the next check looks link targets up again.
+     */
+    public void refreshLinks() {
+        stats.clear();
+    }
+    
+    /**
+     * Stops the checks. Checks that are running are interrupted.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            document = null;
+            queue.clear();
+        }
+        executor.shutdownNow();
+    }
+    
+    private void start() {
+        if (!running && !executor.isShutdown()) {
+            running = true;
+            executor.execute(this::run);
+        }
+    }
+    
+    /**
+     * Applies the queued edits and checks the document until no edits are left.
+     */
+    private void run() {
+        while (true) {
+            List<Update> updates;
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    running = false;
+                    return;
+                }
+                updates = new ArrayList<>(queue);
+                queue.clear();
+            }
+            
+            Update last = updates.get(updates.size() - 1);
+            try {
+                for (Update update : updates) {
+                    if (update.change == null || linter == null) {
+                        // Every update carries the whole text, so any of them can start over
+                        linter = new MarkdownLinter();
+                        linter.reset(update.text);
+                    } else {
+                        linter.update(update.text, update.change.getOffset(), update.change.getRemovedLength(),
+                                      update.change.getInsertedLength());
+                    }
+                }
+            } catch (RuntimeException e) {
+                // The next edit starts over from its whole text
+                linter = null;
+                continue;
+            }
+            
+            synchronized (this) {
+                if (!queue.isEmpty() || last.document != document) {
+                    // A newer version is waiting, only that one is reported
+                    continue;
+                }
+            }
+            List<MarkdownLinter.Diagnostic> diagnostics = linter.check(last.folder, stats);
+            uiExecutor.execute(() -> listener.linted(last.document, last.version, diagnostics));
+        }
+    }
+    
+    /**
+     * Creates an executor that runs every task on a new virtual thread, or a single
+     * daemon thread before Java 21.
+     */
+    static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "markdown-linter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
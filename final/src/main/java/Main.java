@@ -1,39 +1,158 @@
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
 import javafx.scene.web.WebView;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Main extends Application {
     
-    private TextArea editor;
+    // Limits of the rendered preview cache
+    private static final long PREVIEW_CACHE_MEMORY_CHARS = 16L * 1024 * 1024;
+    private static final long PREVIEW_CACHE_DISK_BYTES = 128L * 1024 * 1024;
+    // How long a file changed on disk has to stay quiet before it is checked
+    private static final long FILE_WATCH_DEBOUNCE_MILLIS = 300;
+    // How often the latency overlay is refreshed
+    private static final long LATENCY_REFRESH_MILLIS = 500;
+    
+    // Times the startup up to the first keystroke, reported to the file named by this property
+    private static final StartupTimer STARTUP = StartupTimer.sinceProcessStart();
+    private static final String STARTUP_REPORT_PROPERTY = "codemark.startupReport";
+    // Set by the appCds task, which only starts the editor to record the classes it loads
+    private static final String EXIT_AFTER_STARTUP_PROPERTY = "codemark.exitAfterStartup";
+    
+    // Settings and the last document, read in the background while JavaFX starts
+    private static CompletableFuture<EditorSettings> settingsLoad;
+    private static CompletableFuture<MarkdownDocument> documentLoad;
+    
+    private VirtualEditor editor;
+    private OutlineView outline;
     private WebView previewArea;
     private MarkdownDocument currentDocument;
     private EditorSettings editorSettings;
     private Label statusBar;
     private BorderPane root;
+    private PreviewScheduler previewScheduler;
+    private PreviewBridge previewBridge;
+    private SplitPane splitPane;
+    private TabPane tabPane;
+    private DocumentCache documentCache;
+    private FileWatcher fileWatcher;
+    private WorkspaceIndex workspaceIndex;
+    private Path workspaceFolder;
+    private ListView<WorkspaceIndex.Hit> searchResults;
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "workspace-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final SaveService saveService = new SaveService(true);
+    // Exports HTML files one at a time, an export reads a version of the text taken before
+    private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "html-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Latency of the stages of an edit, shown in the status bar while the overlay is on
+    private final EditLatency latency = new EditLatency();
+    private Label latencyLabel;
+    // Problems found in the current document by the background linter
+    private LintService lintService;
+    private Label lintLabel;
+    private List<MarkdownLinter.Diagnostic> diagnostics = List.of();
+    private ScheduledExecutorService latencyRefresher;
+    private final DocumentListener documentListener = (document, change) -> documentChanged(change);
+    // Set while a document is read again from its file, which is not an edit to autosave
+    private boolean reloading;
+    
+    /**
+     * Starts reading the settings and then the last document in the background,
+     * unless that was started already.
+     */
+    private static synchronized void startLoading() {
+        if (settingsLoad != null) {
+            return;
+        }
+        settingsLoad = CompletableFuture.supplyAsync(() -> {
+            EditorSettings settings = new EditorSettings();
+            settings.loadSettings();
+            return settings;
+        });
+        documentLoad = settingsLoad.thenApplyAsync(settings -> {
+            String lastDocument = settings.getLastDocument();
+            if (lastDocument.isEmpty() || !new File(lastDocument).isFile()) {
+                return null;
+            }
+            try {
+                // Read and parsed here, so only adding the tab is left to the FX thread
+                return new MarkdownDocument(new File(lastDocument));
+            } catch (IOException e) {
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void init() {
+        // Launchers that do not call main start the loading here
+        startLoading();
+        STARTUP.mark("init");
+    }
     
     @Override
     public void start(Stage primaryStage) {
-        // Initialize editor settings
-        editorSettings = new EditorSettings();
-        editorSettings.loadSettings();
+        STARTUP.mark("start");
+        editorSettings = settingsLoad.join();
+        STARTUP.mark("settings");
+        // Changes are written on the settings thread, a burst of them only once
+        editorSettings.addListener((oldSettings, newSettings) -> editorSettings.saveLater());
+        
+        // Render the preview in the background, handing the result to the FX thread
+        previewScheduler = new PreviewScheduler(editorSettings.getPreviewDelay(), Platform::runLater);
+        
+        // Open documents stay in memory while they fit in the cache budget
+        documentCache = new DocumentCache(editorSettings.getDocumentCacheSize() * 1024L * 1024L);
+        
+        // Files of open documents changed by other programs are checked once they are quiet
+        try {
+            fileWatcher = new FileWatcher(FILE_WATCH_DEBOUNCE_MILLIS,
+                                          document -> Platform.runLater(() -> externalChange(document)));
+        } catch (IOException e) {
+            // Without a watch service, changes on disk are not noticed
+        }
+        
+        // Lint the current document in the background, the problems go to the gutter and status bar
+        lintService = new LintService(Platform::runLater, this::linted);
         
         // Create a new empty document
-        currentDocument = new MarkdownDocument("Untitled");
+        setCurrentDocument(new MarkdownDocument("Untitled"));
         
         // Create the main layout
         root = new BorderPane();
@@ -45,19 +164,39 @@ public class Main extends Application {
         // Create the editor area
         editor = createEditor();
         
-        // Create the preview area
-        previewArea = new WebView();
-        previewArea.getEngine().loadContent("<html><body><h1>Preview</h1><p>Content will appear here.</p></body></html>");
+        // The headers of the document, kept up to date as it is edited
+        outline = new OutlineView(editor);
+        outline.setDocument(currentDocument);
+        
+        // Create a split pane for editor and preview, the preview is added when it is first needed
+        splitPane = new SplitPane();
+        splitPane.getItems().addAll(outline, editor);
+        splitPane.setDividerPositions(0.18);
         
-        // Create a split pane for editor and preview
-        SplitPane splitPane = new SplitPane();
-        splitPane.getItems().addAll(editor, previewArea);
-        splitPane.setDividerPositions(0.5);
-        root.setCenter(splitPane);
+        // Every open document has a tab, the selected tab shows the split pane
+        tabPane = new TabPane();
+        tabPane.getSelectionModel().selectedItemProperty().addListener((obs, oldTab, newTab) -> {
+            tabSelected(oldTab, newTab);
+        });
+        addTab(documentCache.add(currentDocument));
+        root.setCenter(tabPane);
+        
+        // Search hits of the workspace, shown next to the tabs after a search
+        searchResults = new ListView<>();
+        searchResults.setPlaceholder(new Label("No matches"));
+        searchResults.setOnMouseClicked(e -> openHit(searchResults.getSelectionModel().getSelectedItem()));
         
         // Create a status bar
         statusBar = new Label("Ready");
-        HBox statusBarContainer = new HBox(statusBar);
+        latencyLabel = new Label();
+        latencyLabel.setVisible(false);
+        lintLabel = new Label();
+        lintLabel.setTextFill(Color.DARKORANGE);
+        lintLabel.setOnMouseClicked(e -> showNextProblem());
+        Region statusSpacer = new Region();
+        HBox.setHgrow(statusSpacer, Priority.ALWAYS);
+        HBox statusBarContainer = new HBox(statusBar, statusSpacer, lintLabel, latencyLabel);
+        statusBarContainer.setSpacing(10);
         statusBarContainer.setPadding(new Insets(5));
         root.setBottom(statusBarContainer);
         
@@ -71,9 +210,163 @@ public class Main extends Application {
         primaryStage.setTitle("CodeMark Editor");
         primaryStage.setScene(scene);
         primaryStage.show();
+        STARTUP.mark("shown");
+        
+        scene.addEventFilter(KeyEvent.KEY_TYPED, new EventHandler<KeyEvent>() {
+            @Override
+            public void handle(KeyEvent event) {
+                scene.removeEventFilter(KeyEvent.KEY_TYPED, this);
+                STARTUP.mark("first-keystroke");
+                reportStartup();
+            }
+        });
         
-        // Set up event handlers
-        setupEventHandlers();
+        updatePreview();
+        
+        // The last document opens in its own tab once it is read
+        documentLoad.thenAccept(document -> Platform.runLater(() -> openLastDocument(document)));
+        
+        if (Boolean.getBoolean(EXIT_AFTER_STARTUP_PROPERTY)) {
+            // Load the preview classes too, then exit once the page had time to load
+            ensurePreview();
+            CompletableFuture.delayedExecutor(3, TimeUnit.SECONDS).execute(() -> Platform.runLater(Platform::exit));
+        }
+    }
+    
+    /**
+     * Creates the preview pane, the first time a document with text is previewed.
+     * Creating the WebView and loading its page is the slowest part of the startup,
+     * so it is left out until then.
+     */
+    private void ensurePreview() {
+        if (previewArea != null) {
+            return;
+        }
+        previewArea = new WebView();
+        // Previews rendered before, also in earlier sessions, are shown without rendering
+        PreviewCache previewCache = new PreviewCache(PreviewCache.defaultDirectory(), PREVIEW_CACHE_MEMORY_CHARS,
+                                                     PREVIEW_CACHE_DISK_BYTES);
+        previewBridge = new PreviewBridge(previewArea.getEngine(), previewScheduler, previewCache, latency);
+        splitPane.getItems().add(previewArea);
+        splitPane.setDividerPositions(0.18, 0.59);
+        // The new page has to show the whole document
+        currentDocument.reloadPreview();
+        STARTUP.mark("preview");
+    }
+    
+    /**
+     * Shows or hides the median and 99th percentile latency of the edit stages in
+     * the status bar. The numbers start over when it is shown and are refreshed every
+     * half second, not on every edit, so showing them does not slow typing down.
+     * 
+     * @param show Whether to show the latency
+     */
+    private void showLatency(boolean show) {
+        if (latencyRefresher != null) {
+            latencyRefresher.shutdownNow();
+            latencyRefresher = null;
+        }
+        latencyLabel.setVisible(show);
+        if (!show) {
+            return;
+        }
+        
+        latency.reset();
+        latencyLabel.setText("Type to measure latency");
+        latencyRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "latency-overlay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        latencyRefresher.scheduleWithFixedDelay(() -> {
+            String summary = latency.summary();
+            if (!summary.isEmpty()) {
+                Platform.runLater(() -> latencyLabel.setText(summary));
+            }
+        }, LATENCY_REFRESH_MILLIS, LATENCY_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Shows the problems the linter found in a version of the current document:
+     * their lines are marked in the gutter and the first one is named in the
+     * status bar.
+     * 
+     * @param document The document that was checked
+     * @param version The version that was checked
+     * @param found The problems sorted by offset
+     */
+    private void linted(Document document, long version, List<MarkdownLinter.Diagnostic> found) {
+        if (document != currentDocument || version != document.getVersion()) {
+            // Switched to another document or edited while it was checked, the offsets are stale
+            return;
+        }
+        diagnostics = found;
+        int[] offsets = new int[found.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = found.get(i).getOffset();
+        }
+        editor.setMarkers(offsets);
+        
+        if (found.isEmpty()) {
+            lintLabel.setText("");
+        } else {
+            String problems = found.size() == 1 ? "1 problem" : found.size() + " problems";
+            lintLabel.setText(problems + ": " + found.get(0).getMessage());
+        }
+    }
+    
+    /**
+     * Moves the caret to the first problem after it, or to the first problem when
+     * there is none after it.
+     */
+    private void showNextProblem() {
+        if (diagnostics.isEmpty()) {
+            return;
+        }
+        int caret = editor.getCaretPosition();
+        MarkdownLinter.Diagnostic next = diagnostics.get(0);
+        for (MarkdownLinter.Diagnostic diagnostic : diagnostics) {
+            if (diagnostic.getOffset() > caret) {
+                next = diagnostic;
+                break;
+            }
+        }
+        lintLabel.setText(next.getMessage());
+        editor.showOffset(next.getOffset());
+        editor.requestFocus();
+    }
+    
+    /**
+     * Adds a tab for the document that was shown when the editor was closed last.
+     * It replaces the empty document the editor started with, if that is untouched.
+     * 
+     * @param document The document, or null if there is none
+     */
+    private void openLastDocument(MarkdownDocument document) {
+        if (document == null || documentCache.find(Paths.get(document.getFilePath())) != null) {
+            return;
+        }
+        Tab untitled = tabPane.getTabs().size() == 1 ? tabPane.getTabs().get(0) : null;
+        boolean replace = untitled != null && (currentDocument.getFilePath() == null
+                                               || currentDocument.getFilePath().isEmpty())
+                          && !currentDocument.isModified();
+        
+        addTab(documentCache.add(document));
+        if (replace) {
+            tabPane.getTabs().remove(untitled);
+            documentCache.remove((DocumentCache.Entry) untitled.getUserData());
+        }
+        STARTUP.mark("document");
+    }
+    
+    /**
+     * Appends the startup times to the report file, if one is set.
+     */
+    private static void reportStartup() {
+        String reportFile = System.getProperty(STARTUP_REPORT_PROPERTY);
+        if (reportFile != null && !reportFile.isEmpty()) {
+            STARTUP.appendTo(Paths.get(reportFile));
+        }
     }
     
     /**
@@ -81,11 +374,15 @@ public class Main extends Application {
      * 
      * @return The configured text editor
      */
-    private TextArea createEditor() {
-        TextArea textArea = new TextArea();
-        textArea.setFont(Font.font(editorSettings.getFontName(), editorSettings.getFontSize()));
-        textArea.setWrapText(editorSettings.isWordWrap());
-        return textArea;
+    private VirtualEditor createEditor() {
+        // The editor only draws the visible lines and edits the document directly
+        VirtualEditor virtualEditor = new VirtualEditor();
+        virtualEditor.setFont(Font.font(editorSettings.getFontName(), editorSettings.getFontSize()));
+        virtualEditor.setWrapText(editorSettings.isWordWrap());
+        virtualEditor.setTabSize(editorSettings.getIndentSize());
+        virtualEditor.setDocument(currentDocument);
+        virtualEditor.setLatency(latency);
+        return virtualEditor;
     }
     
     /**
@@ -105,16 +402,23 @@ public class Main extends Application {
         MenuItem openItem = new MenuItem("Open");
         openItem.setOnAction(e -> openDocument(stage));
         
+        MenuItem workspaceItem = new MenuItem("Open Workspace");
+        workspaceItem.setOnAction(e -> openWorkspace(stage));
+        
         MenuItem saveItem = new MenuItem("Save");
         saveItem.setOnAction(e -> saveDocument(stage));
         
         MenuItem saveAsItem = new MenuItem("Save As");
         saveAsItem.setOnAction(e -> saveDocumentAs(stage));
         
+        MenuItem exportItem = new MenuItem("Export to HTML");
+        exportItem.setOnAction(e -> exportHtml(stage));
+        
         MenuItem exitItem = new MenuItem("Exit");
         exitItem.setOnAction(e -> stage.close());
         
-        fileMenu.getItems().addAll(newItem, openItem, saveItem, saveAsItem, new SeparatorMenuItem(), exitItem);
+        fileMenu.getItems().addAll(newItem, openItem, workspaceItem, saveItem, saveAsItem,
+                                   new SeparatorMenuItem(), exportItem, new SeparatorMenuItem(), exitItem);
         
         // Edit menu
         Menu editMenu = new Menu("Edit");
@@ -141,7 +445,6 @@ public class Main extends Application {
         syntaxItem.setSelected(editorSettings.isSyntaxHighlighting());
         syntaxItem.setOnAction(e -> {
             editorSettings.setSyntaxHighlighting(syntaxItem.isSelected());
-            editorSettings.saveSettings();
             updateEditor();
         });
         
@@ -149,7 +452,6 @@ public class Main extends Application {
         autoSaveItem.setSelected(editorSettings.isAutoSave());
         autoSaveItem.setOnAction(e -> {
             editorSettings.setAutoSave(autoSaveItem.isSelected());
-            editorSettings.saveSettings();
         });
         
         CheckMenuItem wordWrapItem = new CheckMenuItem("Word Wrap");
@@ -157,13 +459,11 @@ public class Main extends Application {
         wordWrapItem.setOnAction(e -> {
             editorSettings.setWordWrap(wordWrapItem.isSelected());
             editor.setWrapText(editorSettings.isWordWrap());
-            editorSettings.saveSettings();
         });
         
         MenuItem resetItem = new MenuItem("Reset to Defaults");
         resetItem.setOnAction(e -> {
             editorSettings.resetToDefaults();
-            editorSettings.saveSettings();
             updateEditor();
             
             // Update menu items
@@ -172,7 +472,11 @@ public class Main extends Application {
             wordWrapItem.setSelected(editorSettings.isWordWrap());
         });
         
-        settingsMenu.getItems().addAll(syntaxItem, autoSaveItem, wordWrapItem, new SeparatorMenuItem(), resetItem);
+        CheckMenuItem latencyItem = new CheckMenuItem("Show Latency");
+        latencyItem.setOnAction(e -> showLatency(latencyItem.isSelected()));
+        
+        settingsMenu.getItems().addAll(syntaxItem, autoSaveItem, wordWrapItem, new SeparatorMenuItem(), latencyItem,
+                                       new SeparatorMenuItem(), resetItem);
         
         // Help menu
         Menu helpMenu = new Menu("Help");
@@ -219,50 +523,122 @@ public class Main extends Application {
         indentSlider.setSnapToTicks(true);
         indentSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
             editorSettings.setIndentSize(newVal.intValue());
-            editorSettings.saveSettings();
+            editor.setTabSize(editorSettings.getIndentSize());
         });
         
+        // Full-text search of the markdown files in the workspace
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search workspace");
+        searchField.setPrefColumnCount(16);
+        searchField.setOnAction(e -> searchWorkspace(searchField.getText()));
+        
         toolBar.getItems().addAll(newButton, openButton, saveButton, new Separator(), 
-                                 previewCheckBox, new Separator(), indentLabel, indentSlider);
+                                 previewCheckBox, new Separator(), indentLabel, indentSlider,
+                                 new Separator(), searchField);
         return toolBar;
     }
     
     /**
-     * Sets up event handlers for the editor.
+     * Updates the preview, title and status after the current document changed.
+     * 
+     * @param change The change of the document
      */
-    private void setupEventHandlers() {
-        // Update the document when text changes
-        editor.textProperty().addListener((obs, oldText, newText) -> {
-            if (currentDocument != null) {
-                currentDocument.updateContent(newText);
-                updatePreview();
-                updateTitle();
-                
-                // Validate the document
-                if (!currentDocument.validate()) {
-                    statusBar.setText("Warning: Document contains invalid markdown");
+    private void documentChanged(DocumentChange change) {
+        long start = EditLatency.start();
+        updatePreview();
+        latency.end(EditLatency.Stage.PREVIEW_PATCH, start);
+        
+        start = EditLatency.start();
+        updateTitle();
+        latency.end(EditLatency.Stage.TITLE, start);
+        
+        start = EditLatency.start();
+        lintService.changed(currentDocument, change);
+        latency.end(EditLatency.Stage.LINT, start);
+        
+        // Validate the document
+        start = EditLatency.start();
+        boolean valid = currentDocument.validate();
+        latency.end(EditLatency.Stage.VALIDATE, start);
+        if (!valid) {
+            statusBar.setText("Warning: Document contains invalid markdown");
+            statusBar.setTextFill(Color.RED);
+        } else {
+            statusBar.setText("Ready");
+            statusBar.setTextFill(Color.BLACK);
+        }
+        
+        // Auto-save if enabled, the edit goes to the journal of the document
+        if (editorSettings.isAutoSave() && currentDocument.getFilePath() != null && !reloading) {
+            MarkdownDocument document = currentDocument;
+            start = EditLatency.start();
+            CompletableFuture<Long> autosave = saveService.autosave(document, change);
+            latency.end(EditLatency.Stage.AUTOSAVE, start);
+            autosave.whenComplete((version, error) -> Platform.runLater(() -> {
+                if (error != null) {
+                    statusBar.setText("Auto save failed: " + document.getTitle());
                     statusBar.setTextFill(Color.RED);
-                } else {
-                    statusBar.setText("Ready");
-                    statusBar.setTextFill(Color.BLACK);
+                } else if (version >= 0) {
+                    // A checkpoint wrote the whole text to the file
+                    document.markSaved(version);
+                    updateTabText(document);
+                    if (document == currentDocument) {
+                        updateTitle();
+                    }
                 }
-                
-                // Auto-save if enabled
-                if (editorSettings.isAutoSave() && currentDocument.getFilePath() != null) {
-                    currentDocument.save();
-                }
-            }
-        });
+            }));
+        }
+    }
+    
+    /**
+     * Makes a document the one shown in the editor and listens to its changes.
+     * 
+     * @param document The document to show
+     */
+    private void setCurrentDocument(MarkdownDocument document) {
+        if (currentDocument != null) {
+            // The autosave journal is kept for switching back, it is forgotten when the tab closes
+            currentDocument.removeListener(documentListener);
+        }
+        currentDocument = document;
+        currentDocument.setSyntaxHighlighting(editorSettings.isSyntaxHighlighting());
+        currentDocument.getUndoManager().setMemoryLimit(editorSettings.getUndoMemory() * 1024L * 1024L);
+        currentDocument.addListener(documentListener);
+        if (fileWatcher != null) {
+            fileWatcher.watch(document);
+        }
+        lintService.lint(document);
+        if (document.getFilePath() != null && !document.getFilePath().isEmpty()) {
+            // Opened again at the next start
+            editorSettings.setLastDocument(document.getFilePath());
+        }
+        
+        if (editor != null) {
+            // Large files are edited in place too, the editor only reads the lines it shows
+            editor.setDocument(document);
+            outline.setDocument(document);
+        }
     }
     
     /**
-     * Updates the preview pane with current document content.
+     * Schedules an update of the preview pane with the blocks that changed.
+     * Rendering happens on the preview thread, only patching the page runs on the FX thread.
+     * A new or opened document replaces the whole preview.
      */
     private void updatePreview() {
+        if (previewArea == null && (!currentDocument.isShowPreview() || currentDocument.getBuffer() == null
+                                    || currentDocument.getBuffer().length() == 0)) {
+            // Nothing to show yet, the preview is created with the first text
+            return;
+        }
+        ensurePreview();
+        
         if (currentDocument.isShowPreview()) {
-            previewArea.getEngine().loadContent(currentDocument.generatePreview());
+            previewBridge.update(currentDocument.takePreviewPatch());
             previewArea.setVisible(true);
         } else {
+            // Patches are not applied while hidden, so reload everything when shown again
+            currentDocument.reloadPreview();
             previewArea.setVisible(false);
         }
     }
@@ -273,6 +649,11 @@ public class Main extends Application {
     private void updateEditor() {
         editor.setFont(Font.font(editorSettings.getFontName(), editorSettings.getFontSize()));
         editor.setWrapText(editorSettings.isWordWrap());
+        editor.setTabSize(editorSettings.getIndentSize());
+        if (currentDocument != null) {
+            currentDocument.setSyntaxHighlighting(editorSettings.isSyntaxHighlighting());
+            updatePreview();
+        }
     }
     
     /**
@@ -282,25 +663,125 @@ public class Main extends Application {
         Stage stage = (Stage) root.getScene().getWindow();
         stage.setTitle("CodeMark Editor - " + currentDocument.getTitle() + 
                       (currentDocument.isModified() ? " *" : ""));
+        updateTabText(currentDocument);
     }
     
     /**
-     * Creates a new empty document.
+     * Updates the text of the tab that shows a document.
+     * 
+     * @param document The document
      */
-    private void newDocument() {
-        // Check if current document has unsaved changes
-        if (currentDocument != null && currentDocument.isModified()) {
-            boolean save = showUnsavedChangesDialog();
-            if (save) {
-                saveDocument((Stage) root.getScene().getWindow());
+    private void updateTabText(MarkdownDocument document) {
+        for (Tab tab : tabPane.getTabs()) {
+            DocumentCache.Entry entry = (DocumentCache.Entry) tab.getUserData();
+            if (entry.peek() == document) {
+                tab.setText(document.getTitle() + (document.isModified() ? " *" : ""));
+            }
+        }
+    }
+    
+    /**
+     * Adds a tab for a document and selects it.
+     * 
+     * @param entry The cache entry of the document
+     */
+    private void addTab(DocumentCache.Entry entry) {
+        Tab tab = new Tab(entry.getTitle());
+        tab.setUserData(entry);
+        tab.setOnCloseRequest(e -> {
+            MarkdownDocument document = entry.peek();
+            if (document == null || !document.isModified()) {
+                return;
+            }
+            tabPane.getSelectionModel().select(tab);
+            UnsavedChoice choice = showUnsavedChangesDialog();
+            if (choice == UnsavedChoice.DONT_SAVE) {
+                // The journal would bring the edits back the next time the file is opened
+                saveService.discard(document);
+                return;
+            }
+            
+            // The tab stays open until the save is done, and stays open if it fails
+            e.consume();
+            if (choice == UnsavedChoice.SAVE) {
+                CompletableFuture<Boolean> saved = saveDocument((Stage) root.getScene().getWindow());
+                if (saved != null) {
+                    saved.thenAccept(success -> {
+                        // Edits made while saving keep the tab open
+                        if (success && !document.isModified() && tabPane.getTabs().remove(tab)) {
+                            tabClosed(entry);
+                        }
+                    });
+                }
             }
+        });
+        tab.setOnClosed(e -> tabClosed(entry));
+        tabPane.getTabs().add(tab);
+        tabPane.getSelectionModel().select(tab);
+    }
+    
+    /**
+     * Forgets the document of a tab that was closed.
+     * 
+     * @param entry The cache entry of the document
+     */
+    private void tabClosed(DocumentCache.Entry entry) {
+        if (entry.peek() != null) {
+            saveService.forget(entry.peek());
+            if (fileWatcher != null) {
+                fileWatcher.unwatch(entry.peek());
+            }
+        }
+        documentCache.remove(entry);
+        if (tabPane.getTabs().isEmpty()) {
+            newDocument();
+        }
+    }
+    
+    /**
+     * Shows the document of the selected tab. A document that was dropped from the
+     * cache is read again from its file, its preview is rendered from the blocks the
+     * document keeps.
+     * 
+     * @param oldTab The tab that was selected before, or null
+     * @param newTab The tab that is selected now, or null
+     */
+    private void tabSelected(Tab oldTab, Tab newTab) {
+        if (oldTab != null) {
+            oldTab.setContent(null);
+        }
+        if (newTab == null) {
+            return;
         }
         
-        // Create a new document
-        currentDocument = new MarkdownDocument("Untitled");
-        editor.setText("");
-        updateTitle();
-        updatePreview();
+        DocumentCache.Entry entry = (DocumentCache.Entry) newTab.getUserData();
+        MarkdownDocument document;
+        try {
+            document = documentCache.get(entry);
+        } catch (IOException e) {
+            showErrorDialog("Error opening file", e.getMessage());
+            documentCache.remove(entry);
+            tabPane.getTabs().remove(newTab);
+            return;
+        }
+        newTab.setContent(splitPane);
+        
+        if (document != currentDocument) {
+            setCurrentDocument(document);
+            currentDocument.reloadPreview();
+            updatePreview();
+        }
+        if (root.getScene() != null) {
+            updateTitle();
+        }
+    }
+    
+    /**
+     * Creates a new empty document.
+     */
+    private void newDocument() {
+        // Create a new document in its own tab
+        addTab(documentCache.add(new MarkdownDocument("Untitled")));
     }
     
     /**
@@ -309,14 +790,6 @@ public class Main extends Application {
      * @param stage The current stage
      */
     private void openDocument(Stage stage) {
-        // Check if current document has unsaved changes
-        if (currentDocument != null && currentDocument.isModified()) {
-            boolean save = showUnsavedChangesDialog();
-            if (save) {
-                saveDocument(stage);
-            }
-        }
-        
         // Show file chooser
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Open Document");
@@ -327,17 +800,144 @@ public class Main extends Application {
         
         File file = fileChooser.showOpenDialog(stage);
         if (file != null) {
-            try {
-                // Open the document using File constructor
-                currentDocument = new MarkdownDocument(file);
-                editor.setText(currentDocument.getContent());
-                updateTitle();
-                updatePreview();
+            openFile(file);
+        }
+    }
+    
+    /**
+     * Opens a file in a new tab, or selects its tab if it is open already.
+     * 
+     * @param file The file to open
+     * @return true if the file is shown, false if it could not be read
+     */
+    private boolean openFile(File file) {
+        // A file that is open already only selects its tab
+        DocumentCache.Entry open = documentCache.find(file.toPath());
+        if (open != null) {
+            for (Tab tab : tabPane.getTabs()) {
+                if (tab.getUserData() == open) {
+                    tabPane.getSelectionModel().select(tab);
+                }
+            }
+            return true;
+        }
+        
+        try {
+            // Open the document using File constructor, in a new tab
+            addTab(documentCache.add(new MarkdownDocument(file)));
+            if (currentDocument.isLargeFile()) {
+                statusBar.setText("Opened large file: " + file.getName() + " (preview off)");
+            } else if (currentDocument.isRecovered()) {
+                statusBar.setText("Opened: " + file.getName() + " (recovered unsaved changes)");
+            } else {
                 statusBar.setText("Opened: " + file.getName());
-                statusBar.setTextFill(Color.BLACK);
-            } catch (IOException e) {
-                showErrorDialog("Error opening file", e.getMessage());
             }
+            statusBar.setTextFill(Color.BLACK);
+            return true;
+        } catch (IOException e) {
+            showErrorDialog("Error opening file", e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Chooses the folder whose markdown files are searched, and indexes it in the
+     * background.
+     * 
+     * @param stage The current stage
+     */
+    private void openWorkspace(Stage stage) {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Open Workspace");
+        File folder = directoryChooser.showDialog(stage);
+        if (folder == null) {
+            return;
+        }
+        
+        // The index is loaded and updated in the background and only searched once it is ready
+        Path workspace = folder.toPath();
+        WorkspaceIndex previous = workspaceIndex;
+        workspaceIndex = null;
+        workspaceFolder = workspace;
+        statusBar.setText("Indexing " + folder.getName() + "...");
+        statusBar.setTextFill(Color.BLACK);
+        searchExecutor.execute(() -> {
+            if (previous != null) {
+                // Files saved since the last workspace was opened
+                previous.flush();
+            }
+            WorkspaceIndex index = new WorkspaceIndex(workspace, WorkspaceIndex.defaultIndexFile(workspace));
+            boolean updated = index.update();
+            Platform.runLater(() -> {
+                if (!workspace.equals(workspaceFolder)) {
+                    // Another workspace was opened meanwhile
+                    return;
+                }
+                workspaceIndex = index;
+                if (updated) {
+                    statusBar.setText("Indexed " + index.getFileCount() + " files in " + folder.getName());
+                    statusBar.setTextFill(Color.BLACK);
+                } else {
+                    statusBar.setText("Could not index " + folder.getName());
+                    statusBar.setTextFill(Color.RED);
+                }
+            });
+        });
+    }
+    
+    /**
+     * Updates a file in the workspace index in the background, after it was saved or
+     * changed on disk. The other files are only looked at when the workspace is opened.
+     * 
+     * @param filePath The file, ignored if it is not in the workspace
+     */
+    private void reindex(String filePath) {
+        WorkspaceIndex index = workspaceIndex;
+        if (index != null && filePath != null && !filePath.isEmpty()) {
+            searchExecutor.execute(() -> index.update(Paths.get(filePath)));
+        }
+    }
+    
+    /**
+     * Searches the workspace index in the background and lists the hits. The index
+     * is kept up to date by opening the workspace and by saves and file changes, so
+     * a query does not look at the files.
+     * 
+     * @param query The words to search for
+     */
+    private void searchWorkspace(String query) {
+        if (query == null || query.trim().isEmpty()) {
+            root.setLeft(null);
+            return;
+        }
+        if (workspaceIndex == null) {
+            statusBar.setText(workspaceFolder == null ? "Open a workspace to search it"
+                    : "Still indexing " + workspaceFolder.getFileName() + "...");
+            statusBar.setTextFill(Color.RED);
+            return;
+        }
+        
+        WorkspaceIndex index = workspaceIndex;
+        searchExecutor.execute(() -> {
+            List<WorkspaceIndex.Hit> hits = index.search(query, 100);
+            Platform.runLater(() -> {
+                searchResults.getItems().setAll(hits);
+                root.setLeft(searchResults);
+                statusBar.setText(hits.size() + " matches for \"" + query.trim() + "\"");
+                statusBar.setTextFill(Color.BLACK);
+            });
+        });
+    }
+    
+    /**
+     * Opens the file of a search hit and moves the caret to the match.
+     * 
+     * @param hit The hit, or null if none is selected
+     */
+    private void openHit(WorkspaceIndex.Hit hit) {
+        if (hit != null && openFile(hit.getPath().toFile())) {
+            editor.showOffset(hit.getOffset());
+            editor.requestFocus();
         }
     }
     
@@ -345,35 +945,68 @@ public class Main extends Application {
      * Saves the current document.
      * 
      * @param stage The current stage
+     * @return Completed on the FX thread with whether the save succeeded, or null if
+     *         no save was started
      */
-    private void saveDocument(Stage stage) {
+    private CompletableFuture<Boolean> saveDocument(Stage stage) {
         if (currentDocument == null) {
-            return;
+            return null;
         }
         
         // If the document hasn't been saved before, use Save As
         if (currentDocument.getFilePath() == null || currentDocument.getFilePath().isEmpty()) {
-            saveDocumentAs(stage);
-        } else {
-            // Save the document
-            if (currentDocument.save()) {
+            return saveDocumentAs(stage);
+        }
+        return saveInBackground(currentDocument);
+    }
+    
+    /**
+     * Saves a document on the save thread and updates the status when it is done.
+     * 
+     * @param document The document to save
+     * @return Completed on the FX thread with whether the save succeeded
+     */
+    private CompletableFuture<Boolean> saveInBackground(MarkdownDocument document) {
+        statusBar.setText("Saving: " + document.getTitle());
+        statusBar.setTextFill(Color.BLACK);
+        
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        saveService.save(document).whenComplete((version, error) -> Platform.runLater(() -> {
+            if (error != null) {
+                showErrorDialog("Error Saving", "Could not save the document.");
+                done.complete(false);
+                return;
+            }
+            
+            document.markSaved(version);
+            updateTabText(document);
+            reindex(document.getFilePath());
+            if (fileWatcher != null) {
+                // Save As moves the watch to the new file
+                fileWatcher.watch(document);
+            }
+            if (document == currentDocument) {
+                // Relative links of a file saved somewhere else point elsewhere
+                lintService.lint(document);
                 updateTitle();
-                statusBar.setText("Saved: " + currentDocument.getTitle());
+                statusBar.setText("Saved: " + document.getTitle());
                 statusBar.setTextFill(Color.BLACK);
-            } else {
-                showErrorDialog("Error Saving", "Could not save the document.");
             }
-        }
+            done.complete(true);
+        }));
+        return done;
     }
     
     /**
      * Saves the current document to a new location.
      * 
      * @param stage The current stage
+     * @return Completed on the FX thread with whether the save succeeded, or null if
+     *         no location was chosen
      */
-    private void saveDocumentAs(Stage stage) {
+    private CompletableFuture<Boolean> saveDocumentAs(Stage stage) {
         if (currentDocument == null) {
-            return;
+            return null;
         }
         
         // Show file chooser
@@ -392,24 +1025,138 @@ public class Main extends Application {
         }
         
         File file = fileChooser.showSaveDialog(stage);
-        if (file != null) {
-            // Save the document
-            if (currentDocument.saveAs(file.getAbsolutePath())) {
-                updateTitle();
-                statusBar.setText("Saved: " + currentDocument.getTitle());
-                statusBar.setTextFill(Color.BLACK);
-            } else {
-                showErrorDialog("Error Saving", "Could not save the document.");
+        if (file == null) {
+            return null;
+        }
+        // Save the document
+        currentDocument.setFilePath(file.getAbsolutePath());
+        return saveInBackground(currentDocument);
+    }
+    
+    /**
+     * Exports the current document as an HTML file. The HTML is rendered into the
+     * file on the export thread, from the text as it is now.
+     * 
+     * @param stage The current stage
+     */
+    private void exportHtml(Stage stage) {
+        if (currentDocument == null) {
+            return;
+        }
+        
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export to HTML");
+        fileChooser.getExtensionFilters().addAll(
+            new FileChooser.ExtensionFilter("HTML Files", "*.html", "*.htm"),
+            new FileChooser.ExtensionFilter("All Files", "*.*")
+        );
+        String title = currentDocument.getTitle();
+        String name = title == null || title.equals("Untitled") ? "document" : title;
+        int dot = name.lastIndexOf('.');
+        fileChooser.setInitialFileName((dot > 0 ? name.substring(0, dot) : name) + ".html");
+        
+        File file = fileChooser.showSaveDialog(stage);
+        if (file == null) {
+            return;
+        }
+        
+        // The buffer is immutable, edits made during the export do not change it
+        TextBuffer text = currentDocument.getBuffer();
+        boolean syntaxHighlighting = editorSettings.isSyntaxHighlighting();
+        statusBar.setText("Exporting: " + file.getName());
+        statusBar.setTextFill(Color.BLACK);
+        CompletableFuture.runAsync(() -> {
+            try {
+                MarkdownDocument.exportHtml(text, syntaxHighlighting, file.toPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        }, exportExecutor).whenComplete((result, error) -> Platform.runLater(() -> {
+            if (error != null) {
+                showErrorDialog("Error Exporting", "Could not export the document to " + file.getName() + ".");
+                return;
+            }
+            statusBar.setText("Exported: " + file.getName());
+            statusBar.setTextFill(Color.BLACK);
+        }));
+    }
+    
+    /**
+     * Asks whether to reload a document whose file was changed or deleted by
+     * another program.
+     * 
+     * @param document The document
+     */
+    private void externalChange(Document document) {
+        boolean open = false;
+        for (Tab tab : tabPane.getTabs()) {
+            open |= ((DocumentCache.Entry) tab.getUserData()).peek() == document;
+        }
+        if (!open) {
+            // Closed while the file was checked
+            return;
+        }
+        reindex(document.getFilePath());
+        
+        if (!new File(document.getFilePath()).exists()) {
+            Alert alert = new Alert(Alert.AlertType.WARNING);
+            alert.setTitle("File Deleted");
+            alert.setHeaderText(document.getTitle() + " was deleted on disk");
+            alert.setContentText("The document stays open, save it to write the file again.");
+            alert.showAndWait();
+            return;
+        }
+        
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+        alert.setTitle("File Changed");
+        alert.setHeaderText(document.getTitle() + " was changed on disk");
+        alert.setContentText(document.isModified() ? "Do you want to reload it? Your unsaved changes will be lost."
+                                                   : "Do you want to reload it?");
+        ButtonType buttonTypeReload = new ButtonType("Reload");
+        ButtonType buttonTypeKeep = new ButtonType("Keep", ButtonBar.ButtonData.CANCEL_CLOSE);
+        alert.getButtonTypes().setAll(buttonTypeReload, buttonTypeKeep);
+        alert.showAndWait();
+        if (alert.getResult() != buttonTypeReload) {
+            return;
+        }
+        
+        // Edits journaled against the old file do not apply to the new one
+        saveService.forget(document);
+        boolean reloaded;
+        reloading = true;
+        try {
+            reloaded = document.open(document.getFilePath());
+        } finally {
+            reloading = false;
+        }
+        if (!reloaded) {
+            showErrorDialog("Error opening file", "Could not reload " + document.getTitle() + ".");
+            return;
+        }
+        if (document == currentDocument) {
+            currentDocument.reloadPreview();
+            updatePreview();
+            updateTitle();
+        } else {
+            updateTabText((MarkdownDocument) document);
         }
     }
     
+    /**
+     * The answers to the unsaved changes dialog.
+     */
+    private enum UnsavedChoice {
+        SAVE,
+        DONT_SAVE,
+        CANCEL
+    }
+    
     /**
      * Shows dialog when there are unsaved changes.
      * 
-     * @return true if the user wants to save, false otherwise
+     * @return What the user chose, CANCEL if the dialog was closed
      */
-    private boolean showUnsavedChangesDialog() {
+    private UnsavedChoice showUnsavedChangesDialog() {
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
         alert.setTitle("Unsaved Changes");
         alert.setHeaderText("There are unsaved changes");
@@ -424,7 +1171,10 @@ public class Main extends Application {
         alert.showAndWait();
         ButtonType result = alert.getResult();
         
-        return result == buttonTypeSave;
+        if (result == buttonTypeSave) {
+            return UnsavedChoice.SAVE;
+        }
+        return result == buttonTypeDontSave ? UnsavedChoice.DONT_SAVE : UnsavedChoice.CANCEL;
     }
     
     /**
@@ -456,7 +1206,47 @@ public class Main extends Application {
         alert.showAndWait();
     }
     
+    @Override
+    public void stop() {
+        if (previewScheduler != null) {
+            previewScheduler.shutdown();
+        }
+        searchExecutor.shutdownNow();
+        if (workspaceIndex != null) {
+            // Files saved since the workspace was opened are not read again on the next start
+            workspaceIndex.flush();
+        }
+        exportExecutor.shutdown();
+        if (lintService != null) {
+            lintService.shutdown();
+        }
+        if (latencyRefresher != null) {
+            latencyRefresher.shutdownNow();
+        }
+        if (fileWatcher != null) {
+            try {
+                fileWatcher.close();
+            } catch (IOException e) {
+                // The watcher thread is a daemon and ends with the application
+            }
+        }
+        // Write settings changed in the last moments before exiting
+        editorSettings.flush();
+        // Startups without a keystroke are reported up to where they got
+        reportStartup();
+        // Let queued saves finish before the application exits
+        saveService.shutdown(10000);
+        try {
+            // An export that is cut off leaves only its temporary file
+            exportExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     public static void main(String[] args) {
+        STARTUP.mark("main");
+        startLoading();
         launch(args);
     }
 }
@@ -0,0 +1,461 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * MappedTextBuffer is a TextBuffer over a memory-mapped UTF-8 file.
+ * The file is split into chunks that are only decoded when they are read, and
+ * only a few decoded chunks are kept, so heap use does not grow with the file.
+ * The number of characters and lines in each chunk is counted in the background,
+ * and on demand when text further in the file is read before the count gets there.
+ * Edits return a Rope that refers to this buffer for the unchanged text. The rope
+ * needs the length of the text, so the first edit waits until the whole file is
+ * counted, which the background count has usually done by then.
+ * 
+ * Bytes that are not valid UTF-8 are read as U+FFFD. Writing the text would then
+ * replace the original bytes, so a buffer with such bytes refuses to be written.
+ */
+public final class MappedTextBuffer implements TextBuffer {
+    // Size of a chunk in bytes, chunks start at a character boundary at or before a multiple of this
+    static final int CHUNK_BYTES = 64 * 1024;
+    // How many decoded chunks are kept in memory
+    private static final int CACHED_CHUNKS = 32;
+    // Most heap the decoded chunks of a buffer take, the file itself is mapped outside the heap
+    static final long CACHE_BYTES = (long) CACHED_CHUNKS * CHUNK_BYTES * 2;
+    
+    private static final ExecutorService INDEXER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "document-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final MappedByteBuffer bytes;
+    private final int size;
+    private final int chunkCount;
+    
+    // Characters and line feeds before each chunk, valid up to indexedChunks
+    private final int[] chunkCharStart;
+    private final int[] chunkLineStart;
+    private volatile int indexedChunks;
+    // Set when a decoded chunk had bytes that are not valid UTF-8
+    private volatile boolean malformed;
+    
+    private final Map<Integer, char[]> cache = new LinkedHashMap<>(CACHED_CHUNKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+            return size() > CACHED_CHUNKS;
+        }
+    };
+    
+    // The chunk the last charAt call read
+    private Finger finger;
+    
+    private MappedTextBuffer(MappedByteBuffer bytes, int size) {
+        this.bytes = bytes;
+        this.size = size;
+        this.chunkCount = (size + CHUNK_BYTES - 1) / CHUNK_BYTES;
+        this.chunkCharStart = new int[chunkCount + 1];
+        this.chunkLineStart = new int[chunkCount + 1];
+    }
+    
+    /**
+     * Maps a file and starts counting its characters and lines in the background.
+     * 
+     * @param path The file to map
+     * @return The buffer
+     * @throws IOException If the file cannot be mapped or is larger than 2 GB
+     */
+    public static MappedTextBuffer open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large: " + path);
+            }
+            
+            MappedTextBuffer buffer = new MappedTextBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+                                                           (int) size);
+            INDEXER.execute(buffer::indexAll);
+            return buffer;
+        }
+    }
+    
+    @Override
+    public int length() {
+        indexUntil(chunkCount);
+        return chunkCharStart[chunkCount];
+    }
+    
+    @Override
+    public char charAt(int index) {
+        Finger current = finger;
+        if (current == null || index < current.start || index >= current.start + current.chars.length) {
+            if (index < 0) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            int chunk = chunkForChar(index);
+            current = new Finger(chunk(chunk), chunkCharStart[chunk]);
+            finger = current;
+        }
+        return current.chars[index - current.start];
+    }
+    
+    @Override
+    public TextBuffer insert(int offset, CharSequence text) {
+        return Rope.of(this).insert(offset, text);
+    }
+    
+    @Override
+    public TextBuffer delete(int start, int end) {
+        return Rope.of(this).delete(start, end);
+    }
+    
+    @Override
+    public TextBuffer subSequence(int start, int end) {
+        if (start < 0 || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + ")");
+        }
+        if (end > 0) {
+            // Counts only the file up to the end of the range
+            chunkForChar(end - 1);
+        }
+        return Rope.slice(this, start, end);
+    }
+    
+    @Override
+    public void writeTo(Writer writer) throws IOException {
+        checkValid();
+        // A chunk has at most CHUNK_BYTES plus the bytes of one character, and no more characters than bytes
+        char[] chars = new char[CHUNK_BYTES + 3];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            // Decode without caching so writing does not push out the chunks being viewed
+            int count = decode(chunk, chars);
+            writer.write(chars, 0, count);
+        }
+    }
+    
+    /**
+     * Writes a range of the text, decoding only the chunks it covers.
+     * 
+     * @param writer The writer to write to
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @throws IOException If writing fails
+     */
+    void writeTo(Writer writer, int start, int end) throws IOException {
+        checkValid();
+        int pos = start;
+        while (pos < end) {
+            int chunk = chunkForChar(pos);
+            char[] chars = chunk(chunk);
+            int chunkStart = chunkCharStart[chunk];
+            int count = Math.min(end, chunkStart + chars.length) - pos;
+            writer.write(chars, pos - chunkStart, count);
+            pos += count;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length());
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            builder.append(chunk(chunk));
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Returns the number of lines, counting the whole file first if needed.
+     * 
+     * @return The line count
+     */
+    public int lineCount() {
+        indexUntil(chunkCount);
+        return chunkLineStart[chunkCount] + 1;
+    }
+    
+    /**
+     * Returns the number of lines counted so far without waiting for the rest of the file.
+     * 
+     * @return The lines counted so far
+     */
+    public int countedLines() {
+        int indexed = indexedChunks;
+        return chunkLineStart[indexed] + 1;
+    }
+    
+    /**
+     * Estimates the number of lines from the part of the file counted so far,
+     * without waiting for the rest of the file.
+     * 
+     * @return The line count once the whole file is counted, an estimate before
+     */
+    public int estimatedLineCount() {
+        int indexed = indexedChunks;
+        if (indexed == chunkCount) {
+            return chunkLineStart[indexed] + 1;
+        }
+        long lines = (long) chunkLineStart[indexed] * chunkCount / Math.max(1, indexed);
+        return (int) Math.min(Integer.MAX_VALUE - 1, lines) + 1;
+    }
+    
+    /**
+     * Returns the length of the text, or a smaller limit, counting only the file up
+     * to the limit.
+     * 
+     * @param limit The most characters needed
+     * @return The smaller of the length and the limit
+     */
+    public int lengthUpTo(int limit) {
+        while (indexedChunks < chunkCount && chunkCharStart[indexedChunks] < limit) {
+            indexNext();
+        }
+        return Math.min(limit, chunkCharStart[indexedChunks]);
+    }
+    
+    /**
+     * Checks whether the file is valid UTF-8, counting the whole file first if needed.
+     * 
+     * @return true if every byte was decoded, false if some were read as U+FFFD
+     */
+    public boolean isValid() {
+        indexUntil(chunkCount);
+        return !malformed;
+    }
+    
+    private void checkValid() throws IOException {
+        if (!isValid()) {
+            throw new IOException("The file is not valid UTF-8, writing it would replace the invalid bytes");
+        }
+    }
+    
+    /**
+     * Checks whether the whole file has been counted.
+     * 
+     * @return true if the characters and lines of the whole file are known
+     */
+    public boolean isIndexed() {
+        return indexedChunks == chunkCount;
+    }
+    
+    /**
+     * Returns the offset where a line starts. Only the file up to the line is counted.
+     * 
+     * @param line The line number, starting at 0
+     * @return The offset of the first character of the line, or the length of the
+     *         text if the file has fewer lines
+     */
+    public int lineStart(int line) {
+        if (line == 0) {
+            return 0;
+        }
+        
+        // Count until the chunk holding the line feed before the line
+        while (indexedChunks < chunkCount && chunkLineStart[indexedChunks] < line) {
+            indexNext();
+        }
+        int indexed = indexedChunks;
+        if (line < 0) {
+            throw new IndexOutOfBoundsException("line " + line);
+        }
+        if (line > chunkLineStart[indexed]) {
+            return chunkCharStart[indexed];
+        }
+        
+        int low = 0;
+        int high = indexed - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (chunkLineStart[mid] < line) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        
+        char[] chars = chunk(low);
+        int remaining = line - chunkLineStart[low];
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] == '\n' && --remaining == 0) {
+                return chunkCharStart[low] + i + 1;
+            }
+        }
+        throw new IllegalStateException("Line feed not found in chunk " + low);
+    }
+    
+    /**
+     * Finds the chunk containing a character, counting further into the file if needed.
+     */
+    private int chunkForChar(int index) {
+        while (indexedChunks < chunkCount && chunkCharStart[indexedChunks] <= index) {
+            indexNext();
+        }
+        int indexed = indexedChunks;
+        if (index >= chunkCharStart[indexed]) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + chunkCharStart[indexed]);
+        }
+        
+        int low = 0;
+        int high = indexed - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (chunkCharStart[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Returns the decoded characters of a chunk, from the cache if possible.
+     */
+    private char[] chunk(int chunk) {
+        synchronized (cache) {
+            char[] chars = cache.get(chunk);
+            if (chars != null) {
+                return chars;
+            }
+        }
+        
+        char[] chars = new char[chunkCharStart[chunk + 1] - chunkCharStart[chunk]];
+        decode(chunk, chars);
+        synchronized (cache) {
+            cache.put(chunk, chars);
+        }
+        return chars;
+    }
+    
+    private void indexAll() {
+        while (indexedChunks < chunkCount) {
+            indexNext();
+        }
+    }
+    
+    private void indexUntil(int chunks) {
+        while (indexedChunks < chunks) {
+            indexNext();
+        }
+    }
+    
+    /**
+     * Counts the characters and line feeds of the next chunk that has not been counted.
+     */
+    private synchronized void indexNext() {
+        int chunk = indexedChunks;
+        if (chunk >= chunkCount) {
+            return;
+        }
+        
+        int chars = decode(chunk, null);
+        int lines = 0;
+        int end = chunkEnd(chunk);
+        for (int pos = chunkStart(chunk); pos < end; pos++) {
+            if (bytes.get(pos) == '\n') {
+                lines++;
+            }
+        }
+        chunkCharStart[chunk + 1] = chunkCharStart[chunk] + chars;
+        chunkLineStart[chunk + 1] = chunkLineStart[chunk] + lines;
+        // Publishes the counts above to other threads
+        indexedChunks = chunk + 1;
+    }
+    
+    /**
+     * Decodes a chunk. Malformed bytes are decoded as U+FFFD, one per byte, so the
+     * count is the same whether the characters are kept or not.
+     * 
+     * @param out Where to put the characters, or null to only count them
+     * @return The number of characters in the chunk
+     */
+    private int decode(int chunk, char[] out) {
+        int pos = chunkStart(chunk);
+        int end = chunkEnd(chunk);
+        int count = 0;
+        
+        while (pos < end) {
+            int b = bytes.get(pos) & 0xFF;
+            int codePoint;
+            int length;
+            if (b < 0x80) {
+                codePoint = b;
+                length = 1;
+            } else if (b >= 0xC2 && b < 0xE0 && isContinuation(pos + 1, end)) {
+                codePoint = ((b & 0x1F) << 6) | (bytes.get(pos + 1) & 0x3F);
+                length = 2;
+            } else if (b >= 0xE0 && b < 0xF0 && isContinuation(pos + 1, end) && isContinuation(pos + 2, end)) {
+                codePoint = ((b & 0x0F) << 12) | ((bytes.get(pos + 1) & 0x3F) << 6) | (bytes.get(pos + 2) & 0x3F);
+                length = 3;
+            } else if (b >= 0xF0 && b < 0xF5 && isContinuation(pos + 1, end) && isContinuation(pos + 2, end)
+                       && isContinuation(pos + 3, end)) {
+                codePoint = ((b & 0x07) << 18) | ((bytes.get(pos + 1) & 0x3F) << 12)
+                            | ((bytes.get(pos + 2) & 0x3F) << 6) | (bytes.get(pos + 3) & 0x3F);
+                length = 4;
+            } else {
+                codePoint = 0xFFFD;
+                length = 1;
+                malformed = true;
+            }
+            if ((length == 3 && (codePoint < 0x800 || Character.isSurrogate((char) codePoint)))
+                || (length == 4 && (codePoint < 0x10000 || codePoint > Character.MAX_CODE_POINT))) {
+                // Overlong forms, surrogates and code points past Unicode are not valid UTF-8 either
+                malformed = true;
+            }
+            
+            if (codePoint > 0xFFFF && codePoint <= Character.MAX_CODE_POINT) {
+                if (out != null) {
+                    out[count] = Character.highSurrogate(codePoint);
+                    out[count + 1] = Character.lowSurrogate(codePoint);
+                }
+                count += 2;
+            } else {
+                if (out != null) {
+                    out[count] = codePoint > 0xFFFF ? '\uFFFD' : (char) codePoint;
+                }
+                count++;
+            }
+            pos += length;
+        }
+        return count;
+    }
+    
+    private boolean isContinuation(int pos, int end) {
+        return pos < end && (bytes.get(pos) & 0xC0) == 0x80;
+    }
+    
+    private int chunkStart(int chunk) {
+        if (chunk == 0) {
+            return 0;
+        }
+        // Move back to the start of the character the chunk boundary falls into
+        int pos = chunk * CHUNK_BYTES;
+        for (int i = 0; i < 3 && (bytes.get(pos) & 0xC0) == 0x80; i++) {
+            pos--;
+        }
+        return pos;
+    }
+    
+    private int chunkEnd(int chunk) {
+        return chunk + 1 >= chunkCount ? size : chunkStart(chunk + 1);
+    }
+    
+    /**
+     * A decoded chunk and the offset it starts at. Immutable, so it can be shared between threads.
+     */
+    private static final class Finger {
+        final char[] chars;
+        final int start;
+        
+        Finger(char[] chars, int start) {
+            this.chars = chars;
+            this.start = start;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
-import java.util.regex.Pattern;
 import java.io.File;
+import java.io.Writer;
+import java.nio.file.Path;
 
 /**
  * MarkdownDocument class represents a markdown document in the application.
@@ -8,9 +9,18 @@ import java.io.File;
  */
 public class MarkdownDocument extends Document {
     private boolean showPreview;
+    private final MarkdownRenderer renderer = new MarkdownRenderer();
+    private final PreviewBlocks previewBlocks = new PreviewBlocks();
     
-    // Regex pattern to validate markdown headers
-    private static final Pattern HEADER_PATTERN = Pattern.compile("^#{1,6}\\s.*$", Pattern.MULTILINE);
+    // Header lines, kept up to date with every edit
+    private final HeaderIndex headerIndex = new HeaderIndex();
+    
+    // Tokens of the fenced code, null while syntax highlighting is off
+    private SyntaxHighlighter highlighter;
+    
+    // Offset of the first header of a large file, -1 if it has none, UNKNOWN until it is scanned
+    private static final int UNKNOWN = -2;
+    private int firstHeader = UNKNOWN;
     
     /**
      * Constructor for a new markdown document.
@@ -20,6 +30,7 @@ public class MarkdownDocument extends Document {
     public MarkdownDocument(String title) {
         super(title);
         this.showPreview = true;
+        contentReset();
     }
     
     /**
@@ -30,7 +41,9 @@ public class MarkdownDocument extends Document {
      */
     public MarkdownDocument(File file) throws IOException {
         super(file);
-        this.showPreview = true;
+        // Large files are not rendered, the preview would need the whole text
+        this.showPreview = !largeFile;
+        contentReset();
     }
     
     /**
@@ -42,11 +55,22 @@ public class MarkdownDocument extends Document {
     @Override
     public boolean validate() {
         // Simple validation: check if it has at least one markdown header
-        if (content == null || content.isEmpty()) {
+        if (content == null) {
+            return false;
+        }
+        if (largeFile) {
+            // Large files have no header index, the offset of the first header is kept
+            // instead, so a file without headers is only scanned once and not on every edit
+            if (firstHeader == UNKNOWN) {
+                firstHeader = HeaderIndex.firstHeader(content, 0, content.length());
+            }
+            return firstHeader >= 0;
+        }
+        if (content.isEmpty()) {
             return false;
         }
         
-        return HEADER_PATTERN.matcher(content).find();
+        return headerIndex.size() > 0;
     }
     
     /**
@@ -55,34 +79,175 @@ public class MarkdownDocument extends Document {
      * @return HTML representation of the markdown content
      */
     public String generatePreview() {
-        if (content == null || content.isEmpty()) {
-            return "<html><body></body></html>";
+        return renderer.render(content);
+    }
+    
+    /**
+     * Converts markdown content to HTML and writes it to a writer while it is
+     * rendered, without building the whole page in memory.
+     * 
+     * @param out The writer the HTML is written to
+     * @throws IOException If the writer fails
+     */
+    public void generatePreview(Writer out) throws IOException {
+        renderer.render(content, out);
+    }
+    
+    /**
+     * Exports a version of a document as an HTML file. The text is read once from
+     * the start and the HTML is encoded into the file while it is rendered, so even
+     * a large file takes only a few buffers besides its text. The file is replaced
+     * once it is complete, like a saved document.
+     * Can be called from any thread, with the buffer of a document taken before.
+     * 
+     * @param text The text of the document
+     * @param syntaxHighlighting Whether fenced code is highlighted
+     * @param target The HTML file to write
+     * @throws IOException If the file cannot be written
+     */
+    public static void exportHtml(TextBuffer text, boolean syntaxHighlighting, Path target) throws IOException {
+        MarkdownRenderer exporter = new MarkdownRenderer();
+        exporter.setSyntaxHighlighting(syntaxHighlighting);
+        SaveService.writeAtomically(target, writer -> exporter.render(text, writer), false);
+    }
+    
+    /**
+     * Collects the preview blocks that changed since the last call.
+     * The first patch after the document is loaded replaces the whole preview.
+     * 
+     * @return The changes to apply to the preview
+     */
+    public PreviewPatch takePreviewPatch() {
+        return previewBlocks.takePatch();
+    }
+    
+    /**
+     * Makes the next preview patch replace the whole preview, for example after
+     * the preview was hidden and its patches were not applied.
+     */
+    public void reloadPreview() {
+        previewBlocks.requestFullReload();
+    }
+    
+    /**
+     * Re-parses only the preview blocks and headers around the changed text.
+     * 
+     * @param change The change that was made
+     */
+    @Override
+    protected void contentEdited(DocumentChange change) {
+        if (largeFile) {
+            updateFirstHeader(change.getOffset(), change.getRemovedLength(), change.getInsertedLength());
+            return;
+        }
+        previewBlocks.update(content, change.getOffset(), change.getRemovedLength(), change.getInsertedLength());
+        headerIndex.update(content, change.getOffset(), change.getRemovedLength(), change.getInsertedLength());
+        if (highlighter != null) {
+            highlighter.update(content, change.getOffset(), change.getRemovedLength(), change.getInsertedLength());
+        }
+    }
+    
+    /**
+     * Parses the preview blocks and headers of the new content.
+     * Large files are not parsed, so opening one does not wait for the whole file.
+     */
+    @Override
+    protected void contentReset() {
+        firstHeader = UNKNOWN;
+        CharSequence parsed = largeFile ? "" : content;
+        previewBlocks.reset(parsed);
+        headerIndex.reset(parsed);
+        if (highlighter != null) {
+            highlighter.reset(parsed);
+        }
+    }
+    
+    /**
+     * Keeps the offset of the first header of a large file up to date after an edit.
+     * Only the lines the edit touches are scanned, unless it changes the first header
+     * itself, then the text after it is scanned until the next header.
+     */
+    private void updateFirstHeader(int offset, int removedLength, int insertedLength) {
+        if (firstHeader == UNKNOWN) {
+            return;
+        }
+        // The '#' characters and the whitespace after them make the header, not its text
+        if (firstHeader >= 0 && offset > firstHeader + HeaderIndex.MAX_LEVEL + 1) {
+            return;
         }
         
-        // Basic markdown to HTML conversion for headers, bold, and italic
-        String html = content;
-        
-        // Convert code blocks (```code```) - do this first to preserve newlines in code blocks
-        html = html.replaceAll("(?s)```(.*?)```", "<pre><code>$1</code></pre>");
-        
-        // Convert headers (# Header)
-        html = html.replaceAll("(?m)^# (.*)$", "<h1>$1</h1>");
-        html = html.replaceAll("(?m)^## (.*)$", "<h2>$1</h2>");
-        html = html.replaceAll("(?m)^### (.*)$", "<h3>$1</h3>");
-        html = html.replaceAll("(?m)^#### (.*)$", "<h4>$1</h4>");
-        html = html.replaceAll("(?m)^##### (.*)$", "<h5>$1</h5>");
-        html = html.replaceAll("(?m)^###### (.*)$", "<h6>$1</h6>");
-        
-        // Convert bold (**text**)
-        html = html.replaceAll("\\*\\*(.*?)\\*\\*", "<strong>$1</strong>");
-        
-        // Convert italic (*text*)
-        html = html.replaceAll("\\*(.*?)\\*", "<em>$1</em>");
-        
-        // Convert line breaks
-        html = html.replaceAll("\\n", "<br>");
+        int lineStart = offset;
+        while (lineStart > 0 && !MarkdownRenderer.isLineTerminator(content.charAt(lineStart - 1))) {
+            lineStart--;
+        }
+        if (firstHeader >= 0 && offset + removedLength >= firstHeader) {
+            // The header or the line break before it changed, nothing before the edit is a header
+            firstHeader = HeaderIndex.firstHeader(content, lineStart, content.length());
+            return;
+        }
         
-        return "<html><body>" + html + "</body></html>";
+        // A header may start on the edited lines, the first header moves with the edit
+        int found = HeaderIndex.firstHeader(content, lineStart, offset + insertedLength);
+        if (found >= 0) {
+            firstHeader = found;
+        } else if (firstHeader >= 0) {
+            firstHeader += insertedLength - removedLength;
+        }
+    }
+    
+    /**
+     * Turns highlighting of fenced code on or off, for the preview and for the
+     * tokens returned by getSyntaxHighlighter.
+     * 
+     * @param enabled Whether fenced code is highlighted
+     */
+    public void setSyntaxHighlighting(boolean enabled) {
+        if (enabled == (highlighter != null)) {
+            return;
+        }
+        renderer.setSyntaxHighlighting(enabled);
+        previewBlocks.setSyntaxHighlighting(enabled);
+        if (enabled) {
+            highlighter = new SyntaxHighlighter();
+            highlighter.reset(largeFile ? "" : content);
+        } else {
+            highlighter = null;
+        }
+    }
+    
+    /**
+     * Returns the tokens of the fenced code in the document.
+     * 
+     * @return The highlighter, or null if syntax highlighting is off
+     */
+    public SyntaxHighlighter getSyntaxHighlighter() {
+        return highlighter;
+    }
+    
+    /**
+     * Returns the index of the header lines in the document.
+     * 
+     * @return The header index
+     */
+    public HeaderIndex getHeaderIndex() {
+        return headerIndex;
+    }
+    
+    /**
+     * Estimates how much heap the document takes: its text, the rendered HTML of the
+     * preview blocks, the indexes built from the text and the undo history. A large
+     * file is mapped outside the heap, so only its decoded chunks count.
+     * 
+     * @return The estimated heap use in bytes
+     */
+    public long estimateMemory() {
+        long textBytes = largeFile ? MappedTextBuffer.CACHE_BYTES : 2L * (content == null ? 0 : content.length());
+        // Every block and header keeps an object and a few index entries
+        long indexBytes = 64L * (previewBlocks.size() + headerIndex.size());
+        if (highlighter != null) {
+            indexBytes += 32L * highlighter.lineCount();
+        }
+        return textBytes + 2 * previewBlocks.renderedLength() + indexBytes + getUndoManager().getMemoryUsed();
     }
     
     /**
@@ -0,0 +1,403 @@
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * MarkdownLinter finds problems in a markdown document: relative links to files
+ * or headings that do not exist, heading levels that are skipped, code fences
+ * that are never closed, headings with the same anchor and trailing whitespace.
+ * 
+ * What a line contains (its links, fences and trailing whitespace) is kept sorted
+ * by offset like the headers of a HeaderIndex, and after an edit only the lines
+ * the edit touches are scanned again. Checking then goes through what was found
+ * and not through the text, link targets are looked up in a FileStatCache.
+ * Instances are not thread safe, a LintService uses one from one thread at a time.
+ */
+public class MarkdownLinter {
+    /**
+     * The rules a document is checked against.
+     */
+    public enum Rule {
+        BROKEN_LINK("broken-link"),
+        SKIPPED_HEADING_LEVEL("heading-level"),
+        UNCLOSED_FENCE("unclosed-fence"),
+        DUPLICATE_ANCHOR("duplicate-anchor"),
+        TRAILING_WHITESPACE("trailing-whitespace");
+        
+        private final String label;
+        
+        Rule(String label) {
+            this.label = label;
+        }
+        
+        public String getLabel() {
+            return label;
+        }
+    }
+    
+    /**
+     * A problem found in the document.
+     */
+    public static class Diagnostic {
+        private final Rule rule;
+        private final int offset;
+        private final int length;
+        private final String message;
+        
+        Diagnostic(Rule rule, int offset, int length, String message) {
+            this.rule = rule;
+            this.offset = offset;
+            this.length = length;
+            this.message = message;
+        }
+        
+        public Rule getRule() {
+            return rule;
+        }
+        
+        /**
+         * Returns where the problem starts, in the version of the text that was checked.
+         * 
+         * @return The offset of the problem
+         */
+        public int getOffset() {
+            return offset;
+        }
+        
+        public int getLength() {
+            return length;
+        }
+        
+        public String getMessage() {
+            return message;
+        }
+        
+        @Override
+        public String toString() {
+            return rule.getLabel() + "@" + offset + ": " + message;
+        }
+    }
+    
+    /**
+     * Something found on a line: a link target or trailing whitespace.
+     */
+    private static final class Finding {
+        // The link target, or null for trailing whitespace
+        final String target;
+        final int length;
+        
+        Finding(String target, int length) {
+            this.target = target;
+            this.length = length;
+        }
+    }
+    
+    private static final Object FENCE = new Object();
+    
+    private final OffsetIndex<Finding> findings = new OffsetIndex<>();
+    private final OffsetIndex<Object> fences = new OffsetIndex<>();
+    private final HeaderIndex headers = new HeaderIndex();
+    private CharSequence text = "";
+    
+    // Buffers for what is found while scanning lines
+    private int[] foundOffsets = new int[16];
+    private Object[] foundFindings = new Object[16];
+    private int foundCount;
+    private int[] fenceOffsets = new int[4];
+    private Object[] fenceValues = new Object[4];
+    private int fenceCount;
+    
+    /**
+     * Scans the whole text again.
+     * 
+     * @param newText The document text
+     */
+    public void reset(CharSequence newText) {
+        text = newText == null ? "" : newText;
+        findings.clear();
+        fences.clear();
+        headers.reset(text);
+        scanLines(text, 0, text.length());
+        findings.replace(0, 0, foundOffsets, foundFindings, foundCount, 0);
+        fences.replace(0, 0, fenceOffsets, fenceValues, fenceCount, 0);
+        clearFound();
+    }
+    
+    /**
+     * Updates what was found after an edit. Only the lines touching the edited
+     * range are scanned again.
+     * 
+     * @param newText The document text after the edit
+     * @param offset The offset where the edit starts
+     * @param removedLength The number of characters removed at the offset
+     * @param insertedLength The number of characters inserted at the offset
+     */
+    public void update(CharSequence newText, int offset, int removedLength, int insertedLength) {
+        int start = offset;
+        while (start > 0 && !MarkdownRenderer.isLineTerminator(newText.charAt(start - 1))) {
+            start--;
+        }
+        int end = MarkdownRenderer.findLineEnd(newText, offset + insertedLength, newText.length());
+        // The same lines before the edit, the text after the edit is only shifted
+        int oldEnd = end - insertedLength + removedLength;
+        int delta = insertedLength - removedLength;
+        
+        scanLines(newText, start, end);
+        findings.replace(findings.indexFrom(start), findings.indexFrom(oldEnd), foundOffsets, foundFindings,
+                         foundCount, delta);
+        fences.replace(fences.indexFrom(start), fences.indexFrom(oldEnd), fenceOffsets, fenceValues, fenceCount,
+                       delta);
+        clearFound();
+        headers.update(newText, offset, removedLength, insertedLength);
+        text = newText;
+    }
+    
+    /**
+     * Checks the document against all rules.
+     * 
+     * @param folder The folder relative links start from, or null if the document has
+     *               no file and relative links to files are not checked
+     * @param stats The cache to look up link targets in
+     * @return The problems sorted by offset
+     */
+    public List<Diagnostic> check(Path folder, FileStatCache stats) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        
+        // Fences pair up in order like in the preview, only the last one can be left open
+        int pairedFences = fences.size() & ~1;
+        if (fences.size() > pairedFences) {
+            diagnostics.add(new Diagnostic(Rule.UNCLOSED_FENCE, fences.offset(pairedFences), 3,
+                                           "Code fence is never closed"));
+        }
+        
+        // Anchors of the headings and how often each was used, made unique like GitHub does
+        Map<String, Integer> anchors = new HashMap<>();
+        int previousLevel = 0;
+        for (int i = 0; i < headers.size(); i++) {
+            int offset = headers.offset(i);
+            if (inCode(offset, pairedFences)) {
+                continue;
+            }
+            HeaderIndex.Header header = headers.get(i);
+            int length = MarkdownRenderer.findLineEnd(text, offset, text.length()) - offset;
+            if (previousLevel > 0 && header.getLevel() > previousLevel + 1) {
+                diagnostics.add(new Diagnostic(Rule.SKIPPED_HEADING_LEVEL, offset, length,
+                                               "Heading level " + header.getLevel() + " follows level "
+                                               + previousLevel));
+            }
+            previousLevel = header.getLevel();
+            
+            String anchor = anchor(header.getText());
+            if (anchor.isEmpty()) {
+                continue;
+            }
+            Integer uses = anchors.get(anchor);
+            if (uses != null) {
+                diagnostics.add(new Diagnostic(Rule.DUPLICATE_ANCHOR, offset, length,
+                                               "Duplicate anchor #" + anchor));
+                anchors.put(anchor, uses + 1);
+                anchors.putIfAbsent(anchor + "-" + uses, 1);
+            } else {
+                anchors.put(anchor, 1);
+            }
+        }
+        
+        for (int i = 0; i < findings.size(); i++) {
+            int offset = findings.offset(i);
+            Finding finding = findings.get(i);
+            if (finding.target == null) {
+                diagnostics.add(new Diagnostic(Rule.TRAILING_WHITESPACE, offset, finding.length,
+                                               "Trailing whitespace"));
+            } else if (!inCode(offset, pairedFences)) {
+                String problem = checkLink(finding.target, folder, stats, anchors);
+                if (problem != null) {
+                    diagnostics.add(new Diagnostic(Rule.BROKEN_LINK, offset, finding.length, problem));
+                }
+            }
+        }
+        
+        diagnostics.sort(Comparator.comparingInt(Diagnostic::getOffset));
+        return diagnostics;
+    }
+    
+    /**
+     * Checks whether an offset is inside a fenced code block.
+     */
+    private boolean inCode(int offset, int pairedFences) {
+        int fence = fences.indexAt(offset);
+        return fence >= 0 && fence < pairedFences && fence % 2 == 0;
+    }
+    
+    /**
+     * Checks a link target.
+     * 
+     * @return The problem with the link, or null if it is fine or not checked
+     */
+    private static String checkLink(String target, Path folder, FileStatCache stats, Map<String, Integer> anchors) {
+        if (target.startsWith("#")) {
+            return anchors.containsKey(target.substring(1)) ? null : "No heading with anchor " + target;
+        }
+        if (hasScheme(target) || target.startsWith("/") || target.startsWith("\\") || folder == null) {
+            // Only relative links are checked
+            return null;
+        }
+        
+        String path = target;
+        int cut = indexOfAny(path, '#', '?');
+        if (cut >= 0) {
+            path = path.substring(0, cut);
+        }
+        if (path.isEmpty()) {
+            return null;
+        }
+        try {
+            // A plus sign is not a space in a path
+            path = URLDecoder.decode(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // Not percent encoded, the target is used as it is
+        }
+        try {
+            return stats.exists(folder.resolve(path)) ? null : "Linked file not found: " + path;
+        } catch (InvalidPathException e) {
+            return "Invalid link target: " + target;
+        }
+    }
+    
+    private static boolean hasScheme(String target) {
+        for (int i = 0; i < target.length(); i++) {
+            char c = target.charAt(i);
+            if (c == ':') {
+                return i > 0;
+            }
+            boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+            if (!letter && (i == 0 || !((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'))) {
+                return false;
+            }
+        }
+        return false;
+    }
+    
+    private static int indexOfAny(String text, char first, char second) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == first || text.charAt(i) == second) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Turns the text of a heading into its anchor the way GitHub does: lower case,
+     * spaces become dashes and punctuation is dropped.
+     * 
+     * @param heading The text of the heading
+     * @return The anchor without the '#'
+     */
+    static String anchor(String heading) {
+        StringBuilder anchor = new StringBuilder(heading.length());
+        String lower = heading.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                anchor.append(c);
+            } else if (c == ' ') {
+                anchor.append('-');
+            }
+        }
+        return anchor.toString();
+    }
+    
+    /**
+     * Scans the lines from a line start to the end of the line containing end.
+     */
+    private void scanLines(CharSequence text, int start, int end) {
+        int length = text.length();
+        int pos = start;
+        while (true) {
+            int lineEnd = MarkdownRenderer.findLineEnd(text, pos, length);
+            scanLine(text, pos, lineEnd);
+            if (lineEnd >= end || lineEnd == length) {
+                break;
+            }
+            pos = lineEnd + 1;
+        }
+    }
+    
+    private void scanLine(CharSequence text, int lineStart, int lineEnd) {
+        // Fences are taken from left to right, like the renderer pairs them
+        for (int i = lineStart; i + 2 < lineEnd; i++) {
+            if (text.charAt(i) == '`' && text.charAt(i + 1) == '`' && text.charAt(i + 2) == '`') {
+                addFence(i);
+                i += 2;
+            }
+        }
+        
+        // Links and images: ](target) or ](<target>), maybe with a title after the target
+        for (int i = lineStart; i + 1 < lineEnd; i++) {
+            if (text.charAt(i) != ']' || text.charAt(i + 1) != '(') {
+                continue;
+            }
+            int targetStart = i + 2;
+            boolean angled = targetStart < lineEnd && text.charAt(targetStart) == '<';
+            if (angled) {
+                targetStart++;
+            }
+            int targetEnd = targetStart;
+            while (targetEnd < lineEnd && !isTargetEnd(text.charAt(targetEnd), angled)) {
+                targetEnd++;
+            }
+            if (targetEnd < lineEnd && targetEnd > targetStart) {
+                addFinding(targetStart, new Finding(text.subSequence(targetStart, targetEnd).toString(),
+                                                    targetEnd - targetStart));
+            }
+            i = targetEnd - 1;
+        }
+        
+        int contentEnd = lineEnd;
+        while (contentEnd > lineStart && (text.charAt(contentEnd - 1) == ' ' || text.charAt(contentEnd - 1) == '\t')) {
+            contentEnd--;
+        }
+        if (contentEnd < lineEnd) {
+            addFinding(contentEnd, new Finding(null, lineEnd - contentEnd));
+        }
+    }
+    
+    private static boolean isTargetEnd(char c, boolean angled) {
+        return angled ? c == '>' : c == ')' || c == ' ' || c == '\t';
+    }
+    
+    private void addFinding(int offset, Finding finding) {
+        if (foundCount == foundOffsets.length) {
+            foundOffsets = Arrays.copyOf(foundOffsets, foundCount * 2);
+            foundFindings = Arrays.copyOf(foundFindings, foundCount * 2);
+        }
+        foundOffsets[foundCount] = offset;
+        foundFindings[foundCount] = finding;
+        foundCount++;
+    }
+    
+    private void addFence(int offset) {
+        if (fenceCount == fenceOffsets.length) {
+            fenceOffsets = Arrays.copyOf(fenceOffsets, fenceCount * 2);
+            fenceValues = Arrays.copyOf(fenceValues, fenceCount * 2);
+        }
+        fenceOffsets[fenceCount] = offset;
+        fenceValues[fenceCount] = FENCE;
+        fenceCount++;
+    }
+    
+    private void clearFound() {
+        Arrays.fill(foundFindings, 0, foundCount, null);
+        foundCount = 0;
+        Arrays.fill(fenceValues, 0, fenceCount, null);
+        fenceCount = 0;
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * MarkdownRenderer converts markdown text to HTML in a single pass.
+ * Produces exactly the same output as the original chain of replaceAll calls
+ * (code fences, headers, bold, italic and line breaks), but walks the text once
+ * and writes into a buffer that is reused between renders.
+ * With syntax highlighting on, fenced code is not parsed as markdown but split into
+ * tokens by the CodeLexer named after the opening fence.
+ * A page can also be streamed to a Writer, the buffer is then emptied into it at
+ * line ends, so rendering a large document takes memory for a line and not for
+ * the whole page.
+ * Instances are not thread safe.
+ */
+public class MarkdownRenderer {
+    static final String EMPTY_PAGE = "<html><body></body></html>";
+    
+    // Changes whenever the HTML output changes, so previously cached previews are not used
+    static final int VERSION = 1;
+    
+    private static final String PAGE_START = "<html><body>";
+    private static final String PAGE_END = "</body></html>";
+    
+    // While streaming, the buffer is written out once it holds this many characters
+    static final int STREAM_CHARS = 64 * 1024;
+    
+    /**
+     * The styles of the highlighted code tokens.
+     */
+    static final String CODE_STYLE = ".tok-keyword{color:#0033b3;font-weight:bold}"
+            + ".tok-string{color:#067d17}"
+            + ".tok-comment{color:#8c8c8c;font-style:italic}"
+            + ".tok-number{color:#1750eb}"
+            + ".tok-literal{color:#0033b3}"
+            + ".tok-property{color:#871094}"
+            + ".tok-variable{color:#9e5a00}"
+            + ".tok-annotation{color:#9e880d}";
+    private static final String HIGHLIGHTED_PAGE_START = "<html><head><style>" + CODE_STYLE + "</style></head><body>";
+    
+    private final StringBuilder buffer = new StringBuilder();
+    
+    // Positions of the bold (**) and italic (*) markers on the current line, in pairs
+    private int[] boldMarks = new int[16];
+    private int boldCount;
+    private int[] emMarks = new int[16];
+    private int emCount;
+    
+    // Start of the closing fence for the code block that is currently open, or -1
+    private int fenceClose;
+    // Set once an opening fence has no closing fence after it
+    private boolean fencesExhausted;
+    
+    private boolean syntaxHighlighting;
+    
+    // The code block being highlighted and the end of the text written from it
+    private CharSequence codeText;
+    private StringBuilder codeOut;
+    private int codePos;
+    private final CodeLexer.SpanSink codeSink = this::appendToken;
+    
+    // The writer the page is streamed to, null unless streaming
+    private Writer stream;
+    private char[] streamChars;
+    
+    /**
+     * Turns highlighting of fenced code on or off.
+     * 
+     * @param syntaxHighlighting Whether fenced code is highlighted
+     */
+    public void setSyntaxHighlighting(boolean syntaxHighlighting) {
+        this.syntaxHighlighting = syntaxHighlighting;
+    }
+    
+    /**
+     * Renders markdown text as a complete HTML page.
+     * 
+     * @param text The markdown text to render
+     * @return HTML representation of the text
+     */
+    public String render(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return EMPTY_PAGE;
+        }
+        
+        buffer.setLength(0);
+        buffer.append(syntaxHighlighting ? HIGHLIGHTED_PAGE_START : PAGE_START);
+        renderBody(text, 0, text.length(), buffer);
+        buffer.append(PAGE_END);
+        return buffer.toString();
+    }
+    
+    /**
+     * Renders markdown text as a complete HTML page and writes it to a writer while
+     * rendering. The HTML is the same as the one render returns, but only about a
+     * line of it is held in memory at a time. The text is read once from the start
+     * to the end, apart from the search for the closing fence of a code block.
+     * 
+     * @param text The markdown text to render
+     * @param out The writer the HTML is written to, it is not flushed or closed
+     * @throws IOException If the writer fails
+     */
+    public void render(CharSequence text, Writer out) throws IOException {
+        if (text == null || text.length() == 0) {
+            out.write(EMPTY_PAGE);
+            return;
+        }
+        
+        buffer.setLength(0);
+        buffer.append(syntaxHighlighting ? HIGHLIGHTED_PAGE_START : PAGE_START);
+        stream = out;
+        try {
+            renderBody(text, 0, text.length(), buffer);
+            buffer.append(PAGE_END);
+            drain(buffer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            stream = null;
+            buffer.setLength(0);
+        }
+    }
+    
+    /**
+     * Renders a range of markdown text as an HTML fragment without the page wrapper.
+     * Code fences are only paired inside the range.
+     * 
+     * @param text The markdown text
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @param out The builder the HTML is appended to
+     */
+    public void renderBody(CharSequence text, int start, int end, StringBuilder out) {
+        fenceClose = -1;
+        fencesExhausted = false;
+        
+        int pos = start;
+        boolean atLineStart = true;
+        while (pos < end) {
+            int lineEnd = findLineEnd(text, pos, end);
+            int next = renderLine(text, pos, lineEnd, end, atLineStart, out);
+            if (next != lineEnd) {
+                // A highlighted code block ended, the rest of its last line follows
+                pos = next;
+                atLineStart = false;
+                continue;
+            }
+            atLineStart = true;
+            if (lineEnd == end) {
+                break;
+            }
+            
+            char terminator = text.charAt(lineEnd);
+            if (terminator == '\n') {
+                out.append("<br>");
+            } else {
+                out.append(terminator);
+            }
+            pos = lineEnd + 1;
+            if (stream != null && out.length() >= STREAM_CHARS) {
+                drain(out);
+            }
+        }
+    }
+    
+    /**
+     * Renders a single line (without its terminator), or the rest of a line after
+     * a highlighted code block.
+     * 
+     * @return The end of the line, or the end of a highlighted code block that starts on the line
+     */
+    private int renderLine(CharSequence text, int lineStart, int lineEnd, int end, boolean atLineStart,
+                           StringBuilder out) {
+        int pos = lineStart;
+        int headerLevel = atLineStart ? headerLevel(text, lineStart, lineEnd) : 0;
+        if (headerLevel > 0) {
+            out.append("<h").append(headerLevel).append('>');
+            pos += headerLevel + 1;
+        }
+        
+        findEmphasis(text, lineStart, lineEnd);
+        int bold = 0;
+        int em = 0;
+        
+        while (pos < lineEnd) {
+            char c = text.charAt(pos);
+            if (c == '*') {
+                if (bold < boldCount && boldMarks[bold] == pos) {
+                    out.append((bold & 1) == 0 ? "<strong>" : "</strong>");
+                    bold++;
+                    pos += 2;
+                    continue;
+                }
+                if (em < emCount && emMarks[em] == pos) {
+                    out.append((em & 1) == 0 ? "<em>" : "</em>");
+                    em++;
+                    pos++;
+                    continue;
+                }
+            } else if (c == '`' && isFence(text, pos, lineEnd)) {
+                if (fenceClose == pos) {
+                    out.append("</code></pre>");
+                    fenceClose = -1;
+                    pos += 3;
+                    continue;
+                }
+                if (fenceClose < 0 && !fencesExhausted) {
+                    int close = indexOfFence(text, pos + 3, end);
+                    if (close >= 0 && syntaxHighlighting && headerLevel == 0) {
+                        return renderCode(text, pos + 3, close, out);
+                    }
+                    if (close >= 0) {
+                        out.append("<pre><code>");
+                        fenceClose = close;
+                        pos += 3;
+                        continue;
+                    }
+                    fencesExhausted = true;
+                }
+            }
+            out.append(c);
+            pos++;
+        }
+        
+        if (headerLevel > 0) {
+            out.append("</h").append(headerLevel).append('>');
+        }
+        return lineEnd;
+    }
+    
+    /**
+     * Renders a fenced code block with its tokens highlighted.
+     * 
+     * @param text The markdown text
+     * @param codeStart The position right after the opening fence
+     * @param close The start of the closing fence
+     * @param out The builder the HTML is appended to
+     * @return The position after the closing fence
+     */
+    private int renderCode(CharSequence text, int codeStart, int close, StringBuilder out) {
+        int languageEnd = SyntaxHighlighter.languageEnd(text, codeStart, findLineEnd(text, codeStart, close));
+        CodeLexer lexer = CodeLexer.forLanguage(text.subSequence(codeStart, languageEnd));
+        
+        out.append("<pre><code");
+        int pos = codeStart;
+        if (lexer != null) {
+            out.append(" class=\"language-").append(lexer.name().toLowerCase()).append('"');
+            pos = languageEnd;
+        }
+        out.append('>');
+        
+        codeText = text;
+        codeOut = out;
+        int state = CodeLexer.PLAIN;
+        while (true) {
+            int lineEnd = findLineEnd(text, pos, close);
+            codePos = pos;
+            if (lexer != null) {
+                state = lexer.lex(text, pos, lineEnd, state, codeSink);
+            }
+            appendEscaped(text, codePos, lineEnd, out);
+            if (lineEnd == close) {
+                break;
+            }
+            
+            char terminator = text.charAt(lineEnd);
+            if (terminator == '\n') {
+                out.append("<br>");
+            } else {
+                out.append(terminator);
+            }
+            pos = lineEnd + 1;
+            if (stream != null && out.length() >= STREAM_CHARS) {
+                drain(out);
+            }
+        }
+        codeText = null;
+        codeOut = null;
+        
+        out.append("</code></pre>");
+        return close + 3;
+    }
+    
+    /**
+     * Writes the rendered HTML to the stream and empties the builder.
+     */
+    private void drain(StringBuilder out) {
+        if (streamChars == null) {
+            streamChars = new char[STREAM_CHARS];
+        }
+        try {
+            for (int pos = 0; pos < out.length(); pos += streamChars.length) {
+                int length = Math.min(streamChars.length, out.length() - pos);
+                out.getChars(pos, pos + length, streamChars, 0);
+                stream.write(streamChars, 0, length);
+            }
+        } catch (IOException e) {
+            // Rendering does not throw IOException, render unwraps it again
+            throw new UncheckedIOException(e);
+        }
+        out.setLength(0);
+    }
+    
+    /**
+     * Appends a highlighted token and the plain code before it.
+     */
+    private void appendToken(int start, int end, CodeLexer.Style style) {
+        appendEscaped(codeText, codePos, start, codeOut);
+        codeOut.append("<span class=\"").append(style.cssClass()).append("\">");
+        appendEscaped(codeText, start, end, codeOut);
+        codeOut.append("</span>");
+        codePos = end;
+    }
+    
+    private static void appendEscaped(CharSequence text, int start, int end, StringBuilder out) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>') {
+                out.append("&gt;");
+            } else if (c == '&') {
+                out.append("&amp;");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+    
+    /**
+     * Pairs up the bold and italic markers of a line. Bold markers are paired
+     * first, the remaining single asterisks are then paired as italic markers.
+     */
+    private void findEmphasis(CharSequence text, int lineStart, int lineEnd) {
+        boldCount = 0;
+        emCount = 0;
+        
+        int pos = lineStart;
+        while (pos + 1 < lineEnd) {
+            if (text.charAt(pos) == '*' && text.charAt(pos + 1) == '*') {
+                int close = indexOfDoubleStar(text, pos + 2, lineEnd);
+                if (close < 0) {
+                    break;
+                }
+                boldMarks = add(boldMarks, boldCount++, pos);
+                boldMarks = add(boldMarks, boldCount++, close);
+                pos = close + 2;
+            } else {
+                pos++;
+            }
+        }
+        
+        int bold = 0;
+        int open = -1;
+        for (pos = lineStart; pos < lineEnd; pos++) {
+            if (text.charAt(pos) != '*') {
+                continue;
+            }
+            if (bold < boldCount && boldMarks[bold] == pos) {
+                // Skip both asterisks of a bold marker
+                bold++;
+                pos++;
+            } else if (open < 0) {
+                open = pos;
+            } else {
+                emMarks = add(emMarks, emCount++, open);
+                emMarks = add(emMarks, emCount++, pos);
+                open = -1;
+            }
+        }
+    }
+    
+    /**
+     * Returns the header level of a line (1-6), or 0 if the line is not a header.
+     */
+    static int headerLevel(CharSequence text, int lineStart, int lineEnd) {
+        int level = 0;
+        while (lineStart + level < lineEnd && text.charAt(lineStart + level) == '#' && level <= 6) {
+            level++;
+        }
+        if (level == 0 || level > 6 || lineStart + level >= lineEnd || text.charAt(lineStart + level) != ' ') {
+            return 0;
+        }
+        return level;
+    }
+    
+    private static boolean isFence(CharSequence text, int pos, int end) {
+        return pos + 2 < end && text.charAt(pos) == '`' && text.charAt(pos + 1) == '`' && text.charAt(pos + 2) == '`';
+    }
+    
+    static int indexOfFence(CharSequence text, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (text.charAt(i + 2) != '`') {
+                // No fence can start at i, i+1 or i+2 without covering this character
+                i += 2;
+                continue;
+            }
+            if (text.charAt(i) == '`' && text.charAt(i + 1) == '`') {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static int indexOfDoubleStar(CharSequence text, int from, int end) {
+        for (int i = from; i + 1 < end; i++) {
+            if (text.charAt(i) == '*' && text.charAt(i + 1) == '*') {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Finds the end of the line starting at pos, which is the index of its
+     * terminator or end if it has none.
+     */
+    static int findLineEnd(CharSequence text, int pos, int end) {
+        while (pos < end && !isLineTerminator(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+    
+    /**
+     * Checks for the characters java.util.regex treats as line terminators.
+     */
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+    
+    private static int[] add(int[] marks, int index, int value) {
+        if (index == marks.length) {
+            marks = Arrays.copyOf(marks, marks.length * 2);
+        }
+        marks[index] = value;
+        return marks;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.Arrays;
+
+/**
+ * OffsetIndex keeps a list of entries sorted by their offset in a document.
+ * When text is inserted or removed, the offsets of the entries after the edit
+ * are shifted lazily, so an edit only touches the entries close to it.
+ * 
+ * @param <T> The type of the entries
+ */
+public class OffsetIndex<T> {
+    private int[] offsets = new int[16];
+    private Object[] values = new Object[16];
+    private int size;
+    
+    // Entries at or after shiftFrom still need shiftDelta added to their stored offset
+    private int shiftFrom;
+    private int shiftDelta;
+    
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the current offset of an entry.
+     * 
+     * @param index The index of the entry
+     * @return The offset of the entry
+     */
+    public int offset(int index) {
+        return index >= shiftFrom ? offsets[index] + shiftDelta : offsets[index];
+    }
+    
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        return (T) values[index];
+    }
+    
+    /**
+     * Finds the last entry whose offset is at or before the given offset.
+     * 
+     * @param offset The offset to look up
+     * @return The index of the entry, or -1 if all entries start after the offset
+     */
+    public int indexAt(int offset) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offset(mid) <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+    
+    /**
+     * Finds the first entry whose offset is at or after the given offset.
+     * 
+     * @param offset The offset to look up
+     * @return The index of the entry, or size() if there is none
+     */
+    public int indexFrom(int offset) {
+        int index = indexAt(offset - 1);
+        return index + 1;
+    }
+    
+    /**
+     * Replaces a range of entries and shifts the entries after it.
+     * 
+     * @param from The first entry to replace (inclusive)
+     * @param to The last entry to replace (exclusive)
+     * @param newOffsets The offsets of the new entries, in document order
+     * @param newValues The new entries
+     * @param count The number of new entries
+     * @param delta The amount to shift the offsets of the entries after the range by
+     */
+    public void replace(int from, int to, int[] newOffsets, Object[] newValues, int count, int delta) {
+        moveShift(from);
+        
+        int removed = to - from;
+        if (count != removed) {
+            ensureCapacity(size - removed + count);
+            System.arraycopy(offsets, to, offsets, from + count, size - to);
+            System.arraycopy(values, to, values, from + count, size - to);
+            if (count < removed) {
+                Arrays.fill(values, size - removed + count, size, null);
+            }
+            size += count - removed;
+        }
+        System.arraycopy(newOffsets, 0, offsets, from, count);
+        System.arraycopy(newValues, 0, values, from, count);
+        
+        shiftFrom = from + count;
+        shiftDelta += delta;
+    }
+    
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        shiftFrom = 0;
+        shiftDelta = 0;
+    }
+    
+    /**
+     * Moves the start of the pending shift to the given index, applying or
+     * removing the shift for the entries in between.
+     */
+    private void moveShift(int index) {
+        if (shiftDelta == 0) {
+            shiftFrom = index;
+            return;
+        }
+        
+        for (int i = shiftFrom; i < index && i < size; i++) {
+            offsets[i] += shiftDelta;
+        }
+        for (int i = index; i < shiftFrom && i < size; i++) {
+            offsets[i] -= shiftDelta;
+        }
+        shiftFrom = index;
+    }
+    
+    private void ensureCapacity(int capacity) {
+        if (capacity > offsets.length) {
+            int newLength = Math.max(capacity, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, newLength);
+            values = Arrays.copyOf(values, newLength);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import javafx.geometry.Insets;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OutlineView lists the headers of the current document, indented by level, and
+ * follows the edits through the listener of the HeaderIndex: only the headers of
+ * the edited lines are replaced in the list, so typing in a document with tens of
+ * thousands of headers does not rebuild the outline.
+ * 
+ * Clicking a header moves the editor to it. When the caret moves, the header of
+ * the section it is in is selected, which is a binary search over the offsets.
+ */
+public class OutlineView extends ListView<HeaderIndex.Header> {
+    // Indentation of a header per level below the first
+    private static final double INDENT = 12;
+    
+    private final VirtualEditor editor;
+    private final HeaderIndex.Listener headerListener = this::headersReplaced;
+    private HeaderIndex headers;
+    
+    /**
+     * Constructor for the outline of the document shown in an editor.
+     * 
+     * @param editor The editor that headers are opened in
+     */
+    public OutlineView(VirtualEditor editor) {
+        this.editor = editor;
+        setPlaceholder(new Label("No headings"));
+        setCellFactory(list -> new ListCell<HeaderIndex.Header>() {
+            @Override
+            protected void updateItem(HeaderIndex.Header header, boolean empty) {
+                super.updateItem(header, empty);
+                if (empty || header == null) {
+                    setText(null);
+                } else {
+                    setText(header.getText().isEmpty() ? "#" : header.getText());
+                    setPadding(new Insets(2, 4, 2, 4 + INDENT * (header.getLevel() - 1)));
+                }
+            }
+        });
+        
+        setOnMouseClicked(e -> showSelected());
+        addEventHandler(KeyEvent.KEY_PRESSED, e -> {
+            if (e.getCode() == KeyCode.ENTER) {
+                showSelected();
+            }
+        });
+        editor.setCaretListener(this::caretMoved);
+    }
+    
+    /**
+     * Shows the headers of a document and follows its edits. Large files have no
+     * header index, so their outline is empty.
+     * 
+     * @param document The document, or null for none
+     */
+    public void setDocument(MarkdownDocument document) {
+        if (headers != null) {
+            headers.setListener(null);
+        }
+        headers = document == null ? null : document.getHeaderIndex();
+        getItems().clear();
+        if (headers != null) {
+            headers.setListener(headerListener);
+            headersReplaced(0, 0, headers.size());
+            caretMoved(editor.getCaretPosition());
+        }
+    }
+    
+    /**
+     * Replaces the changed range of the list. The other items are the same header
+     * objects, only their offsets moved, and offsets are looked up when needed.
+     */
+    private void headersReplaced(int from, int removed, int added) {
+        if (removed > 0) {
+            getItems().remove(from, from + removed);
+        }
+        if (added > 0) {
+            List<HeaderIndex.Header> replacement = new ArrayList<>(added);
+            for (int i = 0; i < added; i++) {
+                replacement.add(headers.get(from + i));
+            }
+            getItems().addAll(from, replacement);
+        }
+    }
+    
+    /**
+     * Selects the header of the section the caret is in. Only clicks and the enter
+     * key move the caret to the selected header, so this does not move it back.
+     */
+    private void caretMoved(int caret) {
+        if (headers == null) {
+            return;
+        }
+        int index = headers.indexAt(caret);
+        if (index == getSelectionModel().getSelectedIndex()) {
+            return;
+        }
+        if (index < 0) {
+            getSelectionModel().clearSelection();
+        } else {
+            getSelectionModel().select(index);
+            scrollTo(index);
+        }
+    }
+    
+    /**
+     * Moves the editor caret to the selected header.
+     */
+    private void showSelected() {
+        int index = getSelectionModel().getSelectedIndex();
+        if (headers == null || index < 0 || index >= headers.size()) {
+            return;
+        }
+        editor.showOffset(headers.offset(index));
+        editor.requestFocus();
+    }
+}
@@ -0,0 +1,399 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * PreviewBlocks splits a markdown document into blocks (paragraphs, headers and
+ * code fences) that can be rendered independently. After an edit only the blocks
+ * the edited range touches are parsed again, and the changed blocks are collected
+ * into a PreviewPatch so the preview can be updated without rendering everything.
+ */
+public class PreviewBlocks {
+    /**
+     * The kinds of blocks in a document.
+     */
+    public enum Kind {
+        PARAGRAPH,
+        HEADER,
+        FENCE
+    }
+    
+    // Long paragraphs are split so an edit never re-renders more than this many lines of one
+    static final int MAX_PARAGRAPH_LINES = 32;
+    
+    private final OffsetIndex<Block> blocks = new OffsetIndex<>();
+    private CharSequence text = "";
+    private int nextId;
+    
+    // Offset of the code fence that has no closing fence, or -1
+    private int danglingFence = -1;
+    
+    private boolean syntaxHighlighting;
+    
+    // Changes collected since the last patch was taken
+    private boolean fullReload = true;
+    private final List<Integer> removedIds = new ArrayList<>();
+    private final List<Block> addedBlocks = new ArrayList<>();
+    
+    // Buffers for the blocks parsed during an update
+    private int[] parsedOffsets = new int[16];
+    private Object[] parsedBlocks = new Object[16];
+    private int parsedCount;
+    
+    /**
+     * A block of the document.
+     */
+    static class Block {
+        final int id;
+        final Kind kind;
+        final int length;
+        volatile boolean alive = true;
+        volatile String html;
+        
+        // Offset of a block that has not been published in a patch yet
+        int pendingOffset;
+        
+        Block(int id, Kind kind, int length) {
+            this.id = id;
+            this.kind = kind;
+            this.length = length;
+        }
+    }
+    
+    /**
+     * Parses the whole text again. The next patch is a full reload.
+     * 
+     * @param newText The document text
+     */
+    public void reset(CharSequence newText) {
+        for (int i = 0; i < blocks.size(); i++) {
+            blocks.get(i).alive = false;
+        }
+        blocks.clear();
+        removedIds.clear();
+        addedBlocks.clear();
+        text = newText == null ? "" : newText;
+        nextId = 0;
+        danglingFence = -1;
+        fullReload = true;
+        
+        parseFrom(0, 0, 0, 0);
+        blocks.replace(0, 0, parsedOffsets, parsedBlocks, parsedCount, 0);
+        clearParsed();
+    }
+    
+    /**
+     * Updates the blocks after an edit. Only the blocks around the edited range
+     * are parsed again.
+     * 
+     * @param newText The document text after the edit
+     * @param offset The offset where the edit starts
+     * @param removedLength The number of characters removed at the offset
+     * @param insertedLength The number of characters inserted at the offset
+     */
+    public void update(CharSequence newText, int offset, int removedLength, int insertedLength) {
+        if (blocks.size() == 0 || offset < 0 || offset > text.length()
+                || offset + removedLength > text.length()) {
+            reset(newText);
+            return;
+        }
+        
+        int delta = insertedLength - removedLength;
+        int oldEditEnd = offset + removedLength;
+        int newEditEnd = offset + insertedLength;
+        text = newText;
+        
+        // A paragraph ends depending on the line after it, so an edit on the first
+        // line of a block may also change the paragraph before it
+        int from = Math.max(0, blocks.indexAt(offset));
+        if (from > 0 && blocks.get(from - 1).kind == Kind.PARAGRAPH
+                && MarkdownRenderer.findLineEnd(text, blocks.offset(from), offset) == offset) {
+            from--;
+        }
+        if (danglingFence >= 0 && danglingFence < blocks.offset(from) && mayCreateFence(offset, insertedLength)) {
+            // A new fence after an unclosed fence closes it
+            from = blocks.indexAt(danglingFence);
+        }
+        
+        int oldDangling = danglingFence;
+        danglingFence = -1;
+        
+        int scanStart = blocks.offset(from);
+        int to = parseFrom(scanStart, blocks.indexFrom(oldEditEnd), newEditEnd, delta);
+        
+        if (oldDangling >= 0 && danglingFence < 0) {
+            if (oldDangling < scanStart) {
+                danglingFence = oldDangling;
+            } else if (oldDangling >= oldEditEnd && to < blocks.size() && oldDangling >= blocks.offset(to)) {
+                // Not parsed again, so it is still unclosed
+                danglingFence = oldDangling + delta;
+            }
+        }
+        
+        for (int i = from; i < to; i++) {
+            removeBlock(blocks.get(i));
+        }
+        for (Block block : addedBlocks) {
+            if (block.pendingOffset >= oldEditEnd) {
+                block.pendingOffset += delta;
+            }
+        }
+        for (int i = 0; i < parsedCount; i++) {
+            Block block = (Block) parsedBlocks[i];
+            block.pendingOffset = parsedOffsets[i];
+            addedBlocks.add(block);
+        }
+        
+        blocks.replace(from, to, parsedOffsets, parsedBlocks, parsedCount, delta);
+        clearParsed();
+    }
+    
+    /**
+     * Turns highlighting of fenced code on or off. All blocks are parsed again,
+     * since the HTML rendered for them is not valid anymore.
+     * 
+     * @param syntaxHighlighting Whether fenced code is highlighted
+     */
+    public void setSyntaxHighlighting(boolean syntaxHighlighting) {
+        if (this.syntaxHighlighting != syntaxHighlighting) {
+            this.syntaxHighlighting = syntaxHighlighting;
+            reset(text);
+        }
+    }
+    
+    /**
+     * Makes the next patch a full reload, for when the preview lost its content.
+     * The blocks are kept, so their rendered HTML can still be reused.
+     */
+    public void requestFullReload() {
+        fullReload = true;
+        removedIds.clear();
+        addedBlocks.clear();
+    }
+    
+    /**
+     * Collects the changes since the last call into a patch. The patch still has
+     * to be rendered with PreviewPatch.render before its HTML can be used.
+     * 
+     * @return The changes to apply to the preview
+     */
+    public PreviewPatch takePatch() {
+        List<PreviewPatch.Fragment> fragments = new ArrayList<>();
+        
+        if (fullReload) {
+            for (int i = 0; i < blocks.size(); i++) {
+                fragments.add(fragment(i));
+            }
+            PreviewPatch patch = new PreviewPatch(true, new ArrayList<>(), fragments);
+            fullReload = false;
+            removedIds.clear();
+            addedBlocks.clear();
+            return patch;
+        }
+        
+        addedBlocks.sort(Comparator.comparingInt(block -> block.pendingOffset));
+        for (Block block : addedBlocks) {
+            fragments.add(fragment(blocks.indexAt(block.pendingOffset)));
+        }
+        PreviewPatch patch = new PreviewPatch(false, new ArrayList<>(removedIds), fragments);
+        removedIds.clear();
+        addedBlocks.clear();
+        return patch;
+    }
+    
+    /**
+     * Returns the number of blocks in the document.
+     * 
+     * @return The block count
+     */
+    public int size() {
+        return blocks.size();
+    }
+    
+    /**
+     * Returns the number of characters of rendered HTML the blocks keep.
+     * 
+     * @return The length of the rendered HTML
+     */
+    public long renderedLength() {
+        long length = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            String html = blocks.get(i).html;
+            if (html != null) {
+                length += html.length();
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Returns the kind of a block.
+     * 
+     * @param index The index of the block
+     * @return The block kind
+     */
+    public Kind kind(int index) {
+        return blocks.get(index).kind;
+    }
+    
+    /**
+     * Returns the offset where a block starts.
+     * 
+     * @param index The index of the block
+     * @return The block offset
+     */
+    public int offset(int index) {
+        return blocks.offset(index);
+    }
+    
+    private PreviewPatch.Fragment fragment(int index) {
+        Block block = blocks.get(index);
+        int previousId = index > 0 ? blocks.get(index - 1).id : -1;
+        int start = blocks.offset(index);
+        return new PreviewPatch.Fragment(block, previousId, text, start, start + block.length, syntaxHighlighting);
+    }
+    
+    private void removeBlock(Block block) {
+        block.alive = false;
+        if (!addedBlocks.remove(block) && !fullReload) {
+            removedIds.add(block.id);
+        }
+    }
+    
+    /**
+     * Parses blocks starting at a block boundary until the parsed blocks line up
+     * with the existing blocks again after the edited range.
+     * 
+     * @return The index of the first existing block that is kept
+     */
+    private int parseFrom(int pos, int candidate, int newEditEnd, int delta) {
+        int length = text.length();
+        parsedCount = 0;
+        
+        while (pos < length) {
+            Block block = parseBlock(pos);
+            addParsed(pos, block);
+            pos += block.length;
+            
+            if (pos >= newEditEnd) {
+                while (candidate < blocks.size() && blocks.offset(candidate) + delta < pos) {
+                    candidate++;
+                }
+                if (candidate < blocks.size() && blocks.offset(candidate) + delta == pos) {
+                    return candidate;
+                }
+            }
+        }
+        return blocks.size();
+    }
+    
+    /**
+     * Parses the block that starts at a line start.
+     */
+    private Block parseBlock(int start) {
+        int length = text.length();
+        int lineEnd = MarkdownRenderer.findLineEnd(text, start, length);
+        
+        int fenceEnd = fenceSpanEnd(start, lineEnd);
+        if (fenceEnd >= 0) {
+            return newBlock(Kind.FENCE, fenceEnd - start);
+        }
+        
+        int next = nextLineStart(lineEnd);
+        if (lineEnd == start) {
+            return newBlock(Kind.PARAGRAPH, next - start);
+        }
+        if (MarkdownRenderer.headerLevel(text, start, lineEnd) > 0) {
+            return newBlock(Kind.HEADER, next - start);
+        }
+        
+        int lines = 1;
+        while (next < length && lines < MAX_PARAGRAPH_LINES) {
+            lineEnd = MarkdownRenderer.findLineEnd(text, next, length);
+            if (lineEnd == next) {
+                // A blank line ends the paragraph
+                next = nextLineStart(lineEnd);
+                break;
+            }
+            if (MarkdownRenderer.headerLevel(text, next, lineEnd) > 0 || fenceSpanEnd(next, lineEnd) >= 0) {
+                break;
+            }
+            next = nextLineStart(lineEnd);
+            lines++;
+        }
+        return newBlock(Kind.PARAGRAPH, next - start);
+    }
+    
+    /**
+     * Checks whether a line opens a code fence that is closed on a later line.
+     * 
+     * @return The start of the line after the fenced code, or -1 if the line does not open one
+     */
+    private int fenceSpanEnd(int lineStart, int lineEnd) {
+        int length = text.length();
+        boolean spanning = false;
+        int pos = lineStart;
+        
+        while (true) {
+            int open = MarkdownRenderer.indexOfFence(text, pos, lineEnd);
+            if (open < 0) {
+                return spanning ? nextLineStart(lineEnd) : -1;
+            }
+            
+            int close = MarkdownRenderer.indexOfFence(text, open + 3, length);
+            if (close < 0) {
+                danglingFence = open;
+                return spanning ? nextLineStart(lineEnd) : -1;
+            }
+            if (close >= lineEnd) {
+                spanning = true;
+                lineEnd = MarkdownRenderer.findLineEnd(text, close, length);
+            }
+            pos = close + 3;
+        }
+    }
+    
+    /**
+     * Checks whether an edit may have created a code fence, which happens when
+     * there are three backticks in a row around the edited range.
+     */
+    private boolean mayCreateFence(int offset, int insertedLength) {
+        int start = Math.max(0, offset - 2);
+        int end = Math.min(text.length(), offset + insertedLength + 2);
+        return MarkdownRenderer.indexOfFence(text, start, end) >= 0;
+    }
+    
+    /**
+     * Returns the start of the line after a line terminator, treating \r\n as one terminator.
+     */
+    private int nextLineStart(int lineEnd) {
+        int length = text.length();
+        if (lineEnd >= length) {
+            return length;
+        }
+        if (text.charAt(lineEnd) == '\r' && lineEnd + 1 < length && text.charAt(lineEnd + 1) == '\n') {
+            return lineEnd + 2;
+        }
+        return lineEnd + 1;
+    }
+    
+    private Block newBlock(Kind kind, int length) {
+        return new Block(nextId++, kind, length);
+    }
+    
+    private void addParsed(int offset, Block block) {
+        if (parsedCount == parsedOffsets.length) {
+            parsedOffsets = Arrays.copyOf(parsedOffsets, parsedCount * 2);
+            parsedBlocks = Arrays.copyOf(parsedBlocks, parsedCount * 2);
+        }
+        parsedOffsets[parsedCount] = offset;
+        parsedBlocks[parsedCount] = block;
+        parsedCount++;
+    }
+    
+    private void clearParsed() {
+        Arrays.fill(parsedBlocks, 0, parsedCount, null);
+        parsedCount = 0;
+    }
+}
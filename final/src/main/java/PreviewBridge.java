@@ -0,0 +1,103 @@
+import javafx.concurrent.Worker;
+import javafx.scene.web.WebEngine;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * PreviewBridge keeps the WebView preview in sync with a document.
+ * The shell page is loaded once, after that the preview patches are rendered on
+ * the preview thread and applied to the page through executeScript, so only the
+ * changed blocks are replaced and the scroll position is kept.
+ */
+public class PreviewBridge {
+    private final WebEngine engine;
+    private final PreviewScheduler scheduler;
+    private final PreviewCache cache;
+    private final EditLatency latency;
+    
+    // Only used on the preview render thread
+    private final MarkdownRenderer renderer = new MarkdownRenderer();
+    
+    // Patches in the order they have to be applied. Patches stay queued until they are
+    // applied, so a render result dropped by the scheduler never loses a patch.
+    private final Queue<PreviewPatch> pending = new ConcurrentLinkedQueue<>();
+    private boolean shellLoaded;
+    
+    /**
+     * Constructor for a bridge. Loads the shell page into the engine.
+     * 
+     * @param engine The engine of the preview
+     * @param scheduler The scheduler that runs renders in the background
+     * @param cache The cache full previews are taken from and added to
+     * @param latency Where rendering and applying patches is timed
+     */
+    public PreviewBridge(WebEngine engine, PreviewScheduler scheduler, PreviewCache cache, EditLatency latency) {
+        this.engine = engine;
+        this.scheduler = scheduler;
+        this.cache = cache;
+        this.latency = latency;
+        
+        engine.getLoadWorker().stateProperty().addListener((obs, oldState, newState) -> {
+            if (newState == Worker.State.SUCCEEDED) {
+                shellLoaded = true;
+                applyRendered();
+            }
+        });
+        engine.loadContent(PreviewPatch.SHELL_PAGE);
+    }
+    
+    /**
+     * Queues a patch and schedules rendering it. Must be called on the FX thread.
+     * 
+     * @param patch The patch taken from the document
+     */
+    public void update(PreviewPatch patch) {
+        if (patch.isEmpty()) {
+            return;
+        }
+        if (patch.isFullReload()) {
+            // Nothing before a full reload has to be applied anymore
+            pending.clear();
+        }
+        pending.add(patch);
+        scheduler.schedule(this::renderPending, count -> applyRendered());
+    }
+    
+    /**
+     * Renders all queued patches. Runs on the preview thread.
+     * 
+     * @return The number of queued patches
+     */
+    private Integer renderPending() {
+        long start = EditLatency.start();
+        int count = 0;
+        for (PreviewPatch patch : pending) {
+            if (!patch.isRendered()) {
+                patch.render(renderer, cache);
+            }
+            count++;
+        }
+        latency.end(EditLatency.Stage.RENDER, start);
+        return count;
+    }
+    
+    /**
+     * Applies the rendered patches at the head of the queue to the page.
+     * Runs on the FX thread.
+     */
+    private void applyRendered() {
+        if (!shellLoaded) {
+            return;
+        }
+        
+        PreviewPatch patch = pending.peek();
+        while (patch != null && patch.isRendered()) {
+            long start = EditLatency.start();
+            engine.executeScript(patch.toScript());
+            latency.end(EditLatency.Stage.APPLY, start);
+            pending.poll();
+            patch = pending.peek();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PreviewCache keeps the rendered HTML of previews, so a document that was rendered
+ * before shows its preview without rendering it again, also in a later session.
+ * Entries are keyed by a hash of the rendered text together with the renderer
+ * version and the highlighting setting. An entry holds the HTML of every preview
+ * block in order.
+ * 
+ * Recently used entries stay in memory up to a number of characters. All entries
+ * are also written to files in a folder, where the least recently used files are
+ * deleted when the folder grows beyond its size limit.
+ */
+public class PreviewCache {
+    // "CMP1", the first bytes of every cache file
+    private static final int MAGIC = 0x434D5031;
+    private static final String SUFFIX = ".preview";
+    
+    // Previews shorter than this render faster than they load from disk
+    static final int MIN_CACHED_CHARS = 4096;
+    
+    // Seed and prime of the 64-bit FNV-1a hash
+    private static final long HASH_SEED = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+    
+    private final Path directory;
+    private final long memoryChars;
+    private final long diskBytes;
+    
+    // Entries from least to most recently used, guarded by this
+    private final Map<String, List<String>> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsed;
+    // Size of the cache files, -1 until the folder was listed
+    private long diskUsed = -1;
+    
+    /**
+     * Constructor for a cache.
+     * 
+     * @param directory The folder the cache files are kept in, or null to keep entries in memory only
+     * @param memoryChars How many characters of HTML are kept in memory
+     * @param diskBytes How many bytes the cache files may take
+     */
+    public PreviewCache(Path directory, long memoryChars, long diskBytes) {
+        this.directory = directory;
+        this.memoryChars = memoryChars;
+        this.diskBytes = diskBytes;
+    }
+    
+    /**
+     * Returns the folder the cache files are kept in by default, in the .codemark
+     * folder of the user.
+     * 
+     * @return The cache folder
+     */
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".codemark", "preview-cache");
+    }
+    
+    /**
+     * Adds a range of text to a hash that was started with newHash.
+     * 
+     * @param hash The hash so far
+     * @param text The text
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @return The new hash
+     */
+    static long hash(long hash, CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ text.charAt(i)) * HASH_PRIME;
+        }
+        // The range length separates "ab" + "c" from "a" + "bc"
+        return (hash ^ (end - start)) * HASH_PRIME;
+    }
+    
+    static long newHash() {
+        return HASH_SEED;
+    }
+    
+    /**
+     * Builds the key of an entry.
+     * 
+     * @param hash The hash of the rendered text
+     * @param length The length of the rendered text
+     * @param syntaxHighlighting Whether fenced code was highlighted
+     * @return The key, which is also the name of the cache file
+     */
+    static String key(long hash, long length, boolean syntaxHighlighting) {
+        return Long.toHexString(hash) + "-" + Long.toHexString(length) + (syntaxHighlighting ? "-h" : "-p")
+               + MarkdownRenderer.VERSION;
+    }
+    
+    /**
+     * Looks up the HTML of the blocks of a preview, in memory first and then on disk.
+     * 
+     * @param key The key of the entry
+     * @return The HTML of the blocks, or null if the entry is not cached
+     */
+    public synchronized List<String> get(String key) {
+        List<String> blocks = memory.get(key);
+        if (blocks != null || directory == null) {
+            return blocks;
+        }
+        
+        Path file = directory.resolve(key + SUFFIX);
+        blocks = read(file);
+        if (blocks != null) {
+            putInMemory(key, blocks);
+            try {
+                // The modification time orders the files by use
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                // The file stays where it is in the order
+            }
+        }
+        return blocks;
+    }
+    
+    /**
+     * Adds the HTML of the blocks of a preview.
+     * 
+     * @param key The key of the entry
+     * @param blocks The HTML of the blocks
+     */
+    public synchronized void put(String key, List<String> blocks) {
+        blocks = Collections.unmodifiableList(new ArrayList<>(blocks));
+        boolean known = memory.containsKey(key);
+        putInMemory(key, blocks);
+        if (directory != null && !known) {
+            write(directory.resolve(key + SUFFIX), blocks);
+        }
+    }
+    
+    /**
+     * Returns the characters of HTML kept in memory.
+     * 
+     * @return The memory use in characters
+     */
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+    
+    private void putInMemory(String key, List<String> blocks) {
+        List<String> previous = memory.put(key, blocks);
+        if (previous != null) {
+            memoryUsed -= length(previous);
+        }
+        memoryUsed += length(blocks);
+        
+        Iterator<List<String>> iterator = memory.values().iterator();
+        while (memoryUsed > memoryChars && iterator.hasNext()) {
+            List<String> oldest = iterator.next();
+            if (oldest != blocks) {
+                memoryUsed -= length(oldest);
+                iterator.remove();
+            }
+        }
+    }
+    
+    private static long length(List<String> blocks) {
+        long length = 0;
+        for (String html : blocks) {
+            length += html.length();
+        }
+        return length;
+    }
+    
+    /**
+     * Reads a cache file.
+     * 
+     * @return The HTML of the blocks, or null if the file is missing or damaged
+     */
+    private static List<String> read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long size = Files.size(file);
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            int count = in.readInt();
+            List<String> blocks = new ArrayList<>(Math.max(0, Math.min(count, 1024)));
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                if (length < 0 || length > size) {
+                    // A damaged file, not worth allocating for
+                    return null;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                blocks.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return blocks;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Writes a cache file through a temporary file and deletes the least recently
+     * used files if the folder is over its limit. A cache that cannot be written is
+     * only kept in memory.
+     */
+    private void write(Path file, List<String> blocks) {
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, ".preview", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(blocks.size());
+                for (String html : blocks) {
+                    byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            long size = Files.size(temp);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            
+            if (diskUsed < 0) {
+                diskUsed = directorySize();
+            } else {
+                diskUsed += size;
+            }
+            if (diskUsed > diskBytes) {
+                trimDisk();
+            }
+        } catch (IOException e) {
+            // Not cached on disk, the preview is rendered again next time
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // Nothing left to clean up if the temporary file is already gone
+                }
+            }
+        }
+    }
+    
+    private List<Path> cacheFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+    
+    private long directorySize() throws IOException {
+        long size = 0;
+        for (Path file : cacheFiles()) {
+            size += Files.size(file);
+        }
+        return size;
+    }
+    
+    /**
+     * Deletes the least recently used cache files until the folder is within its limit.
+     */
+    private void trimDisk() throws IOException {
+        List<Path> files = cacheFiles();
+        Map<Path, FileTime> times = new LinkedHashMap<>();
+        for (Path file : files) {
+            times.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort(Comparator.comparing(times::get));
+        
+        diskUsed = directorySize();
+        for (Path file : files) {
+            if (diskUsed <= diskBytes) {
+                break;
+            }
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file)) {
+                diskUsed -= size;
+            }
+        }
+    }
+}
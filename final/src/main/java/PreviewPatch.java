@@ -0,0 +1,306 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PreviewPatch describes how the rendered preview changed since the previous patch.
+ * Blocks are identified by ids. A patch is applied by removing the removed blocks
+ * first and then inserting the fragments in order, each after its previous block.
+ * A full reload patch instead replaces the whole preview with its fragments.
+ */
+public class PreviewPatch {
+    /**
+     * The page the preview is loaded with once. Patches are applied to it by
+     * running the script from toScript.
+     */
+    public static final String SHELL_PAGE = "<html><head><script>"
+            + "function removeBlocks(ids) {"
+            + " for (var i = 0; i < ids.length; i++) {"
+            + " var e = document.getElementById('b' + ids[i]);"
+            + " if (e) { e.parentNode.removeChild(e); } } }"
+            + "function insertBlock(id, previousId, html) {"
+            + " var e = document.createElement('div'); e.id = 'b' + id; e.innerHTML = html;"
+            + " var previous = previousId < 0 ? null : document.getElementById('b' + previousId);"
+            + " document.body.insertBefore(e, previous ? previous.nextSibling : document.body.firstChild); }"
+            + "function replaceBody(html) { document.body.innerHTML = html; }"
+            + "</script><style>" + MarkdownRenderer.CODE_STYLE + "</style></head><body></body></html>";
+    
+    private final boolean fullReload;
+    private final List<Integer> removedIds;
+    private final List<Fragment> fragments;
+    private volatile boolean rendered;
+    
+    /**
+     * Constructor for a patch.
+     * 
+     * @param fullReload Whether the whole preview has to be replaced
+     * @param removedIds The ids of the blocks to remove
+     * @param fragments The blocks to insert, in document order
+     */
+    public PreviewPatch(boolean fullReload, List<Integer> removedIds, List<Fragment> fragments) {
+        this.fullReload = fullReload;
+        this.removedIds = Collections.unmodifiableList(removedIds);
+        this.fragments = Collections.unmodifiableList(fragments);
+    }
+    
+    /**
+     * Renders the HTML of all fragments that have not been rendered yet.
+     * Fragments whose block was already replaced by a newer edit are skipped,
+     * since a later patch removes them again.
+     * 
+     * @param renderer The renderer to use
+     */
+    public void render(MarkdownRenderer renderer) {
+        StringBuilder builder = new StringBuilder();
+        for (Fragment fragment : fragments) {
+            fragment.render(renderer, builder);
+        }
+        rendered = true;
+    }
+    
+    /**
+     * Renders the fragments like render, but takes the HTML of a full reload from a
+     * cache when the same text was rendered before, and adds it to the cache otherwise.
+     * 
+     * @param renderer The renderer to use
+     * @param cache The cache of rendered previews
+     */
+    public void render(MarkdownRenderer renderer, PreviewCache cache) {
+        String key = fullReload ? cacheKey() : null;
+        if (key == null) {
+            render(renderer);
+            return;
+        }
+        
+        List<String> cached = cache.get(key);
+        if (cached != null && cached.size() == fragments.size()) {
+            for (int i = 0; i < fragments.size(); i++) {
+                fragments.get(i).setHtml(cached.get(i));
+            }
+            rendered = true;
+            return;
+        }
+        
+        render(renderer);
+        List<String> html = new ArrayList<>(fragments.size());
+        for (Fragment fragment : fragments) {
+            if (!fragment.block.alive) {
+                // Edited while rendering, the text no longer matches the key
+                return;
+            }
+            html.add(fragment.getHtml());
+        }
+        cache.put(key, html);
+    }
+    
+    /**
+     * Builds the cache key from the text of the fragments.
+     * 
+     * @return The key, or null if the preview is too short to be worth caching
+     */
+    private String cacheKey() {
+        long length = 0;
+        for (Fragment fragment : fragments) {
+            length += fragment.end - fragment.start;
+        }
+        if (length < PreviewCache.MIN_CACHED_CHARS) {
+            return null;
+        }
+        
+        long hash = PreviewCache.newHash();
+        for (Fragment fragment : fragments) {
+            hash = PreviewCache.hash(hash, fragment.source, fragment.start, fragment.end);
+        }
+        return PreviewCache.key(hash, length, fragments.get(0).syntaxHighlighting);
+    }
+    
+    /**
+     * Builds the script that applies this patch to a page loaded from SHELL_PAGE.
+     * The patch has to be rendered first.
+     * 
+     * @return The JavaScript that updates the preview
+     */
+    public String toScript() {
+        StringBuilder builder = new StringBuilder();
+        if (fullReload) {
+            builder.append("replaceBody(");
+            appendString(builder, toBodyHtml());
+            builder.append(");");
+            return builder.toString();
+        }
+        
+        if (!removedIds.isEmpty()) {
+            builder.append("removeBlocks([");
+            for (int i = 0; i < removedIds.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(removedIds.get(i));
+            }
+            builder.append("]);");
+        }
+        for (Fragment fragment : fragments) {
+            builder.append("insertBlock(").append(fragment.getId()).append(',')
+                   .append(fragment.getPreviousId()).append(',');
+            appendString(builder, fragment.getHtml());
+            builder.append(");");
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Appends text as a quoted JavaScript string literal.
+     */
+    private static void appendString(StringBuilder builder, String text) {
+        builder.append('\'');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\'':
+                case '\\':
+                    builder.append('\\').append(c);
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    if (c < ' ' || c == '\u2028' || c == '\u2029') {
+                        // Other control characters and line separators end a JavaScript line
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('\'');
+    }
+    
+    /**
+     * Builds the HTML body for the whole preview from the fragments.
+     * Each block is wrapped in an element carrying its id.
+     * 
+     * @return The HTML body content
+     */
+    public String toBodyHtml() {
+        StringBuilder builder = new StringBuilder();
+        for (Fragment fragment : fragments) {
+            builder.append("<div id=\"").append(elementId(fragment.getId())).append("\">")
+                   .append(fragment.getHtml())
+                   .append("</div>");
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Returns the id of the preview element for a block.
+     * 
+     * @param blockId The block id
+     * @return The element id
+     */
+    public static String elementId(int blockId) {
+        return "b" + blockId;
+    }
+    
+    /**
+     * Checks whether render has finished, so the patch can be applied.
+     * 
+     * @return true if the patch is rendered, false otherwise
+     */
+    public boolean isRendered() {
+        return rendered;
+    }
+    
+    public boolean isFullReload() {
+        return fullReload;
+    }
+    
+    public boolean isEmpty() {
+        return !fullReload && removedIds.isEmpty() && fragments.isEmpty();
+    }
+    
+    public List<Integer> getRemovedIds() {
+        return removedIds;
+    }
+    
+    public List<Fragment> getFragments() {
+        return fragments;
+    }
+    
+    /**
+     * A block of the preview that has to be inserted.
+     */
+    public static class Fragment {
+        private final PreviewBlocks.Block block;
+        private final int previousId;
+        private final CharSequence source;
+        private final int start;
+        private final int end;
+        private final boolean syntaxHighlighting;
+        private String html;
+        
+        Fragment(PreviewBlocks.Block block, int previousId, CharSequence source, int start, int end,
+                 boolean syntaxHighlighting) {
+            this.block = block;
+            this.previousId = previousId;
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.syntaxHighlighting = syntaxHighlighting;
+            this.html = block.html;
+        }
+        
+        private void render(MarkdownRenderer renderer, StringBuilder builder) {
+            if (html != null) {
+                return;
+            }
+            if (!block.alive) {
+                html = "";
+                return;
+            }
+            
+            builder.setLength(0);
+            renderer.setSyntaxHighlighting(syntaxHighlighting);
+            renderer.renderBody(source, start, end, builder);
+            html = builder.toString();
+            block.html = html;
+        }
+        
+        /**
+         * Uses HTML rendered earlier for the same text, unless the block was
+         * already rendered or replaced.
+         */
+        private void setHtml(String cached) {
+            if (html == null && block.alive) {
+                html = cached;
+                block.html = cached;
+            } else if (html == null) {
+                html = "";
+            }
+        }
+        
+        public int getId() {
+            return block.id;
+        }
+        
+        /**
+         * Returns the id of the block this fragment follows, or -1 if it is the first block.
+         * 
+         * @return The previous block id
+         */
+        public int getPreviousId() {
+            return previousId;
+        }
+        
+        /**
+         * Returns the rendered HTML of the block, or null if the patch has not been rendered.
+         * 
+         * @return The block HTML
+         */
+        public String getHtml() {
+            return html;
+        }
+    }
+}
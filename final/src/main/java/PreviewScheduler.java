@@ -0,0 +1,122 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * PreviewScheduler runs preview renders on a background thread.
+ * Requests that arrive within the delay window are coalesced into one render,
+ * renders made stale by a newer request are dropped, and only the final
+ * hand-off of the result runs on the UI thread.
+ */
+public class PreviewScheduler {
+    // A render is forced after this many delay windows even while edits keep arriving
+    private static final int MAX_DELAY_WINDOWS = 4;
+    
+    private final ScheduledExecutorService executor;
+    private final Executor uiExecutor;
+    private final AtomicLong latestRequest = new AtomicLong();
+    
+    private volatile long delayNanos;
+    private volatile long lastDelivered;
+    
+    // Guarded by this
+    private ScheduledFuture<?> pending;
+    private long burstStart;
+    
+    /**
+     * Constructor for a scheduler.
+     * 
+     * @param delayMillis The window in milliseconds in which requests are coalesced
+     * @param uiExecutor Executor that runs tasks on the UI thread
+     */
+    public PreviewScheduler(long delayMillis, Executor uiExecutor) {
+        this.uiExecutor = uiExecutor;
+        this.lastDelivered = System.nanoTime();
+        setDelay(delayMillis);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "preview-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Schedules a render. The render task runs on the background thread after the
+     * delay window, unless another request replaces it first. Its result is passed
+     * to the UI task on the UI thread.
+     * 
+     * @param renderTask The task that renders in the background
+     * @param uiTask The task that hands the result to the UI
+     * @param <T> The type of the render result
+     */
+    public <T> void schedule(Supplier<T> renderTask, Consumer<T> uiTask) {
+        long request = latestRequest.incrementAndGet();
+        long now = System.nanoTime();
+        
+        synchronized (this) {
+            if (pending == null) {
+                burstStart = now;
+            } else {
+                pending.cancel(false);
+            }
+            
+            long maxWait = burstStart + delayNanos * MAX_DELAY_WINDOWS - now;
+            long wait = Math.max(0, Math.min(delayNanos, maxWait));
+            pending = executor.schedule(() -> run(request, renderTask, uiTask), wait, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    private <T> void run(long request, Supplier<T> renderTask, Consumer<T> uiTask) {
+        synchronized (this) {
+            if (request != latestRequest.get()) {
+                // Replaced by a newer request before it started
+                return;
+            }
+            pending = null;
+        }
+        
+        T result;
+        try {
+            result = renderTask.get();
+        } catch (RuntimeException e) {
+            // Keep the previous preview if rendering fails
+            return;
+        }
+        
+        // Drop the result if a newer request is already waiting, unless nothing
+        // has been shown for a while because edits keep arriving
+        long now = System.nanoTime();
+        if (request != latestRequest.get() && now - lastDelivered < delayNanos * MAX_DELAY_WINDOWS) {
+            return;
+        }
+        lastDelivered = now;
+        uiExecutor.execute(() -> uiTask.accept(result));
+    }
+    
+    /**
+     * Sets the window in which requests are coalesced.
+     * 
+     * @param delayMillis The delay in milliseconds
+     */
+    public void setDelay(long delayMillis) {
+        if (delayMillis >= 0) {
+            this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+    }
+    
+    public long getDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(delayNanos);
+    }
+    
+    /**
+     * Stops the background thread. Pending renders are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
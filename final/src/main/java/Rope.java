@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Rope is a TextBuffer stored as a balanced tree of text pieces.
+ * Inserting, deleting and looking up a character take O(log n) time, and an
+ * edit only copies the path from the root to the edited piece. Reading the
+ * characters in order is O(1) per character since the last piece is remembered.
+ */
+public final class Rope implements TextBuffer {
+    // Neighbouring pieces shorter than this together are merged into one piece
+    static final int MERGE_LENGTH = 512;
+    
+    public static final Rope EMPTY = new Rope(new Leaf("", 0, 0));
+    
+    private final Node root;
+    
+    // The piece the last charAt call read, with its offset
+    private Finger finger;
+    private String string;
+    
+    private Rope(Node root) {
+        this.root = root;
+    }
+    
+    /**
+     * Creates a rope with the given text. Strings and other buffers are used
+     * without copying them.
+     * 
+     * @param text The text
+     * @return The rope
+     */
+    public static Rope of(CharSequence text) {
+        if (text instanceof Rope) {
+            return (Rope) text;
+        }
+        if (text == null || text.length() == 0) {
+            return EMPTY;
+        }
+        if (text instanceof TextBuffer) {
+            return new Rope(new Leaf(text, 0, text.length()));
+        }
+        String string = text.toString();
+        return new Rope(new Leaf(string, 0, string.length()));
+    }
+    
+    /**
+     * Creates a rope with a range of a text, without copying it. Unlike of, the
+     * length of the whole text is not needed.
+     * 
+     * @param text The text
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @return The rope
+     */
+    static Rope slice(CharSequence text, int start, int end) {
+        return start == end ? EMPTY : new Rope(new Leaf(text, start, end - start));
+    }
+    
+    @Override
+    public int length() {
+        return root.length;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= root.length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + root.length);
+        }
+        
+        Finger current = finger;
+        if (current == null || index < current.start || index >= current.start + current.leaf.length) {
+            Node node = root;
+            int start = 0;
+            while (node instanceof Concat) {
+                Concat concat = (Concat) node;
+                if (index - start < concat.left.length) {
+                    node = concat.left;
+                } else {
+                    start += concat.left.length;
+                    node = concat.right;
+                }
+            }
+            current = new Finger((Leaf) node, start);
+            finger = current;
+        }
+        Leaf leaf = current.leaf;
+        return leaf.text.charAt(leaf.start + index - current.start);
+    }
+    
+    @Override
+    public Rope insert(int offset, CharSequence text) {
+        checkRange(offset, offset);
+        if (text.length() == 0) {
+            return this;
+        }
+        Node inserted = of(text).root;
+        if (offset == root.length) {
+            return new Rope(join(root, inserted));
+        }
+        if (offset == 0) {
+            return new Rope(join(inserted, root));
+        }
+        Node[] parts = split(root, offset);
+        return new Rope(join(join(parts[0], inserted), parts[1]));
+    }
+    
+    @Override
+    public Rope delete(int start, int end) {
+        checkRange(start, end);
+        if (start == end) {
+            return this;
+        }
+        Node[] tail = split(root, end);
+        Node[] head = split(tail[0], start);
+        return new Rope(join(head[0], tail[1]));
+    }
+    
+    @Override
+    public Rope subSequence(int start, int end) {
+        checkRange(start, end);
+        if (start == 0 && end == root.length) {
+            return this;
+        }
+        Node[] tail = split(root, end);
+        Node[] head = split(tail[0], start);
+        return new Rope(head[1]);
+    }
+    
+    @Override
+    public void writeTo(Writer writer) throws IOException {
+        write(root, writer);
+    }
+    
+    @Override
+    public String toString() {
+        String result = string;
+        if (result == null) {
+            if (root instanceof Leaf && ((Leaf) root).text instanceof String && ((Leaf) root).start == 0
+                    && ((Leaf) root).text.length() == root.length) {
+                result = (String) ((Leaf) root).text;
+            } else {
+                StringBuilder builder = new StringBuilder(root.length);
+                append(root, builder);
+                result = builder.toString();
+            }
+            string = result;
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the height of the tree, for tests.
+     * 
+     * @return The height, 0 for a single piece
+     */
+    int height() {
+        return root.height;
+    }
+    
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > root.length || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + root.length);
+        }
+    }
+    
+    private static void write(Node node, Writer writer) throws IOException {
+        while (node instanceof Concat) {
+            write(((Concat) node).left, writer);
+            node = ((Concat) node).right;
+        }
+        Leaf leaf = (Leaf) node;
+        if (leaf.text instanceof String) {
+            writer.write((String) leaf.text, leaf.start, leaf.length);
+        } else if (leaf.text instanceof MappedTextBuffer) {
+            ((MappedTextBuffer) leaf.text).writeTo(writer, leaf.start, leaf.start + leaf.length);
+        } else {
+            writer.append(leaf.text, leaf.start, leaf.start + leaf.length);
+        }
+    }
+    
+    private static void append(Node node, StringBuilder builder) {
+        while (node instanceof Concat) {
+            append(((Concat) node).left, builder);
+            node = ((Concat) node).right;
+        }
+        Leaf leaf = (Leaf) node;
+        builder.append(leaf.text, leaf.start, leaf.start + leaf.length);
+    }
+    
+    /**
+     * Splits a tree into the text before and after an offset.
+     */
+    private static Node[] split(Node node, int offset) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            return new Node[] {
+                new Leaf(leaf.text, leaf.start, offset),
+                new Leaf(leaf.text, leaf.start + offset, leaf.length - offset)
+            };
+        }
+        
+        Concat concat = (Concat) node;
+        int leftLength = concat.left.length;
+        if (offset == leftLength) {
+            return new Node[] {concat.left, concat.right};
+        }
+        if (offset < leftLength) {
+            Node[] parts = split(concat.left, offset);
+            parts[1] = join(parts[1], concat.right);
+            return parts;
+        }
+        Node[] parts = split(concat.right, offset - leftLength);
+        parts[0] = join(concat.left, parts[0]);
+        return parts;
+    }
+    
+    /**
+     * Joins two trees, keeping the result balanced like an AVL tree.
+     */
+    private static Node join(Node left, Node right) {
+        if (left.length == 0) {
+            return right;
+        }
+        if (right.length == 0) {
+            return left;
+        }
+        
+        if (left.height > right.height + 1) {
+            Concat concat = (Concat) left;
+            Node joined = join(concat.right, right);
+            if (joined.height <= concat.left.height + 1) {
+                return new Concat(concat.left, joined);
+            }
+            Concat high = (Concat) joined;
+            if (high.left.height <= high.right.height) {
+                return new Concat(new Concat(concat.left, high.left), high.right);
+            }
+            Concat inner = (Concat) high.left;
+            return new Concat(new Concat(concat.left, inner.left), new Concat(inner.right, high.right));
+        }
+        
+        if (right.height > left.height + 1) {
+            Concat concat = (Concat) right;
+            Node joined = join(left, concat.left);
+            if (joined.height <= concat.right.height + 1) {
+                return new Concat(joined, concat.right);
+            }
+            Concat high = (Concat) joined;
+            if (high.right.height <= high.left.height) {
+                return new Concat(high.left, new Concat(high.right, concat.right));
+            }
+            Concat inner = (Concat) high.right;
+            return new Concat(new Concat(high.left, inner.left), new Concat(inner.right, concat.right));
+        }
+        
+        if (left instanceof Leaf && right instanceof Leaf && left.length + right.length <= MERGE_LENGTH) {
+            // Keep typing from splitting the text into single characters
+            Leaf a = (Leaf) left;
+            Leaf b = (Leaf) right;
+            String merged = new StringBuilder(a.length + b.length)
+                    .append(a.text, a.start, a.start + a.length)
+                    .append(b.text, b.start, b.start + b.length)
+                    .toString();
+            return new Leaf(merged, 0, merged.length());
+        }
+        return new Concat(left, right);
+    }
+    
+    /**
+     * A node of the tree.
+     */
+    private abstract static class Node {
+        final int length;
+        final int height;
+        
+        Node(int length, int height) {
+            this.length = length;
+            this.height = height;
+        }
+    }
+    
+    /**
+     * A piece of text, which is a range of a string or of another buffer.
+     */
+    private static final class Leaf extends Node {
+        final CharSequence text;
+        final int start;
+        
+        Leaf(CharSequence text, int start, int length) {
+            super(length, 0);
+            this.text = text;
+            this.start = start;
+        }
+    }
+    
+    /**
+     * Two trees joined together.
+     */
+    private static final class Concat extends Node {
+        final Node left;
+        final Node right;
+        
+        Concat(Node left, Node right) {
+            super(left.length + right.length, Math.max(left.height, right.height) + 1);
+            this.left = left;
+            this.right = right;
+        }
+    }
+    
+    /**
+     * A piece and the offset it starts at. Immutable, so it can be shared between threads.
+     */
+    private static final class Finger {
+        final Leaf leaf;
+        final int start;
+        
+        Finger(Leaf leaf, int start) {
+            this.leaf = leaf;
+            this.start = start;
+        }
+    }
+}
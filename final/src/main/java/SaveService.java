@@ -0,0 +1,385 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SaveService saves documents on a background thread.
+ * A file is never written in place: the text goes to a temporary file next to it,
+ * which then replaces the file in one step, so a crash leaves either the old or the
+ * new file. Saves of a document that are still waiting are merged into one save of
+ * the latest version. Autosave appends the edits to an EditJournal instead of
+ * writing the whole file after every edit.
+ */
+public class SaveService {
+    // Size of the buffer between the encoder and the file
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final ExecutorService executor;
+    private final boolean fsync;
+    
+    // Saves that have not started yet, guarded by this
+    private final Map<Document, Request> queued = new HashMap<>();
+    
+    // Autosave journals of the documents, guarded by this
+    private final Map<Document, EditJournal> journals = new HashMap<>();
+    private final Map<EditJournal, CompletableFuture<Long>> flushes = new HashMap<>();
+    // Journals of documents closed without saving, whose queued flushes write nothing
+    private final Set<EditJournal> discarded = new HashSet<>();
+    
+    /**
+     * A save waiting to be written.
+     */
+    private static class Request {
+        final Document document;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        Path path;
+        TextBuffer text;
+        long version;
+        
+        Request(Document document) {
+            this.document = document;
+        }
+    }
+    
+    /**
+     * Constructor for a save service with its own background thread.
+     * 
+     * @param fsync Whether to force the data to the disk before the file is replaced
+     */
+    public SaveService(boolean fsync) {
+        this(fsync, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "document-saver");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+    
+    /**
+     * Constructor for a save service that writes on the given executor.
+     * The executor has to run one task at a time, so saves are written in order.
+     * 
+     * @param fsync Whether to force the data to the disk before the file is replaced
+     * @param executor The executor to write on
+     */
+    SaveService(boolean fsync, ExecutorService executor) {
+        this.fsync = fsync;
+        this.executor = executor;
+    }
+    
+    /**
+     * Saves the current text of a document to its file path. Must be called on the
+     * thread that edits the document. The text is taken now, later edits are not
+     * part of this save.
+     * 
+     * @param document The document to save
+     * @return A future that completes with the saved version of the document
+     */
+    public CompletableFuture<Long> save(Document document) {
+        if (document.getFilePath() == null || document.getFilePath().isEmpty()) {
+            return CompletableFuture.failedFuture(new IOException("The document has no file path"));
+        }
+        
+        synchronized (this) {
+            Request request = queued.get(document);
+            boolean isNew = request == null;
+            if (isNew) {
+                request = new Request(document);
+                queued.put(document, request);
+            }
+            // A save that has not started yet writes the latest version instead
+            request.path = Paths.get(document.getFilePath());
+            request.text = document.getBuffer();
+            request.version = document.getVersion();
+            
+            if (isNew) {
+                Request started = request;
+                executor.execute(() -> write(started));
+            }
+            return request.future;
+        }
+    }
+    
+    /**
+     * Saves an edit of a document for autosave. The edit is appended to the journal
+     * of the document, and the whole text is only written to the file as an
+     * occasional checkpoint. Must be called on the thread that edits the document,
+     * after the edit was made.
+     * 
+     * @param document The document that was edited
+     * @param change The edit
+     * @return A future that completes with the version written to the file by a
+     *         checkpoint, or -1 if the edit was only added to the journal
+     */
+    public CompletableFuture<Long> autosave(Document document, DocumentChange change) {
+        if (document.getFilePath() == null || document.getFilePath().isEmpty()) {
+            return CompletableFuture.failedFuture(new IOException("The document has no file path"));
+        }
+        
+        Path path = Paths.get(document.getFilePath()).toAbsolutePath();
+        synchronized (this) {
+            EditJournal journal = journals.get(document);
+            if (journal == null || !journal.getFile().equals(path)) {
+                journal = new EditJournal(path);
+                journals.put(document, journal);
+            }
+            
+            journal.record(change, document.getBuffer());
+            return queueFlush(journal);
+        }
+    }
+    
+    /**
+     * Stops keeping the autosave journal of a document, when it is closed.
+     * Edits that are already recorded are still written.
+     * 
+     * @param document The document
+     */
+    public synchronized void forget(Document document) {
+        journals.remove(document);
+    }
+    
+    /**
+     * Drops the unsaved edits of a document, when it is closed without saving. Its
+     * journal is deleted after the writes that are already queued, so opening the
+     * file again does not recover the edits. Edits that a checkpoint already wrote
+     * to the file stay in it.
+     * 
+     * @param document The document
+     */
+    public void discard(Document document) {
+        EditJournal journal;
+        synchronized (this) {
+            journal = journals.remove(document);
+            if (journal != null) {
+                discarded.add(journal);
+            }
+        }
+        String filePath = document.getFilePath();
+        if (filePath == null || filePath.isEmpty()) {
+            return;
+        }
+        // Also a journal left by an earlier session, whose edits were recovered
+        Path journalFile = EditJournal.journalPath(Paths.get(filePath).toAbsolutePath());
+        executor.execute(() -> {
+            synchronized (this) {
+                discarded.remove(journal);
+            }
+            try {
+                Files.deleteIfExists(journalFile);
+            } catch (IOException e) {
+                // The edits are recovered on the next open, like after a crash
+            }
+        });
+    }
+    
+    /**
+     * Queues a flush of a journal unless one is queued already.
+     * 
+     * @param journal The journal to flush
+     * @return The future of the queued flush
+     */
+    private synchronized CompletableFuture<Long> queueFlush(EditJournal journal) {
+        CompletableFuture<Long> future = flushes.get(journal);
+        if (future == null) {
+            future = new CompletableFuture<>();
+            flushes.put(journal, future);
+            executor.execute(() -> flush(journal));
+        }
+        return future;
+    }
+    
+    private void flush(EditJournal journal) {
+        CompletableFuture<Long> future;
+        synchronized (this) {
+            // Edits recorded from now on queue another flush
+            future = flushes.remove(journal);
+            if (discarded.contains(journal)) {
+                future.complete(-1L);
+                return;
+            }
+        }
+        
+        try {
+            long version = journal.flush(fsync);
+            if (version >= 0) {
+                // A checkpoint rewrote the file
+                Document document = null;
+                synchronized (this) {
+                    for (Map.Entry<Document, EditJournal> entry : journals.entrySet()) {
+                        if (entry.getValue() == journal) {
+                            document = entry.getKey();
+                            break;
+                        }
+                    }
+                }
+                if (document != null) {
+                    document.setDiskState(journal.getCheckpointState());
+                }
+            }
+            future.complete(version);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+    
+    private void write(Request request) {
+        Path path;
+        TextBuffer text;
+        long version;
+        synchronized (this) {
+            queued.remove(request.document);
+            path = request.path;
+            text = request.text;
+            version = request.version;
+        }
+        
+        try {
+            request.document.setDiskState(writeAtomically(path, text, fsync));
+            
+            // The journal applied to the old file, edits made since this version
+            // are written by a checkpoint
+            EditJournal journal;
+            synchronized (this) {
+                journal = journals.get(request.document);
+            }
+            if (journal != null && journal.getFile().equals(path.toAbsolutePath())) {
+                if (journal.saved(version)) {
+                    queueFlush(journal);
+                }
+            } else {
+                Files.deleteIfExists(EditJournal.journalPath(path));
+            }
+            request.future.complete(version);
+        } catch (IOException | RuntimeException e) {
+            request.future.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * Writes text to a file through a temporary file that replaces the file when
+     * it is complete. The file keeps its permissions.
+     * 
+     * @param target The file to write
+     * @param text The text to write, encoded as UTF-8
+     * @param fsync Whether to force the data to the disk before the file is replaced
+     * @return The state of the written file
+     * @throws IOException If the file cannot be written
+     */
+    public static FileState writeAtomically(Path target, TextBuffer text, boolean fsync) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        Path temp = writeTemp(absolute, text::writeTo, fsync);
+        try {
+            // Moving the file keeps its size and modification time
+            FileState state = FileState.of(temp, text);
+            replace(temp, absolute);
+            return state;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * Writes a file through a temporary file like writeAtomically for a text, with
+     * the characters coming from a writer, so a file can be written while it is
+     * generated without holding it in memory.
+     * 
+     * @param target The file to write
+     * @param content Writes the characters, which are encoded as UTF-8
+     * @param fsync Whether to force the data to the disk before the file is replaced
+     * @throws IOException If the file cannot be written or the content fails
+     */
+    public static void writeAtomically(Path target, Content content, boolean fsync) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        Path temp = writeTemp(absolute, content, fsync);
+        try {
+            replace(temp, absolute);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * The characters of a file that is written.
+     */
+    public interface Content {
+        /**
+         * Writes the characters.
+         * 
+         * @param writer The writer of the file, buffered and flushed after this returns
+         * @throws IOException If the characters cannot be written
+         */
+        void writeTo(Writer writer) throws IOException;
+    }
+    
+    /**
+     * Writes the content to a new temporary file next to a file, with the
+     * permissions of the file.
+     */
+    private static Path writeTemp(Path absolute, Content content, boolean fsync) throws IOException {
+        Path temp = Files.createTempFile(absolute.getParent(), "." + absolute.getFileName(), ".tmp");
+        try {
+            if (Files.exists(absolute) && absolute.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(absolute));
+            }
+            
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                Writer writer = Channels.newWriter(channel, encoder, BUFFER_SIZE);
+                content.writeTo(writer);
+                writer.flush();
+                if (fsync) {
+                    channel.force(true);
+                }
+            }
+            return temp;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+    
+    private static void replace(Path temp, Path absolute) throws IOException {
+        try {
+            Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Stops accepting saves and waits for the saves that are already queued.
+     * 
+     * @param timeoutMillis How long to wait in milliseconds
+     * @return true if all saves finished, false otherwise
+     */
+    public boolean shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
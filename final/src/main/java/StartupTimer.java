@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * StartupTimer records how long the steps of starting the editor took, counted
+ * from the start of the process, up to the first key the user types. The report
+ * is one line per start, so the lines of many starts can be compared.
+ */
+public class StartupTimer {
+    private final long startMillis;
+    
+    // Milliseconds from the start to every step, in the order of the steps, guarded by this
+    private final Map<String, Long> steps = new LinkedHashMap<>();
+    private boolean reported;
+    
+    /**
+     * Constructor for a timer.
+     * 
+     * @param startMillis The time the startup began, in milliseconds since the epoch
+     */
+    public StartupTimer(long startMillis) {
+        this.startMillis = startMillis;
+    }
+    
+    /**
+     * Creates a timer that counts from the start of this process, or from now if
+     * the operating system does not tell when the process started.
+     * 
+     * @return The timer
+     */
+    public static StartupTimer sinceProcessStart() {
+        long now = System.currentTimeMillis();
+        long start = ProcessHandle.current().info().startInstant().map(Instant::toEpochMilli).orElse(now);
+        return new StartupTimer(Math.min(start, now));
+    }
+    
+    /**
+     * Records that a step is done. Only the first time of every step is kept.
+     * 
+     * @param step The name of the step
+     */
+    public void mark(String step) {
+        mark(step, System.currentTimeMillis());
+    }
+    
+    synchronized void mark(String step, long nowMillis) {
+        steps.putIfAbsent(step, nowMillis - startMillis);
+    }
+    
+    /**
+     * Returns how long it took until a step was done.
+     * 
+     * @param step The name of the step
+     * @return The milliseconds from the start, or -1 if the step is not done
+     */
+    public synchronized long get(String step) {
+        return steps.getOrDefault(step, -1L);
+    }
+    
+    /**
+     * Formats the steps done so far, like "start=310ms shown=520ms".
+     * 
+     * @return The report
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> step : steps.entrySet()) {
+            if (report.length() > 0) {
+                report.append(' ');
+            }
+            report.append(step.getKey()).append('=').append(step.getValue()).append("ms");
+        }
+        return report.toString();
+    }
+    
+    /**
+     * Appends the report to a file, with the time of the start in front, unless
+     * it was appended before.
+     * 
+     * @param file The report file
+     * @return true if the report was appended, false if it was already or the file
+     *         cannot be written
+     */
+    public boolean appendTo(Path file) {
+        String line;
+        synchronized (this) {
+            if (reported) {
+                return false;
+            }
+            reported = true;
+            line = Instant.ofEpochMilli(startMillis) + " " + report() + System.lineSeparator();
+        }
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.writeString(file, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                              StandardOpenOption.APPEND);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
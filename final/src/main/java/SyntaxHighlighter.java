@@ -0,0 +1,273 @@
+import java.util.Arrays;
+
+/**
+ * SyntaxHighlighter keeps the styled tokens of the fenced code blocks of a markdown
+ * document. The lexer state at the start of every line is cached, so after an edit
+ * lexing restarts at the edited line and stops at the first line after the edit
+ * whose start state is the same as before, which is usually the next line.
+ * 
+ * Code fences are paired the way MarkdownRenderer pairs them: each run of three
+ * backticks opens or closes a block, and the word right after an opening fence
+ * names the language.
+ */
+public class SyntaxHighlighter {
+    // Line states, code blocks of a known language store the lexer and its state
+    static final int MARKDOWN = 0;
+    static final int PLAIN_CODE = 1;
+    private static final int LEXER_SHIFT = 8;
+    
+    private static final int[] NO_SPANS = new int[0];
+    
+    private final OffsetIndex<Line> lines = new OffsetIndex<>();
+    
+    // Buffers for the lines lexed during an update
+    private int[] lexedOffsets = new int[16];
+    private Object[] lexedLines = new Object[16];
+    private int lexedCount;
+    private int[] spanBuffer = new int[48];
+    private int spanCount;
+    private int spanLineStart;
+    private final CodeLexer.SpanSink spanSink = this::addSpan;
+    
+    // Number of lines lexed by the last reset or update
+    private int lastLexed;
+    
+    /**
+     * A line of the document with the state at its start and its tokens.
+     */
+    private static class Line {
+        final int state;
+        // Start (relative to the line), end and style ordinal of each token
+        final int[] spans;
+        
+        Line(int state, int[] spans) {
+            this.state = state;
+            this.spans = spans;
+        }
+    }
+    
+    /**
+     * Lexes the whole text again.
+     * 
+     * @param text The document text
+     */
+    public void reset(CharSequence text) {
+        lines.clear();
+        CharSequence source = text == null ? "" : text;
+        lexFrom(source, 0, MARKDOWN, 0, 0, 0);
+        lines.replace(0, 0, lexedOffsets, lexedLines, lexedCount, 0);
+        clearLexed();
+    }
+    
+    /**
+     * Updates the tokens after an edit. Lines are lexed again from the edited line
+     * until the lexer state lines up with the cached state again.
+     * 
+     * @param newText The document text after the edit
+     * @param offset The offset where the edit starts
+     * @param removedLength The number of characters removed at the offset
+     * @param insertedLength The number of characters inserted at the offset
+     */
+    public void update(CharSequence newText, int offset, int removedLength, int insertedLength) {
+        if (lines.size() == 0) {
+            reset(newText);
+            return;
+        }
+        
+        // The line the edit starts on is not changed before the offset
+        int start = offset;
+        while (start > 0 && !MarkdownRenderer.isLineTerminator(newText.charAt(start - 1))) {
+            start--;
+        }
+        if (start > 0 && newText.charAt(start - 1) == '\r') {
+            // A \n inserted after a \r joins the two into one terminator
+            start--;
+            while (start > 0 && !MarkdownRenderer.isLineTerminator(newText.charAt(start - 1))) {
+                start--;
+            }
+        }
+        
+        // The first cached line at or after the start has the state the start line
+        // begins with, since nothing between them was edited
+        int from = lines.indexFrom(start);
+        if (from == lines.size()) {
+            reset(newText);
+            return;
+        }
+        int state = lines.get(from).state;
+        
+        int to = lexFrom(newText, start, state, from, offset + insertedLength, insertedLength - removedLength);
+        lines.replace(from, to, lexedOffsets, lexedLines, lexedCount, insertedLength - removedLength);
+        clearLexed();
+    }
+    
+    /**
+     * Reports the tokens in a range of the document, in order.
+     * 
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @param sink Receives the tokens, clipped to the range
+     */
+    public void spans(int start, int end, CodeLexer.SpanSink sink) {
+        CodeLexer.Style[] styles = CodeLexer.Style.values();
+        for (int i = Math.max(0, lines.indexAt(start)); i < lines.size() && lines.offset(i) < end; i++) {
+            int lineStart = lines.offset(i);
+            int[] spans = lines.get(i).spans;
+            for (int s = 0; s < spans.length; s += 3) {
+                int spanStart = Math.max(start, lineStart + spans[s]);
+                int spanEnd = Math.min(end, lineStart + spans[s + 1]);
+                if (spanStart < spanEnd) {
+                    sink.span(spanStart, spanEnd, styles[spans[s + 2]]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of lines the index keeps.
+     * 
+     * @return The line count
+     */
+    public int lineCount() {
+        return lines.size();
+    }
+    
+    /**
+     * Returns the number of lines lexed by the last reset or update, for tests.
+     * 
+     * @return The number of lexed lines
+     */
+    int lastLexed() {
+        return lastLexed;
+    }
+    
+    /**
+     * Lexes lines starting at a line start until the lexed lines line up with the
+     * cached lines again after the edited range.
+     * 
+     * @return The index of the first cached line that is kept
+     */
+    private int lexFrom(CharSequence text, int pos, int state, int candidate, int newEditEnd, int delta) {
+        int length = text.length();
+        lexedCount = 0;
+        lastLexed = 0;
+        
+        while (true) {
+            int lineEnd = MarkdownRenderer.findLineEnd(text, pos, length);
+            spanCount = 0;
+            int endState = lexLine(text, pos, lineEnd, state);
+            int[] spans = spanCount == 0 ? NO_SPANS : Arrays.copyOf(spanBuffer, spanCount);
+            addLexed(pos, new Line(state, spans));
+            lastLexed++;
+            
+            if (lineEnd == length) {
+                return lines.size();
+            }
+            pos = nextLineStart(text, lineEnd);
+            state = endState;
+            
+            if (pos >= newEditEnd) {
+                while (candidate < lines.size() && lines.offset(candidate) + delta < pos) {
+                    candidate++;
+                }
+                if (candidate < lines.size() && lines.offset(candidate) + delta == pos
+                        && lines.get(candidate).state == state) {
+                    return candidate;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Lexes one line, switching between markdown and code at the fences.
+     * 
+     * @return The state at the end of the line
+     */
+    private int lexLine(CharSequence text, int lineStart, int lineEnd, int state) {
+        int pos = lineStart;
+        while (true) {
+            if (state == MARKDOWN) {
+                int open = MarkdownRenderer.indexOfFence(text, pos, lineEnd);
+                if (open < 0) {
+                    return MARKDOWN;
+                }
+                int languageEnd = languageEnd(text, open + 3, lineEnd);
+                CodeLexer lexer = CodeLexer.forLanguage(text.subSequence(open + 3, languageEnd));
+                state = lexer == null ? PLAIN_CODE : codeState(lexer, CodeLexer.PLAIN);
+                pos = languageEnd;
+                continue;
+            }
+            
+            int close = MarkdownRenderer.indexOfFence(text, pos, lineEnd);
+            int codeEnd = close < 0 ? lineEnd : close;
+            if (state != PLAIN_CODE) {
+                CodeLexer lexer = lexer(state);
+                spanLineStart = lineStart;
+                state = codeState(lexer, lexer.lex(text, pos, codeEnd, state & ((1 << LEXER_SHIFT) - 1), spanSink));
+            }
+            if (close < 0) {
+                return state;
+            }
+            state = MARKDOWN;
+            pos = close + 3;
+        }
+    }
+    
+    /**
+     * Returns the end of the language name that follows an opening fence.
+     * 
+     * @param text The text
+     * @param pos The position right after the fence
+     * @param lineEnd The end of the line
+     * @return The end of the language name, pos if there is none
+     */
+    static int languageEnd(CharSequence text, int pos, int lineEnd) {
+        while (pos < lineEnd && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '-'
+                                 || text.charAt(pos) == '+' || text.charAt(pos) == '#')) {
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static int codeState(CodeLexer lexer, int lexerState) {
+        return ((lexer.ordinal() + 2) << LEXER_SHIFT) | lexerState;
+    }
+    
+    private static CodeLexer lexer(int state) {
+        return CodeLexer.values()[(state >>> LEXER_SHIFT) - 2];
+    }
+    
+    /**
+     * Returns the start of the line after a line terminator, treating \r\n as one terminator.
+     */
+    private static int nextLineStart(CharSequence text, int lineEnd) {
+        if (text.charAt(lineEnd) == '\r' && lineEnd + 1 < text.length() && text.charAt(lineEnd + 1) == '\n') {
+            return lineEnd + 2;
+        }
+        return lineEnd + 1;
+    }
+    
+    private void addSpan(int start, int end, CodeLexer.Style style) {
+        if (spanCount + 3 > spanBuffer.length) {
+            spanBuffer = Arrays.copyOf(spanBuffer, spanBuffer.length * 2);
+        }
+        spanBuffer[spanCount++] = start - spanLineStart;
+        spanBuffer[spanCount++] = end - spanLineStart;
+        spanBuffer[spanCount++] = style.ordinal();
+    }
+    
+    private void addLexed(int offset, Line line) {
+        if (lexedCount == lexedOffsets.length) {
+            lexedOffsets = Arrays.copyOf(lexedOffsets, lexedCount * 2);
+            lexedLines = Arrays.copyOf(lexedLines, lexedCount * 2);
+        }
+        lexedOffsets[lexedCount] = offset;
+        lexedLines[lexedCount] = line;
+        lexedCount++;
+    }
+    
+    private void clearLexed() {
+        Arrays.fill(lexedLines, 0, lexedCount, null);
+        lexedCount = 0;
+    }
+}
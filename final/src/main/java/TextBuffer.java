@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * TextBuffer is the text of a document. Buffers are immutable, every edit returns
+ * a new buffer that shares most of its storage with the old one, so edits do not
+ * copy the whole text and old versions stay valid for other threads.
+ */
+public interface TextBuffer extends CharSequence {
+    
+    /**
+     * Inserts text.
+     * 
+     * @param offset The offset to insert at
+     * @param text The text to insert
+     * @return The buffer with the text inserted
+     */
+    TextBuffer insert(int offset, CharSequence text);
+    
+    /**
+     * Deletes a range of text.
+     * 
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @return The buffer without the range
+     */
+    TextBuffer delete(int start, int end);
+    
+    /**
+     * Replaces a range of text.
+     * 
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @param text The text to put in place of the range
+     * @return The buffer with the range replaced
+     */
+    default TextBuffer replace(int start, int end, CharSequence text) {
+        TextBuffer buffer = start == end ? this : delete(start, end);
+        return text.length() == 0 ? buffer : buffer.insert(start, text);
+    }
+    
+    /**
+     * Returns a view of a range of the text, without copying it.
+     * 
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @return The range as a buffer
+     */
+    @Override
+    TextBuffer subSequence(int start, int end);
+    
+    /**
+     * Writes the text without building a string of the whole text first.
+     * 
+     * @param writer The writer to write to
+     * @throws IOException If writing fails
+     */
+    void writeTo(Writer writer) throws IOException;
+    
+    /**
+     * Returns the whole text as a string.
+     * 
+     * @return The text
+     */
+    @Override
+    String toString();
+}
@@ -0,0 +1,348 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * UndoManager keeps the undo and redo history of a document. Every edit is kept as
+ * the text it removed and the text it inserted at an offset, so undoing or redoing
+ * it costs as much as that text and not as much as the document.
+ * 
+ * The edits are kept in a ring buffer that holds a limited number of edits and
+ * drops the oldest ones when the history uses more memory than its limit. Texts
+ * of 64K characters and more are kept deflated, so a large paste or delete takes a
+ * fraction of its size. Characters typed one after another are merged into one
+ * edit until a whitespace character is typed.
+ */
+public class UndoManager {
+    // The history of a document may use this many bytes unless set otherwise
+    static final long DEFAULT_MEMORY_LIMIT = 32L * 1024 * 1024;
+    // The number of edits the history keeps at most
+    static final int MAX_EDITS = 1000;
+    // Texts of this many characters and more are deflated
+    static final int DEFLATE_CHARS = 64 * 1024;
+    // Estimated bytes of an edit besides its texts
+    private static final int EDIT_OVERHEAD = 64;
+    
+    // The edits from the oldest, the first position of them can be undone and the rest redone
+    private final Step[] ring = new Step[MAX_EDITS];
+    private int first;
+    private int count;
+    private int position;
+    private long memoryUsed;
+    private long memoryLimit;
+    
+    /**
+     * A text of the history, kept as a string or deflated.
+     */
+    private static final class Span {
+        final int length;
+        final String text;
+        final byte[] deflated;
+        
+        private Span(int length, String text, byte[] deflated) {
+            this.length = length;
+            this.text = text;
+            this.deflated = deflated;
+        }
+        
+        static Span of(CharSequence text) {
+            if (text.length() < DEFLATE_CHARS) {
+                return new Span(text.length(), text.toString(), null);
+            }
+            return new Span(text.length(), null, deflate(text));
+        }
+        
+        String text() {
+            return text != null ? text : inflate(deflated, length);
+        }
+        
+        long memory() {
+            return text != null ? 2L * length : deflated.length;
+        }
+    }
+    
+    /**
+     * An edit of the history: at an offset, removed was replaced with inserted.
+     */
+    private static final class Step {
+        final int offset;
+        final Span removed;
+        Span inserted;
+        
+        Step(int offset, Span removed, Span inserted) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+        
+        long memory() {
+            return EDIT_OVERHEAD + removed.memory() + inserted.memory();
+        }
+    }
+    
+    /**
+     * A change that undoes or redoes an edit: the characters at an offset are
+     * replaced with a text.
+     */
+    public static final class Change {
+        private final int offset;
+        private final int length;
+        private final String text;
+        
+        Change(int offset, int length, String text) {
+            this.offset = offset;
+            this.length = length;
+            this.text = text;
+        }
+        
+        public int getOffset() {
+            return offset;
+        }
+        
+        /**
+         * Returns the number of characters to replace.
+         * 
+         * @return The length
+         */
+        public int getLength() {
+            return length;
+        }
+        
+        public String getText() {
+            return text;
+        }
+    }
+    
+    /**
+     * Constructor for an empty history.
+     * 
+     * @param memoryLimit How many bytes the history may use
+     */
+    public UndoManager(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+    
+    /**
+     * Records an edit that is about to be made. The edits that were undone cannot
+     * be redone after it.
+     * 
+     * @param offset The offset of the edit
+     * @param removed The text the edit removes, which may be a slice of the buffer
+     * @param inserted The text the edit inserts
+     * @param typing Whether the edit is a character typed right after the last edit,
+     *               which is merged into it unless it is whitespace
+     */
+    public void record(int offset, CharSequence removed, String inserted, boolean typing) {
+        dropRedo();
+        Step last = position > 0 ? ring[index(position - 1)] : null;
+        if (typing && last != null && removed.length() == 0 && last.inserted.text != null
+                && last.offset + last.inserted.length == offset && !inserted.isEmpty()
+                && !Character.isWhitespace(inserted.charAt(0))) {
+            memoryUsed -= last.memory();
+            last.inserted = Span.of(last.inserted.text + inserted);
+            memoryUsed += last.memory();
+        } else {
+            if (count == ring.length) {
+                dropOldest();
+            }
+            Step step = new Step(offset, Span.of(removed), Span.of(inserted));
+            ring[index(count)] = step;
+            count++;
+            position++;
+            memoryUsed += step.memory();
+        }
+        
+        // The newest edit is kept even if it is over the limit on its own
+        while (memoryUsed > memoryLimit && count > 1) {
+            dropOldest();
+        }
+    }
+    
+    /**
+     * Takes the last edit back.
+     * 
+     * @return The change that reverts it, or null if there is nothing to undo
+     */
+    public Change undo() {
+        if (position == 0) {
+            return null;
+        }
+        position--;
+        Step step = ring[index(position)];
+        return new Change(step.offset, step.inserted.length, step.removed.text());
+    }
+    
+    /**
+     * Makes the last undone edit again.
+     * 
+     * @return The change that makes it, or null if there is nothing to redo
+     */
+    public Change redo() {
+        if (position == count) {
+            return null;
+        }
+        Step step = ring[index(position)];
+        position++;
+        return new Change(step.offset, step.removed.length, step.inserted.text());
+    }
+    
+    public boolean canUndo() {
+        return position > 0;
+    }
+    
+    public boolean canRedo() {
+        return position < count;
+    }
+    
+    /**
+     * Forgets all edits, when the text was changed by something that is not in the
+     * history.
+     */
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            ring[index(i)] = null;
+        }
+        first = 0;
+        count = 0;
+        position = 0;
+        memoryUsed = 0;
+    }
+    
+    /**
+     * Returns the estimated bytes the edits use.
+     * 
+     * @return The memory use in bytes
+     */
+    public long getMemoryUsed() {
+        return memoryUsed;
+    }
+    
+    /**
+     * Sets how many bytes the history may use, dropping the oldest edits if it
+     * uses more.
+     * 
+     * @param memoryLimit The limit in bytes
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        while (memoryUsed > memoryLimit && count > 1) {
+            dropOldest();
+        }
+    }
+    
+    private int index(int i) {
+        return (first + i) % ring.length;
+    }
+    
+    private void dropRedo() {
+        while (count > position) {
+            count--;
+            memoryUsed -= ring[index(count)].memory();
+            ring[index(count)] = null;
+        }
+    }
+    
+    private void dropOldest() {
+        if (position == 0) {
+            // The edits after an undone edit cannot be redone without it
+            clear();
+            return;
+        }
+        memoryUsed -= ring[first].memory();
+        ring[first] = null;
+        first = (first + 1) % ring.length;
+        count--;
+        position--;
+    }
+    
+    /**
+     * Deflates the characters of a text as two bytes each, so any text, also one
+     * with a lone surrogate, comes back the same.
+     */
+    private static byte[] deflate(CharSequence text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() / 4);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (Writer writer = new CharWriter(new DeflaterOutputStream(bytes, deflater, 64 * 1024))) {
+            if (text instanceof TextBuffer) {
+                // Written leaf by leaf instead of char by char
+                ((TextBuffer) text).writeTo(writer);
+            } else {
+                writer.append(text);
+            }
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static String inflate(byte[] deflated, int length) {
+        char[] chars = new char[length];
+        byte[] buffer = new byte[64 * 1024];
+        int filled = 0;
+        int pending = -1;
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflated))) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    int b = buffer[i] & 0xff;
+                    if (pending < 0) {
+                        pending = b;
+                    } else {
+                        chars[filled++] = (char) (pending << 8 | b);
+                        pending = -1;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Inflating bytes that were deflated here does not fail
+            throw new IllegalStateException(e);
+        }
+        return new String(chars, 0, filled);
+    }
+    
+    /**
+     * Writes every character as two bytes, high byte first.
+     */
+    private static final class CharWriter extends Writer {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[16 * 1024];
+        
+        CharWriter(OutputStream out) {
+            this.out = out;
+        }
+        
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = Math.min(length, buffer.length / 2);
+                for (int i = 0; i < n; i++) {
+                    char c = chars[offset + i];
+                    buffer[2 * i] = (byte) (c >>> 8);
+                    buffer[2 * i + 1] = (byte) c;
+                }
+                out.write(buffer, 0, 2 * n);
+                offset += n;
+                length -= n;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
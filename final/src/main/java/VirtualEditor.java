@@ -0,0 +1,1014 @@
+import javafx.geometry.Orientation;
+import javafx.geometry.VPos;
+import javafx.scene.Cursor;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * VirtualEditor is the text editor of the application. Unlike a TextArea it does not
+ * lay out the whole text: only the rows that fit in the viewport are drawn on a canvas,
+ * and the text is read straight from the document buffer through a LineIndex that only
+ * scans as far as the shown lines. Opening, scrolling and typing cost the same for a
+ * small note and a file of hundreds of megabytes.
+ * 
+ * The font is treated as monospaced, so a column is one character wide and a tab runs
+ * to the next tab stop. Wrapped lines break at the last column that fits.
+ */
+public class VirtualEditor extends Region {
+    private static final double PADDING = 4;
+    // Width of the strip left of the text that marks lines with problems
+    private static final double GUTTER = 6;
+    private static final double TEXT_LEFT = GUTTER + PADDING;
+    
+    private static final Color BACKGROUND = Color.WHITE;
+    private static final Color TEXT = Color.BLACK;
+    private static final Color SELECTION = Color.web("#b3d7ff");
+    private static final Color MARKER = Color.web("#e06c00");
+    
+    // Colors of the token styles in CodeLexer.Style order, the same as in the preview
+    private static final Color[] STYLE_COLORS = {
+        Color.web("#0033b3"), Color.web("#067d17"), Color.web("#8c8c8c"), Color.web("#1750eb"),
+        Color.web("#0033b3"), Color.web("#871094"), Color.web("#9e5a00"), Color.web("#9e880d")
+    };
+    
+    private final Canvas canvas = new Canvas();
+    private final ScrollBar verticalBar = new ScrollBar();
+    private final ScrollBar horizontalBar = new ScrollBar();
+    private final DocumentListener documentListener = (document, change) -> documentChanged(change);
+    
+    private Document document;
+    private LineIndex lines = new LineIndex("");
+    
+    private Font font;
+    private double charWidth;
+    private double lineHeight;
+    private boolean wrapText;
+    private int tabSize = 4;
+    
+    // The caret and the other end of the selection
+    private int caret;
+    private int anchor;
+    // Column the caret keeps while it moves up and down, -1 if it has none
+    private double preferredColumn = -1;
+    
+    // The first visible row, as a line and a row of that line when it wraps
+    private int topLine;
+    private int topRow;
+    private double scrollX;
+    // Widest line drawn so far in columns, for the horizontal scroll bar
+    private int widestLine;
+    
+    // Told about the caret offset when it moves, and the offset it was last told
+    private IntConsumer caretListener;
+    private int reportedCaret = -1;
+    
+    private boolean updatingBars;
+    private boolean ownEdit;
+    private boolean typing;
+    
+    // Times the edits and drawing, and when the key that is not drawn yet arrived, 0 if none
+    private EditLatency latency;
+    private long keyNanos;
+    
+    // Tokens of the line being drawn: start, end and style ordinal
+    private int[] spans = new int[48];
+    private int spanCount;
+    private final CodeLexer.SpanSink spanSink = this::addSpan;
+    private final StringBuilder run = new StringBuilder();
+    private double caretX;
+    private double caretY;
+    
+    // Sorted offsets of the problems marked in the gutter, and the tops of the marked lines drawn
+    private int[] markers = new int[0];
+    private double[] markedTops = new double[16];
+    private int markedCount;
+    
+    /**
+     * Constructor for an editor without a document.
+     */
+    public VirtualEditor() {
+        verticalBar.setOrientation(Orientation.VERTICAL);
+        horizontalBar.setOrientation(Orientation.HORIZONTAL);
+        verticalBar.setMin(0);
+        horizontalBar.setMin(0);
+        verticalBar.setUnitIncrement(1);
+        getChildren().addAll(canvas, verticalBar, horizontalBar);
+        
+        verticalBar.valueProperty().addListener((obs, oldValue, newValue) -> {
+            if (!updatingBars) {
+                topLine = newValue.intValue();
+                topRow = 0;
+                redraw();
+            }
+        });
+        horizontalBar.valueProperty().addListener((obs, oldValue, newValue) -> {
+            if (!updatingBars) {
+                scrollX = newValue.doubleValue();
+                redraw();
+            }
+        });
+        
+        setFocusTraversable(true);
+        canvas.setCursor(Cursor.TEXT);
+        addEventHandler(KeyEvent.KEY_PRESSED, this::keyPressed);
+        addEventHandler(KeyEvent.KEY_TYPED, this::keyTyped);
+        canvas.addEventHandler(MouseEvent.MOUSE_PRESSED, this::mousePressed);
+        canvas.addEventHandler(MouseEvent.MOUSE_DRAGGED,
+                               event -> moveCaret(offsetAtPoint(event.getX(), event.getY()), true));
+        addEventHandler(ScrollEvent.SCROLL, this::scrolled);
+        setFont(Font.getDefault());
+    }
+    
+    /**
+     * Shows a document in the editor. The caret goes to the start, the undo history
+     * is kept by the document.
+     * 
+     * @param document The document to edit
+     */
+    public void setDocument(Document document) {
+        if (this.document != null) {
+            this.document.removeListener(documentListener);
+        }
+        this.document = document;
+        lines = new LineIndex(text());
+        caret = 0;
+        anchor = 0;
+        reportedCaret = -1;
+        preferredColumn = -1;
+        topLine = 0;
+        topRow = 0;
+        scrollX = 0;
+        widestLine = 0;
+        typing = false;
+        // The marks of the previous document do not apply
+        markers = new int[0];
+        if (document != null) {
+            document.addListener(documentListener);
+        }
+        redraw();
+    }
+    
+    /**
+     * Sets the font of the text. The width of a column is measured from the font.
+     * 
+     * @param font The font, which should be monospaced
+     */
+    public void setFont(Font font) {
+        this.font = font;
+        Text sample = new Text("MMMMMMMMMM");
+        sample.setFont(font);
+        charWidth = Math.max(1, sample.getLayoutBounds().getWidth() / 10);
+        lineHeight = Math.max(1, Math.ceil(sample.getLayoutBounds().getHeight()));
+        redraw();
+    }
+    
+    /**
+     * Sets whether long lines wrap at the edge of the editor or scroll sideways.
+     * 
+     * @param wrapText Whether to wrap lines
+     */
+    public void setWrapText(boolean wrapText) {
+        this.wrapText = wrapText;
+        topRow = 0;
+        scrollX = 0;
+        redraw();
+    }
+    
+    /**
+     * Sets the number of columns between tab stops, which is also the number of
+     * spaces the tab key inserts at most.
+     * 
+     * @param tabSize The tab size in columns
+     */
+    public void setTabSize(int tabSize) {
+        this.tabSize = Math.max(1, tabSize);
+        redraw();
+    }
+    
+    /**
+     * Reverts the last edit made in the editor.
+     */
+    public void undo() {
+        UndoManager.Change change = document == null ? null : document.getUndoManager().undo();
+        if (change != null) {
+            apply(change.getOffset(), change.getLength(), change.getText());
+        }
+    }
+    
+    /**
+     * Makes the last undone edit again.
+     */
+    public void redo() {
+        UndoManager.Change change = document == null ? null : document.getUndoManager().redo();
+        if (change != null) {
+            apply(change.getOffset(), change.getLength(), change.getText());
+        }
+    }
+    
+    /**
+     * Copies the selected text to the clipboard and removes it.
+     */
+    public void cut() {
+        if (caret != anchor) {
+            copy();
+            replaceSelection("", false);
+        }
+    }
+    
+    /**
+     * Copies the selected text to the clipboard.
+     */
+    public void copy() {
+        if (caret == anchor || document == null) {
+            return;
+        }
+        ClipboardContent content = new ClipboardContent();
+        content.putString(text().subSequence(Math.min(caret, anchor), Math.max(caret, anchor)).toString());
+        Clipboard.getSystemClipboard().setContent(content);
+    }
+    
+    /**
+     * Replaces the selection with the text on the clipboard.
+     */
+    public void paste() {
+        Clipboard clipboard = Clipboard.getSystemClipboard();
+        if (clipboard.hasString()) {
+            replaceSelection(clipboard.getString(), false);
+        }
+    }
+    
+    /**
+     * Selects the whole text.
+     */
+    public void selectAll() {
+        anchor = 0;
+        caret = text().length();
+        typing = false;
+        redraw();
+    }
+    
+    /**
+     * Sets the function that is called with the caret offset when the caret moves,
+     * through typing, the keyboard or the mouse.
+     * 
+     * @param caretListener The function, or null for none
+     */
+    public void setCaretListener(IntConsumer caretListener) {
+        this.caretListener = caretListener;
+        reportedCaret = -1;
+    }
+    
+    public int getCaretPosition() {
+        return caret;
+    }
+    
+    /**
+     * Sets where the editor records how long edits and drawing take, and the time
+     * from a key event until the editor is drawn.
+     * 
+     * @param latency The latency histograms, or null to record nothing
+     */
+    public void setLatency(EditLatency latency) {
+        this.latency = latency;
+        this.keyNanos = 0;
+    }
+    
+    /**
+     * Marks the lines that contain offsets in the gutter, for example the problems
+     * found in the document. The marks stay at their offsets until they are set
+     * again.
+     * 
+     * @param offsets The offsets in ascending order
+     */
+    public void setMarkers(int[] offsets) {
+        markers = offsets;
+        redraw();
+    }
+    
+    /**
+     * Moves the caret to an offset and scrolls it into view, for search hits and
+     * other jumps into the document.
+     * 
+     * @param offset The offset, clamped to the text
+     */
+    public void showOffset(int offset) {
+        if (document != null) {
+            moveCaret(Math.max(0, Math.min(offset, text().length())), false);
+        }
+    }
+    
+    @Override
+    protected void layoutChildren() {
+        double width = getWidth();
+        double height = getHeight();
+        double barWidth = verticalBar.prefWidth(-1);
+        double barHeight = wrapText ? 0 : horizontalBar.prefHeight(-1);
+        horizontalBar.setVisible(!wrapText);
+        
+        canvas.setWidth(Math.max(0, width - barWidth));
+        canvas.setHeight(Math.max(0, height - barHeight));
+        canvas.relocate(0, 0);
+        verticalBar.resizeRelocate(width - barWidth, 0, barWidth, Math.max(0, height - barHeight));
+        horizontalBar.resizeRelocate(0, height - barHeight, Math.max(0, width - barWidth), barHeight);
+        
+        long start = EditLatency.start();
+        draw();
+        if (latency != null) {
+            latency.end(EditLatency.Stage.DRAW, start);
+            if (keyNanos != 0) {
+                latency.end(EditLatency.Stage.KEY_TO_PAINT, keyNanos);
+                keyNanos = 0;
+            }
+        }
+    }
+    
+    @Override
+    protected double computePrefWidth(double height) {
+        return 80 * charWidth + TEXT_LEFT + PADDING;
+    }
+    
+    @Override
+    protected double computePrefHeight(double width) {
+        return 25 * lineHeight + 2 * PADDING;
+    }
+    
+    @Override
+    protected double computeMinWidth(double height) {
+        return 0;
+    }
+    
+    @Override
+    protected double computeMinHeight(double width) {
+        return 0;
+    }
+    
+    /**
+     * Draws the editor again on the next pulse. Several changes in one pulse are
+     * drawn once.
+     */
+    private void redraw() {
+        requestLayout();
+        // Every change of the caret is drawn, so this is where it is reported
+        if (caretListener != null && caret != reportedCaret) {
+            reportedCaret = caret;
+            caretListener.accept(caret);
+        }
+    }
+    
+    private CharSequence text() {
+        TextBuffer buffer = document == null ? null : document.getBuffer();
+        return buffer == null ? "" : buffer;
+    }
+    
+    /**
+     * Returns the length of the text, or the limit if the text is longer, without
+     * counting a large file past the limit.
+     */
+    private int lengthUpTo(int limit) {
+        CharSequence text = text();
+        if (text instanceof MappedTextBuffer) {
+            return ((MappedTextBuffer) text).lengthUpTo(limit);
+        }
+        return Math.min(limit, text.length());
+    }
+    
+    /**
+     * Updates the line index and the caret after an edit of the document. Edits that
+     * did not come from the editor make the undo history invalid.
+     */
+    private void documentChanged(DocumentChange change) {
+        lines.update(text(), change.getOffset(), change.getRemovedLength(), change.getInsertedText());
+        if (!ownEdit) {
+            caret = Math.min(shift(caret, change), text().length());
+            anchor = Math.min(shift(anchor, change), text().length());
+            typing = false;
+            document.getUndoManager().clear();
+        }
+        redraw();
+    }
+    
+    /**
+     * Moves an offset past an edit so it stays on the same text.
+     */
+    private static int shift(int offset, DocumentChange change) {
+        if (offset <= change.getOffset()) {
+            return offset;
+        }
+        if (offset >= change.getOffset() + change.getRemovedLength()) {
+            return offset + change.getInsertedLength() - change.getRemovedLength();
+        }
+        return change.getOffset() + change.getInsertedLength();
+    }
+    
+    /**
+     * Replaces the selection with text and records the edit for undo. Characters
+     * typed one after another are undone together.
+     */
+    private void replaceSelection(String text, boolean typed) {
+        if (document == null) {
+            return;
+        }
+        int start = Math.min(caret, anchor);
+        int length = Math.max(caret, anchor) - start;
+        if (length == 0 && text.isEmpty()) {
+            return;
+        }
+        
+        // The removed text is a slice of the buffer, copied or deflated by the history
+        document.getUndoManager().record(start, document.getBuffer().subSequence(start, start + length), text,
+                                         typed && typing && length == 0);
+        apply(start, length, text);
+        typing = typed;
+    }
+    
+    private void apply(int offset, int length, String text) {
+        long start = EditLatency.start();
+        ownEdit = true;
+        try {
+            document.replace(offset, length, text);
+        } finally {
+            ownEdit = false;
+        }
+        if (latency != null) {
+            latency.end(EditLatency.Stage.EDIT, start);
+        }
+        caret = offset + text.length();
+        anchor = caret;
+        preferredColumn = -1;
+        typing = false;
+        showCaret();
+    }
+    
+    private void keyTyped(KeyEvent event) {
+        // Key events have no time of their own, so this is when the keystroke arrived
+        long received = EditLatency.start();
+        String character = event.getCharacter();
+        // Shortcuts are handled when the key is pressed, AltGr shows up as Ctrl+Alt
+        if (character == null || character.isEmpty() || (event.isControlDown() && !event.isAltDown())
+                || event.isMetaDown()) {
+            return;
+        }
+        char c = character.charAt(0);
+        if (c < ' ' || c == 0x7f) {
+            return;
+        }
+        replaceSelection(character, true);
+        event.consume();
+        keyHandled(received);
+    }
+    
+    /**
+     * Remembers when a key that changes the editor arrived, until it is drawn. Keys
+     * handled before the editor is drawn again are drawn together with the first.
+     */
+    private void keyHandled(long received) {
+        if (latency != null && keyNanos == 0) {
+            keyNanos = received;
+        }
+    }
+    
+    private void keyPressed(KeyEvent event) {
+        long received = EditLatency.start();
+        boolean shift = event.isShiftDown();
+        boolean shortcut = event.isShortcutDown();
+        int start = Math.min(caret, anchor);
+        int end = Math.max(caret, anchor);
+        
+        switch (event.getCode()) {
+            case LEFT:
+                moveCaret(!shift && start < end ? start : previousOffset(caret), shift);
+                break;
+            case RIGHT:
+                moveCaret(!shift && start < end ? end : nextOffset(caret), shift);
+                break;
+            case UP:
+                moveVertically(-1, shift);
+                break;
+            case DOWN:
+                moveVertically(1, shift);
+                break;
+            case PAGE_UP:
+                moveVertically(-visibleRows(), shift);
+                break;
+            case PAGE_DOWN:
+                moveVertically(visibleRows(), shift);
+                break;
+            case HOME:
+                moveCaret(shortcut ? 0 : lines.lineStart(lines.lineOf(caret)), shift);
+                break;
+            case END:
+                // Only the end of the whole text needs the length, which counts all of a large file
+                moveCaret(shortcut ? text().length() : lines.lineEnd(lines.lineOf(caret)), shift);
+                break;
+            case BACK_SPACE:
+                if (start == end) {
+                    anchor = previousOffset(caret);
+                }
+                replaceSelection("", false);
+                break;
+            case DELETE:
+                if (start == end) {
+                    anchor = nextOffset(caret);
+                }
+                replaceSelection("", false);
+                break;
+            case ENTER:
+                replaceSelection("\n", false);
+                break;
+            case TAB:
+                int column = (int) position(lines.lineOf(start), start);
+                replaceSelection(" ".repeat(tabSize - column % tabSize), false);
+                break;
+            case A:
+                if (!shortcut) {
+                    return;
+                }
+                selectAll();
+                break;
+            case C:
+                if (!shortcut) {
+                    return;
+                }
+                copy();
+                break;
+            case X:
+                if (!shortcut) {
+                    return;
+                }
+                cut();
+                break;
+            case V:
+                if (!shortcut) {
+                    return;
+                }
+                paste();
+                break;
+            case Z:
+                if (!shortcut) {
+                    return;
+                }
+                if (shift) {
+                    redo();
+                } else {
+                    undo();
+                }
+                break;
+            case Y:
+                if (!shortcut) {
+                    return;
+                }
+                redo();
+                break;
+            default:
+                return;
+        }
+        event.consume();
+        keyHandled(received);
+    }
+    
+    private void mousePressed(MouseEvent event) {
+        requestFocus();
+        int offset = offsetAtPoint(event.getX(), event.getY());
+        if (event.getClickCount() == 2) {
+            // Select the word under the mouse
+            CharSequence text = text();
+            int start = offset;
+            int end = offset;
+            while (start > 0 && Character.isLetterOrDigit(text.charAt(start - 1))) {
+                start--;
+            }
+            while (end < lengthUpTo(end + 1) && Character.isLetterOrDigit(text.charAt(end))) {
+                end++;
+            }
+            moveCaret(start, false);
+            moveCaret(end, true);
+        } else {
+            moveCaret(offset, event.isShiftDown());
+        }
+    }
+    
+    private void scrolled(ScrollEvent event) {
+        if (event.getDeltaY() != 0) {
+            int rows = (int) Math.max(1, Math.round(Math.abs(event.getDeltaY()) / lineHeight));
+            int[] top = moveRows(topLine, topRow, event.getDeltaY() > 0 ? -rows : rows);
+            topLine = top[0];
+            topRow = top[1];
+        }
+        if (!wrapText && event.getDeltaX() != 0) {
+            scrollX = Math.max(0, scrollX - event.getDeltaX());
+        }
+        redraw();
+        event.consume();
+    }
+    
+    private void moveCaret(int offset, boolean extend) {
+        caret = offset;
+        if (!extend) {
+            anchor = offset;
+        }
+        preferredColumn = -1;
+        typing = false;
+        showCaret();
+    }
+    
+    /**
+     * Moves the caret by a number of rows, keeping its column.
+     */
+    private void moveVertically(int rows, boolean extend) {
+        int line = lines.lineOf(caret);
+        long position = position(line, caret);
+        double column = preferredColumn >= 0 ? preferredColumn : (int) position;
+        int[] target = moveRows(line, (int) (position >>> 32), rows);
+        moveCaret(offsetAt(target[0], target[1], column), extend);
+        preferredColumn = column;
+    }
+    
+    /**
+     * Returns the offset before the character before an offset, keeping \r\n and
+     * surrogate pairs together.
+     */
+    private int previousOffset(int offset) {
+        CharSequence text = text();
+        if (offset <= 0) {
+            return 0;
+        }
+        if (offset >= 2 && ((text.charAt(offset - 1) == '\n' && text.charAt(offset - 2) == '\r')
+                            || (Character.isLowSurrogate(text.charAt(offset - 1))
+                                && Character.isHighSurrogate(text.charAt(offset - 2))))) {
+            return offset - 2;
+        }
+        return offset - 1;
+    }
+    
+    private int nextOffset(int offset) {
+        CharSequence text = text();
+        int length = lengthUpTo(offset + 2);
+        if (offset >= length) {
+            return length;
+        }
+        if (offset + 1 < length && ((text.charAt(offset) == '\r' && text.charAt(offset + 1) == '\n')
+                                    || (Character.isHighSurrogate(text.charAt(offset))
+                                        && Character.isLowSurrogate(text.charAt(offset + 1))))) {
+            return offset + 2;
+        }
+        return offset + 1;
+    }
+    
+    /**
+     * Scrolls so the caret is visible.
+     */
+    private void showCaret() {
+        int line = lines.lineOf(caret);
+        long position = position(line, caret);
+        int row = (int) (position >>> 32);
+        if (line < topLine || (line == topLine && row < topRow)) {
+            topLine = line;
+            topRow = row;
+        } else {
+            // The top row when the caret is on the last visible row
+            int[] top = moveRows(line, row, -(visibleRows() - 1));
+            if (top[0] > topLine || (top[0] == topLine && top[1] > topRow)) {
+                topLine = top[0];
+                topRow = top[1];
+            }
+        }
+        
+        if (!wrapText) {
+            double x = (int) position * charWidth;
+            double width = canvas.getWidth() - TEXT_LEFT - PADDING;
+            if (x < scrollX) {
+                scrollX = Math.max(0, x - width / 4);
+            } else if (x + charWidth > scrollX + width) {
+                scrollX = x + charWidth - width * 3 / 4;
+            }
+        }
+        redraw();
+    }
+    
+    private int visibleRows() {
+        return Math.max(1, (int) ((canvas.getHeight() - 2 * PADDING) / lineHeight));
+    }
+    
+    /**
+     * Returns the number of columns in a row, unlimited when lines do not wrap.
+     */
+    private int columns() {
+        return wrapText ? Math.max(1, (int) ((canvas.getWidth() - TEXT_LEFT - PADDING) / charWidth))
+                        : Integer.MAX_VALUE;
+    }
+    
+    private int advance(char c, int column) {
+        return c == '\t' ? tabSize - column % tabSize : 1;
+    }
+    
+    /**
+     * Finds the row and column of an offset within its line.
+     * 
+     * @return The row in the upper and the column in the lower 32 bits
+     */
+    private long position(int line, int offset) {
+        CharSequence text = text();
+        int columns = columns();
+        int row = 0;
+        int column = 0;
+        for (int i = lines.lineStart(line); i < offset; i++) {
+            int width = advance(text.charAt(i), column);
+            if (column > 0 && column + width > columns) {
+                row++;
+                column = 0;
+                width = advance(text.charAt(i), 0);
+            }
+            column += width;
+        }
+        return ((long) row << 32) | column;
+    }
+    
+    private int rowsOf(int line) {
+        return wrapText ? (int) (position(line, lines.lineEnd(line)) >>> 32) + 1 : 1;
+    }
+    
+    /**
+     * Finds the offset closest to a column of a row of a line.
+     */
+    private int offsetAt(int line, int row, double column) {
+        CharSequence text = text();
+        int columns = columns();
+        int end = lines.lineEnd(line);
+        int r = 0;
+        int c = 0;
+        for (int i = lines.lineStart(line); i < end; i++) {
+            int width = advance(text.charAt(i), c);
+            if (c > 0 && c + width > columns) {
+                if (r == row) {
+                    return i;
+                }
+                r++;
+                c = 0;
+                width = advance(text.charAt(i), 0);
+            }
+            if (r == row && column < c + width / 2.0) {
+                return i;
+            }
+            c += width;
+        }
+        return end;
+    }
+    
+    private int offsetAtPoint(double x, double y) {
+        int rows = (int) Math.floor((y - PADDING) / lineHeight);
+        int[] target = moveRows(topLine, topRow, rows);
+        return offsetAt(target[0], target[1], Math.max(0, (x - TEXT_LEFT + scrollX) / charWidth));
+    }
+    
+    /**
+     * Moves a row position by a number of rows, stopping at the first and last row.
+     * 
+     * @return The line and the row within the line
+     */
+    private int[] moveRows(int line, int row, int delta) {
+        int rows = rowsOf(line);
+        while (delta > 0) {
+            if (row + 1 < rows) {
+                row++;
+            } else if (lines.hasLine(line + 1)) {
+                line++;
+                row = 0;
+                rows = rowsOf(line);
+            } else {
+                break;
+            }
+            delta--;
+        }
+        while (delta < 0) {
+            if (row > 0) {
+                row--;
+            } else if (line > 0) {
+                line--;
+                row = rowsOf(line) - 1;
+            } else {
+                break;
+            }
+            delta++;
+        }
+        return new int[] {line, row};
+    }
+    
+    /**
+     * Draws the visible rows, the selection and the caret.
+     */
+    private void draw() {
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        double width = canvas.getWidth();
+        double height = canvas.getHeight();
+        gc.setFill(BACKGROUND);
+        gc.fillRect(0, 0, width, height);
+        gc.setFont(font);
+        gc.setTextBaseline(VPos.TOP);
+        
+        CharSequence text = text();
+        if (!lines.hasLine(topLine)) {
+            topLine = lines.lineOf(text.length());
+            topRow = 0;
+        }
+        topRow = Math.max(0, Math.min(topRow, rowsOf(topLine) - 1));
+        
+        caretX = Double.NaN;
+        markedCount = 0;
+        double y = PADDING;
+        int firstRow = topRow;
+        for (int line = topLine; y < height && lines.hasLine(line); line++) {
+            if (isMarked(lines.lineStart(line), lines.lineEnd(line))) {
+                addMarkedTop(y);
+            }
+            y = drawLine(gc, text, line, firstRow, y);
+            firstRow = 0;
+        }
+        
+        // Text scrolled to the left is covered by the gutter
+        gc.setFill(BACKGROUND);
+        gc.fillRect(0, 0, GUTTER, height);
+        gc.setFill(MARKER);
+        for (int i = 0; i < markedCount; i++) {
+            gc.fillRect(1, markedTops[i], GUTTER - 2, lineHeight);
+        }
+        if (!Double.isNaN(caretX)) {
+            gc.setStroke(TEXT);
+            gc.setLineWidth(1);
+            gc.strokeLine(Math.floor(caretX) + 0.5, caretY, Math.floor(caretX) + 0.5, caretY + lineHeight);
+        }
+        updateScrollBars();
+    }
+    
+    /**
+     * Draws the rows of a line from a row on, stopping at the bottom of the canvas
+     * and, when lines do not wrap, at its right edge.
+     * 
+     * @return The y coordinate below the last row drawn
+     */
+    private double drawLine(GraphicsContext gc, CharSequence text, int line, int firstRow, double top) {
+        int start = lines.lineStart(line);
+        int end = lines.lineEnd(line);
+        int columns = columns();
+        double height = canvas.getHeight();
+        int firstColumn = wrapText ? 0 : (int) (scrollX / charWidth);
+        int lastColumn = wrapText ? columns : firstColumn + (int) Math.ceil(canvas.getWidth() / charWidth) + 1;
+        int selectionStart = Math.min(caret, anchor);
+        int selectionEnd = Math.max(caret, anchor);
+        
+        collectSpans(start, end);
+        int span = 0;
+        int row = 0;
+        int column = 0;
+        double y = top;
+        int runColumn = 0;
+        int runStyle = -1;
+        boolean runSelected = false;
+        boolean cut = false;
+        run.setLength(0);
+        
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int width = advance(c, column);
+            if (column > 0 && column + width > columns) {
+                drawRun(gc, runColumn, y, runStyle, runSelected);
+                row++;
+                column = 0;
+                width = advance(c, 0);
+                if (row > firstRow) {
+                    y += lineHeight;
+                }
+            }
+            if (row < firstRow || column + width <= firstColumn) {
+                column += width;
+                continue;
+            }
+            if (y >= height || column > lastColumn) {
+                cut = true;
+                break;
+            }
+            if (i == caret) {
+                caretX = TEXT_LEFT - scrollX + column * charWidth;
+                caretY = y;
+            }
+            
+            while (span < spanCount && spans[span + 1] <= i) {
+                span += 3;
+            }
+            int style = span < spanCount && spans[span] <= i ? spans[span + 2] : -1;
+            boolean selected = i >= selectionStart && i < selectionEnd;
+            if (run.length() == 0 || style != runStyle || selected != runSelected) {
+                drawRun(gc, runColumn, y, runStyle, runSelected);
+                runColumn = column;
+                runStyle = style;
+                runSelected = selected;
+            }
+            if (c == '\t') {
+                for (int k = 0; k < width; k++) {
+                    run.append(' ');
+                }
+            } else {
+                run.append(c);
+            }
+            column += width;
+        }
+        drawRun(gc, runColumn, y, runStyle, runSelected);
+        
+        widestLine = Math.max(widestLine, cut ? Math.max(column, end - start) : column);
+        if (!cut && row >= firstRow) {
+            if (caret == end) {
+                caretX = TEXT_LEFT - scrollX + column * charWidth;
+                caretY = y;
+            }
+            if (selectionStart <= end && selectionEnd > end) {
+                // The line break is selected
+                gc.setFill(SELECTION);
+                gc.fillRect(TEXT_LEFT - scrollX + column * charWidth, y, charWidth, lineHeight);
+            }
+        }
+        return y + lineHeight;
+    }
+    
+    /**
+     * Checks whether a marker lies between two offsets, both inclusive.
+     */
+    private boolean isMarked(int start, int end) {
+        int index = Arrays.binarySearch(markers, start);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < markers.length && markers[index] <= end;
+    }
+    
+    private void addMarkedTop(double y) {
+        if (markedCount == markedTops.length) {
+            markedTops = Arrays.copyOf(markedTops, markedCount * 2);
+        }
+        markedTops[markedCount++] = y;
+    }
+    
+    private void drawRun(GraphicsContext gc, int column, double y, int style, boolean selected) {
+        if (run.length() == 0) {
+            return;
+        }
+        double x = TEXT_LEFT - scrollX + column * charWidth;
+        if (selected) {
+            gc.setFill(SELECTION);
+            gc.fillRect(x, y, run.length() * charWidth, lineHeight);
+        }
+        gc.setFill(style < 0 ? TEXT : STYLE_COLORS[style]);
+        gc.fillText(run.toString(), x, y);
+        run.setLength(0);
+    }
+    
+    /**
+     * Collects the highlighted tokens of a line from the syntax highlighter of the document.
+     */
+    private void collectSpans(int start, int end) {
+        spanCount = 0;
+        SyntaxHighlighter highlighter = document instanceof MarkdownDocument
+                ? ((MarkdownDocument) document).getSyntaxHighlighter() : null;
+        if (highlighter != null && start < end) {
+            highlighter.spans(start, end, spanSink);
+        }
+    }
+    
+    private void addSpan(int start, int end, CodeLexer.Style style) {
+        if (spanCount + 3 > spans.length) {
+            spans = Arrays.copyOf(spans, spans.length * 2);
+        }
+        spans[spanCount++] = start;
+        spans[spanCount++] = end;
+        spans[spanCount++] = style.ordinal();
+    }
+    
+    private void updateScrollBars() {
+        updatingBars = true;
+        int rows = visibleRows();
+        verticalBar.setMax(Math.max(0, lines.estimatedLineCount() - 1));
+        verticalBar.setVisibleAmount(rows);
+        verticalBar.setBlockIncrement(rows);
+        verticalBar.setValue(topLine);
+        
+        double width = canvas.getWidth();
+        double maxScroll = Math.max(0, widestLine * charWidth + TEXT_LEFT + PADDING - width);
+        horizontalBar.setMax(Math.max(maxScroll, scrollX));
+        horizontalBar.setVisibleAmount(width);
+        horizontalBar.setBlockIncrement(width / 2);
+        horizontalBar.setUnitIncrement(charWidth);
+        horizontalBar.setValue(scrollX);
+        updatingBars = false;
+    }
+}
@@ -0,0 +1,892 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * WorkspaceIndex is a full-text index of the markdown files in a folder and its
+ * subfolders. For every term it keeps the files the term occurs in with the offsets
+ * of each occurrence, so a query only looks at the files that contain its terms.
+ * 
+ * The index is saved to a file in a compact form and loaded again on the next start.
+ * An update only reads the files whose modification time or size changed since they
+ * were indexed, and reads them on several threads. Single files can be updated when
+ * they are saved or changed, which only changes the index in memory until flush.
+ * 
+ * For every file the index also keeps where some lines start, in characters and in
+ * bytes, so the preview of a hit is read from the nearest such line instead of the
+ * start of the file.
+ */
+public class WorkspaceIndex {
+    // "CMI2", the first bytes of every index file
+    private static final int MAGIC = 0x434D4932;
+    
+    // Longer runs of letters are cut, they are rarely searched for
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int PREVIEW_LENGTH = 160;
+    
+    // A line start is kept about every this many characters of a file
+    static final int CHECKPOINT_CHARS = 16 * 1024;
+    
+    // Parameters of the BM25 ranking
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    
+    private final Path root;
+    private final Path indexFile;
+    
+    // Indexed files by id, null for files that were removed since the last save
+    private final List<IndexedFile> files = new ArrayList<>();
+    private final Map<String, Integer> fileIds = new HashMap<>();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private long totalTokens;
+    
+    // Whether the index changed since it was saved
+    private boolean dirty;
+    
+    // Number of files read by the last update
+    private int lastIndexed;
+    
+    /**
+     * A file in the index, with the state it had when it was read.
+     */
+    private static class IndexedFile {
+        final String path;
+        final long modified;
+        final long size;
+        final int tokens;
+        
+        // Character offset, byte offset and number of a line, for lines about CHECKPOINT_CHARS apart
+        final int[] checkpoints;
+        
+        IndexedFile(String path, long modified, long size, int tokens, int[] checkpoints) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.tokens = tokens;
+            this.checkpoints = checkpoints;
+        }
+    }
+    
+    /**
+     * The files a term occurs in, by increasing file id, with the offsets of the
+     * term in each file.
+     */
+    private static class Postings {
+        int[] fileIds = new int[4];
+        int[][] offsets = new int[4][];
+        int count;
+        
+        void add(int fileId, int[] fileOffsets) {
+            if (count == fileIds.length) {
+                fileIds = Arrays.copyOf(fileIds, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            fileIds[count] = fileId;
+            offsets[count] = fileOffsets;
+            count++;
+        }
+    }
+    
+    /**
+     * Growable list of the offsets of a term in one file.
+     */
+    private static class Offsets {
+        int[] values = new int[2];
+        int count;
+        
+        void add(int offset) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = offset;
+        }
+    }
+    
+    /**
+     * A file that was read and split into terms, ready to be added to the index.
+     */
+    private static class TokenizedFile {
+        final IndexedFile file;
+        final Map<String, Offsets> terms;
+        
+        TokenizedFile(IndexedFile file, Map<String, Offsets> terms) {
+            this.file = file;
+            this.terms = terms;
+        }
+    }
+    
+    /**
+     * A file that matches a query.
+     */
+    public static class Hit {
+        private final Path path;
+        private final double score;
+        private final int offset;
+        private final int line;
+        private final String preview;
+        
+        Hit(Path path, double score, int offset, int line, String preview) {
+            this.path = path;
+            this.score = score;
+            this.offset = offset;
+            this.line = line;
+            this.preview = preview;
+        }
+        
+        public Path getPath() {
+            return path;
+        }
+        
+        public double getScore() {
+            return score;
+        }
+        
+        /**
+         * Returns the offset of the first match in the file.
+         * 
+         * @return The offset of the match
+         */
+        public int getOffset() {
+            return offset;
+        }
+        
+        /**
+         * Returns the line of the first match, starting at 1.
+         * 
+         * @return The line number
+         */
+        public int getLine() {
+            return line;
+        }
+        
+        /**
+         * Returns the text of the line of the first match.
+         * 
+         * @return The line text, shortened if it is long
+         */
+        public String getPreview() {
+            return preview;
+        }
+        
+        @Override
+        public String toString() {
+            return path.getFileName() + ":" + line + "  " + preview;
+        }
+    }
+    
+    /**
+     * Constructor for the index of a folder. The index saved in the index file is
+     * loaded, call update to bring it up to date with the files.
+     * 
+     * @param root The folder to index
+     * @param indexFile The file the index is saved in
+     */
+    public WorkspaceIndex(Path root, Path indexFile) {
+        this.root = root.toAbsolutePath().normalize();
+        this.indexFile = indexFile;
+        if (!load()) {
+            clear();
+        }
+    }
+    
+    /**
+     * Returns the file the index of a folder is saved in by default, in the
+     * .codemark folder of the user.
+     * 
+     * @param root The folder to index
+     * @return The index file
+     */
+    public static Path defaultIndexFile(Path root) {
+        String name = root.toAbsolutePath().normalize().toString();
+        return Paths.get(System.getProperty("user.home"), ".codemark",
+                         "index-" + Integer.toHexString(name.hashCode()) + ".bin");
+    }
+    
+    public Path getRoot() {
+        return root;
+    }
+    
+    /**
+     * Returns the number of files in the index.
+     * 
+     * @return The file count
+     */
+    public synchronized int getFileCount() {
+        return fileIds.size();
+    }
+    
+    /**
+     * Returns the number of files read by the last update, for tests.
+     * 
+     * @return The number of indexed files
+     */
+    int lastIndexed() {
+        return lastIndexed;
+    }
+    
+    /**
+     * Brings the index up to date with the markdown files in the folder and saves it.
+     * Files that are new or whose modification time or size changed are read again,
+     * on as many threads as there are processors, and files that are gone are removed.
+     * 
+     * @return true if the index was updated and saved, false otherwise
+     */
+    public synchronized boolean update() {
+        lastIndexed = 0;
+        Map<String, BasicFileAttributes> found;
+        try {
+            found = scan();
+        } catch (IOException e) {
+            return false;
+        }
+        
+        for (String path : new ArrayList<>(fileIds.keySet())) {
+            if (!found.containsKey(path)) {
+                remove(path);
+                dirty = true;
+            }
+        }
+        
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, BasicFileAttributes> entry : found.entrySet()) {
+            Integer id = fileIds.get(entry.getKey());
+            IndexedFile file = id == null ? null : files.get(id);
+            if (file == null || file.modified != entry.getValue().lastModifiedTime().toMillis()
+                    || file.size != entry.getValue().size()) {
+                stale.add(entry.getKey());
+            }
+        }
+        Collections.sort(stale);
+        
+        if (!stale.isEmpty()) {
+            List<TokenizedFile> tokenized;
+            try {
+                tokenized = tokenizeAll(stale, found);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            for (int i = 0; i < stale.size(); i++) {
+                remove(stale.get(i));
+                if (tokenized.get(i) != null) {
+                    add(tokenized.get(i));
+                }
+            }
+            lastIndexed = stale.size();
+            dirty = true;
+        }
+        return flush();
+    }
+    
+    /**
+     * Brings one file up to date in memory, for example after it was saved or
+     * changed by another program, without looking at the other files. The file is
+     * read again if its modification time or size changed, and removed if it is gone.
+     * 
+     * @param file The file, ignored if it is not a markdown file in the folder
+     * @return true if the file was read or removed, false otherwise
+     */
+    public synchronized boolean update(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        String name = absolute.getFileName() == null ? "" : absolute.getFileName().toString().toLowerCase();
+        if (!absolute.startsWith(root) || !(name.endsWith(".md") || name.endsWith(".markdown"))) {
+            return false;
+        }
+        String path = root.relativize(absolute).toString().replace(File.separatorChar, '/');
+        lastIndexed = 0;
+        
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(absolute, BasicFileAttributes.class);
+        } catch (IOException e) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            if (!fileIds.containsKey(path)) {
+                return false;
+            }
+            remove(path);
+            dirty = true;
+            return true;
+        }
+        
+        Integer id = fileIds.get(path);
+        IndexedFile indexed = id == null ? null : files.get(id);
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (indexed != null && indexed.modified == modified && indexed.size == attributes.size()) {
+            return false;
+        }
+        TokenizedFile tokenized = tokenizeFile(path, modified, attributes.size());
+        remove(path);
+        if (tokenized != null) {
+            add(tokenized);
+        }
+        lastIndexed = 1;
+        dirty = true;
+        return true;
+    }
+    
+    /**
+     * Saves the index if it changed since it was last saved.
+     * 
+     * @return true if the index is saved, false otherwise
+     */
+    public synchronized boolean flush() {
+        if (!dirty) {
+            return true;
+        }
+        compact();
+        dirty = !save();
+        return !dirty;
+    }
+    
+    /**
+     * Finds the files that contain all terms of a query, best matches first. Files
+     * are ranked with BM25, which favors files where the terms occur often and terms
+     * that occur in few files.
+     * 
+     * @param query The words to search for
+     * @param limit The most hits to return
+     * @return The hits with a preview of the line of the first match
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<>();
+        tokenize(query, (term, offset) -> queryTerms.add(term));
+        if (queryTerms.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        
+        List<Postings> lists = new ArrayList<>();
+        for (String term : queryTerms) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                return new ArrayList<>();
+            }
+            lists.add(postings);
+        }
+        // Walk the rarest term and look the file up in the other lists
+        lists.sort(Comparator.comparingInt(postings -> postings.count));
+        
+        int fileCount = fileIds.size();
+        double averageTokens = fileCount == 0 ? 1 : Math.max(1, (double) totalTokens / fileCount);
+        int[] cursors = new int[lists.size()];
+        PriorityQueue<double[]> best = new PriorityQueue<>(Comparator.comparingDouble(hit -> hit[0]));
+        Postings rarest = lists.get(0);
+        
+        for (int i = 0; i < rarest.count; i++) {
+            int id = rarest.fileIds[i];
+            IndexedFile file = files.get(id);
+            if (file == null) {
+                continue;
+            }
+            
+            double score = score(rarest.offsets[i].length, rarest.count, file, fileCount, averageTokens);
+            int firstOffset = rarest.offsets[i][0];
+            boolean all = true;
+            for (int k = 1; k < lists.size() && all; k++) {
+                Postings postings = lists.get(k);
+                int cursor = cursors[k];
+                while (cursor < postings.count && postings.fileIds[cursor] < id) {
+                    cursor++;
+                }
+                cursors[k] = cursor;
+                if (cursor == postings.count || postings.fileIds[cursor] != id) {
+                    all = false;
+                } else {
+                    score += score(postings.offsets[cursor].length, postings.count, file, fileCount, averageTokens);
+                    firstOffset = Math.min(firstOffset, postings.offsets[cursor][0]);
+                }
+            }
+            
+            if (all) {
+                best.add(new double[] {score, id, firstOffset});
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        
+        List<Hit> hits = new ArrayList<>();
+        while (!best.isEmpty()) {
+            double[] hit = best.poll();
+            hits.add(hit(files.get((int) hit[1]), hit[0], (int) hit[2]));
+        }
+        Collections.reverse(hits);
+        return hits;
+    }
+    
+    /**
+     * Receives the terms of a text.
+     */
+    interface TermSink {
+        /**
+         * Called for every term, in order.
+         * 
+         * @param term The term in lower case
+         * @param offset The offset of the term in the text
+         */
+        void term(String term, int offset);
+    }
+    
+    /**
+     * Splits text into terms: runs of letters and digits in lower case. The markdown
+     * markers around words are not letters, so they separate terms too.
+     * 
+     * @param text The text
+     * @param sink Receives the terms
+     */
+    static void tokenize(CharSequence text, TermSink sink) {
+        StringBuilder term = new StringBuilder();
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() == 0) {
+                    start = i;
+                }
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.append(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                sink.term(term.toString(), start);
+                term.setLength(0);
+            }
+        }
+    }
+    
+    private static double score(int termCount, int fileCount, IndexedFile file, int totalFiles, double averageTokens) {
+        double idf = Math.log(1 + (totalFiles - fileCount + 0.5) / (fileCount + 0.5));
+        double norm = K1 * (1 - B + B * file.tokens / averageTokens);
+        return idf * termCount * (K1 + 1) / (termCount + norm);
+    }
+    
+    /**
+     * Builds a hit, reading the line of the match from the file. Reading starts at
+     * the nearest line kept before the match and stops shortly after it.
+     */
+    private Hit hit(IndexedFile file, double score, int offset) {
+        Path path = root.resolve(file.path);
+        int[] checkpoints = file.checkpoints;
+        // The number of kept lines that start at or before the match
+        int low = 0;
+        int high = checkpoints.length / 3;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (checkpoints[mid * 3] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int position = low == 0 ? 0 : checkpoints[(low - 1) * 3];
+        long skip = low == 0 ? 0 : checkpoints[(low - 1) * 3 + 1];
+        int line = low == 0 ? 1 : checkpoints[(low - 1) * 3 + 2];
+        
+        String preview = "";
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             Reader reader = new InputStreamReader(Channels.newInputStream(channel.position(skip)),
+                                                   StandardCharsets.UTF_8)) {
+            // The end of the line before the match, enough of it for the preview
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read = 0;
+            int index = 0;
+            while (position < offset) {
+                if (index == read) {
+                    read = reader.read(buffer, 0, Math.min(buffer.length, offset - position));
+                    index = 0;
+                    if (read < 0) {
+                        break;
+                    }
+                }
+                char c = buffer[index++];
+                position++;
+                if (c == '\n') {
+                    line++;
+                    text.setLength(0);
+                } else {
+                    text.append(c);
+                    if (text.length() > 2 * PREVIEW_LENGTH) {
+                        text.delete(0, text.length() - PREVIEW_LENGTH);
+                    }
+                }
+            }
+            int end = text.length();
+            int c;
+            while (text.length() < end + PREVIEW_LENGTH && (c = reader.read()) >= 0 && c != '\n' && c != '\r') {
+                text.append((char) c);
+            }
+            int lineEnd = text.length();
+            // Keep the match in view when the line is long
+            int from = Math.max(0, Math.min(end - PREVIEW_LENGTH / 4, lineEnd - PREVIEW_LENGTH));
+            preview = text.substring(from, Math.min(lineEnd, from + PREVIEW_LENGTH)).trim();
+        } catch (IOException e) {
+            // The file changed or is gone since it was indexed, the hit has no preview
+        }
+        return new Hit(path, score, offset, line, preview);
+    }
+    
+    /**
+     * Finds where some lines of a text start, about CHECKPOINT_CHARS apart, with
+     * their offset in UTF-8 bytes and their number.
+     * 
+     * @param text The text of a file
+     * @return Character offset, byte offset and line number of each line found
+     */
+    static int[] checkpoints(CharSequence text) {
+        Offsets checkpoints = new Offsets();
+        long bytes = 0;
+        int line = 1;
+        int next = CHECKPOINT_CHARS;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            // A surrogate pair takes four bytes, two for each half
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+            if (c == '\n') {
+                line++;
+                if (i + 1 >= next && bytes <= Integer.MAX_VALUE) {
+                    checkpoints.add(i + 1);
+                    checkpoints.add((int) bytes);
+                    checkpoints.add(line);
+                    next = i + 1 + CHECKPOINT_CHARS;
+                }
+            }
+        }
+        return Arrays.copyOf(checkpoints.values, checkpoints.count);
+    }
+    
+    /**
+     * Lists the markdown files in the folder with their attributes. Hidden folders
+     * such as .git are skipped.
+     */
+    private Map<String, BasicFileAttributes> scan() throws IOException {
+        Map<String, BasicFileAttributes> found = new HashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                boolean hidden = !dir.equals(root) && dir.getFileName().toString().startsWith(".");
+                return hidden ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String name = file.getFileName().toString().toLowerCase();
+                if (attributes.isRegularFile() && (name.endsWith(".md") || name.endsWith(".markdown"))) {
+                    found.put(root.relativize(file).toString().replace(File.separatorChar, '/'), attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Unreadable files and folders are left out
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return found;
+    }
+    
+    /**
+     * Reads and splits files into terms on a pool of threads.
+     * 
+     * @return The tokenized files in the order of the paths, null for files that could not be read
+     */
+    private List<TokenizedFile> tokenizeAll(List<String> paths, Map<String, BasicFileAttributes> attributes)
+            throws InterruptedException {
+        int threads = Math.max(1, Math.min(paths.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "workspace-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<TokenizedFile>> futures = new ArrayList<>();
+            for (String path : paths) {
+                BasicFileAttributes file = attributes.get(path);
+                futures.add(pool.submit(() -> tokenizeFile(path, file.lastModifiedTime().toMillis(), file.size())));
+            }
+            List<TokenizedFile> tokenized = new ArrayList<>();
+            for (Future<TokenizedFile> future : futures) {
+                try {
+                    tokenized.add(future.get());
+                } catch (ExecutionException e) {
+                    tokenized.add(null);
+                }
+            }
+            return tokenized;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private TokenizedFile tokenizeFile(String path, long modified, long size) {
+        CharSequence text;
+        try {
+            text = Document.readText(root.resolve(path));
+        } catch (IOException e) {
+            return null;
+        }
+        Map<String, Offsets> fileTerms = new HashMap<>();
+        int[] tokens = new int[1];
+        tokenize(text, (term, offset) -> {
+            fileTerms.computeIfAbsent(term, key -> new Offsets()).add(offset);
+            tokens[0]++;
+        });
+        return new TokenizedFile(new IndexedFile(path, modified, size, tokens[0], checkpoints(text)), fileTerms);
+    }
+    
+    private void add(TokenizedFile tokenized) {
+        int id = files.size();
+        files.add(tokenized.file);
+        fileIds.put(tokenized.file.path, id);
+        totalTokens += tokenized.file.tokens;
+        for (Map.Entry<String, Offsets> entry : tokenized.terms.entrySet()) {
+            Offsets offsets = entry.getValue();
+            terms.computeIfAbsent(entry.getKey(), key -> new Postings())
+                 .add(id, Arrays.copyOf(offsets.values, offsets.count));
+        }
+    }
+    
+    /**
+     * Removes a file. Its postings stay until the index is compacted, searches skip them.
+     */
+    private void remove(String path) {
+        Integer id = fileIds.remove(path);
+        if (id != null) {
+            totalTokens -= files.get(id).tokens;
+            files.set(id, null);
+        }
+    }
+    
+    /**
+     * Drops the postings of removed files and numbers the files again without gaps.
+     */
+    private void compact() {
+        int[] newIds = new int[files.size()];
+        List<IndexedFile> kept = new ArrayList<>();
+        for (int id = 0; id < files.size(); id++) {
+            IndexedFile file = files.get(id);
+            newIds[id] = file == null ? -1 : kept.size();
+            if (file != null) {
+                kept.add(file);
+            }
+        }
+        if (kept.size() == files.size()) {
+            return;
+        }
+        
+        files.clear();
+        files.addAll(kept);
+        fileIds.clear();
+        for (int id = 0; id < files.size(); id++) {
+            fileIds.put(files.get(id).path, id);
+        }
+        terms.values().removeIf(postings -> {
+            int count = 0;
+            for (int i = 0; i < postings.count; i++) {
+                int newId = newIds[postings.fileIds[i]];
+                if (newId >= 0) {
+                    postings.fileIds[count] = newId;
+                    postings.offsets[count] = postings.offsets[i];
+                    count++;
+                }
+            }
+            Arrays.fill(postings.offsets, count, postings.count, null);
+            postings.count = count;
+            return count == 0;
+        });
+    }
+    
+    private void clear() {
+        files.clear();
+        fileIds.clear();
+        terms.clear();
+        totalTokens = 0;
+    }
+    
+    /**
+     * Writes the index to a temporary file that then replaces the index file.
+     * File ids, postings and offsets are written as differences to the previous
+     * value in a variable number of bytes, so most take a single byte.
+     * 
+     * @return true if the index was saved, false otherwise
+     */
+    private boolean save() {
+        Path temp = null;
+        try {
+            Files.createDirectories(indexFile.toAbsolutePath().getParent());
+            temp = Files.createTempFile(indexFile.toAbsolutePath().getParent(), ".index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                writeVarInt(out, files.size());
+                for (IndexedFile file : files) {
+                    out.writeUTF(file.path);
+                    out.writeLong(file.modified);
+                    out.writeLong(file.size);
+                    writeVarInt(out, file.tokens);
+                    writeVarInt(out, file.checkpoints.length / 3);
+                    int previousOffset = 0;
+                    for (int i = 0; i < file.checkpoints.length; i += 3) {
+                        writeVarInt(out, file.checkpoints[i] - previousOffset);
+                        writeVarInt(out, file.checkpoints[i + 1]);
+                        writeVarInt(out, file.checkpoints[i + 2]);
+                        previousOffset = file.checkpoints[i];
+                    }
+                }
+                
+                writeVarInt(out, terms.size());
+                for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                    Postings postings = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    writeVarInt(out, postings.count);
+                    int previousId = 0;
+                    for (int i = 0; i < postings.count; i++) {
+                        writeVarInt(out, postings.fileIds[i] - previousId);
+                        previousId = postings.fileIds[i];
+                        int[] offsets = postings.offsets[i];
+                        writeVarInt(out, offsets.length);
+                        int previousOffset = 0;
+                        for (int offset : offsets) {
+                            writeVarInt(out, offset - previousOffset);
+                            previousOffset = offset;
+                        }
+                    }
+                }
+            }
+            
+            try {
+                Files.move(temp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // Nothing left to clean up if the temporary file is already gone
+                }
+            }
+        }
+    }
+    
+    /**
+     * Loads the index saved in the index file.
+     * 
+     * @return true if the index was loaded, false if there is none or it is damaged
+     */
+    private boolean load() {
+        if (!Files.isRegularFile(indexFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            int fileCount = readVarInt(in);
+            for (int id = 0; id < fileCount; id++) {
+                String path = in.readUTF();
+                long modified = in.readLong();
+                long size = in.readLong();
+                int tokens = readVarInt(in);
+                int[] checkpoints = new int[readVarInt(in) * 3];
+                int offset = 0;
+                for (int i = 0; i < checkpoints.length; i += 3) {
+                    offset += readVarInt(in);
+                    checkpoints[i] = offset;
+                    checkpoints[i + 1] = readVarInt(in);
+                    checkpoints[i + 2] = readVarInt(in);
+                }
+                IndexedFile file = new IndexedFile(path, modified, size, tokens, checkpoints);
+                files.add(file);
+                fileIds.put(file.path, id);
+                totalTokens += file.tokens;
+            }
+            
+            int termCount = readVarInt(in);
+            for (int t = 0; t < termCount; t++) {
+                String term = in.readUTF();
+                Postings postings = new Postings();
+                int count = readVarInt(in);
+                int id = 0;
+                for (int i = 0; i < count; i++) {
+                    id += readVarInt(in);
+                    int[] offsets = new int[readVarInt(in)];
+                    int offset = 0;
+                    for (int k = 0; k < offsets.length; k++) {
+                        offset += readVarInt(in);
+                        offsets[k] = offset;
+                    }
+                    if (id >= fileCount || offsets.length == 0) {
+                        clear();
+                        return false;
+                    }
+                    postings.add(id, offsets);
+                }
+                terms.put(term, postings);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            clear();
+            return false;
+        }
+    }
+    
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number in the index");
+    }
+}
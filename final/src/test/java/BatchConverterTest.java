@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for BatchConverter functionality.
+ */
+public class BatchConverterTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content, StandardCharsets.UTF_8);
+    }
+    
+    private String preview(String content, boolean highlighting) {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.setSyntaxHighlighting(highlighting);
+        document.updateContent(content);
+        return document.generatePreview();
+    }
+    
+    @Test
+    void testConvertsTree() throws IOException {
+        Path source = tempDir.resolve("docs");
+        Path target = tempDir.resolve("html");
+        String readme = "# Readme\n\nSome **bold** text.\n";
+        String guide = "## Guide\n\n```java\nint x = 1;\n```\n";
+        write(source.resolve("README.md"), readme);
+        write(source.resolve("guide/setup.markdown"), guide);
+        write(source.resolve("notes.txt"), "not markdown");
+        write(source.resolve(".git/HEAD.md"), "# hidden");
+        
+        BatchConverter.Result result = new BatchConverter(source, target, 4, false).convert();
+        
+        assertEquals(2, result.getFiles());
+        assertEquals(0, result.getFailed());
+        assertEquals(readme.length() + guide.length(), result.getInputBytes());
+        assertEquals(preview(readme, false), Files.readString(target.resolve("README.html")));
+        assertEquals(preview(guide, false), Files.readString(target.resolve("guide/setup.html")));
+        assertFalse(Files.exists(target.resolve("notes.html")));
+        assertFalse(Files.exists(target.resolve(".git")));
+        assertEquals(Files.size(target.resolve("README.html")) + Files.size(target.resolve("guide/setup.html")),
+                     result.getOutputBytes());
+        assertTrue(result.toString().contains("2 files"));
+    }
+    
+    @Test
+    void testHighlightingAndManyFiles() throws IOException {
+        Path source = tempDir.resolve("docs");
+        String content = "# Title\n\n```java\nclass A { String s = \"x\"; }\n```\n";
+        for (int i = 0; i < 50; i++) {
+            write(source.resolve("part" + (i % 5)).resolve("file" + i + ".md"), content + i);
+        }
+        
+        // The target folder inside the source folder is not converted again
+        Path target = source.resolve("site");
+        write(target.resolve("old.md"), "# Old");
+        BatchConverter.Result result = new BatchConverter(source, target, 3, true).convert();
+        
+        assertEquals(50, result.getFiles());
+        assertEquals(preview(content + 7, true), Files.readString(target.resolve("part2/file7.html")));
+        assertFalse(Files.exists(target.resolve("site")));
+        assertTrue(result.getOutputBytes() > result.getInputBytes());
+    }
+    
+    @Test
+    void testHeapBytes() {
+        assertEquals(3000, BatchConverter.heapBytes(1000));
+        assertEquals(MappedTextBuffer.CACHE_BYTES, BatchConverter.heapBytes(Document.largeFileBytes));
+    }
+    
+    @Test
+    void testOutputFile() {
+        BatchConverter converter = new BatchConverter(tempDir.resolve("a"), tempDir.resolve("b"), 1, false);
+        
+        assertEquals(tempDir.resolve("b/x/y.html").toAbsolutePath(),
+                     converter.outputFile(tempDir.resolve("a/x/y.md")));
+        assertEquals(tempDir.resolve("b/v1.2.html").toAbsolutePath(),
+                     converter.outputFile(tempDir.resolve("a/v1.2.markdown")));
+    }
+}
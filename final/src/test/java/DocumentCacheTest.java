@@ -0,0 +1,116 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for DocumentCache functionality.
+ */
+public class DocumentCacheTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private MarkdownDocument openFile(String name, int paragraphs) throws IOException {
+        StringBuilder builder = new StringBuilder("# " + name + "\n\n");
+        for (int i = 0; i < paragraphs; i++) {
+            builder.append("Paragraph ").append(i).append(" with some text.\n\n");
+        }
+        Path file = tempDir.resolve(name + ".md");
+        Files.writeString(file, builder.toString(), StandardCharsets.UTF_8);
+        return new MarkdownDocument(file.toFile());
+    }
+    
+    @Test
+    void testKeepsDocumentsWithinBudget() throws IOException {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        MarkdownDocument first = openFile("first", 10);
+        DocumentCache.Entry entry = cache.add(first);
+        cache.add(openFile("second", 10));
+        
+        assertTrue(entry.isLoaded());
+        assertSame(first, cache.get(entry));
+        assertTrue(cache.getUsedBytes() > 0);
+        assertEquals(2, cache.entries().size());
+    }
+    
+    @Test
+    void testEstimateCountsUndoHistory() throws IOException {
+        MarkdownDocument document = openFile("history", 10);
+        long before = document.estimateMemory();
+        document.getUndoManager().record(0, "", "x".repeat(1000), false);
+        
+        assertEquals(before + document.getUndoManager().getMemoryUsed(), document.estimateMemory());
+        assertTrue(document.getUndoManager().getMemoryUsed() >= 2000);
+    }
+    
+    @Test
+    void testDropsLeastRecentlyUsed() throws IOException {
+        MarkdownDocument first = openFile("first", 200);
+        MarkdownDocument second = openFile("second", 200);
+        MarkdownDocument third = openFile("third", 200);
+        // Room for about two of the documents
+        long budget = first.estimateMemory() * 5 / 2;
+        DocumentCache cache = new DocumentCache(budget);
+        
+        DocumentCache.Entry firstEntry = cache.add(first);
+        DocumentCache.Entry secondEntry = cache.add(second);
+        cache.get(firstEntry);
+        DocumentCache.Entry thirdEntry = cache.add(third);
+        
+        // The second document was used least recently
+        assertFalse(secondEntry.isLoaded());
+        assertTrue(firstEntry.isLoaded());
+        assertTrue(thirdEntry.isLoaded());
+        assertEquals("second.md", secondEntry.getTitle());
+        assertTrue(cache.getUsedBytes() <= budget);
+        
+        // A dropped document is read again from its file
+        MarkdownDocument reloaded = cache.get(secondEntry);
+        assertNotSame(second, reloaded);
+        assertEquals(second.getContent(), reloaded.getContent());
+        assertTrue(secondEntry.isLoaded());
+        assertFalse(firstEntry.isLoaded());
+    }
+    
+    @Test
+    void testNeverDropsModifiedDocuments() throws IOException {
+        MarkdownDocument modified = openFile("modified", 200);
+        modified.insert(0, "Edited\n");
+        MarkdownDocument untitled = new MarkdownDocument("Untitled");
+        untitled.updateContent("Not saved anywhere");
+        DocumentCache cache = new DocumentCache(1);
+        
+        DocumentCache.Entry modifiedEntry = cache.add(modified);
+        DocumentCache.Entry untitledEntry = cache.add(untitled);
+        DocumentCache.Entry otherEntry = cache.add(openFile("other", 10));
+        cache.add(openFile("last", 10));
+        
+        assertTrue(modifiedEntry.isLoaded());
+        assertTrue(untitledEntry.isLoaded());
+        assertFalse(otherEntry.isLoaded());
+        assertSame(modified, cache.get(modifiedEntry));
+    }
+    
+    @Test
+    void testFindAndRemove() throws IOException {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        MarkdownDocument document = openFile("find", 3);
+        DocumentCache.Entry entry = cache.add(document);
+        
+        assertSame(entry, cache.find(tempDir.resolve("find.md")));
+        assertSame(entry, cache.find(tempDir.resolve("sub/../find.md")));
+        assertNull(cache.find(tempDir.resolve("missing.md")));
+        
+        cache.remove(entry);
+        assertEquals(List.of(), cache.entries());
+        assertNull(cache.find(tempDir.resolve("find.md")));
+        assertThrows(IllegalArgumentException.class, () -> cache.get(entry));
+    }
+}
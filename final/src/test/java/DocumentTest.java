@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -115,4 +117,60 @@ public class DocumentTest {
         TestDocument doc = new TestDocument("Test");
         assertFalse(doc.open("/invalid/path/nonexistent.txt"));
     }
-} 
\ No newline at end of file
+    
+    @Test
+    void testInsertAndDelete() {
+        document.insert(0, "Hello world");
+        document.insert(5, ",");
+        assertEquals("Hello, world", document.getContent());
+        assertTrue(document.isModified());
+        
+        document.delete(5, 7);
+        assertEquals("Hello", document.getContent());
+        
+        document.replace(1, 4, "i");
+        assertEquals("Hi", document.getContent());
+        
+        assertThrows(IndexOutOfBoundsException.class, () -> document.delete(1, 5));
+    }
+    
+    @Test
+    void testListenerReceivesChanges() {
+        List<DocumentChange> changes = new ArrayList<>();
+        document.addListener((doc, change) -> changes.add(change));
+        
+        document.insert(0, "abc");
+        document.delete(1, 1);
+        document.updateContent("axc");
+        
+        assertEquals(3, changes.size());
+        assertEquals(0, changes.get(0).getOffset());
+        assertEquals("abc", changes.get(0).getInsertedText().toString());
+        assertEquals(1, changes.get(1).getOffset());
+        assertEquals(1, changes.get(1).getRemovedLength());
+        
+        // Only the differing part of the new content is published
+        assertEquals(1, changes.get(2).getOffset());
+        assertEquals(0, changes.get(2).getRemovedLength());
+        assertEquals("x", changes.get(2).getInsertedText().toString());
+        
+        // Versions only increase
+        assertTrue(changes.get(0).getVersion() < changes.get(1).getVersion());
+        assertTrue(changes.get(1).getVersion() < changes.get(2).getVersion());
+        assertEquals(changes.get(2).getVersion(), document.getVersion());
+    }
+    
+    @Test
+    void testUnchangedContentIsNotPublished() {
+        document.updateContent("same");
+        long version = document.getVersion();
+        
+        List<DocumentChange> changes = new ArrayList<>();
+        document.addListener((doc, change) -> changes.add(change));
+        document.updateContent("same");
+        document.insert(2, "");
+        
+        assertTrue(changes.isEmpty());
+        assertEquals(version, document.getVersion());
+    }
+}
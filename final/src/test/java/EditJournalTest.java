@@ -0,0 +1,164 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for EditJournal functionality.
+ */
+public class EditJournalTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private Path file;
+    private MarkdownDocument document;
+    private EditJournal journal;
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        file = tempDir.resolve("journal.md");
+        Files.writeString(file, "# Title\n");
+        document = new MarkdownDocument(file.toFile());
+        journal = new EditJournal(file);
+        document.addListener((changed, change) -> journal.record(change, changed.getBuffer()));
+    }
+    
+    @Test
+    void testFirstFlushWritesCheckpoint() throws Exception {
+        document.insert(8, "Text");
+        
+        assertEquals(document.getVersion(), journal.flush(false));
+        assertEquals("# Title\nText", Files.readString(file, StandardCharsets.UTF_8));
+        assertFalse(Files.exists(EditJournal.journalPath(file)));
+    }
+    
+    @Test
+    void testEditsAreAppendedAndReplayed() throws Exception {
+        document.insert(8, "First line\n");
+        journal.flush(false);
+        String checkpoint = Files.readString(file, StandardCharsets.UTF_8);
+        
+        document.insert(19, "Second line\n");
+        document.replace(2, 5, "Heading");
+        assertEquals(-1, journal.flush(false));
+        document.delete(0, 2);
+        assertEquals(-1, journal.flush(false));
+        
+        // The file still holds the checkpoint, the journal holds the edits since
+        assertEquals(checkpoint, Files.readString(file, StandardCharsets.UTF_8));
+        assertTrue(Files.size(EditJournal.journalPath(file)) < 200);
+        
+        MarkdownDocument reopened = new MarkdownDocument(file.toFile());
+        assertTrue(reopened.isRecovered());
+        assertTrue(reopened.isModified());
+        assertEquals(document.getContent(), reopened.getContent());
+    }
+    
+    @Test
+    void testDamagedRecordStopsReplay() throws Exception {
+        document.insert(8, "a");
+        journal.flush(false);
+        document.insert(9, "b");
+        journal.flush(false);
+        document.insert(10, "c");
+        journal.flush(false);
+        
+        // Cut the last record off as if the application crashed while writing it
+        Path journalFile = EditJournal.journalPath(file);
+        byte[] bytes = Files.readAllBytes(journalFile);
+        Files.write(journalFile, Arrays.copyOf(bytes, bytes.length - 3));
+        
+        TextBuffer replayed = EditJournal.replay(file, Rope.of(Files.readString(file)));
+        assertEquals("# Title\nab", replayed.toString());
+    }
+    
+    @Test
+    void testJournalOfOtherFileIsIgnored() throws Exception {
+        document.insert(8, "a");
+        journal.flush(false);
+        document.insert(9, "b");
+        journal.flush(false);
+        
+        // The file was changed by another program after the checkpoint
+        Files.writeString(file, "# Changed elsewhere\n");
+        MarkdownDocument reopened = new MarkdownDocument(file.toFile());
+        assertFalse(reopened.isRecovered());
+        assertEquals("# Changed elsewhere\n", reopened.getContent());
+    }
+    
+    @Test
+    void testLongAndUnusualTextRoundTrips() throws Exception {
+        document.insert(8, "x");
+        journal.flush(false);
+        
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        text.append("\ud83d\ude00 \ud83d \u0000 \u00e9");
+        document.insert(9, text.toString());
+        journal.flush(false);
+        
+        TextBuffer replayed = EditJournal.replay(file, Rope.of(Files.readString(file)));
+        assertEquals(document.getContent(), replayed.toString());
+    }
+    
+    @Test
+    void testAutosaveThroughService() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        SaveService service = new SaveService(false, executor);
+        MarkdownDocument autosaved = new MarkdownDocument(file.toFile());
+        AtomicReference<CompletableFuture<Long>> last = new AtomicReference<>();
+        autosaved.addListener((changed, change) -> last.set(service.autosave(changed, change)));
+        
+        autosaved.insert(8, "one ");
+        assertEquals(autosaved.getVersion(), (long) last.get().get(2, TimeUnit.SECONDS));
+        autosaved.insert(12, "two ");
+        assertEquals(-1, (long) last.get().get(2, TimeUnit.SECONDS));
+        assertTrue(Files.exists(EditJournal.journalPath(file)));
+        autosaved.insert(16, "three");
+        long version = service.save(autosaved).get(2, TimeUnit.SECONDS);
+        assertEquals(autosaved.getVersion(), version);
+        
+        // A full save makes the journal unnecessary
+        assertTrue(service.shutdown(2000));
+        assertEquals("# Title\none two three", Files.readString(file, StandardCharsets.UTF_8));
+        assertFalse(Files.exists(EditJournal.journalPath(file)));
+    }
+    
+    @Test
+    void testDiscardedEditsAreNotRecovered() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        SaveService service = new SaveService(false, executor);
+        MarkdownDocument autosaved = new MarkdownDocument(file.toFile());
+        AtomicReference<CompletableFuture<Long>> last = new AtomicReference<>();
+        autosaved.addListener((changed, change) -> last.set(service.autosave(changed, change)));
+        
+        autosaved.insert(8, "one ");
+        last.get().get(2, TimeUnit.SECONDS);
+        autosaved.insert(12, "two ");
+        last.get().get(2, TimeUnit.SECONDS);
+        autosaved.insert(16, "three");
+        assertTrue(Files.exists(EditJournal.journalPath(file)));
+        
+        // Closed with Don't Save, the checkpoint stays and the journaled edits are gone
+        service.discard(autosaved);
+        assertTrue(service.shutdown(2000));
+        assertFalse(Files.exists(EditJournal.journalPath(file)));
+        MarkdownDocument reopened = new MarkdownDocument(file.toFile());
+        assertFalse(reopened.isRecovered());
+        assertEquals("# Title\none ", reopened.getContent());
+    }
+}
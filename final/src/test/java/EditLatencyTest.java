@@ -0,0 +1,68 @@
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for EditLatency functionality.
+ */
+public class EditLatencyTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void testStagesAreRecorded() {
+        EditLatency latency = new EditLatency();
+        assertEquals("", latency.summary());
+        
+        long start = EditLatency.start();
+        latency.end(EditLatency.Stage.EDIT, start);
+        latency.end(EditLatency.Stage.EDIT, start);
+        latency.end(EditLatency.Stage.KEY_TO_PAINT, start - 2_000_000);
+        
+        assertEquals(2, latency.get(EditLatency.Stage.EDIT).getCount());
+        assertEquals(0, latency.get(EditLatency.Stage.DRAW).getCount());
+        assertTrue(latency.get(EditLatency.Stage.KEY_TO_PAINT).getMax() >= 2_000_000);
+        
+        String summary = latency.summary();
+        assertTrue(summary.startsWith("key-to-paint "));
+        assertTrue(summary.contains(" | edit "));
+        assertFalse(summary.contains("draw"));
+        
+        latency.reset();
+        assertEquals("", latency.summary());
+    }
+    
+    @Test
+    void testFlightRecorderEvents() throws IOException {
+        EditLatency latency = new EditLatency();
+        Path file = tempDir.resolve("edit.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("codemark.EditStage");
+            recording.start();
+            long start = EditLatency.start();
+            latency.end(EditLatency.Stage.RENDER, start);
+            latency.end(EditLatency.Stage.DRAW, start - 2 * EditLatency.FRAME_BUDGET_NANOS);
+            recording.stop();
+            recording.dump(file);
+        }
+        
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertEquals(2, events.size());
+        assertEquals("render", events.get(0).getString("stage"));
+        assertFalse(events.get(0).getBoolean("overFrameBudget"));
+        assertEquals("draw", events.get(1).getString("stage"));
+        assertTrue(events.get(1).getBoolean("overFrameBudget"));
+        Duration drawn = events.get(1).getDuration("latency");
+        assertTrue(drawn.toNanos() >= 2 * EditLatency.FRAME_BUDGET_NANOS);
+    }
+}
@@ -9,7 +9,10 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -46,6 +49,10 @@ public class EditorSettingsTest {
         assertEquals(12, settings.getFontSize());
         assertEquals("Light", settings.getTheme());
         assertTrue(settings.isWordWrap());
+        assertEquals(150, settings.getPreviewDelay());
+        assertEquals(256, settings.getDocumentCacheSize());
+        assertEquals(32, settings.getUndoMemory());
+        assertEquals("", settings.getLastDocument());
     }
     
     @Test
@@ -79,6 +86,10 @@ public class EditorSettingsTest {
         settings.setFontSize(16);
         settings.setTheme("Dark");
         settings.setWordWrap(false);
+        settings.setPreviewDelay(300);
+        settings.setDocumentCacheSize(64);
+        settings.setUndoMemory(8);
+        settings.setLastDocument("/notes/todo.md");
         
         // Save settings
         assertTrue(settings.saveSettings());
@@ -97,6 +108,10 @@ public class EditorSettingsTest {
         assertEquals(16, loadedSettings.getFontSize());
         assertEquals("Dark", loadedSettings.getTheme());
         assertFalse(loadedSettings.isWordWrap());
+        assertEquals(300, loadedSettings.getPreviewDelay());
+        assertEquals(64, loadedSettings.getDocumentCacheSize());
+        assertEquals(8, loadedSettings.getUndoMemory());
+        assertEquals("/notes/todo.md", loadedSettings.getLastDocument());
     }
     
     @Test
@@ -122,7 +137,7 @@ public class EditorSettingsTest {
         assertEquals("Light", settings.getTheme());
         assertTrue(settings.isWordWrap());
     }
-
+    
     @Test
     void testSettersWithInvalidValues() {
         // Test setting invalid indentSize
@@ -146,5 +161,98 @@ public class EditorSettingsTest {
         
         settings.setTheme(null);
         assertEquals("Light", settings.getTheme()); // Should remain unchanged
+        
+        // Test setting invalid preview delay
+        settings.setPreviewDelay(-5);
+        assertEquals(150, settings.getPreviewDelay()); // Should remain unchanged
+        
+        // Test setting invalid document cache size
+        settings.setDocumentCacheSize(0);
+        assertEquals(256, settings.getDocumentCacheSize()); // Should remain unchanged
+        
+        // Test setting invalid undo memory
+        settings.setUndoMemory(-1);
+        assertEquals(32, settings.getUndoMemory()); // Should remain unchanged
+    }
+    
+    @Test
+    void testSnapshotsAndListeners() {
+        List<String> changes = new ArrayList<>();
+        settings.addListener((oldSettings, newSettings) ->
+            changes.add(oldSettings.getIndentSize() + "->" + newSettings.getIndentSize()));
+        EditorSettings.Snapshot before = settings.snapshot();
+        
+        settings.setIndentSize(2);
+        settings.setIndentSize(2);
+        settings.setIndentSize(-1);
+        
+        // Snapshots never change, and unchanged settings notify nobody
+        assertEquals(4, before.getIndentSize());
+        assertEquals(2, settings.snapshot().getIndentSize());
+        assertEquals(List.of("4->2"), changes);
+        
+        EditorSettings.Snapshot updated = settings.update(current -> current.withFontSize(20).withWordWrap(false));
+        assertSame(updated, settings.snapshot());
+        assertEquals(20, settings.getFontSize());
+        assertFalse(settings.isWordWrap());
+        assertEquals(2, changes.size());
+    }
+    
+    @Test
+    void testSaveSkipsUnchangedSettings() throws IOException {
+        assertTrue(settings.saveSettings());
+        assertTrue(configFile.delete());
+        
+        // Nothing changed since the last save, so the file is not written again
+        assertTrue(settings.saveSettings());
+        assertFalse(configFile.exists());
+        
+        settings.setTheme("Dark");
+        assertTrue(settings.saveSettings());
+        assertTrue(configFile.exists());
+        
+        // No temporary files are left next to the settings
+        try (Stream<Path> files = Files.list(configFile.getAbsoluteFile().getParentFile().toPath())) {
+            assertEquals(0, files.filter(file -> file.getFileName().toString().startsWith(".settings")).count());
+        }
+    }
+    
+    @Test
+    void testSaveLaterCoalescesWrites() throws Exception {
+        for (int size = 2; size <= 8; size++) {
+            settings.setIndentSize(size);
+            settings.saveLater();
+        }
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!configFile.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(configFile.exists());
+        EditorSettings loaded = new EditorSettings();
+        assertTrue(loaded.loadSettings());
+        assertEquals(8, loaded.getIndentSize());
+    }
+    
+    @Test
+    void testFlushWritesQueuedSave() {
+        settings.setFontName("Courier");
+        settings.saveLater();
+        assertTrue(settings.flush());
+        
+        EditorSettings loaded = new EditorSettings();
+        assertTrue(loaded.loadSettings());
+        assertEquals("Courier", loaded.getFontName());
+    }
+    
+    @Test
+    void testInvalidFileKeepsDefaults() throws IOException {
+        try (FileWriter writer = new FileWriter(configFile)) {
+            writer.write("syntaxHighlighting=false\nindentSize=many\n");
+        }
+        
+        assertFalse(settings.loadSettings());
+        assertTrue(settings.isSyntaxHighlighting());
+        assertEquals(4, settings.getIndentSize());
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for FileStatCache functionality.
+ */
+public class FileStatCacheTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void testExistsIsCached() throws IOException {
+        FileStatCache cache = new FileStatCache(60_000);
+        Path file = tempDir.resolve("a.md");
+        assertFalse(cache.exists(file));
+        
+        // Created after it was looked up, the cached answer stands until it is invalidated
+        Files.writeString(file, "a");
+        assertFalse(cache.exists(tempDir.resolve("sub/../a.md")));
+        cache.invalidate(file);
+        assertTrue(cache.exists(file));
+        assertEquals(1, cache.size());
+        
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+    
+    @Test
+    void testEntriesExpire() throws IOException, InterruptedException {
+        FileStatCache cache = new FileStatCache(20);
+        Path file = tempDir.resolve("b.md");
+        assertFalse(cache.exists(file));
+        
+        Files.writeString(file, "b");
+        Thread.sleep(50);
+        assertTrue(cache.exists(file));
+    }
+}
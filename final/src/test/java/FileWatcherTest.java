@@ -0,0 +1,156 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for FileWatcher and FileState functionality.
+ */
+public class FileWatcherTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private final BlockingQueue<Document> changes = new LinkedBlockingQueue<>();
+    private FileWatcher watcher;
+    
+    @BeforeEach
+    void setUp() throws IOException {
+        watcher = new FileWatcher(200, changes::add);
+    }
+    
+    @AfterEach
+    void tearDown() throws IOException {
+        watcher.close();
+    }
+    
+    private MarkdownDocument open(Path file, String content) throws IOException {
+        Files.writeString(file, content, StandardCharsets.UTF_8);
+        MarkdownDocument document = new MarkdownDocument(file.toFile());
+        assertTrue(watcher.watch(document));
+        return document;
+    }
+    
+    private Document nextChange() throws InterruptedException {
+        return changes.poll(5, TimeUnit.SECONDS);
+    }
+    
+    private Document noChange() throws InterruptedException {
+        return changes.poll(800, TimeUnit.MILLISECONDS);
+    }
+    
+    @Test
+    void testExternalChangeIsReportedOnce() throws Exception {
+        Path file = tempDir.resolve("a.md");
+        MarkdownDocument document = open(file, "# Title\n");
+        open(tempDir.resolve("b.md"), "# Other\n");
+        
+        Files.writeString(file, "# Changed title\n");
+        
+        assertSame(document, nextChange());
+        assertNull(noChange());
+    }
+    
+    @Test
+    void testOwnSaveIsIgnored() throws Exception {
+        MarkdownDocument document = open(tempDir.resolve("a.md"), "# Title\n");
+        
+        document.updateContent("# Title\n\nMore text.\n");
+        assertTrue(document.save());
+        SaveService.writeAtomically(tempDir.resolve("unwatched.md"), Rope.of("text"), false);
+        
+        assertNull(noChange());
+    }
+    
+    @Test
+    void testTouchWithoutChangeIsIgnored() throws Exception {
+        Path file = tempDir.resolve("a.md");
+        MarkdownDocument document = open(file, "# Caf\u00e9\n");
+        
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10000));
+        assertNull(noChange());
+        
+        // The same size with other text is read and found to differ
+        Files.writeString(file, "# Cafe!\n");
+        assertSame(document, nextChange());
+    }
+    
+    @Test
+    void testBurstOfWritesIsDebounced() throws Exception {
+        Path file = tempDir.resolve("a.md");
+        MarkdownDocument document = open(file, "start");
+        
+        for (int i = 0; i < 5; i++) {
+            Files.writeString(file, "part " + i);
+            Thread.sleep(20);
+        }
+        
+        assertSame(document, nextChange());
+        assertNull(noChange());
+    }
+    
+    @Test
+    void testUnwatchAndDelete() throws Exception {
+        Path file = tempDir.resolve("a.md");
+        MarkdownDocument document = open(file, "start");
+        
+        watcher.unwatch(document);
+        Files.writeString(file, "changed while not watched");
+        assertNull(noChange());
+        
+        // Watching again compares with what the document read
+        assertTrue(watcher.watch(document));
+        Files.delete(file);
+        assertSame(document, nextChange());
+        
+        assertFalse(watcher.watch(new MarkdownDocument("Untitled")));
+    }
+    
+    @Test
+    void testSameFileInTwoDocuments() throws Exception {
+        Path file = tempDir.resolve("a.md");
+        MarkdownDocument first = open(file, "start");
+        MarkdownDocument second = new MarkdownDocument(file.toFile());
+        assertTrue(watcher.watch(second));
+        assertEquals(1, watcher.watchedFolders());
+        
+        // The second document took the watch over, unwatching the first keeps it
+        watcher.unwatch(first);
+        Files.writeString(file, "changed");
+        assertSame(second, nextChange());
+        
+        watcher.unwatch(second);
+        assertEquals(0, watcher.watchedFolders());
+    }
+    
+    @Test
+    void testFileState() throws IOException {
+        Path file = tempDir.resolve("a.md");
+        Files.writeString(file, "\u00e9t\u00e9", StandardCharsets.UTF_8);
+        FileState state = FileState.of(file, Rope.of("\u00e9t\u00e9"));
+        
+        assertEquals(5, state.getSize());
+        assertTrue(state.matches(Files.readAttributes(file, BasicFileAttributes.class)));
+        assertTrue(state.hasSameContent(file));
+        
+        Files.writeString(file, "summer");
+        assertFalse(state.hasSameContent(file));
+        Files.writeString(file, "\u00e9tx", StandardCharsets.UTF_8);
+        assertFalse(state.hasSameContent(file));
+        
+        // Without the text only size and time can be compared
+        assertFalse(FileState.of(file, null).hasSameContent(file));
+    }
+}
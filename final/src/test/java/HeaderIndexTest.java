@@ -0,0 +1,162 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for HeaderIndex functionality.
+ */
+public class HeaderIndexTest {
+    
+    // The pattern MarkdownDocument used to find headers before the index
+    private static final Pattern HEADER_PATTERN = Pattern.compile("^#{1,6}\\s", Pattern.MULTILINE);
+    
+    private HeaderIndex index;
+    
+    @BeforeEach
+    void setUp() {
+        index = new HeaderIndex();
+    }
+    
+    private List<Integer> expectedOffsets(String text) {
+        List<Integer> offsets = new ArrayList<>();
+        Matcher matcher = HEADER_PATTERN.matcher(text);
+        while (matcher.find()) {
+            offsets.add(matcher.start());
+        }
+        return offsets;
+    }
+    
+    private List<Integer> indexedOffsets() {
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            offsets.add(index.offset(i));
+        }
+        return offsets;
+    }
+    
+    private String edit(String text, int offset, int removed, String inserted) {
+        String newText = text.substring(0, offset) + inserted + text.substring(offset + removed);
+        index.update(newText, offset, removed, inserted.length());
+        return newText;
+    }
+    
+    @Test
+    void testHeaders() {
+        index.reset("# Title\ntext\n### Section  \n####### Too deep\n#NoSpace\n##\tTab");
+        
+        assertEquals(3, index.size());
+        assertEquals(1, index.get(0).getLevel());
+        assertEquals("Title", index.get(0).getText());
+        assertEquals(0, index.offset(0));
+        assertEquals(3, index.get(1).getLevel());
+        assertEquals("Section", index.get(1).getText());
+        assertEquals(13, index.offset(1));
+        assertEquals("Tab", index.get(2).getText());
+    }
+    
+    @Test
+    void testIndexAt() {
+        String text = "intro\n# One\nbody\n# Two\nbody";
+        index.reset(text);
+        
+        assertEquals(-1, index.indexAt(2));
+        assertEquals(0, index.indexAt(text.indexOf("body")));
+        assertEquals(1, index.indexAt(text.length()));
+    }
+    
+    @Test
+    void testEditsShiftLaterHeaders() {
+        String text = "# One\ntext\n# Two\n# Three";
+        index.reset(text);
+        
+        text = edit(text, 6, 0, "more ");
+        assertEquals(List.of(0, 16, 22), indexedOffsets());
+        
+        // Joining a header with the line before it removes the header
+        text = edit(text, text.indexOf("\n# Two"), 1, "");
+        assertEquals(expectedOffsets(text), indexedOffsets());
+        
+        // Typing right before a header moves it off the line start
+        text = edit(text, text.indexOf("# Three"), 0, "x");
+        assertEquals(List.of(0), indexedOffsets());
+    }
+    
+    @Test
+    void testRandomEdits() {
+        String[] pieces = {"#", "# ", "##", "\n", "\r\n", "\r", "\u0085", "\u2028", " ", "\t", "a", "text ", "### h\n"};
+        Random random = new Random(11);
+        
+        for (int round = 0; round < 200; round++) {
+            String text = "";
+            index.reset(text);
+            
+            for (int i = 0; i < 60; i++) {
+                int offset = random.nextInt(text.length() + 1);
+                int removed = random.nextInt(4) == 0 ? random.nextInt(text.length() - offset + 1) : 0;
+                String inserted = random.nextInt(5) == 0 ? "" : pieces[random.nextInt(pieces.length)];
+                text = edit(text, offset, removed, inserted);
+                assertEquals(expectedOffsets(text), indexedOffsets(), "Text: " + text);
+            }
+        }
+    }
+    
+    @Test
+    void testListenerKeepsViewInSync() {
+        String[] pieces = {"# ", "## h", "\n", "\n# x\n", " ", "a", "text ", "### h\n"};
+        Random random = new Random(5);
+        List<String> view = new ArrayList<>();
+        index.setListener((from, removed, added) -> {
+            view.subList(from, from + removed).clear();
+            for (int i = 0; i < added; i++) {
+                HeaderIndex.Header header = index.get(from + i);
+                view.add(from + i, header.getLevel() + header.getText());
+            }
+        });
+        
+        String text = "# One\ntext\n## Two";
+        index.reset(text);
+        assertEquals(List.of("1One", "2Two"), view);
+        
+        for (int i = 0; i < 500; i++) {
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(4) == 0 ? random.nextInt(text.length() - offset + 1) : 0;
+            text = edit(text, offset, removed, pieces[random.nextInt(pieces.length)]);
+            
+            List<String> expected = new ArrayList<>();
+            for (int k = 0; k < index.size(); k++) {
+                expected.add(index.get(k).getLevel() + index.get(k).getText());
+            }
+            assertEquals(expected, view, "Text: " + text);
+        }
+        
+        // A removed listener is not told about changes
+        List<String> last = new ArrayList<>(view);
+        index.setListener(null);
+        index.reset("# Other");
+        assertEquals(last, view);
+    }
+    
+    @Test
+    void testMarkdownDocumentIndex() {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.updateContent("text\n## Header");
+        
+        HeaderIndex headers = document.getHeaderIndex();
+        assertEquals(1, headers.size());
+        assertEquals(2, headers.get(0).getLevel());
+        assertEquals("Header", headers.get(0).getText());
+        assertEquals(5, headers.offset(0));
+        assertTrue(document.validate());
+        
+        document.updateContent("text\n##Header");
+        assertEquals(0, headers.size());
+        assertFalse(document.validate());
+    }
+}
@@ -0,0 +1,144 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for LineIndex functionality.
+ */
+public class LineIndexTest {
+    
+    /**
+     * Lists the line starts of a text by scanning it.
+     */
+    private static List<Integer> expectedStarts(String text) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                starts.add(i + 1);
+            }
+        }
+        return starts;
+    }
+    
+    private static void assertMatches(String text, LineIndex index) {
+        List<Integer> starts = expectedStarts(text);
+        assertEquals(starts.size(), index.lineCount());
+        for (int line = 0; line < starts.size(); line++) {
+            assertEquals((int) starts.get(line), index.lineStart(line), "line " + line);
+        }
+    }
+    
+    @Test
+    void testEmptyText() {
+        LineIndex index = new LineIndex("");
+        assertEquals(1, index.lineCount());
+        assertEquals(0, index.lineStart(0));
+        assertEquals(0, index.lineEnd(0));
+        assertEquals(0, index.lineOf(0));
+    }
+    
+    @Test
+    void testLines() {
+        String text = "first\r\nsecond\n\nlast";
+        LineIndex index = new LineIndex(text);
+        assertEquals(4, index.lineCount());
+        assertEquals(7, index.lineStart(1));
+        assertEquals(5, index.lineEnd(0));
+        assertEquals(13, index.lineEnd(1));
+        assertEquals(15, index.lineStart(3));
+        assertEquals(19, index.lineEnd(3));
+        assertEquals(0, index.lineOf(6));
+        assertEquals(1, index.lineOf(7));
+        assertEquals(3, index.lineOf(text.length()));
+        assertEquals(text.length(), index.lineStart(10));
+        assertTrue(index.hasLine(3));
+        assertFalse(index.hasLine(4));
+        assertTrue(new LineIndex("a\n").hasLine(1));
+    }
+    
+    @Test
+    void testScansOnlyWhatIsNeeded() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+        String text = builder.toString();
+        LineIndex index = new LineIndex(text);
+        
+        assertEquals((int) expectedStarts(text).get(10), index.lineStart(10));
+        assertFalse(index.isComplete());
+        int estimate = index.estimatedLineCount();
+        assertFalse(index.isComplete());
+        assertTrue(estimate > 80000 && estimate < 120000, "estimate " + estimate);
+        
+        assertEquals(100001, index.lineCount());
+        assertTrue(index.isComplete());
+        assertEquals(100001, index.estimatedLineCount());
+    }
+    
+    @Test
+    void testEdits() {
+        String text = "a\nbb\nccc\ndddd";
+        LineIndex index = new LineIndex(text);
+        index.lineCount();
+        
+        String newText = "a\nbXY\nZb\nccc\ndddd";
+        index.update(newText, 3, 0, "XY\nZ");
+        assertMatches(newText, index);
+        
+        newText = "a\ndddd";
+        index.update(newText, 2, 11, "");
+        assertMatches(newText, index);
+    }
+    
+    @Test
+    void testEditBeyondScannedText() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+        String text = builder.toString();
+        LineIndex index = new LineIndex(text);
+        index.lineStart(5);
+        
+        // An edit at the end and one that crosses the scanned part
+        int end = text.length() - 3;
+        String newText = text.substring(0, end) + "\n\n" + text.substring(end);
+        index.update(newText, end, 0, "\n\n");
+        assertEquals((int) expectedStarts(newText).get(5), index.lineStart(5));
+        text = newText;
+        newText = text.substring(0, 20) + "x\ny" + text.substring(400000);
+        index.update(newText, 20, 400000 - 20, "x\ny");
+        assertMatches(newText, index);
+    }
+    
+    @Test
+    void testRandomEdits() {
+        Random random = new Random(13);
+        String text = "one\ntwo\r\nthree\n";
+        LineIndex index = new LineIndex(text);
+        String[] pieces = {"x", "\n", "ab\ncd", "\r\n", "\n\n", ""};
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextInt(10) == 0) {
+                // Ask for lines now and then so edits land in scanned and unscanned text
+                index.lineStart(random.nextInt(expectedStarts(text).size()));
+            }
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(Math.min(5, text.length() - offset) + 1);
+            String inserted = pieces[random.nextInt(pieces.length)];
+            text = text.substring(0, offset) + inserted + text.substring(offset + removed);
+            index.update(text, offset, removed, inserted);
+        }
+        assertMatches(text, index);
+        for (int offset = 0; offset <= text.length(); offset++) {
+            int line = index.lineOf(offset);
+            assertTrue(index.lineStart(line) <= offset);
+            assertTrue(line + 1 >= index.lineCount() || index.lineStart(line + 1) > offset);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for LintService functionality.
+ */
+public class LintServiceTest {
+    
+    private LintService service;
+    private BlockingQueue<Result> results;
+    
+    private static final class Result {
+        final Document document;
+        final long version;
+        final List<MarkdownLinter.Diagnostic> diagnostics;
+        
+        Result(Document document, long version, List<MarkdownLinter.Diagnostic> diagnostics) {
+            this.document = document;
+            this.version = version;
+            this.diagnostics = diagnostics;
+        }
+    }
+    
+    @BeforeEach
+    void setUp() {
+        results = new LinkedBlockingQueue<>();
+        // Run the UI hand-off directly on the lint thread
+        service = new LintService(Runnable::run, (document, version, diagnostics) -> {
+            results.add(new Result(document, version, diagnostics));
+        });
+    }
+    
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+    
+    /**
+     * Waits for the result of a version, skipping results of earlier versions.
+     */
+    private Result await(Document document, long version) throws InterruptedException {
+        while (true) {
+            Result result = results.poll(5, TimeUnit.SECONDS);
+            assertNotNull(result, "No result for version " + version);
+            if (result.document == document && result.version >= version) {
+                return result;
+            }
+        }
+    }
+    
+    @Test
+    void testEditsAreChecked() throws InterruptedException {
+        MarkdownDocument document = new MarkdownDocument("Untitled");
+        document.updateContent("# Title\n");
+        document.addListener(service::changed);
+        service.lint(document);
+        assertEquals(List.of(), await(document, document.getVersion()).diagnostics);
+        
+        // A burst of edits, the last version is always reported
+        for (int i = 0; i < 50; i++) {
+            document.insert(document.getBuffer().length(), i % 10 == 0 ? "### Deep \n" : "text\n");
+        }
+        Result result = await(document, document.getVersion());
+        assertEquals(document.getVersion(), result.version);
+        assertEquals(MarkdownLinter.Rule.SKIPPED_HEADING_LEVEL, result.diagnostics.get(0).getRule());
+        assertEquals(5, result.diagnostics.stream()
+                .filter(d -> d.getRule() == MarkdownLinter.Rule.TRAILING_WHITESPACE).count());
+    }
+    
+    @Test
+    void testOnlyTheCurrentDocumentIsChecked() throws InterruptedException {
+        MarkdownDocument first = new MarkdownDocument("First");
+        MarkdownDocument second = new MarkdownDocument("Second");
+        first.addListener(service::changed);
+        second.addListener(service::changed);
+        
+        service.lint(first);
+        service.lint(second);
+        first.insert(0, "text  ");
+        second.insert(0, "# Second");
+        
+        Result result = await(second, second.getVersion());
+        assertEquals(List.of(), result.diagnostics);
+        assertTrue(results.stream().noneMatch(r -> r.document == first && r.version == first.getVersion()));
+    }
+    
+    @Test
+    void testExecutor() throws Exception {
+        // Virtual threads from Java 21 on, a daemon thread before
+        java.util.concurrent.ExecutorService executor = LintService.newExecutor();
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+            assertTrue(thread.isDaemon());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
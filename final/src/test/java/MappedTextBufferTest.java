@@ -0,0 +1,199 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for MappedTextBuffer and the large file mode of Document.
+ */
+public class MappedTextBufferTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private String randomText(Random random, int length) {
+        String[] pieces = {"a", "text ", "\n", "# Header\n", "\u00e9", "\u20ac", "\ud83d\ude00", "\r\n"};
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length) {
+            builder.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return builder.toString();
+    }
+    
+    @Test
+    void testReadsLikeString() throws IOException {
+        Random random = new Random(5);
+        String text = randomText(random, 5 * MappedTextBuffer.CHUNK_BYTES);
+        Path file = tempDir.resolve("large.md");
+        Files.writeString(file, text);
+        
+        MappedTextBuffer buffer = MappedTextBuffer.open(file);
+        for (int i = 0; i < 10000; i++) {
+            int index = random.nextInt(text.length());
+            assertEquals(text.charAt(index), buffer.charAt(index));
+        }
+        assertEquals(text.length(), buffer.length());
+        assertEquals(text, buffer.toString());
+        assertTrue(buffer.isValid());
+        
+        StringWriter writer = new StringWriter();
+        buffer.writeTo(writer);
+        assertEquals(text, writer.toString());
+        
+        assertEquals(text.substring(1000, 200000), buffer.subSequence(1000, 200000).toString());
+        assertEquals("x" + text, buffer.insert(0, "x").toString());
+    }
+    
+    @Test
+    void testLines() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("line ").append(i).append(" \u20ac\n");
+        }
+        String text = builder.toString();
+        Path file = tempDir.resolve("lines.md");
+        Files.writeString(file, text);
+        
+        MappedTextBuffer buffer = MappedTextBuffer.open(file);
+        assertEquals(0, buffer.lineStart(0));
+        assertEquals(text.indexOf("line 1 "), buffer.lineStart(1));
+        assertEquals(text.indexOf("line 15000 "), buffer.lineStart(15000));
+        assertEquals(20001, buffer.lineCount());
+        assertTrue(buffer.isIndexed());
+        assertEquals(text.length(), buffer.lineStart(30000));
+        assertEquals(20001, buffer.estimatedLineCount());
+        assertEquals(100, buffer.lengthUpTo(100));
+        assertEquals(text.length(), buffer.lengthUpTo(Integer.MAX_VALUE));
+    }
+    
+    @Test
+    void testLineIndex() throws IOException {
+        Random random = new Random(11);
+        String text = randomText(random, 6 * MappedTextBuffer.CHUNK_BYTES);
+        Path file = tempDir.resolve("indexed.md");
+        Files.writeString(file, text);
+        
+        // The line index reads a mapped file the same way as a string
+        LineIndex expected = new LineIndex(text);
+        LineIndex index = new LineIndex(MappedTextBuffer.open(file));
+        assertTrue(index.estimatedLineCount() > 0);
+        int lines = expected.lineCount();
+        for (int i = 0; i < 500; i++) {
+            int line = random.nextInt(lines + 10);
+            assertEquals(expected.hasLine(line), index.hasLine(line));
+            assertEquals(expected.lineStart(line), index.lineStart(line));
+            if (line < lines) {
+                assertEquals(expected.lineEnd(line), index.lineEnd(line));
+            }
+            int offset = random.nextInt(text.length() + 1);
+            assertEquals(expected.lineOf(offset), index.lineOf(offset));
+        }
+        assertEquals(lines, index.lineCount());
+        assertTrue(index.isComplete());
+        assertEquals(lines, index.estimatedLineCount());
+    }
+    
+    @Test
+    void testMalformedBytes() throws IOException {
+        byte[] bytes = {'a', (byte) 0xE2, (byte) 0x82, 'b', (byte) 0xFF, 'c'};
+        Path file = tempDir.resolve("malformed.md");
+        Files.write(file, bytes);
+        
+        MappedTextBuffer buffer = MappedTextBuffer.open(file);
+        assertEquals("a\ufffd\ufffdb\ufffdc", buffer.toString());
+        assertEquals(6, buffer.length());
+        
+        // Writing would replace the invalid bytes, so it is refused
+        assertFalse(buffer.isValid());
+        assertThrows(IOException.class, () -> buffer.writeTo(new StringWriter()));
+        
+        // Overlong forms are not valid either
+        Path overlong = tempDir.resolve("overlong.md");
+        Files.write(overlong, new byte[] {'a', (byte) 0xE0, (byte) 0x80, (byte) 0xAF});
+        assertFalse(MappedTextBuffer.open(overlong).isValid());
+    }
+    
+    @Test
+    void testMalformedLargeFileIsNotSaved() throws IOException {
+        Path file = tempDir.resolve("latin1.md");
+        byte[] bytes = ("caf\u00e9\n" + "text\n".repeat(1000)).getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(file, bytes);
+        
+        long threshold = Document.largeFileBytes;
+        Document.largeFileBytes = 1024;
+        try {
+            MarkdownDocument document = new MarkdownDocument(file.toFile());
+            assertTrue(document.isLargeFile());
+            document.insert(0, "New ");
+            assertFalse(document.save());
+            assertArrayEquals(bytes, Files.readAllBytes(file));
+        } finally {
+            Document.largeFileBytes = threshold;
+        }
+    }
+    
+    @Test
+    void testLargeFileDocument() throws IOException {
+        Path file = tempDir.resolve("document.md");
+        String text = "Intro\n# Header\n" + "text\n".repeat(50000);
+        Files.writeString(file, text);
+        
+        long threshold = Document.largeFileBytes;
+        Document.largeFileBytes = 1024;
+        try {
+            MarkdownDocument document = new MarkdownDocument(file.toFile());
+            assertTrue(document.isLargeFile());
+            assertTrue(document.getBuffer() instanceof MappedTextBuffer);
+            assertFalse(document.isShowPreview());
+            assertTrue(document.validate());
+            
+            // Saving over the mapped file keeps the text intact
+            document.insert(0, "New ");
+            assertTrue(document.save());
+            assertEquals("New " + text, Files.readString(file, StandardCharsets.UTF_8));
+            
+            File small = tempDir.resolve("small.md").toFile();
+            Files.writeString(small.toPath(), "# Small");
+            assertFalse(new MarkdownDocument(small).isLargeFile());
+        } finally {
+            Document.largeFileBytes = threshold;
+        }
+    }
+    
+    @Test
+    void testLargeFileFirstHeader() throws IOException {
+        Path file = tempDir.resolve("log.md");
+        Files.writeString(file, "log line\n".repeat(5000));
+        
+        long threshold = Document.largeFileBytes;
+        Document.largeFileBytes = 1024;
+        try {
+            MarkdownDocument document = new MarkdownDocument(file.toFile());
+            assertTrue(document.isLargeFile());
+            assertFalse(document.validate());
+            
+            // Edits around, into and before the first header, checked against a full scan
+            String[] pieces = {"# ", "#", "\n", "x", "## H\n", " "};
+            Random random = new Random(3);
+            for (int i = 0; i < 500; i++) {
+                int length = document.getBuffer().length();
+                // Mostly near the start, where the first header is
+                int offset = random.nextInt(Math.min(length, 200) + 1);
+                int removed = random.nextInt(Math.min(3, length - offset) + 1);
+                document.replace(offset, removed, pieces[random.nextInt(pieces.length)]);
+                assertEquals(HeaderIndex.containsHeader(document.getBuffer()), document.validate(),
+                             "Edit " + i);
+            }
+        } finally {
+            Document.largeFileBytes = threshold;
+        }
+    }
+}
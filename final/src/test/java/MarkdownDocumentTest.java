@@ -4,8 +4,12 @@ import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -50,7 +54,7 @@ public class MarkdownDocumentTest {
         document.updateContent("###### Level 6 header");
         assertTrue(document.validate());
     }
-
+    
     @Test
     void testIsMarkdownFile() {
         // No file path set
@@ -110,4 +114,62 @@ public class MarkdownDocumentTest {
         assertEquals("test_document.md", newDocument.getTitle());
         assertTrue(newDocument.isMarkdownFile());
     }
-} 
\ No newline at end of file
+    
+    @Test
+    void testEditsUpdateValidation() {
+        document.insert(0, "Some text");
+        assertFalse(document.validate());
+        
+        document.insert(0, "# Title\n");
+        assertTrue(document.validate());
+        assertEquals("Title", document.getHeaderIndex().get(0).getText());
+        
+        document.delete(1, 1);
+        assertFalse(document.validate());
+    }
+    
+    @Test
+    void testSyntaxHighlighting() {
+        document.updateContent("# Code\n```json\n{\"a\": 1}\n```\n");
+        assertNull(document.getSyntaxHighlighter());
+        assertFalse(document.generatePreview().contains("tok-"));
+        
+        document.setSyntaxHighlighting(true);
+        assertTrue(document.generatePreview().contains("<span class=\"tok-property\">\"a\"</span>"));
+        assertTrue(document.takePreviewPatch().isFullReload());
+        
+        // The tokens follow the edits of the document
+        document.insert(document.getContent().indexOf('1'), "2");
+        List<String> numbers = new ArrayList<>();
+        document.getSyntaxHighlighter().spans(0, document.getBuffer().length(), (start, end, style) -> {
+            if (style == CodeLexer.Style.NUMBER) {
+                numbers.add(document.getContent().substring(start, end));
+            }
+        });
+        assertEquals(List.of("21"), numbers);
+    }
+    
+    @Test
+    void testStreamedPreview() throws IOException {
+        document.updateContent("# Title\n```\ncode\n```\n**bold**");
+        StringWriter out = new StringWriter();
+        document.generatePreview(out);
+        assertEquals(document.generatePreview(), out.toString());
+    }
+    
+    @Test
+    void testExportHtml() throws IOException {
+        document.updateContent("# Caf\u00e9\n```json\n{\"a\": 1}\n```");
+        document.setSyntaxHighlighting(true);
+        Path html = tempDir.resolve("export.html");
+        Files.writeString(html, "old export");
+        
+        MarkdownDocument.exportHtml(document.getBuffer(), true, html);
+        
+        assertEquals(document.generatePreview(), Files.readString(html, StandardCharsets.UTF_8));
+        try (var files = Files.list(tempDir)) {
+            // No temporary file is left next to the export
+            assertEquals(1, files.count());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for MarkdownLinter functionality.
+ */
+public class MarkdownLinterTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private MarkdownLinter linter;
+    private FileStatCache stats;
+    
+    @BeforeEach
+    void setUp() {
+        linter = new MarkdownLinter();
+        stats = new FileStatCache(60_000);
+    }
+    
+    private List<String> lint(String text) {
+        linter.reset(text);
+        return describe(linter.check(tempDir, stats));
+    }
+    
+    private static List<String> describe(List<MarkdownLinter.Diagnostic> diagnostics) {
+        List<String> described = new ArrayList<>();
+        for (MarkdownLinter.Diagnostic diagnostic : diagnostics) {
+            described.add(diagnostic.toString());
+        }
+        return described;
+    }
+    
+    @Test
+    void testCleanDocument() {
+        assertEquals(List.of(), lint(""));
+        assertEquals(List.of(), lint("# Title\n## Section\ntext [home](https://example.com) [top](#title)\n"));
+    }
+    
+    @Test
+    void testTrailingWhitespace() {
+        linter.reset("a  \nb\n\t\nc");
+        List<MarkdownLinter.Diagnostic> diagnostics = linter.check(tempDir, stats);
+        
+        assertEquals(2, diagnostics.size());
+        assertEquals(MarkdownLinter.Rule.TRAILING_WHITESPACE, diagnostics.get(0).getRule());
+        assertEquals(1, diagnostics.get(0).getOffset());
+        assertEquals(2, diagnostics.get(0).getLength());
+        assertEquals(6, diagnostics.get(1).getOffset());
+    }
+    
+    @Test
+    void testHeadingLevels() {
+        assertEquals(List.of("heading-level@9: Heading level 3 follows level 1"),
+                     lint("# Title\n\n### Too deep\n## Fine\n### Deeper"));
+        // Going back up any number of levels is fine
+        assertEquals(List.of(), lint("# A\n## B\n### C\n# D"));
+    }
+    
+    @Test
+    void testDuplicateAnchors() {
+        assertEquals(List.of("duplicate-anchor@9: Duplicate anchor #intro"), lint("# Intro\n\n# intro\n"));
+        // The second heading gets a numbered anchor, like on GitHub
+        assertEquals(List.of("duplicate-anchor@9: Duplicate anchor #intro"),
+                     lint("# Intro\n\n# Intro\n[second](#intro-1)"));
+        assertEquals("hello-world-2", MarkdownLinter.anchor("Hello, World 2!"));
+    }
+    
+    @Test
+    void testUnclosedFence() {
+        assertEquals(List.of(), lint("```\ncode\n```\n"));
+        assertEquals(List.of("unclosed-fence@18: Code fence is never closed"), lint("```\ncode\n```\ntext\n```java\n"));
+    }
+    
+    @Test
+    void testRelativeLinks() throws IOException {
+        Files.createDirectories(tempDir.resolve("docs"));
+        Files.writeString(tempDir.resolve("docs/guide.md"), "# Guide");
+        Files.writeString(tempDir.resolve("my file.md"), "");
+        
+        assertEquals(List.of(), lint("[a](docs/guide.md) ![b](<my file.md>) [c](my%20file.md#part) [d](./docs)"));
+        assertEquals(List.of("broken-link@4: Linked file not found: missing.md",
+                             "broken-link@20: No heading with anchor #nowhere"),
+                     lint("[a](missing.md) [b](#nowhere) [c](mailto:a@b.c) [d](/absolute.md)"));
+        
+        // Without a file, only links to headings are checked
+        linter.reset("[a](missing.md) [b](#nowhere)");
+        assertEquals(List.of("broken-link@20: No heading with anchor #nowhere"),
+                     describe(linter.check(null, stats)));
+    }
+    
+    @Test
+    void testCodeIsNotChecked() {
+        assertEquals(List.of(), lint("# A\n```\n### not a heading\n[x](missing.md)\n```\n## B"));
+    }
+    
+    @Test
+    void testIncrementalUpdate() {
+        linter.reset("# Title\ntext  \n[a](#title)");
+        assertEquals(List.of("trailing-whitespace@12: Trailing whitespace"), describe(linter.check(tempDir, stats)));
+        
+        // Removing the trailing spaces and breaking the link
+        linter.update("# Title\ntext\n[a](#title)", 12, 2, 0);
+        linter.update("# Title\ntext\n[a](#titles)", 23, 0, 1);
+        assertEquals(List.of("broken-link@17: No heading with anchor #titles"), describe(linter.check(tempDir, stats)));
+    }
+    
+    @Test
+    void testRandomEditsMatchReset() {
+        // Edits made of markdown syntax, checked against linting the whole text again
+        String[] pieces = {"#", "# ", "###", "```", "\n", "  ", "\t", "[a](#x)", "](", "x", ")", "# X\n", "\r\n"};
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder();
+        linter.reset("");
+        
+        for (int i = 0; i < 2000; i++) {
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(Math.min(4, text.length() - offset) + 1);
+            String inserted = random.nextInt(3) == 0 ? "" : pieces[random.nextInt(pieces.length)];
+            text.replace(offset, offset + removed, inserted);
+            linter.update(text.toString(), offset, removed, inserted.length());
+            
+            MarkdownLinter fresh = new MarkdownLinter();
+            fresh.reset(text.toString());
+            assertEquals(describe(fresh.check(null, stats)), describe(linter.check(null, stats)),
+                         "Text: " + text.toString().replace("\n", "\\n"));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for MarkdownRenderer, comparing it against the original
+ * replaceAll based preview conversion.
+ */
+public class MarkdownRendererTest {
+    
+    private MarkdownRenderer renderer;
+    
+    @BeforeEach
+    void setUp() {
+        renderer = new MarkdownRenderer();
+    }
+    
+    /**
+     * The preview conversion MarkdownDocument used before the single pass renderer.
+     */
+    private static String legacyPreview(String content) {
+        if (content == null || content.isEmpty()) {
+            return "<html><body></body></html>";
+        }
+        
+        String html = content;
+        html = html.replaceAll("(?s)```(.*?)```", "<pre><code>$1</code></pre>");
+        html = html.replaceAll("(?m)^# (.*)$", "<h1>$1</h1>");
+        html = html.replaceAll("(?m)^## (.*)$", "<h2>$1</h2>");
+        html = html.replaceAll("(?m)^### (.*)$", "<h3>$1</h3>");
+        html = html.replaceAll("(?m)^#### (.*)$", "<h4>$1</h4>");
+        html = html.replaceAll("(?m)^##### (.*)$", "<h5>$1</h5>");
+        html = html.replaceAll("(?m)^###### (.*)$", "<h6>$1</h6>");
+        html = html.replaceAll("\\*\\*(.*?)\\*\\*", "<strong>$1</strong>");
+        html = html.replaceAll("\\*(.*?)\\*", "<em>$1</em>");
+        html = html.replaceAll("\\n", "<br>");
+        return "<html><body>" + html + "</body></html>";
+    }
+    
+    private void assertSameAsLegacy(String content) {
+        assertEquals(legacyPreview(content), renderer.render(content), "Input: " + content);
+    }
+    
+    @Test
+    void testEmptyContent() {
+        assertEquals("<html><body></body></html>", renderer.render(""));
+        assertEquals("<html><body></body></html>", renderer.render(null));
+    }
+    
+    @Test
+    void testMarkdownDocumentCases() {
+        assertSameAsLegacy("This is just some text without headers");
+        assertSameAsLegacy("# This is a header\nWith some content");
+        assertSameAsLegacy("## Level 2 header");
+        assertSameAsLegacy("###### Level 6 header");
+        assertSameAsLegacy("# Test Header\nThis is markdown content");
+        assertSameAsLegacy("# Test");
+    }
+    
+    @Test
+    void testHeaders() {
+        assertEquals("<html><body><h1>Title</h1><br><h3>Sub</h3></body></html>", renderer.render("# Title\n### Sub"));
+        assertSameAsLegacy("####### Seven is not a header");
+        assertSameAsLegacy("#No space\n#\tTab\n # Indented");
+        assertSameAsLegacy("# Windows\r\n## Line endings\r\n");
+    }
+    
+    @Test
+    void testEmphasis() {
+        assertEquals("<html><body><strong>bold</strong> and <em>italic</em></body></html>",
+                     renderer.render("**bold** and *italic*"));
+        assertSameAsLegacy("**unclosed bold\n*unclosed italic");
+        assertSameAsLegacy("***both*** and ****");
+        assertSameAsLegacy("**a*b** c*");
+        assertSameAsLegacy("# Header with **bold** and *italic*");
+    }
+    
+    @Test
+    void testCodeFences() {
+        assertEquals("<html><body><pre><code><br>code<br></code></pre></body></html>",
+                     renderer.render("```\ncode\n```"));
+        assertSameAsLegacy("```java\n# not really a header\n**still bold**\n```\nafter");
+        assertSameAsLegacy("inline ```code``` and an ``` unclosed fence");
+        assertSameAsLegacy("````four backticks```` and `single`");
+        assertSameAsLegacy("# Header ```\nopens a fence\n```");
+    }
+    
+    @Test
+    void testSyntaxHighlighting() {
+        renderer.setSyntaxHighlighting(true);
+        StringBuilder out = new StringBuilder();
+        String text = "**a**\n```java\nif (a < b) **x**\n```done *b*";
+        renderer.renderBody(text, 0, text.length(), out);
+        
+        // Code is escaped and not parsed as markdown, the text after the fence is
+        assertEquals("<strong>a</strong><br><pre><code class=\"language-java\"><br>"
+                     + "<span class=\"tok-keyword\">if</span> (a &lt; b) **x**<br></code></pre>done <em>b</em>",
+                     out.toString());
+        assertTrue(renderer.render("```\nx\n```").contains(".tok-keyword"));
+        
+        renderer.setSyntaxHighlighting(false);
+        assertSameAsLegacy("```java\nif (a < b) **x**\n```");
+    }
+    
+    @Test
+    void testRendererIsReusable() {
+        String first = renderer.render("```\nopen");
+        String second = renderer.render("```\nclosed\n```");
+        
+        assertEquals(legacyPreview("```\nopen"), first);
+        assertEquals(legacyPreview("```\nclosed\n```"), second);
+    }
+    
+    @Test
+    void testRandomDocuments() {
+        // Generate documents made mostly of markdown syntax characters
+        char[] alphabet = {'#', '#', '*', '*', '`', '`', ' ', '\n', '\r', 'a', 'b', '\u2028'};
+        Random random = new Random(42);
+        
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder builder = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                builder.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            assertSameAsLegacy(builder.toString());
+        }
+    }
+    
+    private String stream(CharSequence text) throws IOException {
+        StringWriter out = new StringWriter();
+        renderer.render(text, out);
+        return out.toString();
+    }
+    
+    @Test
+    void testStreamingMatchesRender() throws IOException {
+        assertEquals(renderer.render(""), stream(""));
+        String small = "# Title\n**bold** ```\ncode\n``` *em*";
+        assertEquals(renderer.render(small), stream(small));
+        
+        // Large enough to be written in many parts, with fences paired across them
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append(i % 7 == 0 ? "```" : "").append("## Line **").append(i).append("** *text*\n");
+        }
+        text.append("```json\n{\"open\": true}");
+        assertEquals(renderer.render(text), stream(text));
+        
+        renderer.setSyntaxHighlighting(true);
+        StringBuilder code = new StringBuilder("# Code\n```java\n");
+        for (int i = 0; i < 20000; i++) {
+            code.append("int x").append(i).append(" = a < b ? 1 : 2; // note\n");
+        }
+        code.append("```after");
+        assertEquals(renderer.render(code), stream(code));
+    }
+    
+    @Test
+    void testStreamingWritesInParts() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            text.append("# Header ").append(i).append('\n');
+        }
+        
+        int[] largestWrite = new int[1];
+        StringBuilder written = new StringBuilder();
+        renderer.render(text, new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                largestWrite[0] = Math.max(largestWrite[0], length);
+                written.append(chars, offset, length);
+            }
+            
+            @Override
+            public void flush() {
+            }
+            
+            @Override
+            public void close() {
+            }
+        });
+        
+        assertEquals(renderer.render(text), written.toString());
+        assertTrue(largestWrite[0] <= MarkdownRenderer.STREAM_CHARS, "Largest write: " + largestWrite[0]);
+    }
+    
+    @Test
+    void testStreamingWriterFailure() {
+        Writer failing = new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) throws IOException {
+                throw new IOException("disk full");
+            }
+            
+            @Override
+            public void flush() {
+            }
+            
+            @Override
+            public void close() {
+            }
+        };
+        
+        IOException error = assertThrows(IOException.class, () -> renderer.render("# a\nb", failing));
+        assertEquals("disk full", error.getMessage());
+        // The renderer can be used again after a failed render
+        assertEquals(legacyPreview("# a"), renderer.render("# a"));
+    }
+}
@@ -0,0 +1,211 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for PreviewBlocks and the patches it produces.
+ */
+public class PreviewBlocksTest {
+    
+    private PreviewBlocks blocks;
+    private MarkdownRenderer renderer;
+    
+    // Simulated preview: block ids and their HTML in document order
+    private List<Integer> previewIds;
+    private List<String> previewHtml;
+    
+    @BeforeEach
+    void setUp() {
+        blocks = new PreviewBlocks();
+        renderer = new MarkdownRenderer();
+        previewIds = new ArrayList<>();
+        previewHtml = new ArrayList<>();
+    }
+    
+    private PreviewPatch applyPatch() {
+        PreviewPatch patch = blocks.takePatch();
+        patch.render(renderer);
+        
+        if (patch.isFullReload()) {
+            previewIds.clear();
+            previewHtml.clear();
+        }
+        for (int id : patch.getRemovedIds()) {
+            int index = previewIds.indexOf(id);
+            assertTrue(index >= 0, "Removed block " + id + " is not in the preview");
+            previewIds.remove(index);
+            previewHtml.remove(index);
+        }
+        for (PreviewPatch.Fragment fragment : patch.getFragments()) {
+            int index = fragment.getPreviousId() < 0 ? 0 : previewIds.indexOf(fragment.getPreviousId()) + 1;
+            assertTrue(fragment.getPreviousId() < 0 || index > 0, "Previous block is not in the preview");
+            previewIds.add(index, fragment.getId());
+            previewHtml.add(index, fragment.getHtml());
+        }
+        return patch;
+    }
+    
+    private void assertPreviewMatches(String text) {
+        StringBuilder expected = new StringBuilder();
+        renderer.renderBody(text, 0, text.length(), expected);
+        assertEquals(expected.toString(), String.join("", previewHtml), "Text: " + text);
+    }
+    
+    private String edit(String text, int offset, int removed, String inserted) {
+        String newText = text.substring(0, offset) + inserted + text.substring(offset + removed);
+        blocks.update(newText, offset, removed, inserted.length());
+        return newText;
+    }
+    
+    @Test
+    void testBlockKinds() {
+        blocks.reset("# Title\nfirst line\nsecond line\n\n```\ncode\n```\nafter");
+        
+        assertEquals(4, blocks.size());
+        assertEquals(PreviewBlocks.Kind.HEADER, blocks.kind(0));
+        assertEquals(PreviewBlocks.Kind.PARAGRAPH, blocks.kind(1));
+        assertEquals(PreviewBlocks.Kind.FENCE, blocks.kind(2));
+        assertEquals(PreviewBlocks.Kind.PARAGRAPH, blocks.kind(3));
+        assertEquals(8, blocks.offset(1));
+    }
+    
+    @Test
+    void testFirstPatchIsFullReload() {
+        String text = "# Title\nSome *text*";
+        blocks.reset(text);
+        
+        PreviewPatch patch = applyPatch();
+        assertTrue(patch.isFullReload());
+        assertPreviewMatches(text);
+        assertTrue(blocks.takePatch().isEmpty());
+    }
+    
+    @Test
+    void testEditOnlyTouchesNearbyBlocks() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("## Section ").append(i).append("\nSome text\n\n");
+        }
+        String text = builder.toString();
+        blocks.reset(text);
+        applyPatch();
+        
+        int offset = text.indexOf("Section 100") + 7;
+        text = edit(text, offset, 0, "s");
+        PreviewPatch patch = applyPatch();
+        
+        assertFalse(patch.isFullReload());
+        assertTrue(patch.getFragments().size() <= 3);
+        assertTrue(patch.getRemovedIds().size() <= 3);
+        assertPreviewMatches(text);
+    }
+    
+    @Test
+    void testOpeningFenceChangesFollowingBlocks() {
+        String text = "one\n\ntwo\n\n```\nthree\n";
+        blocks.reset(text);
+        applyPatch();
+        
+        text = edit(text, text.length(), 0, "```");
+        applyPatch();
+        assertPreviewMatches(text);
+        
+        text = edit(text, 0, 0, "```");
+        applyPatch();
+        assertPreviewMatches(text);
+    }
+    
+    @Test
+    void testPatchesCombineSeveralEdits() {
+        String text = "# A\n\nparagraph\n\n# B\n";
+        blocks.reset(text);
+        applyPatch();
+        
+        text = edit(text, 6, 0, "new ");
+        text = edit(text, 6, 4, "");
+        text = edit(text, text.length(), 0, "more **bold**");
+        applyPatch();
+        assertPreviewMatches(text);
+    }
+    
+    @Test
+    void testRandomEdits() {
+        String[] pieces = {"#", "# ", "*", "**", "`", "```", "\n", "\n\n", "\r\n", "a", "text ", "## h\n"};
+        Random random = new Random(7);
+        
+        for (int round = 0; round < 200; round++) {
+            String text = "";
+            blocks.reset(text);
+            applyPatch();
+            
+            for (int i = 0; i < 60; i++) {
+                int offset = random.nextInt(text.length() + 1);
+                int removed = random.nextInt(4) == 0 ? random.nextInt(text.length() - offset + 1) : 0;
+                String inserted = random.nextInt(5) == 0 ? "" : pieces[random.nextInt(pieces.length)];
+                text = edit(text, offset, removed, inserted);
+                
+                if (random.nextInt(3) == 0) {
+                    applyPatch();
+                    assertPreviewMatches(text);
+                }
+            }
+            applyPatch();
+            assertPreviewMatches(text);
+        }
+    }
+    
+    @Test
+    void testMarkdownDocumentTracksEdits() {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.updateContent("# Header\ntext");
+        PreviewPatch patch = document.takePreviewPatch();
+        patch.render(renderer);
+        assertTrue(patch.isFullReload());
+        assertEquals("<div id=\"b0\"><h1>Header</h1><br></div><div id=\"b1\">text</div>", patch.toBodyHtml());
+        
+        document.updateContent("# Header\nmore text");
+        patch = document.takePreviewPatch();
+        patch.render(renderer);
+        assertEquals(List.of(1), patch.getRemovedIds());
+        assertEquals(1, patch.getFragments().size());
+        assertEquals("more text", patch.getFragments().get(0).getHtml());
+        assertEquals(0, patch.getFragments().get(0).getPreviousId());
+    }
+    
+    @Test
+    void testPatchScript() {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.updateContent("# Header\nit's");
+        PreviewPatch patch = document.takePreviewPatch();
+        assertFalse(patch.isRendered());
+        patch.render(renderer);
+        assertTrue(patch.isRendered());
+        assertEquals("replaceBody('<div id=\"b0\"><h1>Header</h1><br></div><div id=\"b1\">it\\'s</div>');",
+                     patch.toScript());
+        
+        document.updateContent("# Header\nline\u2028two");
+        patch = document.takePreviewPatch();
+        patch.render(renderer);
+        assertEquals("removeBlocks([1]);insertBlock(2,0,'line\\u2028two');", patch.toScript());
+    }
+    
+    @Test
+    void testReloadPreview() {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.updateContent("# Header\ntext");
+        document.takePreviewPatch();
+        
+        document.updateContent("# Header\nmore text");
+        document.reloadPreview();
+        PreviewPatch patch = document.takePreviewPatch();
+        patch.render(renderer);
+        assertTrue(patch.isFullReload());
+        assertEquals(2, patch.getFragments().size());
+        assertTrue(document.takePreviewPatch().isEmpty());
+    }
+}
@@ -0,0 +1,128 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for PreviewCache functionality.
+ */
+public class PreviewCacheTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private static String longDocument(String word) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("## Section ").append(i).append("\n\nSome **").append(word).append("** text.\n\n");
+        }
+        return builder.toString();
+    }
+    
+    private static PreviewPatch patchOf(String content, boolean highlighting) {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.setSyntaxHighlighting(highlighting);
+        document.updateContent(content);
+        return document.takePreviewPatch();
+    }
+    
+    private static List<String> htmlOf(PreviewPatch patch) {
+        List<String> html = new ArrayList<>();
+        for (PreviewPatch.Fragment fragment : patch.getFragments()) {
+            html.add(fragment.getHtml());
+        }
+        return html;
+    }
+    
+    @Test
+    void testMemoryTier() {
+        PreviewCache cache = new PreviewCache(null, 10, 0);
+        cache.put("a", List.of("12345"));
+        cache.put("b", List.of("123", "45"));
+        assertEquals(List.of("12345"), cache.get("a"));
+        assertEquals(10, cache.getMemoryUsed());
+        
+        // "b" was used least recently
+        cache.put("c", List.of("1"));
+        assertNull(cache.get("b"));
+        assertEquals(List.of("12345"), cache.get("a"));
+        assertEquals(List.of("1"), cache.get("c"));
+        assertEquals(6, cache.getMemoryUsed());
+    }
+    
+    @Test
+    void testDiskTierSurvivesRestart() {
+        Path directory = tempDir.resolve("cache");
+        PreviewCache cache = new PreviewCache(directory, 1, 1024 * 1024);
+        cache.put("a", List.of("<h1>A \u00e9</h1>", ""));
+        cache.put("b", List.of("<p>B</p>"));
+        
+        // Only the latest entry fits in memory, the other one is read from disk
+        assertEquals(List.of("<h1>A \u00e9</h1>", ""), cache.get("a"));
+        
+        PreviewCache restarted = new PreviewCache(directory, 1024, 1024 * 1024);
+        assertEquals(List.of("<p>B</p>"), restarted.get("b"));
+        assertNull(restarted.get("missing"));
+    }
+    
+    @Test
+    void testDiskTierDropsLeastRecentlyUsed() throws IOException {
+        Path directory = tempDir.resolve("cache");
+        String html = "x".repeat(1000);
+        PreviewCache cache = new PreviewCache(directory, 0, 2500);
+        cache.put("old", List.of(html));
+        Files.setLastModifiedTime(directory.resolve("old.preview"), FileTime.fromMillis(1000));
+        cache.put("used", List.of(html));
+        Files.setLastModifiedTime(directory.resolve("used.preview"), FileTime.fromMillis(2000));
+        cache.get("old");
+        cache.put("new", List.of(html));
+        
+        assertTrue(Files.exists(directory.resolve("old.preview")));
+        assertFalse(Files.exists(directory.resolve("used.preview")));
+        assertTrue(Files.exists(directory.resolve("new.preview")));
+    }
+    
+    @Test
+    void testDamagedFileIsIgnored() throws IOException {
+        Path directory = tempDir.resolve("cache");
+        Files.createDirectories(directory);
+        Files.write(directory.resolve("bad.preview"), new byte[] {0x43, 0x4D, 0x50, 0x31, 0, 0, 0, 1, 0x7f, 0, 0, 0});
+        
+        assertNull(new PreviewCache(directory, 1024, 1024).get("bad"));
+    }
+    
+    @Test
+    void testFullPreviewIsTakenFromCache() {
+        PreviewCache cache = new PreviewCache(tempDir.resolve("cache"), 1024 * 1024, 1024 * 1024);
+        PreviewPatch first = patchOf(longDocument("bold"), false);
+        first.render(new MarkdownRenderer(), cache);
+        
+        // A cached preview is not rendered, so no renderer is needed
+        PreviewPatch reopened = patchOf(longDocument("bold"), false);
+        reopened.render(null, cache);
+        assertTrue(reopened.isRendered());
+        assertEquals(htmlOf(first), htmlOf(reopened));
+        assertEquals(first.toBodyHtml(), reopened.toBodyHtml());
+        
+        // Other text or another highlighting setting is rendered again
+        PreviewPatch changed = patchOf(longDocument("other"), false);
+        assertThrows(NullPointerException.class, () -> changed.render(null, cache));
+        PreviewPatch highlighted = patchOf(longDocument("bold"), true);
+        assertThrows(NullPointerException.class, () -> highlighted.render(null, cache));
+    }
+    
+    @Test
+    void testShortPreviewsAreNotCached() {
+        PreviewCache cache = new PreviewCache(null, 1024 * 1024, 0);
+        patchOf("# Short", false).render(new MarkdownRenderer(), cache);
+        
+        assertEquals(0, cache.getMemoryUsed());
+    }
+}
@@ -0,0 +1,117 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for PreviewScheduler functionality.
+ */
+public class PreviewSchedulerTest {
+    
+    private PreviewScheduler scheduler;
+    private List<String> delivered;
+    private AtomicInteger renders;
+    
+    @BeforeEach
+    void setUp() {
+        // Run the UI hand-off directly on the render thread
+        scheduler = new PreviewScheduler(50, Runnable::run);
+        delivered = new CopyOnWriteArrayList<>();
+        renders = new AtomicInteger();
+    }
+    
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+    
+    @Test
+    void testBurstIsCoalesced() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 10; i++) {
+            String text = "edit " + i;
+            scheduler.schedule(() -> {
+                renders.incrementAndGet();
+                return text;
+            }, result -> {
+                delivered.add(result);
+                done.countDown();
+            });
+        }
+        
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        Thread.sleep(150);
+        assertEquals(1, renders.get());
+        assertEquals(List.of("edit 9"), delivered);
+    }
+    
+    @Test
+    void testStaleRenderIsDropped() throws InterruptedException {
+        CountDownLatch renderStarted = new CountDownLatch(1);
+        CountDownLatch releaseRender = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        
+        scheduler.schedule(() -> {
+            renderStarted.countDown();
+            try {
+                releaseRender.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "old";
+        }, delivered::add);
+        
+        assertTrue(renderStarted.await(2, TimeUnit.SECONDS));
+        scheduler.schedule(() -> "new", result -> {
+            delivered.add(result);
+            done.countDown();
+        });
+        releaseRender.countDown();
+        
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of("new"), delivered);
+    }
+    
+    @Test
+    void testContinuousEditsStillRender() throws InterruptedException {
+        // Edits keep arriving faster than the delay window for longer than the maximum wait
+        long end = System.currentTimeMillis() + 500;
+        while (System.currentTimeMillis() < end) {
+            scheduler.schedule(() -> "text", delivered::add);
+            Thread.sleep(10);
+        }
+        assertFalse(delivered.isEmpty());
+    }
+    
+    @Test
+    void testFailedRenderKeepsPreview() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.<String>schedule(() -> {
+            throw new IllegalStateException("render failed");
+        }, delivered::add);
+        Thread.sleep(150);
+        
+        scheduler.schedule(() -> "ok", result -> {
+            delivered.add(result);
+            done.countDown();
+        });
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of("ok"), delivered);
+    }
+    
+    @Test
+    void testDelay() {
+        assertEquals(50, scheduler.getDelay());
+        scheduler.setDelay(200);
+        assertEquals(200, scheduler.getDelay());
+        scheduler.setDelay(-1);
+        assertEquals(200, scheduler.getDelay());
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for Rope functionality.
+ */
+public class RopeTest {
+    
+    @Test
+    void testInsertAndDelete() {
+        Rope rope = Rope.of("Hello world");
+        Rope inserted = rope.insert(5, ",");
+        assertEquals("Hello, world", inserted.toString());
+        assertEquals("Hello world", rope.toString()); // Unchanged
+        
+        Rope deleted = inserted.delete(5, 12);
+        assertEquals("Hello", deleted.toString());
+        assertEquals(5, deleted.length());
+        assertEquals('o', deleted.charAt(4));
+        
+        assertEquals("Hi, world", inserted.replace(1, 5, "i").toString());
+    }
+    
+    @Test
+    void testStringIsNotCopied() {
+        String text = "Some text";
+        assertSame(text, Rope.of(text).toString());
+        assertSame(Rope.EMPTY, Rope.of(""));
+    }
+    
+    @Test
+    void testSubSequenceAndWriteTo() throws IOException {
+        Rope rope = Rope.EMPTY;
+        for (int i = 0; i < 100; i++) {
+            rope = rope.insert(rope.length(), "line " + i + "\n");
+        }
+        String text = rope.toString();
+        
+        TextBuffer view = rope.subSequence(10, 500);
+        assertEquals(text.substring(10, 500), view.toString());
+        assertEquals(text.charAt(200), view.charAt(190));
+        
+        StringWriter writer = new StringWriter();
+        rope.writeTo(writer);
+        assertEquals(text, writer.toString());
+    }
+    
+    @Test
+    void testOutOfBounds() {
+        Rope rope = Rope.of("abc");
+        assertThrows(IndexOutOfBoundsException.class, () -> rope.charAt(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> rope.insert(4, "x"));
+        assertThrows(IndexOutOfBoundsException.class, () -> rope.delete(2, 1));
+    }
+    
+    @Test
+    void testStaysBalanced() {
+        // Many small pieces that cannot be merged
+        Rope rope = Rope.EMPTY;
+        String piece = "x".repeat(Rope.MERGE_LENGTH);
+        for (int i = 0; i < 4096; i++) {
+            rope = rope.insert(rope.length(), piece);
+        }
+        assertTrue(rope.height() <= 18, "Height " + rope.height());
+        
+        // Typing in one place keeps merging into the same piece
+        Rope typed = Rope.of("x".repeat(10000));
+        for (int i = 0; i < 1000; i++) {
+            typed = typed.insert(5000 + i, "y");
+        }
+        assertTrue(typed.height() <= 6, "Height " + typed.height());
+    }
+    
+    @Test
+    void testRandomEdits() {
+        Random random = new Random(3);
+        for (int round = 0; round < 50; round++) {
+            Rope rope = Rope.EMPTY;
+            StringBuilder expected = new StringBuilder();
+            
+            for (int i = 0; i < 300; i++) {
+                int offset = random.nextInt(expected.length() + 1);
+                if (random.nextInt(3) == 0) {
+                    int end = offset + random.nextInt(expected.length() - offset + 1);
+                    rope = rope.delete(offset, end);
+                    expected.delete(offset, end);
+                } else {
+                    String text = "abcdefghij".repeat(1 + random.nextInt(80)).substring(random.nextInt(10));
+                    rope = rope.insert(offset, text);
+                    expected.insert(offset, text);
+                }
+                
+                assertEquals(expected.length(), rope.length());
+                if (expected.length() > 0) {
+                    int index = random.nextInt(expected.length());
+                    assertEquals(expected.charAt(index), rope.charAt(index));
+                }
+            }
+            assertEquals(expected.toString(), rope.toString());
+            for (int i = 0; i < expected.length(); i++) {
+                assertEquals(expected.charAt(i), rope.charAt(i));
+            }
+        }
+    }
+    
+    @Test
+    void testDocumentUsesBuffer() {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.updateContent("# Header\ntext");
+        
+        TextBuffer buffer = document.getBuffer();
+        assertEquals("# Header\ntext", buffer.toString());
+        assertSame(document.getContent(), document.getContent());
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for SaveService functionality.
+ */
+public class SaveServiceTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private ExecutorService executor;
+    private SaveService service;
+    
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        service = new SaveService(false, executor);
+    }
+    
+    @AfterEach
+    void tearDown() {
+        service.shutdown(2000);
+    }
+    
+    @Test
+    void testSaveWritesFile() throws Exception {
+        Path file = tempDir.resolve("save.md");
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.setFilePath(file.toString());
+        document.updateContent("# Saved\nText");
+        
+        long version = service.save(document).get(2, TimeUnit.SECONDS);
+        assertEquals(document.getVersion(), version);
+        assertEquals("# Saved\nText", Files.readString(file, StandardCharsets.UTF_8));
+        assertNoTempFiles();
+    }
+    
+    @Test
+    void testQueuedSavesAreCoalesced() throws Exception {
+        Path file = tempDir.resolve("coalesce.md");
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.setFilePath(file.toString());
+        
+        // Keep the save thread busy so the saves wait in the queue
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        
+        document.updateContent("one");
+        CompletableFuture<Long> first = service.save(document);
+        document.updateContent("one two");
+        CompletableFuture<Long> second = service.save(document);
+        document.updateContent("one two three");
+        CompletableFuture<Long> third = service.save(document);
+        
+        assertSame(first, second);
+        assertSame(first, third);
+        release.countDown();
+        
+        assertEquals((Long) document.getVersion(), first.get(2, TimeUnit.SECONDS));
+        assertEquals("one two three", Files.readString(file, StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    void testReplaceExistingFile() throws Exception {
+        Path file = tempDir.resolve("existing.md");
+        Files.writeString(file, "old text that is longer than the new text");
+        MarkdownDocument document = new MarkdownDocument("Test");
+        assertTrue(document.open(file.toString()));
+        document.updateContent("new");
+        
+        service.save(document).get(2, TimeUnit.SECONDS);
+        assertEquals("new", Files.readString(file, StandardCharsets.UTF_8));
+        assertNoTempFiles();
+    }
+    
+    @Test
+    void testSaveWithoutPathFails() {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.updateContent("text");
+        
+        CompletableFuture<Long> future = service.save(document);
+        assertTrue(future.isCompletedExceptionally());
+    }
+    
+    @Test
+    void testSaveToMissingDirectoryFails() {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.setFilePath(tempDir.resolve("missing").resolve("file.md").toString());
+        document.updateContent("text");
+        
+        CompletableFuture<Long> future = service.save(document);
+        assertThrows(ExecutionException.class, () -> future.get(2, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    void testMarkSaved() {
+        MarkdownDocument document = new MarkdownDocument("Test");
+        document.updateContent("first");
+        long saved = document.getVersion();
+        document.updateContent("second");
+        
+        // An older version was saved, the document still has unsaved changes
+        document.markSaved(saved);
+        assertTrue(document.isModified());
+        assertNotNull(document.getLastSaved());
+        
+        document.markSaved(document.getVersion());
+        assertFalse(document.isModified());
+    }
+    
+    private void assertNoTempFiles() throws Exception {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.filter(path -> path.getFileName().toString().endsWith(".tmp")).count());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for StartupTimer functionality.
+ */
+public class StartupTimerTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void testStepsAreKeptInOrder() {
+        StartupTimer timer = new StartupTimer(1000);
+        timer.mark("start", 1310);
+        timer.mark("shown", 1520);
+        // Only the first time of a step counts
+        timer.mark("start", 1900);
+        
+        assertEquals(310, timer.get("start"));
+        assertEquals(520, timer.get("shown"));
+        assertEquals(-1, timer.get("first-keystroke"));
+        assertEquals("start=310ms shown=520ms", timer.report());
+    }
+    
+    @Test
+    void testReportIsAppendedOnce() throws IOException {
+        Path file = tempDir.resolve("logs/startup.log");
+        StartupTimer first = new StartupTimer(0);
+        first.mark("shown", 400);
+        assertTrue(first.appendTo(file));
+        assertFalse(first.appendTo(file));
+        
+        StartupTimer second = new StartupTimer(0);
+        second.mark("shown", 350);
+        second.mark("first-keystroke", 900);
+        assertTrue(second.appendTo(file));
+        
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(2, lines.size());
+        assertEquals("1970-01-01T00:00:00Z shown=400ms", lines.get(0));
+        assertEquals("1970-01-01T00:00:00Z shown=350ms first-keystroke=900ms", lines.get(1));
+    }
+    
+    @Test
+    void testProcessStartIsInThePast() {
+        StartupTimer timer = StartupTimer.sinceProcessStart();
+        timer.mark("now");
+        
+        assertTrue(timer.get("now") >= 0);
+    }
+}
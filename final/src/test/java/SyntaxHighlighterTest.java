@@ -0,0 +1,151 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for SyntaxHighlighter and CodeLexer functionality.
+ */
+public class SyntaxHighlighterTest {
+    
+    private SyntaxHighlighter highlighter;
+    
+    @BeforeEach
+    void setUp() {
+        highlighter = new SyntaxHighlighter();
+    }
+    
+    /**
+     * Lists the tokens as "style:text" strings.
+     */
+    private static List<String> tokens(SyntaxHighlighter highlighter, String text) {
+        List<String> tokens = new ArrayList<>();
+        highlighter.spans(0, text.length(), (start, end, style) ->
+            tokens.add(style.name().toLowerCase() + ":" + text.substring(start, end)));
+        return tokens;
+    }
+    
+    private static List<String> lex(CodeLexer lexer, String line) {
+        List<String> tokens = new ArrayList<>();
+        lexer.lex(line, 0, line.length(), CodeLexer.PLAIN, (start, end, style) ->
+            tokens.add(style.name().toLowerCase() + ":" + line.substring(start, end)));
+        return tokens;
+    }
+    
+    private String edit(String text, int offset, int removed, String inserted) {
+        String newText = text.substring(0, offset) + inserted + text.substring(offset + removed);
+        highlighter.update(newText, offset, removed, inserted.length());
+        return newText;
+    }
+    
+    @Test
+    void testJavaTokens() {
+        assertEquals(List.of("annotation:@Override", "keyword:public", "keyword:int", "number:42",
+                             "string:\"a\\\"b\"", "comment:// done"),
+                     lex(CodeLexer.JAVA, "@Override public int x = 42 + \"a\\\"b\"; // done"));
+        assertEquals(List.of("keyword:return", "literal:null", "string:'c'"),
+                     lex(CodeLexer.JAVA, "return null == 'c';"));
+    }
+    
+    @Test
+    void testShellTokens() {
+        assertEquals(List.of("keyword:if", "variable:$HOME", "keyword:then", "string:'x y'", "comment:# note"),
+                     lex(CodeLexer.SHELL, "if [ -d $HOME ]; then echo 'x y'; fi2 # note"));
+        assertEquals(List.of("variable:${name}", "number:10"), lex(CodeLexer.SHELL, "a=${name} b 10"));
+    }
+    
+    @Test
+    void testJsonTokens() {
+        assertEquals(List.of("property:\"name\"", "string:\"value\"", "property:\"n\"", "number:-1.5e+3",
+                             "property:\"ok\"", "literal:true"),
+                     lex(CodeLexer.JSON, "{\"name\": \"value\", \"n\": -1.5e+3, \"ok\": true}"));
+    }
+    
+    @Test
+    void testFencedBlocks() {
+        String text = "# Title\nint x;\n```java\n/* comment\nstill */ int x;\n```\n```sh\necho \"a\nb\"\n```\nend";
+        highlighter.reset(text);
+        
+        // Only the code between the fences is highlighted
+        assertEquals(List.of("comment:/* comment", "comment:still */", "keyword:int", "string:\"a", "string:b\""),
+                     tokens(highlighter, text));
+        assertEquals(11, highlighter.lineCount());
+    }
+    
+    @Test
+    void testUnknownLanguageIsNotHighlighted() {
+        String text = "```text\nint x = 1;\n```\n";
+        highlighter.reset(text);
+        assertTrue(tokens(highlighter, text).isEmpty());
+    }
+    
+    @Test
+    void testEditRelexesUntilStatesConverge() {
+        StringBuilder builder = new StringBuilder("```java\n");
+        for (int i = 0; i < 200; i++) {
+            builder.append("int value").append(i).append(" = ").append(i).append(";\n");
+        }
+        builder.append("```\n");
+        String text = builder.toString();
+        highlighter.reset(text);
+        assertEquals(203, highlighter.lastLexed());
+        
+        // Typing inside a line only lexes that line
+        text = edit(text, text.indexOf("value100") + 5, 0, "X");
+        assertEquals(1, highlighter.lastLexed());
+        
+        // Opening a block comment changes the state of every following line
+        int comment = text.indexOf("int value50");
+        text = edit(text, comment, 0, "/*");
+        assertTrue(highlighter.lastLexed() > 150);
+        assertEquals(tokens(fresh(text), text), tokens(highlighter, text));
+        
+        // Closing it gives the lines after it their old states back
+        int close = text.indexOf("int value60");
+        text = edit(text, close, 0, "*/");
+        assertTrue(highlighter.lastLexed() > 100);
+        assertEquals(tokens(fresh(text), text), tokens(highlighter, text));
+        
+        // Typing inside the comment keeps the state of the next line
+        text = edit(text, text.indexOf("value55"), 0, "X");
+        assertEquals(1, highlighter.lastLexed());
+        assertEquals(tokens(fresh(text), text), tokens(highlighter, text));
+    }
+    
+    @Test
+    void testRandomEditsMatchFullLex() {
+        Random random = new Random(12);
+        String[] pieces = {"```java\n", "```json\n", "```sh\n", "```", "\n", "\r\n", "/*", "*/", "\"", "'",
+                           "\"\"\"", "int ", "x", " // c", "# h", "{\"a\": 1}", "$v ", "true", "\u2028"};
+        String text = "";
+        highlighter.reset(text);
+        for (int i = 0; i < 2000; i++) {
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(4) == 0 ? random.nextInt(Math.min(12, text.length() - offset) + 1) : 0;
+            String inserted = random.nextInt(5) == 0 ? "" : pieces[random.nextInt(pieces.length)];
+            text = edit(text, offset, removed, inserted);
+            
+            assertEquals(tokens(fresh(text), text), tokens(highlighter, text), "after edit " + i);
+            assertEquals(fresh(text).lineCount(), highlighter.lineCount(), "after edit " + i);
+        }
+    }
+    
+    @Test
+    void testSpansAreClippedToRange() {
+        String text = "```java\nint value = 1;\n```";
+        highlighter.reset(text);
+        List<String> tokens = new ArrayList<>();
+        highlighter.spans(9, 14, (start, end, style) -> tokens.add(text.substring(start, end)));
+        assertEquals(List.of("nt"), tokens);
+    }
+    
+    private static SyntaxHighlighter fresh(String text) {
+        SyntaxHighlighter full = new SyntaxHighlighter();
+        full.reset(text);
+        return full;
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for UndoManager functionality.
+ */
+public class UndoManagerTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private final StringBuilder text = new StringBuilder();
+    private final UndoManager history = new UndoManager(UndoManager.DEFAULT_MEMORY_LIMIT);
+    
+    /**
+     * Records an edit and makes it, like the editor does.
+     */
+    private void edit(int offset, int length, String inserted, boolean typing) {
+        history.record(offset, Rope.of(text).subSequence(offset, offset + length), inserted, typing);
+        text.replace(offset, offset + length, inserted);
+    }
+    
+    private boolean apply(UndoManager.Change change) {
+        if (change == null) {
+            return false;
+        }
+        text.replace(change.getOffset(), change.getOffset() + change.getLength(), change.getText());
+        return true;
+    }
+    
+    @Test
+    void testUndoAndRedo() {
+        edit(0, 0, "Hello world", false);
+        edit(6, 5, "there", false);
+        assertEquals("Hello there", text.toString());
+        
+        assertTrue(apply(history.undo()));
+        assertEquals("Hello world", text.toString());
+        assertTrue(apply(history.undo()));
+        assertEquals("", text.toString());
+        assertFalse(history.canUndo());
+        assertNull(history.undo());
+        
+        assertTrue(apply(history.redo()));
+        assertTrue(apply(history.redo()));
+        assertEquals("Hello there", text.toString());
+        assertFalse(history.canRedo());
+        
+        // A new edit after an undo cannot be followed by the undone one
+        apply(history.undo());
+        edit(0, 5, "Hi", false);
+        assertFalse(history.canRedo());
+        apply(history.undo());
+        assertEquals("Hello world", text.toString());
+    }
+    
+    @Test
+    void testTypingIsMerged() {
+        for (char c : "word next".toCharArray()) {
+            edit(text.length(), 0, String.valueOf(c), true);
+        }
+        // Not typing, so not merged
+        edit(text.length(), 0, "!", false);
+        
+        apply(history.undo());
+        assertEquals("word next", text.toString());
+        apply(history.undo());
+        assertEquals("word", text.toString());
+        apply(history.undo());
+        assertEquals("", text.toString());
+        assertFalse(history.canUndo());
+    }
+    
+    @Test
+    void testLargeTextsAreDeflated() {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; large.length() < 50 * UndoManager.DEFLATE_CHARS; i++) {
+            large.append("Line ").append(i).append(" of pasted text \u00e9\n");
+        }
+        // A lone surrogate comes back as it was
+        large.append('\ud800');
+        
+        edit(0, 0, "start ", false);
+        edit(6, 0, large.toString(), false);
+        assertTrue(history.getMemoryUsed() < large.length() / 4);
+        
+        apply(history.undo());
+        assertEquals("start ", text.toString());
+        apply(history.redo());
+        assertEquals("start " + large, text.toString());
+        
+        // The removed text of a large delete is deflated too
+        edit(0, text.length(), "", false);
+        apply(history.undo());
+        assertEquals("start " + large, text.toString());
+    }
+    
+    @Test
+    void testMemoryLimitDropsOldestEdits() {
+        UndoManager small = new UndoManager(1000);
+        String chunk = "x".repeat(100);
+        for (int i = 0; i < 10; i++) {
+            small.record(i * 100, "", chunk, false);
+        }
+        assertTrue(small.getMemoryUsed() <= 1000);
+        int undone = 0;
+        while (small.undo() != null) {
+            undone++;
+        }
+        assertTrue(undone > 0 && undone < 10);
+        
+        // The newest edit is kept even if it is over the limit
+        small.record(0, "", "y".repeat(2000), false);
+        assertTrue(small.canUndo());
+        assertFalse(small.canRedo());
+        small.setMemoryLimit(10);
+        assertEquals("y".repeat(2000).length(), small.undo().getLength());
+    }
+    
+    @Test
+    void testRingKeepsLastEdits() {
+        for (int i = 0; i < UndoManager.MAX_EDITS + 10; i++) {
+            edit(text.length(), 0, " " + i, false);
+        }
+        int undone = 0;
+        while (apply(history.undo())) {
+            undone++;
+        }
+        assertEquals(UndoManager.MAX_EDITS, undone);
+        assertTrue(text.toString().endsWith(" 9"));
+    }
+    
+    @Test
+    void testHistoryStaysWithDocument() throws IOException {
+        Path file = tempDir.resolve("a.md");
+        Files.writeString(file, "# Title\n");
+        MarkdownDocument document = new MarkdownDocument(file.toFile());
+        document.getUndoManager().record(0, "", "x", false);
+        assertTrue(document.getUndoManager().canUndo());
+        
+        // Reading the file again makes the edits meaningless
+        assertTrue(document.open(file.toString()));
+        assertFalse(document.getUndoManager().canUndo());
+        assertEquals(0, document.getUndoManager().getMemoryUsed());
+    }
+}
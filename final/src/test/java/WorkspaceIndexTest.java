@@ -0,0 +1,195 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for WorkspaceIndex functionality.
+ */
+public class WorkspaceIndexTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private Path write(String name, String content) throws IOException {
+        Path file = tempDir.resolve("notes").resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content, StandardCharsets.UTF_8);
+        return file;
+    }
+    
+    private WorkspaceIndex open() {
+        return new WorkspaceIndex(tempDir.resolve("notes"), tempDir.resolve("index.bin"));
+    }
+    
+    @Test
+    void testTokenize() {
+        List<String> terms = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        WorkspaceIndex.tokenize("# Hello, **World** 42x", (term, offset) -> {
+            terms.add(term);
+            offsets.add(offset);
+        });
+        
+        assertEquals(List.of("hello", "world", "42x"), terms);
+        assertEquals(List.of(2, 11, 19), offsets);
+    }
+    
+    @Test
+    void testSearchRanksFilesWithAllTerms() throws IOException {
+        write("a.md", "# Rope\n\nA rope stores text in a tree.\nRope rope rope.\n");
+        write("b.md", "# Tree\n\nA tree of nodes, and a rope once.\n");
+        write("c.md", "Nothing to see here.\n");
+        write("sub/d.markdown", "Rope and tree again\n");
+        write("e.txt", "rope tree but not markdown\n");
+        
+        WorkspaceIndex index = open();
+        assertTrue(index.update());
+        assertEquals(4, index.getFileCount());
+        assertEquals(4, index.lastIndexed());
+        
+        List<WorkspaceIndex.Hit> hits = index.search("rope", 10);
+        assertEquals(3, hits.size());
+        assertEquals("a.md", hits.get(0).getPath().getFileName().toString());
+        
+        // All terms have to occur in a file
+        hits = index.search("Rope TREE", 10);
+        assertEquals(3, hits.size());
+        assertEquals(1, index.search("rope tree", 1).size());
+        assertTrue(index.search("rope nothing", 10).isEmpty());
+        assertTrue(index.search("missing", 10).isEmpty());
+        assertTrue(index.search("  ", 10).isEmpty());
+    }
+    
+    @Test
+    void testHitPreview() throws IOException {
+        write("a.md", "# Title\n\nFirst line\r\n  The needle is here.  \nLast line\n");
+        
+        WorkspaceIndex index = open();
+        index.update();
+        List<WorkspaceIndex.Hit> hits = index.search("needle", 10);
+        
+        assertEquals(1, hits.size());
+        assertEquals(4, hits.get(0).getLine());
+        assertEquals("The needle is here.", hits.get(0).getPreview());
+        assertEquals(27, hits.get(0).getOffset());
+    }
+    
+    @Test
+    void testPreviewFromCheckpoint() throws IOException {
+        // Lines with characters of two and three bytes, so the kept byte offsets are not character offsets
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("Line ").append(i).append(" caf\u00e9 \u20ac filler text\n");
+        }
+        text.append("x".repeat(500)).append(" far needle ").append("y".repeat(500)).append('\n');
+        write("big.md", text.toString());
+        
+        WorkspaceIndex index = open();
+        index.update();
+        int[] checkpoints = WorkspaceIndex.checkpoints(text);
+        assertTrue(checkpoints.length >= 3 * 4);
+        assertEquals(text.indexOf("\n", WorkspaceIndex.CHECKPOINT_CHARS - 1) + 1, checkpoints[0]);
+        
+        List<WorkspaceIndex.Hit> hits = index.search("needle", 10);
+        assertEquals(1, hits.size());
+        assertEquals(5001, hits.get(0).getLine());
+        assertEquals(text.indexOf("needle"), hits.get(0).getOffset());
+        assertEquals("x".repeat(35) + " far needle " + "y".repeat(113), hits.get(0).getPreview());
+        
+        // The line kept right before a match starts the preview
+        assertEquals("Line 4000 caf\u00e9 \u20ac filler text", index.search("4000", 10).get(0).getPreview());
+        assertEquals(4001, index.search("4000", 10).get(0).getLine());
+    }
+    
+    @Test
+    void testUpdateSingleFile() throws IOException {
+        Path a = write("a.md", "alpha\n");
+        Path b = write("b.md", "beta\n");
+        
+        WorkspaceIndex index = open();
+        index.update();
+        assertFalse(index.update(a));
+        assertFalse(index.update(tempDir.resolve("other.md")));
+        
+        Files.writeString(a, "changed alpha\n", StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(a, FileTime.fromMillis(Files.getLastModifiedTime(a).toMillis() + 2000));
+        assertTrue(index.update(a));
+        assertEquals(1, index.lastIndexed());
+        assertEquals(1, index.search("changed", 10).size());
+        
+        Files.delete(b);
+        assertTrue(index.update(b));
+        assertTrue(index.search("beta", 10).isEmpty());
+        
+        // Single updates are only saved by flush
+        assertEquals(2, open().getFileCount());
+        assertTrue(index.flush());
+        WorkspaceIndex reloaded = open();
+        assertEquals(1, reloaded.getFileCount());
+        assertEquals(1, reloaded.search("changed", 10).size());
+        reloaded.update();
+        assertEquals(0, reloaded.lastIndexed());
+    }
+    
+    @Test
+    void testUpdateOnlyReadsChangedFiles() throws IOException {
+        write("a.md", "alpha\n");
+        Path b = write("b.md", "beta\n");
+        Path c = write("c.md", "gamma\n");
+        
+        WorkspaceIndex index = open();
+        index.update();
+        assertEquals(3, index.lastIndexed());
+        
+        index.update();
+        assertEquals(0, index.lastIndexed());
+        
+        Files.writeString(b, "delta and more\n", StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(b, FileTime.fromMillis(Files.getLastModifiedTime(b).toMillis() + 2000));
+        Files.delete(c);
+        assertTrue(index.update());
+        
+        assertEquals(1, index.lastIndexed());
+        assertEquals(2, index.getFileCount());
+        assertTrue(index.search("beta", 10).isEmpty());
+        assertTrue(index.search("gamma", 10).isEmpty());
+        assertEquals(1, index.search("delta", 10).size());
+        assertEquals(1, index.search("alpha", 10).size());
+    }
+    
+    @Test
+    void testIndexIsSavedAndLoaded() throws IOException {
+        write("a.md", "persisted words\n");
+        write("b.md", "other words\n");
+        write(".hidden/c.md", "persisted but hidden\n");
+        open().update();
+        
+        WorkspaceIndex reloaded = open();
+        assertEquals(2, reloaded.getFileCount());
+        assertEquals(1, reloaded.search("persisted", 10).size());
+        assertEquals(2, reloaded.search("words", 10).size());
+        
+        reloaded.update();
+        assertEquals(0, reloaded.lastIndexed());
+    }
+    
+    @Test
+    void testDamagedIndexIsRebuilt() throws IOException {
+        write("a.md", "recovered\n");
+        Files.writeString(tempDir.resolve("index.bin"), "not an index", StandardCharsets.UTF_8);
+        
+        WorkspaceIndex index = open();
+        assertEquals(0, index.getFileCount());
+        assertTrue(index.update());
+        assertEquals(1, index.search("recovered", 10).size());
+    }
+}